@@ -1,52 +1,158 @@
 package es.um.redes.nanoFiles.application;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.SocketException;
 
+import es.um.redes.nanoFiles.udp.server.ClientRateLimiter;
+import es.um.redes.nanoFiles.udp.server.DirectoryJournal;
+import es.um.redes.nanoFiles.udp.server.DirectoryShard;
 import es.um.redes.nanoFiles.udp.server.NFDirectoryServer;
+import es.um.redes.nanoFiles.util.Log;
+import es.um.redes.nanoFiles.util.NetImpairment;
 
 public class Directory {
 	public static final double DEFAULT_CORRUPTION_PROBABILITY = 0.0;
 
 	public static void main(String[] args) {
 		double datagramCorruptionProbability = DEFAULT_CORRUPTION_PROBABILITY;
+		int numWorkers = 0;
+		boolean virtualThreads = false;
+		String journalFolder = null;
+		DirectoryJournal.FsyncPolicy fsyncPolicy = DirectoryJournal.FsyncPolicy.INTERVAL;
+		int port = NFDirectoryServer.DIRECTORY_PORT;
+		DirectoryShard shard = null;
+		double rateLimit = ClientRateLimiter.DEFAULT_RATE;
+		Log.Level logLevel = Log.Level.INFO;
+		boolean logDrop = false;
+		NetImpairment impairment = null;
 
 		/**
-		 * Command line argument to directory is optional, if not specified, default
-		 * value is used: -loss: probability of corruption of received datagrams
+		 * Command line arguments to directory are optional, if not specified, default
+		 * values are used: -loss: probability of corruption of received datagrams;
+		 * -workers: number of threads of the worker pool (NIO mode); -virtual: use
+		 * one virtual thread per request (NIO mode, JDK 21+); -journal: folder where
+		 * the directory state is saved and recovered from; -fsync: when the journal
+		 * is written to disk (always, interval or never); -port: UDP port of the
+		 * directory; -shard i/n: this directory is shard i of n, and only keeps the
+		 * files whose hash falls in its range; -ratelimit: requests per second
+		 * allowed to each client address (0 = unlimited); -loglevel: debug, info,
+		 * warn, error or off (debug also prints every datagram); -logdrop: drop log
+		 * messages instead of waiting when the log buffer is full; -impair: delay,
+		 * jitter, reordering, duplication, bandwidth and loss applied to the
+		 * datagrams sent by the directory (see NetImpairment.parse, e.g.
+		 * delay=40,jitter=10,ge=0.01:0.3)
 		 */
 		String arg;
 
-		// Analizamos si hay parámetro
-		if (args.length > 0 && args[0].startsWith("-")) {
-			arg = args[0];
+		// Analizamos los parámetros
+		for (int i = 0; i < args.length; i++) {
+			arg = args[i];
 			// Examinamos si es un parámetro válido
-			if (arg.equals("-loss")) {
-				if (args.length == 2) {
+			if (arg.equals("-loss") || arg.equals("-workers") || arg.equals("-port") || arg.equals("-ratelimit")) {
+				if (i + 1 < args.length) {
 					try {
-						// El segundo argumento contiene la probabilidad de descarte
-						datagramCorruptionProbability = Double.parseDouble(args[1]);
+						if (arg.equals("-loss")) {
+							// El siguiente argumento contiene la probabilidad de descarte
+							datagramCorruptionProbability = Double.parseDouble(args[++i]);
+						} else if (arg.equals("-workers")) {
+							// El siguiente argumento contiene el número de hilos del pool
+							numWorkers = Integer.parseInt(args[++i]);
+						} else if (arg.equals("-ratelimit")) {
+							rateLimit = Double.parseDouble(args[++i]);
+						} else {
+							port = Integer.parseInt(args[++i]);
+						}
 					} catch (NumberFormatException e) {
 						System.err.println("Wrong value passed to option " + arg);
 						return;
 					}
 				} else
 					System.err.println("option " + arg + " requires a value");
+			} else if (arg.equals("-journal")) {
+				if (i + 1 < args.length) {
+					journalFolder = args[++i];
+				} else
+					System.err.println("option " + arg + " requires a value");
+			} else if (arg.equals("-fsync")) {
+				if (i + 1 < args.length) {
+					try {
+						fsyncPolicy = DirectoryJournal.FsyncPolicy.valueOf(args[++i].toUpperCase());
+					} catch (IllegalArgumentException e) {
+						System.err.println("Wrong value passed to option " + arg);
+						return;
+					}
+				} else
+					System.err.println("option " + arg + " requires a value");
+			} else if (arg.equals("-shard")) {
+				if (i + 1 < args.length) {
+					try {
+						shard = DirectoryShard.parse(args[++i]);
+					} catch (IllegalArgumentException e) {
+						System.err.println("Wrong value passed to option " + arg);
+						return;
+					}
+				} else
+					System.err.println("option " + arg + " requires a value");
+			} else if (arg.equals("-loglevel")) {
+				if (i + 1 < args.length) {
+					try {
+						logLevel = Log.Level.valueOf(args[++i].toUpperCase());
+					} catch (IllegalArgumentException e) {
+						System.err.println("Wrong value passed to option " + arg);
+						return;
+					}
+				} else
+					System.err.println("option " + arg + " requires a value");
+			} else if (arg.equals("-impair")) {
+				if (i + 1 < args.length) {
+					try {
+						impairment = NetImpairment.parse(args[++i]);
+					} catch (IllegalArgumentException e) {
+						System.err.println("Wrong value passed to option " + arg + ": " + e.getMessage());
+						return;
+					}
+				} else
+					System.err.println("option " + arg + " requires a value");
+			} else if (arg.equals("-logdrop")) {
+				logDrop = true;
+			} else if (arg.equals("-virtual")) {
+				virtualThreads = true;
 			} else {
 				System.err.println("Illegal option " + arg);
 			}
 		}
-		System.out.println("Probability of corruption for received datagrams: " + datagramCorruptionProbability);
+		Log.setLevel(logLevel);
+		Log.setDropWhenFull(logDrop);
+		Log.info("Probability of corruption for received datagrams: " + datagramCorruptionProbability);
 		try {
-			NFDirectoryServer dir = new NFDirectoryServer(datagramCorruptionProbability);
+			if (numWorkers > 0 || virtualThreads) {
+				Log.info("Worker pool: " + (virtualThreads ? "virtual threads" : numWorkers + " threads"));
+			}
+			DirectoryJournal journal = null;
+			if (journalFolder != null) {
+				Log.info("Journal: " + journalFolder + " (fsync " + fsyncPolicy.toString().toLowerCase() + ")");
+				journal = new DirectoryJournal(new File(journalFolder), fsyncPolicy);
+			}
+			if (shard != null) {
+				Log.info("Shard: " + shard);
+			}
+			NFDirectoryServer dir = new NFDirectoryServer(datagramCorruptionProbability, numWorkers,
+					virtualThreads, journal, port, shard);
+			Log.info("Rate limit per client: " + (rateLimit > 0 ? rateLimit + " requests/s" : "none"));
+			dir.setRateLimit(rateLimit);
+			if (impairment != null) {
+				Log.info("Impairment of sent datagrams: " + impairment);
+				dir.setImpairment(impairment);
+			}
 			dir.run();
 		} catch (SocketException e) {
-			System.err.println("Directory cannot create UDP socket");
-			System.err.println("Most likely a Directory process is already running and listening on that port...");
+			Log.error("Directory cannot create UDP socket");
+			Log.error("Most likely a Directory process is already running and listening on that port...");
 			System.exit(-1);
 		} catch (IOException e) {
 			e.printStackTrace();
-			System.err.println("Unexpected I/O error when running NFDirectoryServer.run");
+			Log.error("Unexpected I/O error when running NFDirectoryServer.run");
 			System.exit(-1);
 		}
 
@@ -0,0 +1,535 @@
+package es.um.redes.nanoFiles.application;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import es.um.redes.nanoFiles.udp.client.DirectoryConnector;
+import es.um.redes.nanoFiles.udp.server.LatencyHistogram;
+import es.um.redes.nanoFiles.util.FileInfo;
+import es.um.redes.nanoFiles.util.NetImpairment;
+
+/**
+ * Generador de carga para medir cuántas operaciones por segundo sostiene el
+ * directorio (NFDirectoryServer). Simula muchas sesiones de peers a la vez,
+ * cada una con su propio DirectoryConnector (su socket y su hilo de
+ * heartbeats, como un peer real), que ejecutan una mezcla configurable de
+ * operaciones: publish, search (por hash completo), filelist (el catálogo
+ * entero, página a página) y logout. Cada sesión inicia sesión al empezar y
+ * tras cada logout, con un nickname nuevo.
+ *
+ * Las sesiones se reparten entre un número fijo de hilos que ejecutan las
+ * operaciones una detrás de otra (bucle cerrado): como mucho hay tantas
+ * peticiones en curso como hilos. Antes de medir se inicia sesión en todas las
+ * sesiones y cada una publica sus ficheros una vez, para que las búsquedas
+ * encuentren resultados, y los primeros segundos (calentamiento) se descartan.
+ * Al terminar se informa del rendimiento, de los percentiles de latencia de
+ * cada operación (vista desde el cliente, con sus reintentos) y de los
+ * reintentos por pérdidas y por THROTTLED.
+ *
+ * Sólo se ejecuta contra un directorio en la máquina local. Todas las
+ * sesiones comparten la dirección 127.0.0.1, así que el directorio debe
+ * lanzarse con -ratelimit 0 para no limitarlas como a un único cliente; con
+ * -loss se miden los reintentos provocados por pérdidas.
+ */
+public class DirectoryLoad {
+	public static final String DEFAULT_DIRECTORY = "localhost";
+	public static final int DEFAULT_SESSIONS = 1000;
+	public static final int DEFAULT_THREADS = 64;
+	public static final int DEFAULT_DURATION_S = 10;
+	public static final int DEFAULT_WARMUP_S = 2;
+	public static final int DEFAULT_FILES = 20;
+	public static final String DEFAULT_MIX = "publish=1,search=8,filelist=0.01,logout=0.5";
+
+	private enum Op {
+		LOGIN, PUBLISH, SEARCH, FILELIST, LOGOUT
+	}
+
+	/**
+	 * Una sesión simulada. Sólo la usa un hilo a la vez (el que la saca de la
+	 * cola).
+	 */
+	private static class Session {
+		private final int id;
+		private final DirectoryConnector connector;
+		/**
+		 * Ficheros que publica la sesión (siempre los mismos)
+		 */
+		private final FileInfo[] files;
+		/**
+		 * Número de veces que ha iniciado sesión, para no repetir nicknames
+		 */
+		private int logins = 0;
+		private boolean loggedIn = false;
+
+		private Session(int id, DirectoryConnector connector, FileInfo[] files) {
+			this.id = id;
+			this.connector = connector;
+			this.files = files;
+		}
+	}
+
+	/**
+	 * Medidas de una fase de la prueba
+	 */
+	private static class Results {
+		private final LatencyHistogram[] latencies = new LatencyHistogram[Op.values().length];
+		private final LongAdder[] errors = new LongAdder[Op.values().length];
+		/**
+		 * Operaciones fallidas porque el directorio no respondió tras agotar los
+		 * reintentos del conector (también se cuentan en errors)
+		 */
+		private final LongAdder[] timeouts = new LongAdder[Op.values().length];
+		/**
+		 * Búsquedas que encontraron el fichero (no lo encuentran las de ficheros de
+		 * sesiones que han hecho logout y aún no han vuelto a publicar)
+		 */
+		private final LongAdder found = new LongAdder();
+
+		private Results() {
+			for (int i = 0; i < latencies.length; i++) {
+				latencies[i] = new LatencyHistogram();
+				errors[i] = new LongAdder();
+				timeouts[i] = new LongAdder();
+			}
+		}
+	}
+
+	private final Session[] sessions;
+	private final FileInfo[] catalogue;
+	private final double[] mix;
+	private final int threads;
+	private volatile Results results = new Results();
+	private volatile boolean running = true;
+
+	private DirectoryLoad(String directory, int numSessions, int threads, int filesPerSession, double[] mix,
+			boolean binary, boolean compression, int mtu) throws IOException {
+		this.threads = threads;
+		this.mix = mix;
+		Random random = new Random(1);
+		this.catalogue = new FileInfo[numSessions * filesPerSession];
+		for (int i = 0; i < catalogue.length; i++) {
+			StringBuilder hash = new StringBuilder();
+			for (int j = 0; j < 40; j++) {
+				hash.append(Character.forDigit(random.nextInt(16), 16));
+			}
+			catalogue[i] = new FileInfo(hash.toString(), "load-file-" + i + ".dat", 1 + random.nextInt(1 << 30),
+					null);
+		}
+		this.sessions = new Session[numSessions];
+		for (int i = 0; i < numSessions; i++) {
+			DirectoryConnector connector = new DirectoryConnector(directory);
+			connector.setBinaryFormat(binary);
+			connector.setCompression(compression);
+			if (mtu >= 0) {
+				connector.setMtu(mtu);
+			}
+			FileInfo[] files = new FileInfo[filesPerSession];
+			System.arraycopy(catalogue, i * filesPerSession, files, 0, filesPerSession);
+			sessions[i] = new Session(i, connector, files);
+		}
+	}
+
+	/**
+	 * Ejecuta una operación en una sesión y registra su latencia en las medidas de
+	 * la fase actual. Una sesión sin iniciar ejecuta LOGIN en lugar de op. Si el
+	 * conector agota sus reintentos, la operación cuenta como fallida y la sesión
+	 * sigue con la siguiente.
+	 */
+	private void execute(Session session, Op op) {
+		if (!session.loggedIn) {
+			op = Op.LOGIN;
+		}
+		Results phase = results;
+		boolean ok;
+		long start = System.nanoTime();
+		try {
+			ok = run(session, op, phase);
+		} catch (SocketTimeoutException e) {
+			phase.timeouts[op.ordinal()].increment();
+			ok = false;
+		} catch (UncheckedIOException e) {
+			// Error al pedir una página de FILELIST
+			if (e.getCause() instanceof SocketTimeoutException) {
+				phase.timeouts[op.ordinal()].increment();
+			}
+			ok = false;
+		} catch (IOException e) {
+			ok = false;
+		}
+		phase.latencies[op.ordinal()].record(System.nanoTime() - start);
+		if (!ok) {
+			phase.errors[op.ordinal()].increment();
+		}
+	}
+
+	/**
+	 * @return Si la operación ha tenido éxito (una búsqueda sin resultados
+	 *         también, se cuenta en phase.found)
+	 */
+	private boolean run(Session session, Op op, Results phase) throws IOException {
+		DirectoryConnector connector = session.connector;
+		switch (op) {
+		case LOGIN:
+			session.loggedIn = connector.logIntoDirectory("load" + session.id + "-" + session.logins++);
+			return session.loggedIn;
+		case PUBLISH:
+			return connector.publishLocalFiles(session.files);
+		case SEARCH: {
+			FileInfo file = catalogue[ThreadLocalRandom.current().nextInt(catalogue.length)];
+			if (connector.locateFile(file.fileHash) != null) {
+				phase.found.increment();
+			}
+			return true;
+		}
+		case FILELIST:
+			for (Iterator<FileInfo> it = connector.getFileList(); it.hasNext();) {
+				it.next();
+			}
+			return true;
+		case LOGOUT:
+			session.loggedIn = false;
+			return connector.logoutFromDirectory();
+		default:
+			throw new IllegalArgumentException(op.toString());
+		}
+	}
+
+	/**
+	 * Elige una operación según los pesos de la mezcla
+	 */
+	private Op nextOp() {
+		double total = 0;
+		for (double weight : mix) {
+			total += weight;
+		}
+		double r = ThreadLocalRandom.current().nextDouble() * total;
+		int chosen = 0;
+		for (int i = 0; i < mix.length; i++) {
+			if (mix[i] > 0) {
+				chosen = i;
+				r -= mix[i];
+				if (r < 0) {
+					break;
+				}
+			}
+		}
+		return Op.values()[chosen];
+	}
+
+	/**
+	 * Ejecuta en cada sesión la operación first y, si sigue con la sesión
+	 * iniciada, second, repartiendo las sesiones entre los hilos, y espera a que
+	 * terminen (fases de preparación y cierre; LOGOUT sólo en las sesiones
+	 * iniciadas)
+	 */
+	private void forEachSession(Op first, Op second) throws InterruptedException {
+		LinkedBlockingQueue<Session> pending = new LinkedBlockingQueue<Session>();
+		for (Session session : sessions) {
+			pending.add(session);
+		}
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(() -> {
+				Session session;
+				while ((session = pending.poll()) != null) {
+					if (first == Op.LOGOUT && !session.loggedIn) {
+						continue;
+					}
+					execute(session, first);
+					if (second != null && session.loggedIn) {
+						execute(session, second);
+					}
+				}
+			}, "load-setup-" + i);
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+	}
+
+	/**
+	 * Fase de carga: cada hilo saca una sesión de la cola, ejecuta una operación
+	 * y la devuelve a la cola, hasta que se detiene la prueba
+	 */
+	private Thread[] startLoad() {
+		LinkedBlockingQueue<Session> idle = new LinkedBlockingQueue<Session>();
+		for (Session session : sessions) {
+			idle.add(session);
+		}
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(() -> {
+				try {
+					while (running) {
+						Session session = idle.take();
+						execute(session, nextOp());
+						idle.add(session);
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+			}, "load-" + i);
+			workers[i].start();
+		}
+		return workers;
+	}
+
+	private long sumRetries(boolean throttled) {
+		long retries = 0;
+		for (Session session : sessions) {
+			retries += throttled ? session.connector.getThrottledRetries() : session.connector.getRetries();
+		}
+		return retries;
+	}
+
+	/**
+	 * Ejecuta la prueba completa e imprime el informe en report
+	 */
+	private void runTest(int warmupSeconds, int durationSeconds, PrintStream report) throws InterruptedException {
+		long start = System.nanoTime();
+		forEachSession(Op.LOGIN, Op.PUBLISH);
+		Results setup = results;
+		report.printf("Setup: %d sessions logged in and published %d files in %.1f s (%d errors, %d timeouts)%n",
+				sessions.length, catalogue.length, (System.nanoTime() - start) / 1e9,
+				setup.errors[Op.LOGIN.ordinal()].sum() + setup.errors[Op.PUBLISH.ordinal()].sum(),
+				setup.timeouts[Op.LOGIN.ordinal()].sum() + setup.timeouts[Op.PUBLISH.ordinal()].sum());
+
+		results = new Results();
+		Thread[] workers = startLoad();
+		Thread.sleep(warmupSeconds * 1000L);
+		long retries = sumRetries(false);
+		long throttled = sumRetries(true);
+		Results measured = new Results();
+		results = measured;
+		start = System.nanoTime();
+		Thread.sleep(durationSeconds * 1000L);
+		results = new Results();
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		retries = sumRetries(false) - retries;
+		throttled = sumRetries(true) - throttled;
+		running = false;
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		report.printf("Load: %d sessions, %d threads, %.1f s measured after %d s warmup%n", sessions.length,
+				threads, elapsed, warmupSeconds);
+		report.printf("%-10s %9s %9s %7s %8s   latency (us) p50 p99 p99.9 max%n", "operation", "ops", "ops/s",
+				"errors", "timeouts");
+		long total = 0;
+		long timeouts = 0;
+		for (Op op : Op.values()) {
+			LatencyHistogram latency = measured.latencies[op.ordinal()];
+			long count = latency.getCount();
+			total += count;
+			if (count == 0) {
+				continue;
+			}
+			timeouts += measured.timeouts[op.ordinal()].sum();
+			report.printf("%-10s %9d %9.0f %7d %8d   %.1f %.1f %.1f %.1f%n", op.toString().toLowerCase(), count,
+					count / elapsed, measured.errors[op.ordinal()].sum(), measured.timeouts[op.ordinal()].sum(),
+					latency.getValueAtPercentile(50) / 1000.0, latency.getValueAtPercentile(99) / 1000.0,
+					latency.getValueAtPercentile(99.9) / 1000.0, latency.getMax() / 1000.0);
+		}
+		report.printf("total      %9d %9.0f ops/s%n", total, total / elapsed);
+		long searches = measured.latencies[Op.SEARCH.ordinal()].getCount();
+		if (searches > 0) {
+			report.printf("searches: %.1f%% found%n", measured.found.sum() * 100.0 / searches);
+		}
+		report.printf("retries: %d after timeouts (%.2f per 1000 ops), %d after THROTTLED%n", retries,
+				(total > 0) ? retries * 1000.0 / total : 0.0, throttled);
+		if (timeouts > 0) {
+			report.printf("WARNING: %d operations failed after exhausting their retries%n", timeouts);
+		}
+		if (throttled > 0) {
+			report.println("WARNING: the directory is throttling the sessions, run it with -ratelimit 0");
+		}
+	}
+
+	/**
+	 * Cierra todas las sesiones e imprime en report las estadísticas del
+	 * directorio
+	 */
+	private void finish(PrintStream report) throws InterruptedException {
+		String[] stats = null;
+		for (Session session : sessions) {
+			if (session.loggedIn) {
+				try {
+					stats = session.connector.getDirectoryStats();
+				} catch (IOException e) {
+					report.println("Cannot get directory stats: " + e.getMessage());
+				}
+				break;
+			}
+		}
+		if (stats != null) {
+			report.println("Directory stats:");
+			for (String line : stats) {
+				report.println("  " + line);
+			}
+		}
+		forEachSession(Op.LOGOUT, null);
+	}
+
+	/**
+	 * @return Los pesos de cada operación (por ordinal de Op) de una mezcla
+	 *         "op=peso,op=peso...". LOGIN no forma parte de la mezcla: las
+	 *         sesiones lo hacen al empezar y tras cada logout.
+	 * @throws IllegalArgumentException Si la mezcla no es válida
+	 */
+	private static double[] parseMix(String mix) {
+		double[] weights = new double[Op.values().length];
+		double total = 0;
+		for (String entry : mix.split(",")) {
+			int equals = entry.indexOf('=');
+			if (equals < 0) {
+				throw new IllegalArgumentException(entry);
+			}
+			Op op = Op.valueOf(entry.substring(0, equals).trim().toUpperCase());
+			double weight = Double.parseDouble(entry.substring(equals + 1));
+			if (op == Op.LOGIN || weight < 0) {
+				throw new IllegalArgumentException(entry);
+			}
+			weights[op.ordinal()] = weight;
+			total += weight;
+		}
+		if (total <= 0) {
+			throw new IllegalArgumentException(mix);
+		}
+		return weights;
+	}
+
+	/**
+	 * @return Verdadero si todas las particiones de la dirección del directorio
+	 *         ("host[:puerto],...") están en la máquina local
+	 */
+	private static boolean isLocal(String directory) {
+		for (String address : directory.split(",")) {
+			String host = address.trim();
+			int colon = host.indexOf(':');
+			if (colon >= 0) {
+				host = host.substring(0, colon);
+			}
+			try {
+				if (!InetAddress.getByName(host).isLoopbackAddress()) {
+					return false;
+				}
+			} catch (IOException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public static void main(String[] args) {
+		String directory = DEFAULT_DIRECTORY;
+		int sessions = DEFAULT_SESSIONS;
+		int threads = DEFAULT_THREADS;
+		int duration = DEFAULT_DURATION_S;
+		int warmup = DEFAULT_WARMUP_S;
+		int files = DEFAULT_FILES;
+		String mix = DEFAULT_MIX;
+		boolean binary = true;
+		boolean compression = true;
+		int mtu = -1;
+
+		/**
+		 * Command line arguments are optional, if not specified, default values are
+		 * used: -dir: address of the directory (host[:port], or a comma-separated
+		 * list of shards), which must be local; -sessions: number of simulated peer
+		 * sessions; -threads: number of threads running operations (requests in
+		 * flight); -duration: seconds measured; -warmup: seconds run before
+		 * measuring; -files: files published by each session; -mix: relative
+		 * weights of publish, search, filelist and logout (e.g.
+		 * publish=1,search=8,filelist=0.01,logout=0.5); -text: use the text format;
+		 * -nocompression: do not accept compressed replies; -mtu: MTU for
+		 * fragmented messages (0 = no fragments); -impair: impairment of the
+		 * requests sent by the sessions (see NetImpairment.parse)
+		 */
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("-text")) {
+				binary = false;
+				continue;
+			} else if (arg.equals("-nocompression")) {
+				compression = false;
+				continue;
+			}
+			if (i + 1 >= args.length) {
+				System.err.println("option " + arg + " requires a value");
+				return;
+			}
+			String value = args[++i];
+			try {
+				if (arg.equals("-dir")) {
+					directory = value;
+				} else if (arg.equals("-sessions")) {
+					sessions = Integer.parseInt(value);
+				} else if (arg.equals("-threads")) {
+					threads = Integer.parseInt(value);
+				} else if (arg.equals("-duration")) {
+					duration = Integer.parseInt(value);
+				} else if (arg.equals("-warmup")) {
+					warmup = Integer.parseInt(value);
+				} else if (arg.equals("-files")) {
+					files = Integer.parseInt(value);
+				} else if (arg.equals("-mix")) {
+					parseMix(value);
+					mix = value;
+				} else if (arg.equals("-mtu")) {
+					mtu = Integer.parseInt(value);
+				} else if (arg.equals("-impair")) {
+					NetImpairment.setCurrent(NetImpairment.parse(value));
+				} else {
+					System.err.println("Illegal option " + arg);
+					return;
+				}
+			} catch (IllegalArgumentException e) {
+				System.err.println("Wrong value passed to option " + arg);
+				return;
+			}
+		}
+		if (sessions <= 0 || threads <= 0 || duration <= 0 || warmup < 0 || files <= 0) {
+			System.err.println("Sessions, threads, duration and files must be positive");
+			return;
+		}
+		if (!isLocal(directory)) {
+			System.err.println("The load generator only runs against a directory on this machine: " + directory);
+			return;
+		}
+		/*
+		 * Los conectores informan de cada operación por la salida estándar y de los
+		 * fallos por la de errores, como en el shell. Durante la prueba se
+		 * descartan (los fallos se cuentan) y el informe va a la salida original.
+		 */
+		PrintStream report = System.out;
+		PrintStream errors = System.err;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+		try {
+			report.println("Directory " + directory + ", mix " + mix + ", " + files + " files per session"
+					+ (NetImpairment.getCurrent() != null ? ", impairment " + NetImpairment.getCurrent() : ""));
+			DirectoryLoad load = new DirectoryLoad(directory, sessions, threads, files, parseMix(mix), binary,
+					compression, mtu);
+			load.runTest(warmup, duration, report);
+			load.finish(report);
+		} catch (IOException e) {
+			report.println("Cannot create the directory connectors: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			System.setOut(report);
+			System.setErr(errors);
+		}
+	}
+}
@@ -1,9 +1,12 @@
 package es.um.redes.nanoFiles.application;
 
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 
 import es.um.redes.nanoFiles.logic.NFController;
+import es.um.redes.nanoFiles.tcp.server.UploadLoad;
 import es.um.redes.nanoFiles.util.FileDatabase;
+import es.um.redes.nanoFiles.util.NetImpairment;
 
 public class NanoFiles {
 
@@ -18,14 +21,43 @@ public class NanoFiles {
 
 	public static void main(String[] args) {
 		// Comprobamos los argumentos
-		if (args.length > 1) {
+		int arg = 0;
+		while (args.length - arg >= 2 && args[arg].startsWith("-")) {
+			if (args[arg].equals("-uplink")) {
+				/*
+				 * Capacidad de subida del peer (KiB/s): con ella se calcula el ancho de
+				 * banda libre que se comunica al directorio
+				 */
+				try {
+					UploadLoad.setCapacity(Integer.parseInt(args[arg + 1]));
+				} catch (NumberFormatException e) {
+					System.out.println("Invalid uplink capacity: " + args[arg + 1]);
+					return;
+				}
+			} else if (args[arg].equals("-impair")) {
+				/*
+				 * Degradación (retardo, pérdidas...) de lo que envía el peer, al directorio
+				 * y a otros peers: ver NetImpairment
+				 */
+				try {
+					NetImpairment.setCurrent(NetImpairment.parse(args[arg + 1]));
+				} catch (IllegalArgumentException e) {
+					System.out.println("Invalid impairment " + args[arg + 1] + ": " + e.getMessage());
+					return;
+				}
+			} else {
+				break;
+			}
+			arg += 2;
+		}
+		if (args.length - arg > 1) {
 			System.out
-					.println("Usage: java -jar NanoFiles.jar [<local_shared_directory>]");
+					.println("Usage: java -jar NanoFiles.jar [-uplink <KiB/s>] [-impair <spec>] [<local_shared_directory>]");
 			return;
 		}
-		else if (args.length == 1) {
+		else if (args.length - arg == 1) {
 			// Establecemos el directorio compartido especificado 
-			sharedDirname = args[0];
+			sharedDirname = args[arg];
 		}
 
 		db = new FileDatabase(sharedDirname);
@@ -38,6 +70,9 @@ public class NanoFiles {
 			controller.readGeneralCommandFromShell();
 			try {
 				controller.processCommand();
+			} catch (SocketTimeoutException e) {
+				// El directorio no responde: se informa y el shell sigue aceptando comandos
+				System.err.println("* " + e.getMessage());
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -62,6 +62,7 @@ public class NFController {
 	private String downloadTargetFileHash; // Hash del fichero a descargar (download)
 	private String downloadLocalFileName; // Nombre con el que se guardará el fichero descargado
 	private String downloadTargetServer; // nombre o IP:puerto del sevidor del que se descargará el fichero
+	private String searchKeywords; // Palabras a buscar en los nombres de los ficheros (searchname)
 
 	// Constructor
 	public NFController() {
@@ -197,6 +198,31 @@ public class NFController {
 			 */
 			commandSucceeded = controllerDir.getAndPrintServersNicknamesSharingThisFile(downloadTargetFileHash);
 			break;
+		case NFCommands.COM_SEARCHNAME:
+			/*
+			 * Pedir al controllerDir que obtenga del directorio y muestre los ficheros
+			 * cuyo nombre contiene las palabras indicadas, junto con los servidores que
+			 * comparten cada uno
+			 */
+			commandSucceeded = controllerDir.getAndPrintFilesMatchingName(searchKeywords);
+			break;
+		case NFCommands.COM_DIRSTATS:
+			/*
+			 * Pedir al controllerDir que obtenga del directorio sus métricas y las
+			 * muestre por pantalla
+			 */
+			commandSucceeded = controllerDir.getAndPrintDirectoryStats();
+			break;
+		case NFCommands.COM_WATCH:
+			/*
+			 * Pedir al controllerDir que añada a la suscripción el hash o las palabras
+			 * indicadas: los cambios se mostrarán según los avise el directorio
+			 */
+			commandSucceeded = controllerDir.watch(searchKeywords);
+			break;
+		case NFCommands.COM_UNWATCH:
+			commandSucceeded = controllerDir.unwatch();
+			break;
 		case NFCommands.COM_DOWNLOAD:
 			/*
 			 * Pedir al controllerDir que obtenga del directorio la lista de nicknames de
@@ -295,6 +321,29 @@ public class NFController {
 				commandAllowed = false;
 				System.err.println("* You cannot search a file because you are not logged in");
 			}
+			break;
+		}
+		case NFCommands.COM_SEARCHNAME: {
+			if(currentState == LOGGED_OUT) {
+				commandAllowed = false;
+				System.err.println("* You cannot search files by name because you are not logged in");
+			}
+			break;
+		}
+		case NFCommands.COM_DIRSTATS: {
+			if(currentState == LOGGED_OUT) {
+				commandAllowed = false;
+				System.err.println("* You cannot get the directory stats because you are not logged in");
+			}
+			break;
+		}
+		case NFCommands.COM_WATCH:
+		case NFCommands.COM_UNWATCH: {
+			if(currentState == LOGGED_OUT) {
+				commandAllowed = false;
+				System.err.println("* You cannot watch files because you are not logged in");
+			}
+			break;
 		}
 		case NFCommands.COM_FILELIST: {
 			if(currentState == LOGGED_OUT) {
@@ -386,6 +435,10 @@ public class NFController {
 			downloadTargetFileHash = args[0];
 			downloadLocalFileName = args[1];
 			break;
+		case NFCommands.COM_SEARCHNAME:
+		case NFCommands.COM_WATCH:
+			searchKeywords = String.join(" ", args);
+			break;
 		default:
 		}
 	}
@@ -1,12 +1,19 @@
 package es.um.redes.nanoFiles.logic;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import es.um.redes.nanoFiles.application.NanoFiles;
+import es.um.redes.nanoFiles.tcp.client.NFConnector;
 import es.um.redes.nanoFiles.udp.client.DirectoryConnector;
 import es.um.redes.nanoFiles.util.FileInfo;
 
@@ -146,20 +153,36 @@ public class NFControllerLogicDir {
 		 */
 		boolean result = false;
 
-		FileInfo[] ficheros = directoryConnector.getFileList();
-		if(ficheros.length!=0 && ficheros[0]!=null){
-			result = true;
-			System.out.println("Ficheros publicos:");
-			for(FileInfo fichero : ficheros){
-				String[] nicks = directoryConnector.getServerNicknamesSharingThisFile(fichero.fileHash);
-				LinkedList<String> nickList = new LinkedList<String>();
-				for(String nick : nicks) {
-					nickList.add(nick);
+		Iterator<List<FileInfo>> paginas = directoryConnector.getFileListPages();
+		try {
+			if(paginas.hasNext()){
+				result = true;
+				System.out.println("Ficheros publicos:");
+				/*
+				 * Los servidores de los ficheros de cada página se piden a la vez (en tan
+				 * pocos datagramas como sea posible), en vez de hacer una búsqueda por
+				 * fichero, y la página se imprime antes de pedir la siguiente
+				 */
+				while(paginas.hasNext()){
+					List<FileInfo> lista = paginas.next();
+					List<String> hashes = new ArrayList<String>(lista.size());
+					for(FileInfo fichero : lista){
+						hashes.add(fichero.fileHash);
+					}
+					Map<String, String[]> servidores = directoryConnector.getServerNicknamesSharingTheseFiles(hashes);
+					for(FileInfo fichero : lista){
+						// El fichero puede haber dejado de publicarse mientras se recorre la lista
+						String[] nicks = (servidores != null) ? servidores.get(fichero.fileHash) : null;
+						List<String> nickList = (nicks != null) ? Arrays.asList(nicks) : new LinkedList<String>();
+						System.out.println("Fichero: " + fichero.fileName + " Tamaño: " + fichero.fileSize + " Hash: " + fichero.fileHash + " Servers: " + nickList);
+					}
 				}
-				if (fichero != null) System.out.println("Fichero: " + fichero.fileName + " Hash: " + fichero.fileHash + " Servers: " + nickList);
+			} else {
+				System.out.println("No hay ficheros");
 			}
-		} else {
-			System.out.println("No hay ficheros");
+		} catch (UncheckedIOException e) {
+			// El iterador de páginas no puede lanzar IOException
+			throw e.getCause();
 		}
 
 		return result;
@@ -205,6 +228,7 @@ public class NFControllerLogicDir {
 		 */
 		boolean result = false;
 
+		NanoFiles.db.refresh(); // Sólo se publican los cambios desde la última vez
 		result = directoryConnector.publishLocalFiles(NanoFiles.db.getFiles());
 
 		return result;
@@ -304,6 +328,91 @@ public class NFControllerLogicDir {
 		return result;
 	}
 
+	/**
+	 * Método para buscar en el directorio los ficheros cuyo nombre contiene unas
+	 * palabras dadas, y mostrarlos por pantalla junto con los servidores que los
+	 * comparten
+	 *
+	 * @param keywords Palabras a buscar en los nombres de los ficheros
+	 * @return Verdadero si se encontró algún fichero
+	 * @throws IOException
+	 */
+	public boolean getAndPrintFilesMatchingName(String keywords) throws IOException {
+		boolean result = false;
+
+		FileInfo[] ficheros = directoryConnector.searchFilesByName(keywords);
+		if(ficheros != null && ficheros.length != 0){
+			result = true;
+			System.out.println("Ficheros encontrados:");
+			for(FileInfo fichero : ficheros){
+				System.out.println("Fichero: " + fichero.fileName + " Tamaño: " + fichero.fileSize + " Hash: " + fichero.fileHash + " Servers: " + Arrays.toString(fichero.servers));
+			}
+		} else {
+			System.out.println("No hay ficheros");
+		}
+
+		return result;
+	}
+
+	/**
+	 * Método para suscribirse a los cambios de un fichero, si se indica su hash
+	 * completo, o de los ficheros cuyo nombre contiene unas palabras. Se añade a
+	 * las suscripciones anteriores; los cambios se muestran por pantalla según
+	 * los avisa el directorio.
+	 *
+	 * @param hashOrKeywords El hash completo del fichero o las palabras a buscar
+	 *                       en los nombres
+	 * @return Verdadero si el directorio aceptó la suscripción
+	 * @throws IOException
+	 */
+	public boolean watch(String hashOrKeywords) throws IOException {
+		Set<String> hashes = directoryConnector.getWatchedHashes();
+		Set<String> patterns = directoryConnector.getWatchedPatterns();
+		if (hashOrKeywords.matches("[0-9a-fA-F]{40}")) {
+			hashes.add(hashOrKeywords.toLowerCase());
+		} else {
+			patterns.add(hashOrKeywords);
+		}
+		boolean result = directoryConnector.watch(hashes, patterns, fichero -> {
+			System.out.println("* Cambio en fichero: " + fichero.fileName + " Tamaño: " + fichero.fileSize
+					+ " Hash: " + fichero.fileHash + " Servers: " + Arrays.toString(fichero.servers));
+		});
+		if (result) {
+			System.out.println("Vigilando " + hashes.size() + " hashes y " + patterns.size() + " patrones");
+		}
+		return result;
+	}
+
+	/**
+	 * Método para cancelar todas las suscripciones a cambios de ficheros
+	 *
+	 * @return Verdadero si el directorio canceló la suscripción
+	 * @throws IOException
+	 */
+	public boolean unwatch() throws IOException {
+		return directoryConnector.unwatch();
+	}
+
+	/**
+	 * Método para obtener y mostrar las métricas del directorio (peticiones
+	 * recibidas, descartadas y latencia de cada operación)
+	 *
+	 * @return Verdadero si el directorio envió sus métricas
+	 * @throws IOException
+	 */
+	protected boolean getAndPrintDirectoryStats() throws IOException {
+		String[] lineas = directoryConnector.getDirectoryStats();
+		if (lineas == null) {
+			return false;
+		}
+		System.out.println("Métricas del directorio:");
+		for (String linea : lineas) {
+			System.out.println(linea);
+		}
+		System.out.println("");
+		return true;
+	}
+
 	/**
 	 * Método para consultar al directorio las direcciones de socket de los
 	 * servidores que tienen un determinado fichero identificado por su hash.
@@ -313,9 +422,11 @@ public class NFControllerLogicDir {
 	 * @return Una lista de direcciones de socket de los servidores que comparten
 	 *         dicho fichero, o null si dicha subcadena del hash no identifica
 	 *         ningún fichero concreto (no existe o es una subcadena ambigua)
+	 * @throws IOException 
 	 * 
 	 */
-	public LinkedList<InetSocketAddress> getServerAddressesSharingThisFile(String downloadTargetFileHash) {
+	public LinkedList<InetSocketAddress> getServerAddressesSharingThisFile(String downloadTargetFileHash)
+			throws IOException {
 		LinkedList<InetSocketAddress> serverAddressList = null;
 		/*
 		 * TODO: Comunicarse con el directorio (a través del directoryConnector) para
@@ -328,12 +439,54 @@ public class NFControllerLogicDir {
 		 * 
 		 */
 
-
-
+		// La respuesta a la búsqueda ya incluye la dirección de cada servidor
+		FileInfo fichero = directoryConnector.locateFile(downloadTargetFileHash);
+		if(fichero != null) {
+			confirmCandidates(fichero);
+		}
+		if(fichero != null && fichero.serverAddresses != null && fichero.serverAddresses.length > 0) {
+			serverAddressList = new LinkedList<InetSocketAddress>(Arrays.asList(fichero.serverAddresses));
+			System.out.println("Fichero: " + fichero.fileName
+					+ (fichero.fileSize >= 0 ? " (" + fichero.fileSize + " bytes)" : "") + " Servers: " + serverAddressList);
+		} else if(fichero != null) {
+			System.err.println("ERROR: no server sharing the file is reachable");
+		}
 
 		return serverAddressList;
 	}
 
+	/**
+	 * Pregunta a cada peer que quizá comparte el fichero (según su filtro de Bloom)
+	 * si lo tiene, y añade los que lo confirman a sus servidores. Si el directorio
+	 * no conocía el nombre y tamaño del fichero, se toman de la confirmación.
+	 */
+	private void confirmCandidates(FileInfo fichero) {
+		if(fichero.candidateAddresses == null || fichero.candidateAddresses.length == 0) {
+			return;
+		}
+		List<String> servers = new ArrayList<String>(Arrays.asList(fichero.servers));
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>(Arrays.asList(fichero.serverAddresses));
+		for(int i = 0; i < fichero.candidateAddresses.length; i++) {
+			FileInfo confirmed = null;
+			try {
+				confirmed = new NFConnector(fichero.candidateAddresses[i]).queryFile(fichero.fileHash);
+			} catch (IOException e) {
+				System.err.println("* Could not ask " + fichero.candidates[i] + " for the file: " + e.getMessage());
+			}
+			if(confirmed == null) {
+				continue;
+			}
+			servers.add(fichero.candidates[i]);
+			addresses.add(fichero.candidateAddresses[i]);
+			if(fichero.fileName == null || fichero.fileName.isEmpty()) {
+				fichero.fileName = confirmed.fileName;
+				fichero.fileSize = confirmed.fileSize;
+			}
+		}
+		fichero.servers = servers.toArray(new String[servers.size()]);
+		fichero.serverAddresses = addresses.toArray(new InetSocketAddress[addresses.size()]);
+	}
+
 	/**
 	 * Método para dar de baja a nuestro servidor de ficheros en el directorio.
 	 * 
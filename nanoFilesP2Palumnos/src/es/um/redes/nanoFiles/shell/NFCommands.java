@@ -17,6 +17,10 @@ public class NFCommands {
 	public static final byte COM_DOWNLOADFROM = 23;
 	public static final byte COM_SEARCH = 24;
 	public static final byte COM_DOWNLOAD = 25;
+	public static final byte COM_SEARCHNAME = 26;
+	public static final byte COM_DIRSTATS = 27;
+	public static final byte COM_WATCH = 28;
+	public static final byte COM_UNWATCH = 29;
 	public static final byte COM_LOGOUT = 30;
 	public static final byte COM_SLEEP = 49;
 	public static final byte COM_HELP = 50;
@@ -43,6 +47,10 @@ public class NFCommands {
 		COM_DOWNLOADFROM,
 		COM_SEARCH,
 		COM_DOWNLOAD,
+		COM_SEARCHNAME,
+		COM_DIRSTATS,
+		COM_WATCH,
+		COM_UNWATCH,
 		COM_LOGOUT,
 		COM_SLEEP,
 		COM_HELP,
@@ -65,6 +73,10 @@ public class NFCommands {
 			"downloadfrom",
 			"search",
 			"download",
+			"searchname",
+			"dirstats",
+			"watch",
+			"unwatch",
 			"logout",
 			"sleep",
 			"help"
@@ -75,7 +87,7 @@ public class NFCommands {
 	 */
 	private static final String[] _valid_user_commands_help = {
 			"quit the application",
-			"log into <directory> using <nickname>",
+			"log into <directory> (host[:port], or host:port,host:port,... for a sharded one) using <nickname>",
 			"show list of users logged into the directory",
 			"show list of files tracked by the directory",
 			"show contents of local folder (files that may be served)",
@@ -86,6 +98,10 @@ public class NFCommands {
 			"download from server given by <nickname> the file identified by <hash>",
 			"show list of servers sharing the file identified by <hash>",
 			"download the file identified by <hash> from all available server(s)",
+			"show files whose name contains <keywords>, with the servers sharing them",
+			"show directory metrics: requests, drops and latency per operation",
+			"notify changes in the servers of the file with <hash>, or of files whose name contains <keywords>",
+			"stop notifying file changes",
 			"log out from the current directory",
 			"sleep during <num> seconds",
 			"shows this information"
@@ -104,11 +104,15 @@ public class NFShell {
 			case NFCommands.COM_MYFILES:
 			case NFCommands.COM_FGSERVE:
 			case NFCommands.COM_BGSERVE:
+			case NFCommands.COM_DIRSTATS:
+			case NFCommands.COM_UNWATCH:
 				// Estos comandos son válidos sin parámetros
 				break;
 			case NFCommands.COM_DOWNLOADFROM:
 			case NFCommands.COM_SEARCH:
 			case NFCommands.COM_DOWNLOAD:
+			case NFCommands.COM_SEARCHNAME:
+			case NFCommands.COM_WATCH:
 			case NFCommands.COM_LOGIN:
 				// Estos requieren un parámetro
 				while (st.hasMoreTokens()) {
@@ -158,6 +162,18 @@ public class NFShell {
 				return false;
 			}
 			break;
+		case NFCommands.COM_SEARCHNAME:
+			if (args.length < 1) {
+				System.out.println("Correct use: " + NFCommands.commandToString(command) + " <keywords>");
+				return false;
+			}
+			break;
+		case NFCommands.COM_WATCH:
+			if (args.length < 1) {
+				System.out.println("Correct use: " + NFCommands.commandToString(command) + " <file_hash|keywords>");
+				return false;
+			}
+			break;
 		default:
 		}
 		// El resto no requieren parámetro
@@ -13,6 +13,8 @@ import java.net.UnknownHostException;
 import es.um.redes.nanoFiles.tcp.message.PeerMessage;
 import es.um.redes.nanoFiles.tcp.message.PeerMessageOps;
 import es.um.redes.nanoFiles.util.FileDigest;
+import es.um.redes.nanoFiles.util.FileInfo;
+import es.um.redes.nanoFiles.util.NetImpairment;
 
 //Esta clase proporciona la funcionalidad necesaria para intercambiar mensajes entre el cliente y el servidor
 public class NFConnector {
@@ -20,6 +22,10 @@ public class NFConnector {
 	private InetSocketAddress serverAddr;
 	DataInputStream dis;
 	DataOutputStream dos;
+	/**
+	 * Tiempo máximo de espera de la respuesta a queryFile
+	 */
+	private static final int QUERY_TIMEOUT_MS = 2000;
 
 
 	public NFConnector(InetSocketAddress fserverAddr) throws UnknownHostException, IOException {
@@ -36,7 +42,7 @@ public class NFConnector {
 		 * datos del servidor.
 		 */
 		dis = new DataInputStream(socket.getInputStream());
-		dos = new DataOutputStream(socket.getOutputStream());
+		dos = new DataOutputStream(NetImpairment.wrapCurrent(socket.getOutputStream()));
 	}
 
 	/**
@@ -152,6 +158,35 @@ public class NFConnector {
 
 
 
+	/**
+	 * Método para preguntar al peer servidor si comparte un fichero, sin
+	 * descargarlo (para confirmar que no es un falso positivo de su filtro de
+	 * Bloom). Cierra la conexión al terminar.
+	 * 
+	 * @param fileHash El hash completo del fichero
+	 * @return El fichero, con su nombre y tamaño según el servidor, o null si el
+	 *         servidor no lo comparte
+	 * @throws IOException Si se produce algún error al leer/escribir del socket,
+	 *                     o el servidor no responde en QUERY_TIMEOUT_MS
+	 */
+	public FileInfo queryFile(String fileHash) throws IOException {
+		try {
+			socket.setSoTimeout(QUERY_TIMEOUT_MS);
+			PeerMessage outputMessage = new PeerMessage(PeerMessageOps.OPCODE_FILE_QUERY);
+			outputMessage.setHash(fileHash);
+			outputMessage.writeMessageToOutputStream(dos);
+			PeerMessage inputMessage = PeerMessage.readMessageFromInputStream(dis);
+			if (inputMessage.getOpcode() == PeerMessageOps.OPCODE_FILE_INFO
+					&& fileHash.equals(inputMessage.getHash())) {
+				return new FileInfo(inputMessage.getHash(), inputMessage.getFileName(), inputMessage.getFileSize(),
+						null);
+			}
+			return null;
+		} finally {
+			socket.close();
+		}
+	}
+
 	public InetSocketAddress getServerAddr() {
 		return serverAddr;
 	}
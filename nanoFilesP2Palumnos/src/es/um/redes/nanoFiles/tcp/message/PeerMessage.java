@@ -127,6 +127,14 @@ public class PeerMessage {
 			
 			message.file = dis.readNBytes(message.fileSize);
 			
+			break;
+		case(PeerMessageOps.OPCODE_FILE_QUERY):
+			message.hash = dis.readUTF();
+			break;
+		case(PeerMessageOps.OPCODE_FILE_INFO):
+			message.hash = dis.readUTF();
+			message.fileName = dis.readUTF();
+			message.fileSize = dis.readInt();
 			break;
 		default:
 			System.err.println("PeerMessage.readMessageFromInputStream doesn't know how to parse this message opcode: "
@@ -160,6 +168,14 @@ public class PeerMessage {
 			
 			dos.write(file);
 			
+			break;
+		case(PeerMessageOps.OPCODE_FILE_QUERY):
+			dos.writeUTF(hash);
+			break;
+		case(PeerMessageOps.OPCODE_FILE_INFO):
+			dos.writeUTF(hash);
+			dos.writeUTF(fileName);
+			dos.writeInt(fileSize);
 			break;
 		default:
 			System.err.println("PeerMessage.writeMessageToOutputStream found unexpected message opcode " + opcode + "("
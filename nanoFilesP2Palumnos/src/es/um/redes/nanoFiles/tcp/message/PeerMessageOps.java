@@ -10,6 +10,13 @@ public class PeerMessageOps {
 	public static final byte OPCODE_DOWNLOAD_FROM = 2;
 	public static final byte OPCODE_DOWNLOAD_FROM_OK = 3;
 	public static final byte OPCODE_AMBIGUOUS_DOWNLOAD = 4;
+	/**
+	 * Pregunta a un peer si comparte el fichero con un hash completo (para
+	 * confirmar los candidatos de su filtro de Bloom) y su respuesta afirmativa,
+	 * con el nombre y tamaño del fichero
+	 */
+	public static final byte OPCODE_FILE_QUERY = 5;
+	public static final byte OPCODE_FILE_INFO = 6;
 
 	/**
 	 * TODO: Definir constantes con nuevos opcodes de mensajes
@@ -21,14 +28,18 @@ public class PeerMessageOps {
 			OPCODE_FILE_NOT_FOUND,
 			OPCODE_DOWNLOAD_FROM,
 			OPCODE_DOWNLOAD_FROM_OK,
-			OPCODE_AMBIGUOUS_DOWNLOAD};
+			OPCODE_AMBIGUOUS_DOWNLOAD,
+			OPCODE_FILE_QUERY,
+			OPCODE_FILE_INFO};
 	
 	private static final String[] _valid_operations_str = {
 			"INVALID_OPCODE",
 			"FILE_NOT_FOUND",
 			"DOWNLOAD_FROM",
 			"DOWNLOAD_FROM_OK",
-			"AMBIGUOUS_DOWNLOAD"};
+			"AMBIGUOUS_DOWNLOAD",
+			"FILE_QUERY",
+			"FILE_INFO"};
 
 	private static Map<String, Byte> _operation_to_opcode;
 	private static Map<Byte, String> _opcode_to_operation;
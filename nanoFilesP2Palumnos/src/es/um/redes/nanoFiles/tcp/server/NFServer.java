@@ -5,6 +5,8 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 
+import es.um.redes.nanoFiles.util.Log;
+
 /**
  * Servidor que se ejecuta en un hilo propio. Creará objetos
  * {@link NFServerThread} cada vez que se conecte un cliente.
@@ -35,12 +37,12 @@ public class NFServer implements Runnable {
 		 * soliciten descargar ficheros
 		 */
 		if (serverSocket != null && serverSocket.isBound()) {
-			System.out.println("\nServer is listening on port " + serverSocket.getLocalPort());
+			Log.info("\nServer is listening on port " + serverSocket.getLocalPort());
 			try {
 				while (true) {
 					try {
 						Socket socket = serverSocket.accept();
-						System.out.println(
+						Log.info(
 								"New client connected: " + socket.getInetAddress().toString() + ":" + socket.getPort());
 						/*
 						 * TODO: Al establecerse la conexión con un peer, la comunicación con dicho
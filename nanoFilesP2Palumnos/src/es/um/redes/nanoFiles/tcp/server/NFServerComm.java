@@ -16,6 +16,8 @@ import es.um.redes.nanoFiles.application.NanoFiles;
 import es.um.redes.nanoFiles.tcp.message.PeerMessage;
 import es.um.redes.nanoFiles.tcp.message.PeerMessageOps;
 import es.um.redes.nanoFiles.util.FileInfo;
+import es.um.redes.nanoFiles.util.Log;
+import es.um.redes.nanoFiles.util.NetImpairment;
 
 public class NFServerComm {
 
@@ -27,7 +29,7 @@ public class NFServerComm {
 		try {
 			
 			DataInputStream dis = new DataInputStream(socket.getInputStream());
-			DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+			DataOutputStream dos = new DataOutputStream(NetImpairment.wrapCurrent(socket.getOutputStream()));
 			FileInfo[] ficheros = NanoFiles.db.getFiles();
 			
 			
@@ -36,15 +38,16 @@ public class NFServerComm {
 				PeerMessage answerMessage = new PeerMessage();
 				switch (requestMessage.getOpcode()) {
 				case PeerMessageOps.OPCODE_DOWNLOAD_FROM:
-					System.out.println("Download request recieved");
+					Log.debug("Download request recieved");
+					long uploadBytes = -1;
 					FileInfo[] coincidencias = FileInfo.lookupHashSubstring(ficheros, requestMessage.getHash());
 					switch (coincidencias.length) {
 					case 0:
-						System.out.println("File not found");
+						Log.info("File not found");
 						answerMessage.setOpcode(PeerMessageOps.OPCODE_FILE_NOT_FOUND);
 						break;
 					case 1:
-						System.out.println("File found");
+						Log.debug("File found");
 						answerMessage.setOpcode(PeerMessageOps.OPCODE_DOWNLOAD_FROM_OK);
 						answerMessage.setFileSize((int) coincidencias[0].fileSize);
 						answerMessage.setHash(coincidencias[0].fileHash);
@@ -52,21 +55,47 @@ public class NFServerComm {
 						try(FileInputStream fis = new FileInputStream(fichero)){
 							byte[] bytesFichero = fis.readAllBytes();
 							answerMessage.setFile(bytesFichero);
+							uploadBytes = bytesFichero.length;
 						}
 						break;
 
 					default:
-						System.out.println("Ambiguous download request");
+						Log.info("Ambiguous download request");
 						answerMessage.setOpcode(PeerMessageOps.OPCODE_AMBIGUOUS_DOWNLOAD);
 						break;
 					}
-					System.out.println("Response sent");
-					answerMessage.writeMessageToOutputStream(dos);
+					// Mientras se envía, la descarga cuenta en la carga que se comunica al directorio
+					if (uploadBytes >= 0) {
+						UploadLoad.uploadStarted();
+					}
+					try {
+						answerMessage.writeMessageToOutputStream(dos);
+					} finally {
+						if (uploadBytes >= 0) {
+							UploadLoad.uploadFinished(uploadBytes);
+						}
+					}
+					Log.debug("Response sent");
 					
 					break;
+				case PeerMessageOps.OPCODE_FILE_QUERY: {
+					// Sólo se confirma el hash completo: el cliente comprueba un candidato exacto
+					FileInfo[] encontrados = FileInfo.lookupHashSubstring(ficheros, requestMessage.getHash());
+					if (encontrados.length == 1 && encontrados[0].fileHash.equals(requestMessage.getHash())) {
+						answerMessage.setOpcode(PeerMessageOps.OPCODE_FILE_INFO);
+						answerMessage.setHash(encontrados[0].fileHash);
+						answerMessage.setFileName(encontrados[0].fileName);
+						answerMessage.setFileSize((int) encontrados[0].fileSize);
+					} else {
+						answerMessage.setOpcode(PeerMessageOps.OPCODE_FILE_NOT_FOUND);
+					}
+					answerMessage.writeMessageToOutputStream(dos);
+					Log.debug("File query answered");
+					break;
+				}
 
 				default:
-					System.err.println("Unknown request");
+					Log.warn("Unknown request");
 					break;
 				}
 				
@@ -82,7 +111,7 @@ public class NFServerComm {
 			
 			
 		} catch (IOException e) {
-			System.out.println("Client disconnected");
+			Log.info("Client disconnected");
 			
 		}
 		
@@ -11,6 +11,7 @@ import java.nio.channels.SelectableChannel;
 import java.util.Scanner;
 
 import es.um.redes.nanoFiles.logic.NFControllerLogicDir;
+import es.um.redes.nanoFiles.util.Log;
 
 
 
@@ -66,7 +67,7 @@ public class NFServerSimple {
 			while(!stopRequested) {
 				try {
 					Socket socket = serverSocket.accept();
-					System.out.println("\n Client connected. Client info:\n InetAddress: "+socket.getInetAddress().toString()+"\n Port: " + socket.getPort());
+					Log.info("\n Client connected. Client info:\n InetAddress: "+socket.getInetAddress().toString()+"\n Port: " + socket.getPort());
 					NFServerComm.serveFilesToClient(socket);
 				} catch(SocketTimeoutException e) {
 					chechStopCommand();
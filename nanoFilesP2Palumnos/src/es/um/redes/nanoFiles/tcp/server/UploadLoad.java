@@ -0,0 +1,79 @@
+package es.um.redes.nanoFiles.tcp.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Carga de subida del servidor de ficheros de este peer, que se comunica al
+ * directorio con el registro y los heartbeats para que reparta las descargas
+ * entre los servidores de cada fichero: número de descargas que se están
+ * sirviendo y ancho de banda de subida libre.
+ *
+ * El ancho de banda libre sólo se conoce si el usuario indica la capacidad de
+ * subida del peer (opción -uplink de NanoFiles); se calcula restándole lo
+ * enviado por unidad de tiempo desde la medida anterior.
+ */
+public class UploadLoad {
+	/**
+	 * Intervalo mínimo entre dos medidas del ancho de banda usado, para que una
+	 * consulta muy seguida a la anterior no dé un valor sin sentido
+	 */
+	private static final long MIN_SAMPLE_NANOS = 1000000000L;
+
+	private static final AtomicInteger activeUploads = new AtomicInteger();
+	private static final LongAdder bytesSent = new LongAdder();
+	/**
+	 * Capacidad de subida en KiB/s, o -1 si no se conoce
+	 */
+	private static volatile int capacity = -1;
+
+	private static long sampleNanos = System.nanoTime();
+	private static long sampleBytes = 0;
+	private static int usedBandwidth = 0;
+
+	/**
+	 * @param kibPerSecond Capacidad de subida del peer en KiB/s, o -1 si no se
+	 *                     conoce
+	 */
+	public static void setCapacity(int kibPerSecond) {
+		capacity = kibPerSecond;
+	}
+
+	public static int getCapacity() {
+		return capacity;
+	}
+
+	public static void uploadStarted() {
+		activeUploads.incrementAndGet();
+	}
+
+	/**
+	 * @param bytes Bytes enviados al cliente en la descarga que termina
+	 */
+	public static void uploadFinished(long bytes) {
+		bytesSent.add(bytes);
+		activeUploads.decrementAndGet();
+	}
+
+	public static int getActiveUploads() {
+		return activeUploads.get();
+	}
+
+	/**
+	 * @return Ancho de banda de subida libre en KiB/s (nunca negativo), o -1 si no
+	 *         se conoce la capacidad del peer
+	 */
+	public static synchronized int getFreeBandwidth() {
+		if (capacity < 0) {
+			return -1;
+		}
+		long now = System.nanoTime();
+		if (now - sampleNanos >= MIN_SAMPLE_NANOS) {
+			long bytes = bytesSent.sum();
+			usedBandwidth = (int) ((bytes - sampleBytes) * 1000000000L / (now - sampleNanos) / 1024);
+			sampleNanos = now;
+			sampleBytes = bytes;
+		}
+		return Math.max(0, capacity - usedBandwidth);
+	}
+}
@@ -1,20 +1,58 @@
 package es.um.redes.nanoFiles.udp.client;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import es.um.redes.nanoFiles.tcp.server.NFServer;
+import es.um.redes.nanoFiles.tcp.server.UploadLoad;
+import es.um.redes.nanoFiles.udp.message.DirFragments;
 import es.um.redes.nanoFiles.udp.message.DirMessage;
 import es.um.redes.nanoFiles.udp.message.DirMessageOps;
+import es.um.redes.nanoFiles.udp.server.DirectoryShard;
+import es.um.redes.nanoFiles.udp.server.FileNameIndex;
 import es.um.redes.nanoFiles.udp.server.NFDirectoryServer;
+import es.um.redes.nanoFiles.udp.server.PeerFilters;
+import es.um.redes.nanoFiles.util.BloomFilter;
+import es.um.redes.nanoFiles.util.BufferPool;
 import es.um.redes.nanoFiles.util.FileInfo;
+import es.um.redes.nanoFiles.util.NetImpairment;
 
 /**
  * Cliente con métodos de consulta y actualización específicos del directorio
+ * 
+ * El directorio puede estar repartido entre varias instancias (particiones),
+ * cada una con los ficheros de un rango de hashes (ver DirectoryShard). En ese
+ * caso el conector inicia sesión en todas ellas, envía las operaciones sobre un
+ * hash (publish, search) sólo a la partición a la que pertenece, y reparte las
+ * operaciones globales (filelist, userlist, búsqueda por nombre) entre todas,
+ * juntando sus respuestas.
  */
 public class DirectoryConnector {
 	/**
@@ -33,6 +71,52 @@ public class DirectoryConnector {
 	 * cuenta como un intento.
 	 */
 	private static final int MAX_NUMBER_OF_ATTEMPTS = 5;
+	/**
+	 * Número máximo de veces que se repite una petición a la que el directorio ha
+	 * respondido THROTTLED, y espera máxima entre repeticiones (aunque el
+	 * directorio pida más)
+	 */
+	private static final int MAX_THROTTLED_RETRIES = 10;
+	private static final long MAX_RETRY_AFTER_MS = 5000;
+	/**
+	 * Número de ficheros que se piden al directorio en cada página de la lista de
+	 * ficheros (ver getFileList)
+	 */
+	private static final int FILELIST_PAGE_SIZE = 100;
+	/**
+	 * Máximo de bytes de la lista de hashes de una petición SEARCHBATCH (en
+	 * formato texto), dejando margen para el resto del mensaje dentro de un
+	 * datagrama
+	 */
+	private static final int SEARCHBATCH_MAX_REQUEST_BYTES = DirMessage.PACKET_MAX_SIZE - 1024;
+	/**
+	 * Máximo de bytes de la lista completa de ficheros que se publica en una
+	 * partición. Si la lista es mayor no cabe en un datagrama, y se publica en su
+	 * lugar un filtro de Bloom de sus hashes (ver publishLocalFiles).
+	 */
+	private static final int PUBLISH_MAX_LIST_BYTES = DirMessage.PACKET_MAX_SIZE - 1024;
+	/**
+	 * Lo mismo para las particiones que aceptan peticiones fragmentadas: la lista
+	 * puede ocupar hasta DirMessage.MAX_MESSAGE_SIZE
+	 */
+	private static final int PUBLISH_MAX_FRAGMENTED_LIST_BYTES = DirMessage.MAX_MESSAGE_SIZE - 1024;
+	/**
+	 * Búfer de recepción del socket, para que quepa en él una respuesta
+	 * fragmentada de DirMessage.MAX_MESSAGE_SIZE que llega en ráfaga
+	 */
+	private static final int RECEIVE_BUFFER_SIZE = 1024 * 1024;
+	/**
+	 * Búferes en que se codifican las peticiones y se reciben las respuestas,
+	 * compartidos por todos los conectores (un proceso puede tener muchos, como
+	 * DirectoryLoad) para no reservarlos en cada petición
+	 */
+	private static final BufferPool requestBuffers = new BufferPool(DirMessage.MAX_MESSAGE_SIZE, 8, false);
+	private static final BufferPool responseBuffers = new BufferPool(DirMessage.PACKET_MAX_SIZE, 8, false);
+	/**
+	 * Intervalo entre los heartbeats que renuevan la sesión en el directorio (un
+	 * tercio de su duración, para tolerar la pérdida de alguno)
+	 */
+	private static final long HEARTBEAT_INTERVAL_MS = NFDirectoryServer.LEASE_DURATION_MS / 3;
 
 	/**
 	 * Valor inválido de la clave de sesión, antes de ser obtenida del directorio al
@@ -45,38 +129,205 @@ public class DirectoryConnector {
 	 */
 	private DatagramSocket socket;
 	/**
-	 * Dirección de socket del directorio (IP:puertoUDP)
+	 * Dirección de socket del directorio (IP:puertoUDP). Si está repartido, la de
+	 * su primera partición.
 	 */
 	private InetSocketAddress directoryAddress;
-
-	private int sessionKey = INVALID_SESSION_KEY;
+	/**
+	 * Particiones del directorio, en el orden de sus rangos de hashes (una sola si
+	 * no está repartido)
+	 */
+	private final Shard[] shards;
 	private boolean successfulResponseStatus;
 	private String errorDescription;
+	/**
+	 * Formato en que se codifican los mensajes enviados al directorio (binario por
+	 * defecto). El directorio responde en el mismo formato.
+	 */
+	private boolean binaryFormat = true;
+	/**
+	 * Si se aceptan respuestas comprimidas (activado por defecto). Cada petición
+	 * lo indica, y las peticiones grandes se envían comprimidas a las particiones
+	 * que indicaron al iniciar sesión que también las aceptan.
+	 */
+	private boolean compression = true;
+	/**
+	 * Tamaño máximo de los datagramas intercambiados con el directorio (0 para no
+	 * fragmentar). Los mensajes mayores se envían fragmentados (ver
+	 * DirFragments) a las particiones que indicaron al iniciar sesión que lo
+	 * aceptan, y cada petición lo indica para que el directorio fragmente también
+	 * sus respuestas.
+	 */
+	private int mtu = DirFragments.DEFAULT_MTU;
+	/**
+	 * Si este peer está dado de alta como servidor de ficheros: en ese caso los
+	 * heartbeats llevan su carga de subida
+	 */
+	private volatile boolean serving = false;
+	/**
+	 * Identificador de la siguiente petición. Empieza en un valor aleatorio para
+	 * que no coincida con los de otro conector que usara antes el mismo puerto.
+	 */
+	private final AtomicInteger nextRequestId = new AtomicInteger(new Random().nextInt(Integer.MAX_VALUE));
+	/**
+	 * Reintentos por no recibir respuesta a tiempo, y repeticiones de peticiones
+	 * a las que el directorio respondió THROTTLED (ver getRetries)
+	 */
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong throttledRetries = new AtomicLong();
+	/**
+	 * Enlace degradado por el que se envían las peticiones, si el proceso tiene
+	 * configurado uno (NetImpairment.setCurrent)
+	 */
+	private final NetImpairment.Link impairment = NetImpairment.currentLink();
 
+	/**
+	 * Receptor de los cambios en los ficheros vigilados (ver watch)
+	 */
+	public interface WatchListener {
+		/**
+		 * @param file El fichero cambiado, con los nicknames de los servidores que lo
+		 *             comparten ahora en FileInfo.servers (ninguno si ha dejado de
+		 *             estar publicado)
+		 */
+		void fileChanged(FileInfo file);
+	}
+
+	/**
+	 * Socket UDP en el que se reciben los avisos del directorio (WATCH_EVENT),
+	 * distinto del de las peticiones para que los avisos no se confundan con las
+	 * respuestas. Se crea con la primera suscripción.
+	 */
+	private DatagramSocket watchSocket;
+	/**
+	 * Cerrojo del estado de las suscripciones. Se toma antes que el del socket de
+	 * peticiones, nunca después.
+	 */
+	private final Object watchLock = new Object();
+	private WatchListener watchListener;
+	private Set<String> watchedHashes = new LinkedHashSet<String>();
+	private Set<String> watchedPatterns = new LinkedHashSet<String>();
+	/**
+	 * Último estado conocido de los ficheros vigilados, con el que se detectan los
+	 * cambios al volver a consultar el directorio
+	 */
+	private final Map<String, FileInfo> watchedFiles = new HashMap<String, FileInfo>();
+
+	/**
+	 * Partición del directorio: su dirección, la clave de sesión obtenida en ella y
+	 * la última lista de ficheros publicada con éxito en ella (hash -> "nombre,
+	 * tamaño", sólo los ficheros de su rango) junto con su versión (0 si no se ha publicado
+	 * nada), a partir de la cual se calculan las publicaciones incrementales
+	 */
+	private static class Shard {
+		private final InetSocketAddress address;
+		private volatile int sessionKey = INVALID_SESSION_KEY;
+		private Map<String, String> publishedFiles = new HashMap<String, String>();
+		private int publishedVersion = 0;
+		/**
+		 * Hashes resumidos en el último filtro de Bloom publicado con éxito en la
+		 * partición (null si no tiene filtro) y versión de ese filtro
+		 */
+		private Set<String> filteredFiles = null;
+		private int filterVersion = 0;
+		/**
+		 * Si la partición acepta peticiones comprimidas (según su respuesta al login)
+		 */
+		private volatile boolean deflate = false;
+		/**
+		 * Si la partición acepta peticiones fragmentadas (según su respuesta al
+		 * login)
+		 */
+		private volatile boolean fragments = false;
+		/**
+		 * Número de secuencia del último aviso recibido de la partición, o
+		 * DirMessage.NO_VALUE si no hay suscripción en ella
+		 */
+		private int watchSequence = DirMessage.NO_VALUE;
+
+		private Shard(InetSocketAddress address) {
+			this.address = address;
+		}
+	}
+
+	/**
+	 * @param address El nombre de host del directorio, opcionalmente con el puerto
+	 *                (host:puerto). Para un directorio repartido, las direcciones
+	 *                de todas sus particiones separadas por comas, en orden (p.ej.
+	 *                "localhost:6868,localhost:6869").
+	 */
 	public DirectoryConnector(String address) throws IOException {
 		/*
 		 * TODO: Convertir el nombre de host 'address' a InetAddress y guardar la
 		 * dirección de socket (address:DIRECTORY_PORT) del directorio en el atributo
 		 * directoryAddress, para poder enviar datagramas a dicho destino.
 		 */
-		InetAddress serverIp = InetAddress.getByName(address);
-		this.directoryAddress = new InetSocketAddress(serverIp, DIRECTORY_PORT);
+		String[] addresses = address.split(",");
+		this.shards = new Shard[addresses.length];
+		for (int i = 0; i < addresses.length; i++) {
+			shards[i] = new Shard(parseAddress(addresses[i].trim()));
+		}
+		this.directoryAddress = shards[0].address;
 		/*
 		 * TODO: Crea el socket UDP en cualquier puerto para enviar datagramas al
 		 * directorio
 		 */
 		this.socket = new DatagramSocket();
+		this.socket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
 	}
 
 	/**
-	 * Método para enviar y recibir datagramas al/del directorio
+	 * Convierte "host" o "host:puerto" en una dirección de socket (DIRECTORY_PORT
+	 * si no se indica el puerto)
+	 */
+	private static InetSocketAddress parseAddress(String address) throws UnknownHostException {
+		String host = address;
+		int port = DIRECTORY_PORT;
+		int colon = address.indexOf(':');
+		if (colon > 0 && colon == address.lastIndexOf(':')) { // Una dirección IPv6 no lleva puerto
+			host = address.substring(0, colon);
+			try {
+				port = Integer.parseInt(address.substring(colon + 1));
+			} catch (NumberFormatException e) {
+				throw new UnknownHostException("Invalid directory port in " + address);
+			}
+		}
+		return new InetSocketAddress(InetAddress.getByName(host), port);
+	}
+
+	/**
+	 * Método para enviar y recibir datagramas al/del directorio. Está sincronizado
+	 * porque el hilo de heartbeats comparte el socket con el resto de peticiones.
 	 * 
 	 * @param requestData los datos a enviar al directorio (mensaje de solicitud)
-	 * @return los datos recibidos del directorio (mensaje de respuesta)
+	 * @param requestLength el número de bytes de requestData que se envían
+	 * @param destination la dirección de la partición del directorio a la que se
+	 *                    envían
+	 * @param requestId   el identificador de la petición, o DirMessage.NO_VALUE
+	 *                    si no lleva (las respuestas con otro identificador se
+	 *                    descartan)
+	 * @param requestMtu  la MTU con la que se fragmenta la petición si no cabe en
+	 *                    ella, o DirMessage.NO_VALUE para no fragmentarla
+	 * @return los datos recibidos del directorio (mensaje de respuesta, ya
+	 *         reensamblado si llega fragmentado)
+	 * @throws SocketTimeoutException si el directorio no responde tras
+	 *                                MAX_NUMBER_OF_ATTEMPTS intentos (quien
+	 *                                llama decide si abandonar)
 	 * @throws IOException
 	 */
-	private byte[] sendAndReceiveDatagrams(byte[] requestData) throws IOException {
-		byte responseData[] = new byte[DirMessage.PACKET_MAX_SIZE];
+	private synchronized byte[] sendAndReceiveDatagrams(byte[] requestData, int requestLength,
+			InetSocketAddress destination, int requestId, int requestMtu) throws IOException {
+		ByteBuffer responseBuffer = responseBuffers.acquire();
+		try {
+			return sendAndReceiveDatagrams(requestData, requestLength, destination, requestId, requestMtu,
+					responseBuffer.array());
+		} finally {
+			responseBuffers.release(responseBuffer);
+		}
+	}
+
+	private byte[] sendAndReceiveDatagrams(byte[] requestData, int requestLength, InetSocketAddress destination,
+			int requestId, int requestMtu, byte[] responseData) throws IOException {
 		byte response[] = null;
 		if (directoryAddress == null) {
 			System.err.println("DirectoryConnector.sendAndReceiveDatagrams: UDP server destination address is null!");
@@ -96,25 +347,100 @@ public class DirectoryConnector {
 		 * array devuelto debe contener únicamente los datos recibidos, *NO* el búfer de
 		 * recepción al completo.
 		 */
-		DatagramPacket packetToServer = new DatagramPacket(requestData, requestData.length, directoryAddress);
+		DatagramPacket packetToServer = new DatagramPacket(requestData, requestLength, destination);
+		/*
+		 * Si la petición no cabe en la MTU se envía fragmentada, con su identificador
+		 * como identificador del mensaje. La respuesta puede llegar también
+		 * fragmentada: se reúne en assembly.
+		 */
+		byte[][] fragments = null;
+		if (requestId != DirMessage.NO_VALUE && DirFragments.needsFragments(requestLength, requestMtu)) {
+			fragments = DirFragments.split(requestData, requestLength, requestId, requestMtu);
+			sendFragments(fragments, null, destination);
+		} else {
+			send(packetToServer);
+		}
+		DirFragments.Assembly assembly = null;
 		int att = 0;
 		while (att < MAX_NUMBER_OF_ATTEMPTS) {
+			/*
+			 * Si hay un NACK programado para la respuesta, se espera como mucho hasta
+			 * que venza su margen (ver DirFragments.NACK_DELAY_MS)
+			 */
+			int wait = TIMEOUT;
+			if (assembly != null && assembly.getNackTime() != DirFragments.Assembly.NO_NACK) {
+				long nanos = assembly.getNackTime() - System.nanoTime();
+				wait = (int) Math.max(1, Math.min(TIMEOUT, (nanos + 999999) / 1000000));
+			}
 			try {
-				socket.send(packetToServer);
 				DatagramPacket packetFromServer = new DatagramPacket(responseData, responseData.length);
-				socket.setSoTimeout(TIMEOUT);
+				socket.setSoTimeout(wait);
 				socket.receive(packetFromServer);
-				String messageFromServer = new String(responseData, 0, packetFromServer.getLength());
-				response = messageFromServer.getBytes();
+				ByteBuffer received = ByteBuffer.wrap(responseData, 0, packetFromServer.getLength());
+				if (DirFragments.isFragment(received)) {
+					if (isOtherShard(packetFromServer.getSocketAddress(), destination)
+							|| requestId == DirMessage.NO_VALUE || DirFragments.getMessageId(received) != requestId) {
+						continue; // Fragmento de una respuesta anterior
+					}
+					if (DirFragments.isNack(received)) {
+						// El directorio pide los fragmentos de la petición que no le han llegado
+						DirFragments.Nack nack = DirFragments.readNack(received);
+						if (fragments != null && nack.count == fragments.length) {
+							sendFragments(fragments, nack.missing, destination);
+						}
+						continue;
+					}
+					long now = System.nanoTime();
+					if (assembly == null) {
+						assembly = new DirFragments.Assembly(received, DirMessage.MAX_MESSAGE_SIZE, now);
+					} else {
+						assembly.add(received, now);
+					}
+					if (assembly.isComplete()) {
+						response = assembly.getData();
+						break;
+					}
+					if (assembly.isNackDue(now)) {
+						sendNack(assembly, destination);
+					}
+					continue;
+				}
+				if (isStaleReply(packetFromServer, destination, requestId)) {
+					// Respuesta tardía a una petición anterior ya reintentada
+					continue;
+				}
+				response = Arrays.copyOf(responseData, packetFromServer.getLength());
 				break;
 			} catch (SocketTimeoutException e) {
+				if (wait < TIMEOUT) {
+					// Ha vencido el margen del NACK, no el temporizador de la petición
+					if (assembly.isNackDue(System.nanoTime())) {
+						sendNack(assembly, destination);
+					}
+					continue;
+				}
 				att++;
 				if (att < MAX_NUMBER_OF_ATTEMPTS) {
 					System.out.println("Timeout excedeed, retying...");
+					retries.incrementAndGet();
+					/*
+					 * Si la respuesta ha empezado a llegar, sólo se piden sus fragmentos que
+					 * faltan. Si la petición iba fragmentada, se reenvía su último fragmento,
+					 * y el directorio pedirá los que no le hayan llegado.
+					 */
+					if (assembly != null) {
+						sendNack(assembly, destination);
+					} else if (fragments != null) {
+						sendFragments(fragments, new int[] { fragments.length - 1 }, destination);
+					} else {
+						send(packetToServer);
+					}
 				} else {
-					System.err.println("Attempts limit reached. Aborting.");
-					System.exit(-1);
+					throw new SocketTimeoutException("Attempts limit reached: no response from directory at "
+							+ destination + " after " + MAX_NUMBER_OF_ATTEMPTS + " attempts");
 				}
+			} catch (IllegalArgumentException e) {
+				System.err.println("Ignoring malformed fragment from directory: " + e.getMessage());
 			}
 		}
 		/*
@@ -142,6 +468,165 @@ public class DirectoryConnector {
 		return response;
 	}
 
+	/**
+	 * Envía un datagrama al directorio, por el enlace degradado si lo hay (ver
+	 * NetImpairment)
+	 */
+	private void send(DatagramPacket packet) throws IOException {
+		if (impairment == null) {
+			socket.send(packet);
+			return;
+		}
+		SocketAddress destination = packet.getSocketAddress();
+		impairment.send(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()),
+				d -> socket.send(new DatagramPacket(d.array(), d.arrayOffset() + d.position(), d.remaining(),
+						destination)));
+	}
+
+	/**
+	 * Envía los fragmentos indicados de una petición (todos si indices es null)
+	 */
+	private void sendFragments(byte[][] fragments, int[] indices, InetSocketAddress destination)
+			throws IOException {
+		int count = (indices == null) ? fragments.length : indices.length;
+		for (int i = 0; i < count; i++) {
+			byte[] fragment = fragments[(indices == null) ? i : indices[i]];
+			send(new DatagramPacket(fragment, fragment.length, destination));
+		}
+	}
+
+	/**
+	 * Pide al directorio los fragmentos que faltan de una respuesta y que no están
+	 * ya en camino
+	 */
+	private void sendNack(DirFragments.Assembly assembly, InetSocketAddress destination) throws IOException {
+		ByteBuffer nack = ByteBuffer.allocate(DirFragments.MIN_MTU);
+		if (assembly.writeNack(nack, System.nanoTime()) > 0) {
+			send(new DatagramPacket(nack.array(), nack.position(), destination));
+		}
+	}
+
+	/**
+	 * @return Verdadero si el datagrama recibido no es la respuesta a la petición
+	 *         requestId enviada a destination: viene de otra partición o lleva
+	 *         otro identificador de petición. Las respuestas sin identificador
+	 *         (THROTTLED, o de un directorio que no los usa) se aceptan.
+	 */
+	private boolean isStaleReply(DatagramPacket packet, InetSocketAddress destination, int requestId)
+			throws UnknownHostException {
+		if (isOtherShard(packet.getSocketAddress(), destination)) {
+			return true;
+		}
+		if (requestId == DirMessage.NO_VALUE) {
+			return false;
+		}
+		int replyId = DirMessage.decode(packet.getData(), packet.getLength()).getRequestId();
+		return replyId != DirMessage.NO_VALUE && replyId != requestId;
+	}
+
+	/**
+	 * @return Verdadero si la dirección es la de una partición del directorio
+	 *         distinta de destination
+	 */
+	private boolean isOtherShard(SocketAddress address, InetSocketAddress destination) {
+		if (address.equals(destination)) {
+			return false;
+		}
+		for (Shard shard : shards) {
+			if (shard.address.equals(address)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Método para enviar un mensaje a una partición del directorio y recibir su
+	 * respuesta, usando el formato (texto o binario) configurado en este conector.
+	 * Cada petición lleva un identificador nuevo, que se mantiene en sus
+	 * retransmisiones. Si el directorio responde THROTTLED, se espera el tiempo que
+	 * indica y se repite la petición.
+	 * 
+	 * @param request El mensaje de solicitud a enviar
+	 * @param shard   La partición del directorio a la que se envía
+	 * @return El mensaje de respuesta recibido del directorio
+	 * @throws IOException
+	 */
+	private DirMessage sendAndReceiveMessage(DirMessage request, Shard shard) throws IOException {
+		int requestId = nextRequestId.getAndIncrement() & Integer.MAX_VALUE;
+		request.setRequestId(requestId);
+		if (compression) {
+			request.setCompress(DirMessage.COMPRESSION_DEFLATE);
+		}
+		if (mtu > 0) {
+			request.setMtu(mtu);
+		}
+		boolean deflate = compression && shard.deflate;
+		int requestMtu = (mtu > 0 && shard.fragments) ? mtu : DirMessage.NO_VALUE;
+		// La petición se codifica en un búfer reutilizado (writeTo), no con encode
+		ByteBuffer requestBuffer = requestBuffers.acquire();
+		try {
+			byte[] requestData;
+			int requestLength;
+			try {
+				request.writeTo(requestBuffer, binaryFormat);
+				if (deflate) {
+					DirMessage.deflate(requestBuffer, 0);
+				}
+				requestData = requestBuffer.array();
+				requestLength = requestBuffer.position();
+			} catch (BufferOverflowException e) {
+				// Mayor que DirMessage.MAX_MESSAGE_SIZE: el directorio la rechazará
+				requestData = request.encode(binaryFormat, deflate);
+				requestLength = requestData.length;
+			}
+			for (int throttled = 0;; throttled++) {
+				byte[] response = sendAndReceiveDatagrams(requestData, requestLength, shard.address, requestId,
+						requestMtu);
+				DirMessage reply = DirMessage.decode(response, response.length);
+				if (!reply.getOperation().equals(NFDirectoryServer.THROTTLED) || throttled == MAX_THROTTLED_RETRIES) {
+					return reply;
+				}
+				long wait = Math.min(Math.max(reply.getRetryAfter(), 1), MAX_RETRY_AFTER_MS);
+				throttledRetries.incrementAndGet();
+				System.out.println("Directory busy, retrying in " + wait + " ms...");
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return reply;
+				}
+			}
+		} finally {
+			requestBuffers.release(requestBuffer);
+		}
+	}
+
+	/**
+	 * Establece el formato de los mensajes enviados al directorio. El formato texto
+	 * permite hablar con directorios que no entienden el formato binario.
+	 */
+	public void setBinaryFormat(boolean binaryFormat) {
+		this.binaryFormat = binaryFormat;
+	}
+
+	/**
+	 * Activa o desactiva la compresión de los mensajes grandes intercambiados con
+	 * el directorio
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Establece el tamaño máximo de los datagramas intercambiados con el
+	 * directorio, por encima del cual los mensajes se fragmentan (0 para no
+	 * fragmentarlos)
+	 */
+	public void setMtu(int mtu) {
+		this.mtu = (mtu > 0) ? DirFragments.validMtu(mtu) : 0;
+	}
+
 	/**
 	 * Método para probar la comunicación con el directorio mediante el envío y
 	 * recepción de mensajes sin formatear ("en crudo")
@@ -160,7 +645,8 @@ public class DirectoryConnector {
 
 		String message = "login";
 		byte[] login = message.getBytes();
-		byte[] response = this.sendAndReceiveDatagrams(login);
+		byte[] response = this.sendAndReceiveDatagrams(login, login.length, directoryAddress, DirMessage.NO_VALUE,
+				DirMessage.NO_VALUE);
 		String response2 = new String(response);
 		String loginok = "loginok";
 
@@ -175,8 +661,29 @@ public class DirectoryConnector {
 		return directoryAddress;
 	}
 
+	/**
+	 * @return El número de reintentos de este conector por no recibir respuesta a
+	 *         tiempo (reenvíos de la petición o NACKs de sus fragmentos), incluidos
+	 *         los del hilo de heartbeats
+	 */
+	public long getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * @return El número de peticiones de este conector que se han repetido porque
+	 *         el directorio respondió THROTTLED
+	 */
+	public long getThrottledRetries() {
+		return throttledRetries.get();
+	}
+
+	/**
+	 * @return La clave de sesión en el directorio (en su primera partición, si
+	 *         está repartido)
+	 */
 	public int getSessionKey() {
-		return sessionKey;
+		return shards[0].sessionKey;
 	}
 
 	/**
@@ -189,36 +696,124 @@ public class DirectoryConnector {
 	 * @throws IOException
 	 */
 	public boolean logIntoDirectory(String nickname) throws IOException {
-		assert (sessionKey == INVALID_SESSION_KEY);
+		assert (getSessionKey() == INVALID_SESSION_KEY);
 		boolean success = false;
 		// TODO: 1.Crear el mensaje a enviar (objeto DirMessage) con atributos adecuados
 		// (operation, etc.) NOTA: Usar como operaciones las constantes definidas en la
 		// clase DirMessageOps
 		DirMessage mensaje = new DirMessage(DirMessageOps.OPERATION_LOGIN);
 		mensaje.setNickname(nickname);
-		// TODO: 2.Convertir el objeto DirMessage a enviar a un string (método toString)
-		// TODO: 3.Crear un datagrama con los bytes en que se codifica la cadena
-		String login = mensaje.toString();
-		byte[] loginBytes = login.getBytes();
-		// TODO: 4.Enviar datagrama y recibir una respuesta (sendAndReceiveDatagrams).
-		byte[] respuesta = sendAndReceiveDatagrams(loginBytes);
-		// TODO: 5.Convertir respuesta recibida en un objeto DirMessage (método
-		// DirMessage.fromString)
-		String respuestaString = new String(respuesta);
-		DirMessage respuestaMensaje = DirMessage.fromString(respuestaString);
-		// TODO: 6.Extraer datos del objeto DirMessage y procesarlos (p.ej., sessionKey)
-		if (respuestaMensaje.getOperation().equals(NFDirectoryServer.LOGIN_OK)) {
-			sessionKey = Integer.parseInt(respuestaMensaje.getSessionKey());
-			System.out.println("Login successful. SessionKey: " + sessionKey);
+		// TODO: 2.Codificar el objeto DirMessage a enviar (texto o binario)
+		// TODO: 3.Enviar datagrama y recibir una respuesta (sendAndReceiveDatagrams).
+		// TODO: 4.Convertir respuesta recibida en un objeto DirMessage
+		// TODO: 5.Extraer datos del objeto DirMessage y procesarlos (p.ej., sessionKey)
+		/*
+		 * Se inicia sesión en todas las particiones; si alguna la rechaza, se cierra
+		 * en las anteriores
+		 */
+		int logged = 0;
+		while (logged < shards.length) {
+			DirMessage respuestaMensaje = sendAndReceiveMessage(mensaje, shards[logged]);
+			if (!respuestaMensaje.getOperation().equals(NFDirectoryServer.LOGIN_OK)) {
+				break;
+			}
+			shards[logged].sessionKey = Integer.parseInt(respuestaMensaje.getSessionKey());
+			shards[logged].deflate = DirMessage.COMPRESSION_DEFLATE.equals(respuestaMensaje.getCompress());
+			shards[logged].fragments = respuestaMensaje.getMtu() != DirMessage.NO_VALUE;
+			logged++;
+		}
+		if (logged == shards.length) {
+			System.out.println("Login successful. SessionKey: " + sessionKeysToString());
+			startHeartbeat();
 			success = true;
 		} else {
+			for (int i = 0; i < logged; i++) {
+				DirMessage logout = new DirMessage(DirMessageOps.OPERATION_LOGOUT);
+				logout.setSessionKey(shards[i].sessionKey);
+				sendAndReceiveMessage(logout, shards[i]);
+				shards[i].sessionKey = INVALID_SESSION_KEY;
+			}
 			System.err.println("ERROR: Login failed. You are already logged with this username.");
 		}
-		// TODO: 7.Devolver éxito/fracaso de la operación
+		// TODO: 6.Devolver éxito/fracaso de la operación
 		
 		return success;
 	}
 
+	/**
+	 * @return Las claves de sesión de las particiones, separadas por comas
+	 */
+	private String sessionKeysToString() {
+		StringBuilder keys = new StringBuilder();
+		for (Shard shard : shards) {
+			keys.append((keys.length() > 0) ? "," : "").append(shard.sessionKey);
+		}
+		return keys.toString();
+	}
+
+	/**
+	 * Lanza el hilo que renueva periódicamente la sesión en el directorio (en cada
+	 * partición). Si el peer termina sin hacer logout, el directorio dará de baja
+	 * la sesión al dejar de recibir heartbeats. El hilo termina por sí solo cuando
+	 * la sesión para la que se lanzó deja de ser la actual (no se interrumpe,
+	 * porque interrumpir un hilo bloqueado en el socket lo cerraría).
+	 */
+	private void startHeartbeat() {
+		final int[] keys = new int[shards.length];
+		for (int i = 0; i < shards.length; i++) {
+			keys[i] = shards[i].sessionKey;
+		}
+		Thread heartbeat = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(HEARTBEAT_INTERVAL_MS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				// La misma medida de la carga se envía a todas las particiones
+				int uploads = UploadLoad.getActiveUploads();
+				int freeBandwidth = UploadLoad.getFreeBandwidth();
+				for (int i = 0; i < shards.length; i++) {
+					if (keys[i] != shards[i].sessionKey) {
+						return;
+					}
+					try {
+						DirMessage mensaje = new DirMessage(DirMessageOps.OPERATION_HEARTBEAT);
+						mensaje.setSessionKey(keys[i]);
+						if (serving) {
+							setLoad(mensaje, uploads, freeBandwidth);
+						}
+						DirMessage respuestaMensaje = sendAndReceiveMessage(mensaje, shards[i]);
+						if (!respuestaMensaje.getOperation().equals(NFDirectoryServer.HEARTBEAT_OK)
+								&& keys[i] == shards[i].sessionKey) {
+							System.err.println("ERROR: session expired in the directory, please log in again");
+							return;
+						}
+						checkWatch(shards[i], respuestaMensaje.getVersion());
+					} catch (IOException e) {
+						System.err.println("ERROR: heartbeat failed: " + e.getMessage());
+					}
+				}
+			}
+		}, "directory-heartbeat");
+		heartbeat.setDaemon(true);
+		heartbeat.start();
+	}
+
+	/**
+	 * Añade a un mensaje de registro o heartbeat la carga de subida de este peer,
+	 * con la que el directorio ordena los servidores de cada fichero
+	 *
+	 * @param freeBandwidth Ancho de banda libre en KiB/s, o -1 si no se conoce (no
+	 *                      se envía)
+	 */
+	private static void setLoad(DirMessage mensaje, int uploads, int freeBandwidth) {
+		mensaje.setUploads(uploads);
+		if (freeBandwidth >= 0) {
+			mensaje.setFreeBandwidth(freeBandwidth);
+		}
+	}
+
 	/**
 	 * Método para obtener la lista de "nicknames" registrados en el directorio.
 	 * Opcionalmente, la respuesta puede indicar para cada nickname si dicho peer
@@ -231,21 +826,49 @@ public class DirectoryConnector {
 	public String[] getUserList() throws IOException {
 		String[] userlist = null;
 		// TODO: Ver TODOs en logIntoDirectory y seguir esquema similar
-		DirMessage mensaje = new DirMessage(DirMessageOps.OPERATION_LIST);
-		mensaje.setSessionKey(Integer.toString(sessionKey));
-		String list = mensaje.toString();
-		byte[] listBytes = list.getBytes();
-		byte[] respuesta = sendAndReceiveDatagrams(listBytes);
-		String respuestaString = new String(respuesta);
-		DirMessage respuestaMensaje = DirMessage.fromString(respuestaString);
-		if (respuestaMensaje.getOperation().equals(NFDirectoryServer.LIST_OK)) {
-			userlist = respuestaMensaje.getUsers().split(",");
-		} else {
-			System.err.println("ERROR: Userlist failed. You must be logged in to do userlist");
+		// Se juntan (sin repetir) los usuarios de todas las particiones
+		LinkedHashSet<String> users = new LinkedHashSet<String>();
+		for (Shard shard : shards) {
+			DirMessage mensaje = new DirMessage(DirMessageOps.OPERATION_LIST);
+			mensaje.setSessionKey(Integer.toString(shard.sessionKey));
+			DirMessage respuestaMensaje = sendAndReceiveMessage(mensaje, shard);
+			if (!respuestaMensaje.getOperation().equals(NFDirectoryServer.LIST_OK)) {
+				System.err.println("ERROR: Userlist failed. You must be logged in to do userlist");
+				return null;
+			}
+			users.addAll(Arrays.asList(respuestaMensaje.getUsers().split(",")));
 		}
+		userlist = users.toArray(new String[users.size()]);
 		return userlist;
 	}
 
+	/**
+	 * Método para obtener las métricas del directorio: peticiones recibidas y
+	 * descartadas, y latencia de cada operación. Si hay varias particiones, las
+	 * líneas de cada una van precedidas de su dirección.
+	 *
+	 * @return Las líneas del informe, o null si el directorio no pudo satisfacer
+	 *         nuestra solicitud
+	 * @throws IOException
+	 */
+	public String[] getDirectoryStats() throws IOException {
+		List<String> lines = new ArrayList<String>();
+		for (int i = 0; i < shards.length; i++) {
+			DirMessage mensaje = new DirMessage(DirMessageOps.OPERATION_STATS);
+			mensaje.setSessionKey(shards[i].sessionKey);
+			DirMessage respuestaMensaje = sendAndReceiveMessage(mensaje, shards[i]);
+			if (!respuestaMensaje.getOperation().equals(NFDirectoryServer.STATS_OK)) {
+				System.err.println("ERROR: Stats failed. You must be logged in to get directory stats");
+				return null;
+			}
+			if (shards.length > 1) {
+				lines.add("shard " + i + " (" + shards[i].address + "):");
+			}
+			lines.addAll(Arrays.asList(respuestaMensaje.getStats().split(";")));
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
 	/**
 	 * Método para "cerrar sesión" en el directorio
 	 * 
@@ -254,19 +877,22 @@ public class DirectoryConnector {
 	 */
 	public boolean logoutFromDirectory() throws IOException {
 		// TODO: Ver TODOs en logIntoDirectory y seguir esquema similar
-		assert (sessionKey != INVALID_SESSION_KEY);
-		boolean success = false;
-		DirMessage mensaje = new DirMessage(DirMessageOps.OPERATION_LOGOUT);
-		mensaje.setSessionKey(Integer.toString(sessionKey));
-		String logout = mensaje.toString();
-		byte[] logoutBytes = logout.getBytes();
-		byte[] respuesta = sendAndReceiveDatagrams(logoutBytes);
-		String respuestaString = new String(respuesta);
-		DirMessage respuestaMensaje = DirMessage.fromString(respuestaString);
-		if (respuestaMensaje.getOperation().equals(NFDirectoryServer.LOGOUT_OK)) {
-			sessionKey = INVALID_SESSION_KEY;
+		assert (getSessionKey() != INVALID_SESSION_KEY);
+		boolean success = true;
+		for (Shard shard : shards) {
+			DirMessage mensaje = new DirMessage(DirMessageOps.OPERATION_LOGOUT);
+			mensaje.setSessionKey(Integer.toString(shard.sessionKey));
+			DirMessage respuestaMensaje = sendAndReceiveMessage(mensaje, shard);
+			if (respuestaMensaje.getOperation().equals(NFDirectoryServer.LOGOUT_OK)) {
+				shard.sessionKey = INVALID_SESSION_KEY;
+				resetPublishedFiles(shard);
+				resetWatch(); // El directorio olvida las suscripciones de la sesión
+			} else {
+				success = false;
+			}
+		}
+		if (success) {
 			System.out.println("Logout successful. Bye!");
-			success = true;
 		} else {
 			System.err.println("ERROR: Logout failed. You must be logged in to do logout.");
 		}
@@ -284,19 +910,20 @@ public class DirectoryConnector {
 	 */
 	public boolean registerServerPort(int serverPort) throws IOException {
 		// TODO: Ver TODOs en logIntoDirectory y seguir esquema similar
-		boolean success = false;
+		boolean success = true;
 		
-		DirMessage mensaje = new DirMessage(DirMessageOps.OPERATION_REGISTER);
-		mensaje.setPort(Integer.toString(serverPort));
-		mensaje.setSessionKey(Integer.toString(this.sessionKey));
-		String register = mensaje.toString();
-		byte[] registerBytes = register.getBytes();
-		byte[] respuesta = sendAndReceiveDatagrams(registerBytes);
-		String respuestaString = new String(respuesta);
-		DirMessage respuestaMensaje = DirMessage.fromString(respuestaString);
-		if (respuestaMensaje.getOperation().equals(NFDirectoryServer.REGISTER_OK)) {
+		// Todas las particiones deben saber en qué puerto sirve ficheros este peer
+		for (Shard shard : shards) {
+			DirMessage mensaje = new DirMessage(DirMessageOps.OPERATION_REGISTER);
+			mensaje.setPort(Integer.toString(serverPort));
+			mensaje.setSessionKey(Integer.toString(shard.sessionKey));
+			setLoad(mensaje, UploadLoad.getActiveUploads(), UploadLoad.getFreeBandwidth());
+			DirMessage respuestaMensaje = sendAndReceiveMessage(mensaje, shard);
+			success &= respuestaMensaje.getOperation().equals(NFDirectoryServer.REGISTER_OK);
+		}
+		serving = success;
+		if (success) {
 			System.out.println("Server registered successfuly.");
-			success = true;
 		} else {
 			System.err.println("ERROR: Server registration failed.");
 		}
@@ -306,18 +933,21 @@ public class DirectoryConnector {
 	
 	public boolean unregisterServer() throws IOException {
 		// TODO: Ver TODOs en logIntoDirectory y seguir esquema similar
-		boolean success = false;
+		boolean success = true;
 		
-		DirMessage mensaje = new DirMessage(DirMessageOps.OPERATION_UNREGISTER);
-		mensaje.setSessionKey(Integer.toString(this.sessionKey));
-		String unregister = mensaje.toString();
-		byte[] unregisterBytes = unregister.getBytes();
-		byte[] respuesta = sendAndReceiveDatagrams(unregisterBytes);
-		String respuestaString = new String(respuesta);
-		DirMessage respuestaMensaje = DirMessage.fromString(respuestaString);
-		if (respuestaMensaje.getOperation().equals(NFDirectoryServer.UNREGISTER_OK)) {
+		for (Shard shard : shards) {
+			DirMessage mensaje = new DirMessage(DirMessageOps.OPERATION_UNREGISTER);
+			mensaje.setSessionKey(Integer.toString(shard.sessionKey));
+			DirMessage respuestaMensaje = sendAndReceiveMessage(mensaje, shard);
+			if (respuestaMensaje.getOperation().equals(NFDirectoryServer.UNREGISTER_OK)) {
+				resetPublishedFiles(shard); // El directorio olvida los ficheros publicados
+			} else {
+				success = false;
+			}
+		}
+		serving = false;
+		if (success) {
 			System.out.println("Server unregistered successfuly.");
-			success = true;
 		} else {
 			System.err.println("ERROR: Server unregistration failed.");
 		}
@@ -339,14 +969,11 @@ public class DirectoryConnector {
 		InetSocketAddress serverAddr = null;
 		// TODO: Ver TODOs en logIntoDirectory y seguir esquema similar
 		
+		// Todas las particiones conocen a los servidores registrados: basta la primera
 		DirMessage mensaje = new DirMessage(DirMessageOps.OPERATION_DOWNLOADFROM);
 		mensaje.setNickname(nick);
-		mensaje.setSessionKey(Integer.toString(sessionKey));
-		String lookUp = mensaje.toString();
-		byte[] lookUpBytes = lookUp.getBytes();
-		byte[] respuesta = sendAndReceiveDatagrams(lookUpBytes);
-		String respuestaString = new String(respuesta);
-		DirMessage respuestaMensaje = DirMessage.fromString(respuestaString);
+		mensaje.setSessionKey(Integer.toString(shards[0].sessionKey));
+		DirMessage respuestaMensaje = sendAndReceiveMessage(mensaje, shards[0]);
 		if (respuestaMensaje.getOperation().equals(NFDirectoryServer.DOWNLOADFROM_OK)) {
 			InetAddress ip = respuestaMensaje.getIp();
 			int port = Integer.parseInt(respuestaMensaje.getPort());
@@ -362,103 +989,924 @@ public class DirectoryConnector {
 	 * Método para publicar ficheros que este peer servidor de ficheros están
 	 * compartiendo.
 	 * 
+	 * La primera vez se publica la lista completa; después sólo se envían los
+	 * ficheros añadidos y eliminados desde la última publicación, junto con la
+	 * versión del catálogo sobre la que se calcularon los cambios. Si el
+	 * directorio está repartido, cada partición recibe sólo los ficheros de su
+	 * rango de hashes, con su propia versión del catálogo.
+	 * 
+	 * Si la lista de una partición no cabe en un mensaje (un datagrama, o
+	 * DirMessage.MAX_MESSAGE_SIZE si la partición acepta peticiones
+	 * fragmentadas), se publica en su lugar un filtro de Bloom con sus hashes, que
+	 * ocupa BloomFilter.BITS_PER_FILE bits por fichero y se envía en trozos. El
+	 * directorio no conoce entonces los ficheros de este peer: sólo lo ofrece como
+	 * candidato en las búsquedas por hash completo que pasan el filtro, y el
+	 * cliente le pregunta si de verdad tiene el fichero.
+	 * 
 	 * @param files La lista de ficheros que este peer está sirviendo.
 	 * @return Verdadero si el directorio tiene registrado a este peer como servidor
 	 *         y acepta la lista de ficheros, falso en caso contrario.
 	 * @throws IOException 
 	 */
 	public boolean publishLocalFiles(FileInfo[] files) throws IOException {
-		boolean success = false;
+		boolean success = true;
 
-		DirMessage mensaje = new DirMessage(DirMessageOps.OPERATION_PUBLISH);
-		mensaje.setSessionKey(Integer.toString(sessionKey));
-		String fileStr = "";
+		List<Map<String, String>> current = new ArrayList<Map<String, String>>(shards.length);
+		for (int i = 0; i < shards.length; i++) {
+			current.add(new HashMap<String, String>());
+		}
 		for (FileInfo file : files) {
-			fileStr += file.fileHash + "," + file.fileName + ":";
-		}
-		mensaje.setFiles(fileStr);
-		String publish = mensaje.toString();
-		byte[] publishBytes = publish.getBytes();
-		byte[] respuesta = sendAndReceiveDatagrams(publishBytes);
-		String respuestaString = new String(respuesta);
-		DirMessage respuestaMensaje = DirMessage.fromString(respuestaString);
-		if(respuestaMensaje.getOperation().equals(NFDirectoryServer.PUBLISH_OK)) {
+			current.get(DirectoryShard.shardOf(file.fileHash, shards.length)).put(file.fileHash, file.toDescriptor());
+		}
+		boolean changed = false;
+		for (int i = 0; i < shards.length; i++) {
+			Shard shard = shards[i];
+			Map<String, String> shardFiles = current.get(i);
+			if (listBytes(shardFiles) > maxListBytes(shard)) {
+				if (shard.filteredFiles != null && shard.filteredFiles.equals(shardFiles.keySet())) {
+					continue;
+				}
+				changed = true;
+				if (shard.publishedVersion > 0 && !shard.publishedFiles.isEmpty()) {
+					// Se retira la lista de ficheros publicada antes de pasar al filtro
+					success &= publishToShard(shard, new HashMap<String, String>());
+				}
+				success &= publishFilter(shard, shardFiles.keySet());
+				continue;
+			}
+			if (shard.filteredFiles != null) {
+				changed = true;
+				success &= withdrawFilter(shard);
+			}
+			if (shard.publishedVersion > 0 && shardFiles.equals(shard.publishedFiles)) {
+				continue;
+			}
+			changed = true;
+			success &= publishToShard(shard, shardFiles);
+		}
+		if (!success) {
+			System.err.println("ERROR: publish failed");
+		} else if (changed) {
 			System.out.println("Files published successfully");
-			success = true;
 		} else {
-			System.err.println("ERROR: publish failed");
+			System.out.println("Files already published");
 		}
 
 		return success;
 	}
 
+	/**
+	 * Publica en una partición los cambios en su lista de ficheros
+	 */
+	private boolean publishToShard(Shard shard, Map<String, String> current) throws IOException {
+		if (shard.publishedVersion == 0) {
+			return publishAllFiles(shard, current);
+		}
+		/*
+		 * Sólo se envían los cambios respecto a la última lista publicada. Si el
+		 * directorio no tiene esa lista (p.ej. se perdió una publicación), pide la
+		 * lista completa.
+		 */
+		StringBuilder added = new StringBuilder();
+		StringBuilder removed = new StringBuilder();
+		for (Map.Entry<String, String> file : current.entrySet()) {
+			if (!shard.publishedFiles.containsKey(file.getKey())) {
+				added.append(file.getKey()).append(',').append(file.getValue()).append(':');
+			}
+		}
+		for (String hash : shard.publishedFiles.keySet()) {
+			if (!current.containsKey(hash)) {
+				removed.append(hash).append(':');
+			}
+		}
+		DirMessage mensaje = new DirMessage(DirMessageOps.OPERATION_PUBLISHDELTA);
+		mensaje.setSessionKey(shard.sessionKey);
+		mensaje.setFiles(added.toString());
+		mensaje.setRemoved(removed.toString());
+		mensaje.setBaseVersion(shard.publishedVersion);
+		mensaje.setVersion(shard.publishedVersion + 1);
+		DirMessage respuestaMensaje = sendAndReceiveMessage(mensaje, shard);
+		if(respuestaMensaje.getOperation().equals(NFDirectoryServer.PUBLISH_OK)) {
+			shard.publishedFiles = current;
+			shard.publishedVersion++;
+			return true;
+		} else if(respuestaMensaje.getOperation().equals(NFDirectoryServer.PUBLISH_RESYNC)) {
+			return publishAllFiles(shard, current);
+		}
+		return false;
+	}
+
+	/**
+	 * Publica en una partición su lista completa de ficheros, sustituyendo a la
+	 * que tuviera de este peer
+	 */
+	private boolean publishAllFiles(Shard shard, Map<String, String> files) throws IOException {
+		DirMessage mensaje = new DirMessage(DirMessageOps.OPERATION_PUBLISH);
+		mensaje.setSessionKey(shard.sessionKey);
+		StringBuilder fileStr = new StringBuilder();
+		for (Map.Entry<String, String> file : files.entrySet()) {
+			fileStr.append(file.getKey()).append(',').append(file.getValue()).append(':');
+		}
+		mensaje.setFiles(fileStr.toString());
+		mensaje.setVersion(shard.publishedVersion + 1);
+		DirMessage respuestaMensaje = sendAndReceiveMessage(mensaje, shard);
+		if(respuestaMensaje.getOperation().equals(NFDirectoryServer.PUBLISH_OK)) {
+			shard.publishedFiles = files;
+			shard.publishedVersion++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return Los bytes que puede ocupar la lista de ficheros que se publica en
+	 *         una partición
+	 */
+	private int maxListBytes(Shard shard) {
+		return (mtu > 0 && shard.fragments) ? PUBLISH_MAX_FRAGMENTED_LIST_BYTES : PUBLISH_MAX_LIST_BYTES;
+	}
+
+	/**
+	 * @return Los bytes que ocupa una lista de ficheros en el campo "files" de
+	 *         PUBLISH
+	 */
+	private static int listBytes(Map<String, String> files) {
+		int bytes = 0;
+		for (Map.Entry<String, String> file : files.entrySet()) {
+			bytes += file.getKey().length() + file.getValue().getBytes(StandardCharsets.UTF_8).length + 2;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Publica en una partición un filtro de Bloom con los hashes de los ficheros,
+	 * que sustituye al que tuviera de este peer. El filtro se envía en trozos de
+	 * PeerFilters.CHUNK_BYTES, cada uno tras la confirmación del anterior.
+	 */
+	private boolean publishFilter(Shard shard, Set<String> hashes) throws IOException {
+		BloomFilter filter = BloomFilter.forFiles(hashes.size());
+		for (String hash : hashes) {
+			filter.add(hash);
+		}
+		byte[] bits = filter.getBits();
+		int version = shard.filterVersion + 1;
+		for (int offset = 0; offset < bits.length; offset += PeerFilters.CHUNK_BYTES) {
+			DirMessage mensaje = new DirMessage(DirMessageOps.OPERATION_PUBLISHFILTER);
+			mensaje.setSessionKey(shard.sessionKey);
+			mensaje.setVersion(version);
+			mensaje.setFilterSize(bits.length);
+			mensaje.setHashCount(filter.getHashCount());
+			mensaje.setOffset(offset);
+			mensaje.setFilter(Arrays.copyOfRange(bits, offset, Math.min(bits.length, offset + PeerFilters.CHUNK_BYTES)));
+			DirMessage respuestaMensaje = sendAndReceiveMessage(mensaje, shard);
+			if (!respuestaMensaje.getOperation().equals(NFDirectoryServer.PUBLISH_OK)) {
+				return false;
+			}
+		}
+		shard.filteredFiles = new HashSet<String>(hashes);
+		shard.filterVersion = version;
+		return true;
+	}
+
+	/**
+	 * Retira el filtro de Bloom publicado en una partición (al volver a publicar
+	 * la lista de ficheros)
+	 */
+	private boolean withdrawFilter(Shard shard) throws IOException {
+		DirMessage mensaje = new DirMessage(DirMessageOps.OPERATION_PUBLISHFILTER);
+		mensaje.setSessionKey(shard.sessionKey);
+		mensaje.setVersion(shard.filterVersion + 1);
+		mensaje.setFilterSize(0);
+		DirMessage respuestaMensaje = sendAndReceiveMessage(mensaje, shard);
+		if (respuestaMensaje.getOperation().equals(NFDirectoryServer.PUBLISH_OK)) {
+			shard.filteredFiles = null;
+			shard.filterVersion++;
+			return true;
+		}
+		return false;
+	}
+
+	private static void resetPublishedFiles(Shard shard) {
+		shard.publishedFiles = new HashMap<String, String>();
+		shard.publishedVersion = 0;
+		shard.filteredFiles = null;
+		shard.filterVersion = 0;
+	}
+
 	/**
 	 * Método para obtener la lista de ficheros que los peers servidores han
 	 * publicado al directorio. Para cada fichero se debe obtener un objeto FileInfo
 	 * con nombre, tamaño y hash. Opcionalmente, puede incluirse para cada fichero,
 	 * su lista de peers servidores que lo están compartiendo.
 	 * 
-	 * @return Los ficheros publicados al directorio, o null si el directorio no
-	 *         pudo satisfacer nuestra solicitud
-	 * @throws IOException 
+	 * La lista se pide al directorio por páginas de FILELIST_PAGE_SIZE ficheros:
+	 * el iterador devuelto pide cada página sólo cuando se han consumido los
+	 * ficheros de la anterior, por lo que la lista no tiene que caber en un único
+	 * datagrama. Si el directorio está repartido, se recorren sus particiones una
+	 * tras otra, lo que mantiene el orden de hash. Si el directorio no puede
+	 * satisfacer una petición, la iteración termina tras mostrar el error; los
+	 * errores de comunicación se lanzan como UncheckedIOException.
+	 * 
+	 * @return Un iterador sobre los ficheros publicados al directorio, en orden de
+	 *         hash
 	 */
-	public FileInfo[] getFileList() throws IOException {
-		FileInfo[] filelist = null;
-		// TODO: Ver TODOs en logIntoDirectory y seguir esquema similar
+	public Iterator<FileInfo> getFileList() {
+		return new FileListIterator();
+	}
+
+	/**
+	 * Como getFileList, pero devuelve la lista de ficheros página a página, tal y
+	 * como llega del directorio, p.ej. para buscar los servidores de cada página
+	 * antes de pedir la siguiente.
+	 * 
+	 * @return Un iterador sobre las páginas (no vacías) de la lista de ficheros,
+	 *         en orden de hash
+	 */
+	public Iterator<List<FileInfo>> getFileListPages() {
+		final FileListIterator files = new FileListIterator();
+		return new Iterator<List<FileInfo>>() {
+			@Override
+			public boolean hasNext() {
+				return files.hasNext();
+			}
+
+			@Override
+			public List<FileInfo> next() {
+				return files.nextPage();
+			}
+		};
+	}
+
+	/**
+	 * Iterador que pide al directorio las páginas de la lista de ficheros a medida
+	 * que se necesitan, usando el cursor de cada respuesta para pedir la siguiente
+	 */
+	private class FileListIterator implements Iterator<FileInfo> {
+		private final LinkedList<FileInfo> page = new LinkedList<FileInfo>();
+		/**
+		 * Partición de la que se están pidiendo páginas (shards.length al terminar)
+		 */
+		private int shard = 0;
+		private String cursor = null;
 
-		DirMessage mensaje = new DirMessage(DirMessageOps.OPERATION_FILELIST);
-		mensaje.setSessionKey(Integer.toString(sessionKey));
-		String fileList = mensaje.toString();
-		byte[] fileListBytes = fileList.getBytes();
-		byte[] respuesta = sendAndReceiveDatagrams(fileListBytes);
-		String respuestaString = new String(respuesta);
-		DirMessage respuestaMensaje = DirMessage.fromString(respuestaString);
-		if(respuestaMensaje.getOperation().equals(NFDirectoryServer.FILELIST_OK)) {
-			String[] filelistArray = respuestaMensaje.getFiles().split(":");
-			filelist = new FileInfo[filelistArray.length];
-			try{
-				for (int i = 0; i < filelist.length; i++) {
-
-					filelist[i] = new FileInfo(filelistArray[i].split(",")[0], filelistArray[i].split(",")[1], 0, null);
+		@Override
+		public boolean hasNext() {
+			while (page.isEmpty() && shard < shards.length) {
+				try {
+					fetchPage();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
 				}
-			} catch (ArrayIndexOutOfBoundsException e) {
+			}
+			return !page.isEmpty();
+		}
 
+		@Override
+		public FileInfo next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return page.removeFirst();
+		}
+
+		/**
+		 * @return Los ficheros que quedan de la página actual, o los de la siguiente
+		 *         si ya se han consumido
+		 */
+		private List<FileInfo> nextPage() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			List<FileInfo> rest = new ArrayList<FileInfo>(page);
+			page.clear();
+			return rest;
+		}
+
+		private void fetchPage() throws IOException {
+			DirMessage mensaje = new DirMessage(DirMessageOps.OPERATION_FILELIST);
+			mensaje.setSessionKey(shards[shard].sessionKey);
+			// Si las respuestas llegan comprimidas o fragmentadas, caben páginas mucho mayores
+			mensaje.setPageSize((compression || mtu > 0) ? NFDirectoryServer.FILELIST_MAX_PAGE_SIZE
+					: FILELIST_PAGE_SIZE);
+			mensaje.setCursor(cursor);
+			DirMessage respuestaMensaje = sendAndReceiveMessage(mensaje, shards[shard]);
+			if (respuestaMensaje.getOperation().equals(NFDirectoryServer.FILELIST_OK)) {
+				for (String fichero : respuestaMensaje.getFiles().split(":")) {
+					int idx = fichero.indexOf(',');
+					if (idx > 0) {
+						page.add(FileInfo.fromDescriptor(fichero.substring(0, idx), fichero.substring(idx + 1)));
+					}
+				}
+				cursor = respuestaMensaje.getCursor();
+				if (cursor == null) {
+					shard++; // Última página de esta partición
+				}
+			} else {
+				System.err.println("ERROR: filelist failed");
+				shard = shards.length;
 			}
-		} else {
-			System.err.println("ERROR: filelist failed");
 		}
-		
-		return filelist;
 	}
 
 	/**
 	 * Método para obtener la lista de nicknames de los peers servidores que tienen
-	 * un fichero identificado por su hash. Opcionalmente, puede aceptar también
-	 * buscar por una subcadena del hash, en vez de por el hash completo.
+	 * un fichero identificado por su hash. También acepta un prefijo del hash, en
+	 * vez del hash completo (ver locateFile).
 	 * 
 	 * @return La lista de nicknames de los servidores que han publicado al
-	 *         directorio el fichero indicado. Si no hay ningún servidor, devuelve
-	 *         una lista vacía.
+	 *         directorio el fichero indicado, o null si no hay ningún servidor o el
+	 *         prefijo es ambiguo.
 	 * @throws IOException 
 	 */
 	public String[] getServerNicknamesSharingThisFile(String fileHash) throws IOException {
-		String[] nicklist = null;
+		FileInfo fichero = locateFile(fileHash);
+		return (fichero != null) ? fichero.servers : null;
+	}
+
+	/**
+	 * Método para obtener con una sola consulta al directorio todo lo necesario
+	 * para descargar un fichero identificado por su hash: su nombre y tamaño, los
+	 * nicknames de los servidores que lo comparten y la dirección de socket de los
+	 * que están dados de alta. También acepta un prefijo del hash, en vez del hash
+	 * completo: si el prefijo corresponde a varios ficheros, el directorio
+	 * responde con los candidatos, que se muestran por pantalla. Si el directorio
+	 * está repartido, se pregunta sólo a las particiones en cuyo rango puede caer
+	 * el prefijo (una sola si es suficientemente largo).
+	 * 
+	 * Con el hash completo, el directorio indica además los peers que quizá
+	 * comparten el fichero según el filtro de Bloom con el que publican su
+	 * biblioteca (ver publishLocalFiles), que hay que confirmar con el propio peer
+	 * (NFConnector.queryFile). El fichero puede tener sólo esos candidatos, sin
+	 * servidores seguros; su nombre y tamaño se desconocen entonces.
+	 * 
+	 * @return El fichero, con los nicknames de sus servidores en FileInfo.servers,
+	 *         sus direcciones en FileInfo.serverAddresses y los candidatos en
+	 *         FileInfo.candidates y FileInfo.candidateAddresses, o null si no hay
+	 *         ningún servidor ni candidato o el prefijo es ambiguo.
+	 * @throws IOException
+	 */
+	public FileInfo locateFile(String fileHash) throws IOException {
+		FileInfo located = null;
 		// TODO: Ver TODOs en logIntoDirectory y seguir esquema similar
-		DirMessage mensaje = new DirMessage(DirMessageOps.OPERATION_SEARCH);
-		mensaje.setSessionKey(Integer.toString(sessionKey));
-		mensaje.setHash(fileHash);
-		String search = mensaje.toString();
-		byte[] searchBytes = search.getBytes();
-		byte[] respuesta = sendAndReceiveDatagrams(searchBytes);
-		String respuestaString = new String(respuesta);
-		DirMessage respuestaMensaje = DirMessage.fromString(respuestaString);
-		if(respuestaMensaje.getOperation().equals(NFDirectoryServer.SEARCH_OK)) {
-			nicklist = respuestaMensaje.getServers().split(",");
-		} else {
+		List<FileInfo> candidates = new ArrayList<FileInfo>();
+		int first = DirectoryShard.shardOf(fileHash, shards.length);
+		int last = DirectoryShard.lastShardOf(fileHash, shards.length);
+		for (int i = first; i <= last; i++) {
+			DirMessage mensaje = new DirMessage(DirMessageOps.OPERATION_SEARCH);
+			mensaje.setSessionKey(Integer.toString(shards[i].sessionKey));
+			mensaje.setHash(fileHash);
+			DirMessage respuestaMensaje = sendAndReceiveMessage(mensaje, shards[i]);
+			if(respuestaMensaje.getOperation().equals(NFDirectoryServer.SEARCH_OK)) {
+				located = parseFileEntry(respuestaMensaje.getFiles());
+				if(located == null) {
+					// Directorio anterior, que sólo envía el hash y los servidores
+					located = new FileInfo(respuestaMensaje.getHash(), "", -1, null);
+				}
+				String servers = respuestaMensaje.getServers();
+				located.servers = (servers == null || servers.isEmpty()) ? new String[0] : servers.split(",");
+				located.serverAddresses = parseAddresses(respuestaMensaje.getAddresses());
+				parseCandidates(located, respuestaMensaje.getCandidates());
+				candidates.add(located);
+			} else if(respuestaMensaje.getOperation().equals(NFDirectoryServer.SEARCH_AMBIGUOUS)) {
+				for(String candidate : respuestaMensaje.getFiles().split(":")) {
+					FileInfo fichero = parseFileEntry(candidate);
+					if(fichero != null) {
+						candidates.add(fichero);
+					}
+				}
+			}
+		}
+		if(candidates.size() > 1) {
+			located = null;
+			System.err.println("ERROR: search failed. Ambiguous hash, candidates:");
+			for(FileInfo candidate : candidates.subList(0, Math.min(candidates.size(), NFDirectoryServer.SEARCH_MAX_CANDIDATES))) {
+				System.err.println("  " + candidate.fileHash + " " + candidate.fileName
+						+ (candidate.fileSize >= 0 ? " (" + candidate.fileSize + " bytes)" : ""));
+			}
+		} else if(located == null) {
 			System.err.println("ERROR: search failed");
 		}
 		
-		return nicklist;
+		return located;
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Convierte una entrada "hash,nombre,tamaño" de una lista de ficheros en un
+	 * FileInfo
+	 *
+	 * @return El fichero, o null si la entrada no tiene ese formato
+	 */
+	private static FileInfo parseFileEntry(String entry) {
+		int idx = (entry != null) ? entry.indexOf(',') : -1;
+		if (idx <= 0) {
+			return null;
+		}
+		int end = entry.endsWith(":") ? entry.length() - 1 : entry.length();
+		return FileInfo.fromDescriptor(entry.substring(0, idx), entry.substring(idx + 1, end));
+	}
+
+	/**
+	 * Guarda en el fichero los candidatos de una respuesta a SEARCH
+	 * ("nick@ip:puerto,nick@[ipv6]:puerto,..."), descartando los que no tienen ese
+	 * formato
+	 */
+	private static void parseCandidates(FileInfo fichero, String candidates) {
+		List<String> nicks = new ArrayList<String>();
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		if (candidates != null) {
+			for (String candidate : candidates.split(",")) {
+				int idx = candidate.indexOf('@');
+				InetSocketAddress[] address = (idx > 0) ? parseAddresses(candidate.substring(idx + 1))
+						: new InetSocketAddress[0];
+				if (address.length == 1) {
+					nicks.add(candidate.substring(0, idx));
+					addresses.add(address[0]);
+				}
+			}
+		}
+		fichero.candidates = nicks.toArray(new String[nicks.size()]);
+		fichero.candidateAddresses = addresses.toArray(new InetSocketAddress[addresses.size()]);
+	}
+
+	/**
+	 * Convierte una lista de direcciones "ip:puerto,[ipv6]:puerto,..." en
+	 * direcciones de socket, descartando las que no tienen ese formato
+	 */
+	private static InetSocketAddress[] parseAddresses(String addresses) {
+		List<InetSocketAddress> result = new ArrayList<InetSocketAddress>();
+		if (addresses != null) {
+			for (String address : addresses.split(",")) {
+				int idx = address.lastIndexOf(':');
+				if (idx <= 0) {
+					continue;
+				}
+				String host = address.substring(0, idx);
+				if (host.startsWith("[") && host.endsWith("]")) {
+					host = host.substring(1, host.length() - 1);
+				}
+				try {
+					// Es una dirección literal: no se consulta ningún DNS
+					result.add(new InetSocketAddress(InetAddress.getByName(host),
+							Integer.parseInt(address.substring(idx + 1))));
+				} catch (IllegalArgumentException | UnknownHostException e) {
+					System.err.println("ERROR: search returned an invalid address: " + address);
+				}
+			}
+		}
+		return result.toArray(new InetSocketAddress[result.size()]);
+	}
+
+	/**
+	 * Método para buscar en el directorio los ficheros cuyo nombre contiene unas
+	 * palabras dadas. Con una sola petición se obtienen el hash, el nombre, el
+	 * tamaño y los servidores que comparten cada fichero encontrado (una por partición, si el
+	 * directorio está repartido).
+	 * 
+	 * @param keywords Palabras a buscar (cada una puede ser el principio de una
+	 *                 palabra del nombre)
+	 * @return Los ficheros encontrados, con los nicknames de sus servidores en
+	 *         FileInfo.servers, o null si no se encontró ninguno o el directorio no
+	 *         pudo satisfacer nuestra solicitud
+	 * @throws IOException
+	 */
+	public FileInfo[] searchFilesByName(String keywords) throws IOException {
+		FileInfo[] filelist = null;
+		LinkedList<FileInfo> found = new LinkedList<FileInfo>();
+		for (Shard shard : shards) {
+			if (found.size() >= NFDirectoryServer.SEARCHNAME_MAX_RESULTS) {
+				break;
+			}
+			for(FileInfo fichero : searchShardByName(shard, keywords)) {
+				if(found.size() < NFDirectoryServer.SEARCHNAME_MAX_RESULTS) {
+					found.add(fichero);
+				}
+			}
+		}
+		if(!found.isEmpty()) {
+			filelist = found.toArray(new FileInfo[found.size()]);
+		} else {
+			System.err.println("ERROR: search by name failed");
+		}
+
+		return filelist;
+	}
+
+	/**
+	 * Busca por nombre en una partición del directorio
+	 *
+	 * @return Los ficheros encontrados en la partición (como mucho
+	 *         SEARCHNAME_MAX_RESULTS). El directorio responde con error si no
+	 *         encuentra ninguno: en ese caso la lista está vacía.
+	 */
+	private List<FileInfo> searchShardByName(Shard shard, String keywords) throws IOException {
+		DirMessage mensaje = new DirMessage(DirMessageOps.OPERATION_SEARCHNAME);
+		mensaje.setSessionKey(shard.sessionKey);
+		mensaje.setKeywords(keywords);
+		DirMessage respuestaMensaje = sendAndReceiveMessage(mensaje, shard);
+		List<FileInfo> found = new ArrayList<FileInfo>();
+		if(!respuestaMensaje.getOperation().equals(NFDirectoryServer.SEARCHNAME_OK)) {
+			return found;
+		}
+		for(String result : respuestaMensaje.getResults().split(":")) {
+			FileInfo fichero = parseSearchResult(result);
+			if(fichero != null) {
+				found.add(fichero);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Método para obtener del directorio los nicknames de los servidores que
+	 * comparten cada uno de los ficheros indicados, con tan pocas peticiones como
+	 * sea posible: los hashes de cada partición se agrupan en peticiones
+	 * SEARCHBATCH que quepan en un datagrama, en vez de hacer una búsqueda por
+	 * fichero.
+	 *
+	 * @param fileHashes Los hashes completos de los ficheros
+	 * @return Un mapa hash -> nicknames de los servidores que comparten cada
+	 *         fichero publicado (los que no lo están no aparecen), o null si el
+	 *         directorio no pudo satisfacer nuestra solicitud
+	 * @throws IOException
+	 */
+	public Map<String, String[]> getServerNicknamesSharingTheseFiles(Collection<String> fileHashes)
+			throws IOException {
+		Map<String, FileInfo> found = searchBatch(fileHashes);
+		if (found == null) {
+			return null;
+		}
+		Map<String, String[]> nicks = new HashMap<String, String[]>();
+		for (FileInfo fichero : found.values()) {
+			nicks.put(fichero.fileHash, fichero.servers);
+		}
+		return nicks;
+	}
+
+	/**
+	 * Busca en el directorio los ficheros indicados con peticiones SEARCHBATCH
+	 * (ver getServerNicknamesSharingTheseFiles)
+	 *
+	 * @return Un mapa hash -> fichero con sus servidores (los que no están
+	 *         publicados no aparecen), o null si el directorio respondió con error
+	 */
+	private Map<String, FileInfo> searchBatch(Collection<String> fileHashes) throws IOException {
+		Map<String, FileInfo> found = new HashMap<String, FileInfo>();
+		List<TreeSet<String>> hashesByShard = new ArrayList<TreeSet<String>>(shards.length);
+		for (int i = 0; i < shards.length; i++) {
+			hashesByShard.add(new TreeSet<String>());
+		}
+		for (String hash : fileHashes) {
+			hashesByShard.get(DirectoryShard.shardOf(hash, shards.length)).add(hash.toLowerCase());
+		}
+		for (int i = 0; i < shards.length; i++) {
+			// El directorio responde en orden de hash, y el cursor indica hasta dónde
+			List<String> pending = new ArrayList<String>(hashesByShard.get(i));
+			int next = 0;
+			while (next < pending.size()) {
+				StringBuilder files = new StringBuilder();
+				int end = next;
+				while (end < pending.size() && (end == next
+						|| files.length() + pending.get(end).length() + 2 <= SEARCHBATCH_MAX_REQUEST_BYTES)) {
+					files.append(pending.get(end)).append(",:");
+					end++;
+				}
+				DirMessage mensaje = new DirMessage(DirMessageOps.OPERATION_SEARCHBATCH);
+				mensaje.setSessionKey(shards[i].sessionKey);
+				mensaje.setFiles(files.toString());
+				DirMessage respuestaMensaje = sendAndReceiveMessage(mensaje, shards[i]);
+				if (!respuestaMensaje.getOperation().equals(NFDirectoryServer.SEARCHBATCH_OK)) {
+					System.err.println("ERROR: batch search failed");
+					return null;
+				}
+				for (String result : respuestaMensaje.getResults().split(":")) {
+					FileInfo fichero = parseSearchResult(result);
+					if (fichero != null) {
+						found.put(fichero.fileHash, fichero);
+					}
+				}
+				if (respuestaMensaje.getCursor() != null) {
+					// No cupieron todos los resultados: se piden los hashes tras el cursor
+					int idx = Collections.binarySearch(pending, respuestaMensaje.getCursor());
+					next = Math.max(next + 1, (idx >= 0) ? idx + 1 : -idx - 1);
+				} else {
+					next = end;
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Método para suscribirse a los cambios de unos ficheros del directorio: los
+	 * indicados por su hash y los que tienen en el nombre las palabras de alguno de
+	 * los patrones (con el criterio de searchFilesByName). Cada vez que cambian los
+	 * servidores que comparten uno de ellos, el directorio lo avisa y se llama al
+	 * receptor desde un hilo propio del conector, sin tener que consultar la lista
+	 * de ficheros periódicamente. Al suscribirse, el receptor recibe también el
+	 * estado actual de los ficheros que aún no conocía.
+	 *
+	 * Los avisos van numerados: si se pierde alguno (o el heartbeat indica que se
+	 * ha perdido el último), se vuelve a consultar el estado de los ficheros
+	 * vigilados y se avisa de las diferencias. Si el directorio olvida la
+	 * suscripción (p.ej. al reiniciarse), se renueva con el siguiente heartbeat.
+	 *
+	 * @param hashes   Los hashes completos de los ficheros vigilados
+	 * @param patterns Las palabras de cada patrón de nombre vigilado
+	 * @param listener El receptor de los cambios
+	 * @return Verdadero si todas las particiones del directorio aceptaron la
+	 *         suscripción, que sustituye a la anterior. Si ambas listas están
+	 *         vacías, se cancela.
+	 * @throws IOException
+	 */
+	public boolean watch(Collection<String> hashes, Collection<String> patterns, WatchListener listener)
+			throws IOException {
+		synchronized (watchLock) {
+			if (watchSocket == null) {
+				watchSocket = new DatagramSocket();
+				startWatchReceiver();
+			}
+			watchedHashes = new LinkedHashSet<String>();
+			for (String hash : hashes) {
+				watchedHashes.add(hash.toLowerCase());
+			}
+			watchedPatterns = new LinkedHashSet<String>();
+			for (String pattern : patterns) {
+				// Los patrones se envían separados por ':'
+				watchedPatterns.add(pattern.replace(':', ' ').trim());
+			}
+			watchListener = listener;
+			boolean success = true;
+			for (Shard shard : shards) {
+				success &= subscribe(shard);
+			}
+			// Se olvidan los ficheros que ya no se vigilan, sin avisar de ellos
+			watchedFiles.values().removeIf(fichero -> !isWatched(fichero));
+			for (Shard shard : shards) {
+				if (shard.watchSequence != DirMessage.NO_VALUE) {
+					resync(shard);
+				}
+			}
+			if (!success) {
+				System.err.println("ERROR: watch failed");
+			}
+			return success;
+		}
+	}
+
+	/**
+	 * Método para cancelar la suscripción a los cambios de ficheros
+	 *
+	 * @return Verdadero si todas las particiones cancelaron la suscripción
+	 * @throws IOException
+	 */
+	public boolean unwatch() throws IOException {
+		return watch(Collections.<String>emptyList(), Collections.<String>emptyList(), null);
+	}
+
+	/**
+	 * @return Los hashes de los ficheros vigilados
+	 */
+	public Set<String> getWatchedHashes() {
+		synchronized (watchLock) {
+			return new LinkedHashSet<String>(watchedHashes);
+		}
+	}
+
+	/**
+	 * @return Los patrones de nombre vigilados
+	 */
+	public Set<String> getWatchedPatterns() {
+		synchronized (watchLock) {
+			return new LinkedHashSet<String>(watchedPatterns);
+		}
+	}
+
+	/**
+	 * Envía a una partición la suscripción actual: los hashes de su rango y todos
+	 * los patrones. Se llama con watchLock tomado.
+	 *
+	 * @return Verdadero si la partición la aceptó
+	 */
+	private boolean subscribe(Shard shard) throws IOException {
+		StringBuilder files = new StringBuilder();
+		for (String hash : watchedHashes) {
+			if (shards[DirectoryShard.shardOf(hash, shards.length)] == shard) {
+				files.append(hash).append(",:");
+			}
+		}
+		DirMessage mensaje = new DirMessage(DirMessageOps.OPERATION_WATCH);
+		mensaje.setSessionKey(shard.sessionKey);
+		mensaje.setPort(watchSocket.getLocalPort());
+		if (files.length() > 0) {
+			mensaje.setFiles(files.toString());
+		}
+		if (!watchedPatterns.isEmpty()) {
+			mensaje.setKeywords(String.join(":", watchedPatterns));
+		}
+		DirMessage respuestaMensaje = sendAndReceiveMessage(mensaje, shard);
+		if (!respuestaMensaje.getOperation().equals(NFDirectoryServer.WATCH_OK)) {
+			shard.watchSequence = DirMessage.NO_VALUE;
+			return false;
+		}
+		if (files.length() == 0 && watchedPatterns.isEmpty()) {
+			shard.watchSequence = DirMessage.NO_VALUE; // Suscripción cancelada
+		} else {
+			shard.watchSequence = Math.max(respuestaMensaje.getVersion(), 0);
+		}
+		return true;
+	}
+
+	/**
+	 * Olvida las suscripciones al cerrar la sesión
+	 */
+	private void resetWatch() {
+		synchronized (watchLock) {
+			watchedHashes = new LinkedHashSet<String>();
+			watchedPatterns = new LinkedHashSet<String>();
+			watchedFiles.clear();
+			watchListener = null;
+			for (Shard shard : shards) {
+				shard.watchSequence = DirMessage.NO_VALUE;
+			}
+		}
+	}
+
+	/**
+	 * Comprueba con la respuesta a un heartbeat si la suscripción en una
+	 * partición sigue activa y si se ha perdido el último aviso
+	 *
+	 * @param sequence El número de secuencia del último aviso enviado por la
+	 *                 partición, o NO_VALUE si no tiene suscripción
+	 */
+	private void checkWatch(Shard shard, int sequence) throws IOException {
+		synchronized (watchLock) {
+			if (shard.watchSequence == DirMessage.NO_VALUE) {
+				return;
+			}
+			if (sequence == DirMessage.NO_VALUE) {
+				System.err.println("* Directory forgot the watch subscription, renewing it");
+				if (subscribe(shard)) {
+					resync(shard);
+				}
+			} else if (sequence > shard.watchSequence) {
+				shard.watchSequence = sequence;
+				resync(shard);
+			}
+		}
+	}
+
+	/**
+	 * Lanza el hilo que recibe los avisos del directorio por watchSocket
+	 */
+	private void startWatchReceiver() {
+		final DatagramSocket receiveSocket = watchSocket;
+		Thread receiver = new Thread(() -> {
+			byte[] buffer = new byte[DirMessage.PACKET_MAX_SIZE];
+			while (true) {
+				DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+				try {
+					receiveSocket.receive(packet);
+					DirMessage event = DirMessage.decode(packet.getData(), packet.getLength());
+					if (event.getOperation().equals(NFDirectoryServer.WATCH_EVENT)) {
+						for (Shard shard : shards) {
+							if (shard.address.equals(packet.getSocketAddress())) {
+								eventReceived(shard, event);
+							}
+						}
+					}
+				} catch (IOException | RuntimeException e) {
+					System.err.println("ERROR: invalid watch event: " + e.getMessage());
+				}
+			}
+		}, "directory-watch");
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+	/**
+	 * Procesa un aviso de una partición: entrega los cambios si es el siguiente
+	 * al último recibido y, si falta alguno anterior, vuelve a consultar el estado
+	 * de los ficheros vigilados. Los avisos repetidos o atrasados se ignoran.
+	 */
+	private void eventReceived(Shard shard, DirMessage event) throws IOException {
+		synchronized (watchLock) {
+			int sequence = event.getVersion();
+			if (shard.watchSequence == DirMessage.NO_VALUE || sequence <= shard.watchSequence) {
+				return;
+			}
+			boolean lost = sequence > shard.watchSequence + 1;
+			shard.watchSequence = sequence;
+			for (String result : event.getResults().split(":")) {
+				FileInfo fichero = parseSearchResult(result);
+				// Un aviso enviado antes de cambiar la suscripción puede traer otros ficheros
+				if (fichero != null && isWatched(fichero)) {
+					update(fichero);
+				}
+			}
+			if (lost) {
+				resync(shard);
+			}
+		}
+	}
+
+	/**
+	 * Vuelve a consultar a una partición el estado de los ficheros vigilados de su
+	 * rango y entrega las diferencias con el último estado conocido. Se llama con
+	 * watchLock tomado.
+	 */
+	private void resync(Shard shard) throws IOException {
+		List<String> hashes = new ArrayList<String>();
+		for (String hash : watchedHashes) {
+			if (shards[DirectoryShard.shardOf(hash, shards.length)] == shard) {
+				hashes.add(hash);
+			}
+		}
+		Map<String, FileInfo> current = searchBatch(hashes);
+		if (current == null) {
+			return;
+		}
+		boolean complete = true;
+		for (String pattern : watchedPatterns) {
+			List<FileInfo> found = searchShardByName(shard, pattern);
+			// Si la respuesta está truncada no se sabe qué ficheros han desaparecido
+			complete &= found.size() < NFDirectoryServer.SEARCHNAME_MAX_RESULTS;
+			for (FileInfo fichero : found) {
+				current.put(fichero.fileHash, fichero);
+			}
+		}
+		for (FileInfo known : new ArrayList<FileInfo>(watchedFiles.values())) {
+			if (!current.containsKey(known.fileHash)
+					&& shards[DirectoryShard.shardOf(known.fileHash, shards.length)] == shard
+					&& (complete || watchedHashes.contains(known.fileHash))) {
+				update(new FileInfo(known.fileHash, known.fileName, known.fileSize, null));
+			}
+		}
+		for (FileInfo fichero : current.values()) {
+			update(fichero);
+		}
+	}
+
+	/**
+	 * Guarda el nuevo estado de un fichero vigilado y avisa al receptor si ha
+	 * cambiado. Se llama con watchLock tomado.
+	 */
+	private void update(FileInfo fichero) {
+		if (fichero.servers == null) {
+			fichero.servers = new String[0];
+		}
+		FileInfo known = watchedFiles.get(fichero.fileHash);
+		if (known == null ? fichero.servers.length == 0 : sameState(known, fichero)) {
+			return;
+		}
+		if (fichero.servers.length == 0) {
+			watchedFiles.remove(fichero.fileHash);
+		} else {
+			watchedFiles.put(fichero.fileHash, fichero);
+		}
+		if (watchListener != null) {
+			watchListener.fileChanged(fichero);
+		}
+	}
+
+	private static boolean sameState(FileInfo a, FileInfo b) {
+		String[] serversA = a.servers.clone();
+		String[] serversB = b.servers.clone();
+		Arrays.sort(serversA);
+		Arrays.sort(serversB);
+		return a.fileName.equals(b.fileName) && a.fileSize == b.fileSize && Arrays.equals(serversA, serversB);
+	}
+
+	/**
+	 * @return Verdadero si el fichero está vigilado por su hash o por su nombre
+	 */
+	private boolean isWatched(FileInfo fichero) {
+		if (watchedHashes.contains(fichero.fileHash)) {
+			return true;
+		}
+		List<String> tokens = FileNameIndex.tokenize(fichero.fileName);
+		for (String pattern : watchedPatterns) {
+			if (FileNameIndex.matchesTokens(tokens, FileNameIndex.tokenize(pattern))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Convierte un resultado de búsqueda "hash,nombre,tamaño,servidor;servidor;..."
+	 * (el nombre puede contener comas) en un FileInfo con los servidores
+	 *
+	 * @return El fichero, o null si el resultado no tiene ese formato
+	 */
+	private static FileInfo parseSearchResult(String result) {
+		int first = result.indexOf(',');
+		int last = result.lastIndexOf(',');
+		if (first <= 0 || last <= first) {
+			return null;
+		}
+		FileInfo fichero = FileInfo.fromDescriptor(result.substring(0, first), result.substring(first + 1, last));
+		String servers = result.substring(last + 1);
+		fichero.servers = servers.isEmpty() ? new String[0] : servers.split(";");
+		return fichero;
+	}
+}
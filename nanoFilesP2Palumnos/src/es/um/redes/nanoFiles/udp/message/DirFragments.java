@@ -0,0 +1,410 @@
+package es.um.redes.nanoFiles.udp.message;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Fragmentación de los mensajes del directorio que no caben en un datagrama del
+ * tamaño de la MTU del camino. Un datagrama UDP de varios KiB depende de la
+ * fragmentación IP, y basta con perder uno de sus fragmentos IP para perderlo
+ * entero; además, ningún datagrama puede superar DirMessage.PACKET_MAX_SIZE.
+ * Por eso el mensaje ya codificado (y quizá comprimido) se divide aquí en
+ * fragmentos que caben en la MTU, cada uno con el identificador del mensaje (el
+ * requestId de la petición, que también usa su respuesta), su índice y el
+ * número de fragmentos.
+ *
+ * El receptor reúne los fragmentos en un Assembly. Cuando recibe el último
+ * fragmento y le faltan otros, espera NACK_DELAY_MS por si sólo llegan
+ * desordenados y después pide los que siguen faltando con un NACK, y el emisor
+ * los reenvía: una pérdida cuesta los fragmentos perdidos, no el mensaje
+ * entero. Los fragmentos ya pedidos no se vuelven a pedir mientras estén en
+ * camino, aunque lleguen duplicados que indiquen el final del envío.
+ *
+ * Formato de un fragmento: FRAGMENT_MAGIC, TYPE_DATA, identificador del mensaje
+ * (4 bytes), índice (2), número de fragmentos (2), tamaño total del mensaje (4)
+ * y el trozo del mensaje. El mensaje se reparte por igual entre los
+ * fragmentos (ver payloadSize), de modo que el receptor sabe dónde va cada
+ * fragmento en cuanto lo recibe, aunque lleguen desordenados.
+ *
+ * Formato de un NACK: FRAGMENT_MAGIC, TYPE_NACK, identificador del mensaje (4
+ * bytes), número de fragmentos (2), número de índices (2) y los índices de los
+ * fragmentos que faltan (2 bytes cada uno).
+ */
+public class DirFragments {
+	/**
+	 * Primer byte de los fragmentos y de los NACK, distinto del de cualquier
+	 * mensaje (ver DirMessage.BINARY_MAGIC)
+	 */
+	public static final byte FRAGMENT_MAGIC = (byte) 0xD3;
+	private static final byte TYPE_DATA = 0;
+	private static final byte TYPE_NACK = 1;
+	public static final int HEADER_SIZE = 14;
+	private static final int NACK_HEADER_SIZE = 10;
+	/**
+	 * MTU (tamaño máximo de cada datagrama UDP, sin cabeceras) que usan los
+	 * clientes por defecto: cabe en una trama Ethernet junto con las cabeceras
+	 * IPv6 y UDP, con margen para túneles
+	 */
+	public static final int DEFAULT_MTU = 1400;
+	/**
+	 * MTU mínima: lo que cabe en el datagrama IPv4 mínimo (576 bytes) con las
+	 * cabeceras IP y UDP más largas. También es el tamaño máximo de un NACK.
+	 */
+	public static final int MIN_MTU = 508;
+	private static final int MAX_FRAGMENTS = 0xFFFF;
+	/**
+	 * Margen que espera el receptor, desde que sabe que el emisor ha terminado de
+	 * enviar, antes de pedir con un NACK los fragmentos que faltan. Los que sólo
+	 * llegan desordenados (jitter o reordenamiento en la red) tienen este tiempo
+	 * para llegar sin que se pidan de nuevo.
+	 */
+	public static final long NACK_DELAY_MS = 20;
+	/**
+	 * Tiempo durante el que un fragmento pedido en un NACK se da por en camino y
+	 * no se vuelve a pedir, salvo que antes llegue el último fragmento de ese
+	 * NACK. Es menor que el timeout de los clientes, para que el fragmento que
+	 * reenvían al expirar provoque un NACK con todos los que faltan.
+	 */
+	public static final long NACK_REPEAT_MS = 250;
+
+	/**
+	 * @return La MTU que indica un mensaje (campo mtu), dentro de los límites
+	 *         admitidos, o DirMessage.NO_VALUE si no acepta fragmentos
+	 */
+	public static int validMtu(int mtu) {
+		if (mtu <= 0) {
+			return DirMessage.NO_VALUE;
+		}
+		return Math.max(MIN_MTU, Math.min(mtu, DirMessage.PACKET_MAX_SIZE));
+	}
+
+	/**
+	 * @return Si un mensaje de length bytes debe enviarse fragmentado a quien
+	 *         acepta la MTU indicada (NO_VALUE si no acepta fragmentos)
+	 */
+	public static boolean needsFragments(int length, int mtu) {
+		return mtu != DirMessage.NO_VALUE && length > mtu;
+	}
+
+	/**
+	 * @return El número de fragmentos en que se divide un mensaje de length bytes
+	 *         para la MTU indicada
+	 */
+	public static int count(int length, int mtu) {
+		int payload = mtu - HEADER_SIZE;
+		return (length + payload - 1) / payload;
+	}
+
+	/**
+	 * @return Los bytes del mensaje que lleva cada fragmento salvo el último
+	 */
+	public static int payloadSize(int total, int count) {
+		return (total + count - 1) / count;
+	}
+
+	/**
+	 * @return Si un mensaje de total bytes puede dividirse en count fragmentos
+	 *         (todos con algún byte y que quepan en un datagrama)
+	 */
+	public static boolean isValidCount(int total, int count) {
+		if (total <= 0 || count <= 0 || count > MAX_FRAGMENTS || count > total) {
+			return false;
+		}
+		int payload = payloadSize(total, count);
+		return payload <= DirMessage.PACKET_MAX_SIZE - HEADER_SIZE && (long) (count - 1) * payload < total;
+	}
+
+	/**
+	 * Escribe al final de out el fragmento index del mensaje, que ocupa message
+	 * desde su posición hasta su límite (no se modifican)
+	 */
+	public static void writeFragment(ByteBuffer out, ByteBuffer message, int messageId, int index, int count) {
+		int total = message.remaining();
+		int payload = payloadSize(total, count);
+		int from = index * payload;
+		int length = Math.min(payload, total - from);
+		out.put(FRAGMENT_MAGIC).put(TYPE_DATA).putInt(messageId).putShort((short) index).putShort((short) count)
+				.putInt(total);
+		out.put(out.position(), message, message.position() + from, length);
+		out.position(out.position() + length);
+	}
+
+	/**
+	 * Divide un mensaje en los fragmentos que caben en la MTU indicada
+	 *
+	 * @return Los datagramas de los fragmentos, en orden
+	 */
+	public static byte[][] split(byte[] message, int messageId, int mtu) {
+		return split(message, message.length, messageId, mtu);
+	}
+
+	/**
+	 * Como split(byte[], int, int), con los primeros length bytes de message
+	 */
+	public static byte[][] split(byte[] message, int length, int messageId, int mtu) {
+		int count = count(length, mtu);
+		ByteBuffer source = ByteBuffer.wrap(message, 0, length);
+		ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + payloadSize(length, count));
+		byte[][] fragments = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			out.clear();
+			writeFragment(out, source, messageId, i, count);
+			fragments[i] = Arrays.copyOf(out.array(), out.position());
+		}
+		return fragments;
+	}
+
+	/**
+	 * @return Si el datagrama (de la posición al límite del búfer) es un
+	 *         fragmento o un NACK
+	 */
+	public static boolean isFragment(ByteBuffer buf) {
+		return buf.remaining() >= 2 && buf.get(buf.position()) == FRAGMENT_MAGIC;
+	}
+
+	/**
+	 * @return Si el datagrama es un NACK
+	 */
+	public static boolean isNack(ByteBuffer buf) {
+		return isFragment(buf) && buf.get(buf.position() + 1) == TYPE_NACK;
+	}
+
+	/**
+	 * @return El identificador del mensaje de un fragmento o un NACK
+	 * @throws IllegalArgumentException Si el datagrama es demasiado corto
+	 */
+	public static int getMessageId(ByteBuffer buf) {
+		if (buf.remaining() < 6) {
+			throw new IllegalArgumentException("DirFragments: truncated fragment");
+		}
+		return buf.getInt(buf.position() + 2);
+	}
+
+	/**
+	 * Petición de los fragmentos que faltan de un mensaje
+	 */
+	public static class Nack {
+		public final int messageId;
+		public final int count;
+		public final int[] missing;
+
+		private Nack(int messageId, int count, int[] missing) {
+			this.messageId = messageId;
+			this.count = count;
+			this.missing = missing;
+		}
+	}
+
+	/**
+	 * Decodifica un NACK, de la posición al límite del búfer
+	 *
+	 * @throws IllegalArgumentException Si el NACK no es válido
+	 */
+	public static Nack readNack(ByteBuffer buf) {
+		int pos = buf.position();
+		if (buf.remaining() < NACK_HEADER_SIZE || buf.get(pos + 1) != TYPE_NACK) {
+			throw new IllegalArgumentException("DirFragments: truncated NACK");
+		}
+		int messageId = buf.getInt(pos + 2);
+		int count = buf.getShort(pos + 6) & 0xFFFF;
+		int n = buf.getShort(pos + 8) & 0xFFFF;
+		if (buf.remaining() != NACK_HEADER_SIZE + 2 * n) {
+			throw new IllegalArgumentException("DirFragments: invalid NACK length");
+		}
+		int[] missing = new int[n];
+		for (int i = 0; i < n; i++) {
+			missing[i] = buf.getShort(pos + NACK_HEADER_SIZE + 2 * i) & 0xFFFF;
+			if (missing[i] >= count) {
+				throw new IllegalArgumentException("DirFragments: NACK index out of range");
+			}
+		}
+		return new Nack(messageId, count, missing);
+	}
+
+	/**
+	 * Mensaje fragmentado que se está recibiendo. Los instantes (now) son los de
+	 * System.nanoTime.
+	 */
+	public static class Assembly {
+		/**
+		 * Valor de getNackTime cuando no hay ningún NACK programado
+		 */
+		public static final long NO_NACK = Long.MAX_VALUE;
+
+		private final int messageId;
+		private final int count;
+		private final int payload;
+		private final byte[] data;
+		private final BitSet received;
+		private int missing;
+		/**
+		 * Índice del fragmento cuya llegada indica que el emisor ha terminado de
+		 * enviar: el último que se pidió en el NACK anterior. La llegada del último
+		 * fragmento del mensaje también lo indica (el emisor lo reenvía cuando no
+		 * recibe respuesta).
+		 */
+		private int nackTrigger;
+		/**
+		 * Instante en que vence el NACK programado, o NO_NACK
+		 */
+		private long nackTime = NO_NACK;
+		/**
+		 * Instante del último NACK que pidió cada fragmento (null hasta el primer
+		 * NACK), para no volver a pedir los que están en camino
+		 */
+		private long[] requested;
+		private long lastNack = Long.MIN_VALUE;
+		/**
+		 * Los fragmentos pedidos hasta este instante ya no están en camino: ha
+		 * llegado el último fragmento de su NACK
+		 */
+		private long answeredUpTo = Long.MIN_VALUE;
+
+		/**
+		 * Empieza a reunir un mensaje a partir del primero de sus fragmentos que se
+		 * recibe (no necesariamente el de índice 0)
+		 *
+		 * @param maxSize Tamaño máximo admitido del mensaje
+		 * @param now     Instante de recepción del fragmento
+		 * @throws IllegalArgumentException Si el fragmento no es válido o el mensaje
+		 *                                  supera maxSize
+		 */
+		public Assembly(ByteBuffer fragment, int maxSize, long now) {
+			int pos = fragment.position();
+			if (fragment.remaining() < HEADER_SIZE || fragment.get(pos + 1) != TYPE_DATA) {
+				throw new IllegalArgumentException("DirFragments: truncated fragment");
+			}
+			this.messageId = fragment.getInt(pos + 2);
+			this.count = fragment.getShort(pos + 8) & 0xFFFF;
+			int total = fragment.getInt(pos + 10);
+			if (total > maxSize || !isValidCount(total, count)) {
+				throw new IllegalArgumentException(
+						"DirFragments: invalid fragmented message of " + total + " bytes in " + count + " fragments");
+			}
+			this.payload = payloadSize(total, count);
+			this.data = new byte[total];
+			this.received = new BitSet(count);
+			this.missing = count;
+			this.nackTrigger = count - 1;
+			add(fragment, now);
+		}
+
+		/**
+		 * Añade un fragmento del mensaje. Los fragmentos repetidos no se copian,
+		 * pero el último del mensaje repetido (el que reenvía el emisor cuando no
+		 * recibe respuesta) vuelve a programar un NACK.
+		 *
+		 * @param now Instante de recepción del fragmento
+		 * @throws IllegalArgumentException Si el fragmento no es de este mensaje o
+		 *                                  no es válido
+		 */
+		public void add(ByteBuffer fragment, long now) {
+			int pos = fragment.position();
+			if (fragment.remaining() < HEADER_SIZE || fragment.get(pos + 1) != TYPE_DATA
+					|| fragment.getInt(pos + 2) != messageId || (fragment.getShort(pos + 8) & 0xFFFF) != count
+					|| fragment.getInt(pos + 10) != data.length) {
+				throw new IllegalArgumentException("DirFragments: fragment of another message");
+			}
+			int index = fragment.getShort(pos + 6) & 0xFFFF;
+			int from = index * payload;
+			int length = fragment.remaining() - HEADER_SIZE;
+			if (index >= count || length != Math.min(payload, data.length - from)) {
+				throw new IllegalArgumentException("DirFragments: invalid fragment " + index + " of " + count);
+			}
+			boolean fresh = !received.get(index);
+			if (fresh) {
+				fragment.get(pos + HEADER_SIZE, data, from, length);
+				received.set(index);
+				missing--;
+			}
+			if (missing == 0) {
+				nackTime = NO_NACK;
+				return;
+			}
+			if (fresh && index == nackTrigger) {
+				// El emisor ha terminado de reenviar lo que pidió el último NACK
+				answeredUpTo = lastNack;
+			}
+			if ((fresh && index == nackTrigger) || index == count - 1) {
+				nackTime = Math.min(nackTime, now + NACK_DELAY_MS * 1000000);
+			}
+		}
+
+		public boolean isComplete() {
+			return missing == 0;
+		}
+
+		/**
+		 * @return Si ha vencido el margen del NACK programado: hay que enviar al
+		 *         emisor un NACK (writeNack) con los fragmentos que faltan
+		 */
+		public boolean isNackDue(long now) {
+			return nackTime != NO_NACK && now - nackTime >= 0;
+		}
+
+		/**
+		 * @return El instante en que vence el NACK programado, o NO_NACK si no hay
+		 *         ninguno
+		 */
+		public long getNackTime() {
+			return nackTime;
+		}
+
+		/**
+		 * Escribe al final de out un NACK con los fragmentos que faltan y no están
+		 * en camino (los que quepan en MIN_MTU bytes; el resto se pedirá cuando
+		 * lleguen estos), y cancela el NACK programado
+		 *
+		 * @return El número de fragmentos pedidos: si es 0, no hace falta enviar el
+		 *         NACK
+		 */
+		public int writeNack(ByteBuffer out, long now) {
+			if (requested == null) {
+				requested = new long[count];
+				Arrays.fill(requested, Long.MIN_VALUE);
+			}
+			int start = out.position();
+			out.put(FRAGMENT_MAGIC).put(TYPE_NACK).putInt(messageId).putShort((short) count).putShort((short) 0);
+			int max = (MIN_MTU - NACK_HEADER_SIZE) / 2;
+			int n = 0;
+			for (int i = received.nextClearBit(0); i < count && n < max; i = received.nextClearBit(i + 1)) {
+				if (requested[i] > answeredUpTo && now - requested[i] < NACK_REPEAT_MS * 1000000) {
+					continue; // En camino
+				}
+				out.putShort((short) i);
+				requested[i] = now;
+				nackTrigger = i;
+				n++;
+			}
+			out.putShort(start + 8, (short) n);
+			if (n > 0) {
+				lastNack = now;
+			}
+			nackTime = NO_NACK;
+			return n;
+		}
+
+		/**
+		 * @return El mensaje reunido (válido cuando está completo)
+		 */
+		public ByteBuffer getMessage() {
+			return ByteBuffer.wrap(data);
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+
+		public int getMessageId() {
+			return messageId;
+		}
+
+		/**
+		 * @return El tamaño del mensaje
+		 */
+		public int size() {
+			return data.length;
+		}
+	}
+}
@@ -4,22 +4,51 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import es.um.redes.nanoFiles.util.FileInfo;
+import es.um.redes.nanoFiles.util.ObjectPool;
 
 /**
  * Clase que modela los mensajes del protocolo de comunicación entre pares para
  * implementar el explorador de ficheros remoto (servidor de ficheros). Estos
  * mensajes son intercambiados entre las clases DirectoryServer y
- * DirectoryConnector, y se codifican como texto en formato "campo:valor".
+ * DirectoryConnector, y se codifican como texto en formato "campo:valor", o
+ * bien en un formato binario TLV más compacto (ver writeTo).
+ * 
+ * Los campos de tamaño fijo (sessionkey, port, ip y los hashes completos) se
+ * guardan como valores primitivos o bytes, y readFrom/writeTo los
+ * decodifican/codifican directamente desde/hacia un ByteBuffer sin crear
+ * objetos intermedios, de modo que el directorio puede reutilizar búferes y
+ * mensajes en su camino crítico.
+ * 
+ * Los mensajes grandes pueden viajar comprimidos con deflate (ver deflate), en
+ * cualquiera de los dos formatos: así caben varias veces más ficheros o
+ * usuarios en un datagrama. Cada petición indica en el campo "compress" si el
+ * cliente acepta respuestas comprimidas.
+ * 
+ * Los mensajes que no caben en un datagrama del tamaño indicado en el campo
+ * "mtu" viajan fragmentados (ver DirFragments), de modo que un mensaje puede
+ * ocupar hasta MAX_MESSAGE_SIZE bytes aunque no se comprima.
  * 
  * @author rtitos
  *
  */
 public class DirMessage {
 	public static final int PACKET_MAX_SIZE = 65507; // 65535 - 8 (UDP header) - 20 (IP header)
+	/**
+	 * Tamaño máximo de un mensaje antes de comprimirlo: un datagrama comprimido
+	 * se descomprime como mucho hasta este tamaño, y un mensaje fragmentado se
+	 * reensambla como mucho hasta este tamaño
+	 */
+	public static final int MAX_MESSAGE_SIZE = 4 * PACKET_MAX_SIZE;
 
 	private static final char DELIMITER = ':'; // Define el delimitador
 	private static final char END_LINE = '\n'; // Define el carácter de fin de línea
@@ -40,10 +69,161 @@ public class DirMessage {
 	private static final String FIELDNAME_FILES = "files";
 	private static final String FIELDNAME_HASH = "hash";
 	private static final String FIELDNAME_SERVERS = "servers";
+	private static final String FIELDNAME_KEYWORDS = "keywords";
+	private static final String FIELDNAME_RESULTS = "results";
+	private static final String FIELDNAME_PAGESIZE = "pagesize";
+	private static final String FIELDNAME_CURSOR = "cursor";
+	private static final String FIELDNAME_VERSION = "version";
+	private static final String FIELDNAME_BASEVERSION = "baseversion";
+	private static final String FIELDNAME_REMOVED = "removed";
+	private static final String FIELDNAME_RETRYAFTER = "retryafter";
+	private static final String FIELDNAME_REQUESTID = "requestid";
+	private static final String FIELDNAME_STATS = "stats";
+	private static final String FIELDNAME_ADDRESSES = "addresses";
+	private static final String FIELDNAME_UPLOADS = "uploads";
+	private static final String FIELDNAME_FREEBANDWIDTH = "freebandwidth";
+	private static final String FIELDNAME_FILTER = "filter";
+	private static final String FIELDNAME_FILTERSIZE = "filtersize";
+	private static final String FIELDNAME_HASHCOUNT = "hashcount";
+	private static final String FIELDNAME_OFFSET = "offset";
+	private static final String FIELDNAME_CANDIDATES = "candidates";
+	private static final String FIELDNAME_COMPRESS = "compress";
+	private static final String FIELDNAME_MTU = "mtu";
+
+	/*
+	 * Nombres de los campos como bytes, para compararlos con los datos recibidos
+	 * sin construir cadenas
+	 */
+	private static final byte[] FIELD_OPERATION = FIELDNAME_OPERATION.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_NICK = FIELDNAME_NICK.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_SESSION = FIELDNAME_SESSION.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_USERS = FIELDNAME_USERS.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_IP = FIELDNAME_IP.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_PORT = FIELDNAME_PORT.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_FILES = FIELDNAME_FILES.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_HASH = FIELDNAME_HASH.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_SERVERS = FIELDNAME_SERVERS.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_KEYWORDS = FIELDNAME_KEYWORDS.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_RESULTS = FIELDNAME_RESULTS.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_PAGESIZE = FIELDNAME_PAGESIZE.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_CURSOR = FIELDNAME_CURSOR.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_VERSION = FIELDNAME_VERSION.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_BASEVERSION = FIELDNAME_BASEVERSION.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_REMOVED = FIELDNAME_REMOVED.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_RETRYAFTER = FIELDNAME_RETRYAFTER.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_REQUESTID = FIELDNAME_REQUESTID.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_STATS = FIELDNAME_STATS.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_ADDRESSES = FIELDNAME_ADDRESSES.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_UPLOADS = FIELDNAME_UPLOADS.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_FREEBANDWIDTH = FIELDNAME_FREEBANDWIDTH.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_FILTER = FIELDNAME_FILTER.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_FILTERSIZE = FIELDNAME_FILTERSIZE.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_HASHCOUNT = FIELDNAME_HASHCOUNT.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_OFFSET = FIELDNAME_OFFSET.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_CANDIDATES = FIELDNAME_CANDIDATES.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_COMPRESS = FIELDNAME_COMPRESS.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FIELD_MTU = FIELDNAME_MTU.getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Valor de sessionKey, port, pageSize, las versiones, retryAfter, requestId, la carga y los campos numéricos del filtro cuando el campo no está presente en el mensaje
+	 */
+	public static final int NO_VALUE = -1;
+
+	/**
+	 * Primer byte de los mensajes codificados en binario. Los mensajes en formato
+	 * texto siempre empiezan por "operation:", así que el receptor distingue ambos
+	 * formatos por el primer byte. El directorio responde en el mismo formato que
+	 * usó el cliente, de modo que los clientes que sólo hablan texto siguen
+	 * funcionando.
+	 */
+	public static final byte BINARY_MAGIC = (byte) 0xD1;
+	/**
+	 * Primer byte de los mensajes comprimidos, a los que sigue el mensaje (en
+	 * formato texto o binario) comprimido con deflate en formato zlib
+	 */
+	public static final byte DEFLATE_MAGIC = (byte) 0xD2;
+	/**
+	 * Valor del campo compress con el que un cliente indica que acepta respuestas
+	 * comprimidas con deflate. El directorio lo repite en LOGIN_OK para indicar
+	 * que también acepta peticiones comprimidas.
+	 */
+	public static final String COMPRESSION_DEFLATE = "deflate";
+	/**
+	 * Sólo se comprimen los mensajes de más de COMPRESSION_THRESHOLD bytes: en los
+	 * pequeños el ahorro no compensa el tiempo de CPU. Nivel de compresión de
+	 * deflate (ver DirMessageTest para la relación entre nivel, tiempo y tamaño).
+	 */
+	public static final int COMPRESSION_THRESHOLD = 1024;
+	private static final int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+	/**
+	 * Compresor o descompresor con su búfer de salida
+	 */
+	private static class Codec<T> {
+		private final T zip;
+		private final ByteBuffer output = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+
+		private Codec(T zip) {
+			this.zip = zip;
+		}
+	}
+
+	/*
+	 * Compresores y descompresores compartidos por todos los hilos. Comprimir
+	 * sólo ocupa CPU, así que no suele haber más en uso que procesadores: se
+	 * guardan como mucho ésos, y los que sobran se liberan con end (con hilos
+	 * virtuales, uno por hilo serían dos búferes de MAX_MESSAGE_SIZE por petición).
+	 */
+	private static final int MAX_IDLE_CODECS = Runtime.getRuntime().availableProcessors();
+	private static final ObjectPool<Codec<Deflater>> deflaters = new ObjectPool<Codec<Deflater>>(
+			() -> new Codec<Deflater>(new Deflater(COMPRESSION_LEVEL)), codec -> codec.zip.end(), MAX_IDLE_CODECS);
+	private static final ObjectPool<Codec<Inflater>> inflaters = new ObjectPool<Codec<Inflater>>(
+			() -> new Codec<Inflater>(new Inflater()), codec -> codec.zip.end(), MAX_IDLE_CODECS);
+	/**
+	 * Tamaño en bytes de un hash SHA-1 completo
+	 */
+	private static final int HASH_BYTES = 20;
+	/*
+	 * Etiquetas (tag) de los campos en el formato binario. Cada campo se codifica
+	 * como tag (1 byte), longitud del valor (2 bytes) y valor. Los valores de
+	 * LONG_FIELD bytes o más (sólo caben en un mensaje fragmentado o comprimido)
+	 * llevan como longitud LONG_FIELD seguido de la longitud real (4 bytes). Los
+	 * campos con tag desconocido se ignoran al decodificar.
+	 */
+	private static final byte TAG_NICK = 1; // UTF-8
+	private static final byte TAG_SESSION = 2; // int
+	private static final byte TAG_USERS = 3; // UTF-8
+	private static final byte TAG_IP = 4; // 4 o 16 bytes (IPv4/IPv6)
+	private static final byte TAG_PORT = 5; // unsigned short
+	private static final byte TAG_FILES = 6; // lista de (hash 20 bytes, nombre UTF-8)
+	private static final byte TAG_FILES_TEXT = 7; // UTF-8 (hashes no completos)
+	private static final byte TAG_HASH = 8; // hash completo, 20 bytes
+	private static final byte TAG_HASH_TEXT = 9; // UTF-8 (subcadena de un hash)
+	private static final byte TAG_SERVERS = 10; // UTF-8
+	private static final byte TAG_KEYWORDS = 11; // UTF-8
+	private static final byte TAG_RESULTS = 12; // UTF-8
+	private static final byte TAG_PAGESIZE = 13; // unsigned short
+	private static final byte TAG_CURSOR = 14; // UTF-8
+	private static final byte TAG_VERSION = 15; // int
+	private static final byte TAG_BASEVERSION = 16; // int
+	private static final byte TAG_REMOVED = 17; // UTF-8
+	private static final byte TAG_RETRYAFTER = 18; // int
+	private static final byte TAG_REQUESTID = 19; // int
+	private static final byte TAG_STATS = 20; // UTF-8
+	private static final byte TAG_ADDRESSES = 21; // UTF-8
+	private static final byte TAG_UPLOADS = 22; // int
+	private static final byte TAG_FREEBANDWIDTH = 23; // int
+	private static final byte TAG_FILTER = 24; // bytes
+	private static final byte TAG_FILTERSIZE = 25; // int
+	private static final byte TAG_HASHCOUNT = 26; // int
+	private static final byte TAG_OFFSET = 27; // int
+	private static final byte TAG_CANDIDATES = 28; // UTF-8
+	private static final byte TAG_COMPRESS = 29; // UTF-8
+	private static final byte TAG_MTU = 30; // int
+	private static final int LONG_FIELD = 0xFFFF;
 
 
 	/**
-	 * Tipo del mensaje, de entre los tipos definidos en PeerMessageOps.
+	 * Tipo del mensaje, de entre los tipos definidos en DirMessageOps.
 	 */
 	private String operation = DirMessageOps.OPERATION_INVALID;
 	/*
@@ -51,14 +231,118 @@ public class DirMessage {
 	 * diferentes mensajes de este protocolo.
 	 */
 	private String nickname;
-	private String sessionKey;
+	private int sessionKey;
+	private boolean hasSessionKey;
 	private String users;
-	private InetAddress ip;
-	private String port;
+	/**
+	 * Dirección IP en bytes (4 para IPv4, 16 para IPv6); ipLength es 0 si el campo
+	 * no está presente. El InetAddress se construye sólo cuando se pide (getIp).
+	 */
+	private final byte[] ipAddress = new byte[16];
+	private int ipLength;
+	private int port = NO_VALUE;
 	private String files;
+	/**
+	 * Hash del mensaje. Si es un hash completo se guarda en hashBytes y la cadena
+	 * hexadecimal se construye sólo cuando se pide (getHash); si es una subcadena
+	 * se guarda en el atributo hash.
+	 */
+	private final byte[] hashBytes = new byte[HASH_BYTES];
+	private boolean hasHashBytes;
 	private String hash;
 	private String servers;
+	private String keywords;
+	/**
+	 * Resultados de una búsqueda por nombre, uno por fichero con el formato
+	 * "hash,nombre,servidor;servidor;...:"
+	 */
+	private String results;
+	/**
+	 * Número máximo de ficheros por página pedido en un FILELIST, y cursor opaco
+	 * que indica dónde continúa la lista (ausente en la primera página de la
+	 * petición y en la última de la respuesta)
+	 */
+	private int pageSize = NO_VALUE;
+	private String cursor;
+	/**
+	 * Versión del catálogo de ficheros de un servidor tras aplicar una publicación
+	 * (version) y versión sobre la que se calculó una publicación incremental
+	 * (baseVersion). En una publicación incremental, files contiene los ficheros
+	 * añadidos y removed los hashes eliminados ("hash:hash:...").
+	 */
+	private int version = NO_VALUE;
+	private int baseVersion = NO_VALUE;
+	private String removed;
+	/**
+	 * Milisegundos que debe esperar un cliente al que el directorio ha limitado
+	 * antes de repetir la petición
+	 */
+	private int retryAfter = NO_VALUE;
+	/**
+	 * Identificador de la petición, elegido por el cliente y copiado en la
+	 * respuesta. Una retransmisión lleva el mismo identificador, lo que permite al
+	 * directorio reconocerla y al cliente descartar respuestas que no son de su
+	 * última petición.
+	 */
+	private int requestId = NO_VALUE;
+	/**
+	 * Métricas del directorio, una línea por cada "métrica;métrica;..."
+	 */
+	private String stats;
+	/**
+	 * Direcciones de los servidores de ficheros, "ip:puerto,ip:puerto" (las IPv6
+	 * entre corchetes)
+	 */
+	private String addresses;
+	/**
+	 * Carga del servidor de ficheros de un peer, enviada con el registro y los
+	 * heartbeats: descargas que está sirviendo y ancho de banda de subida libre
+	 * (KiB/s)
+	 */
+	private int uploads = NO_VALUE;
+	private int freeBandwidth = NO_VALUE;
+	/**
+	 * Trozo del filtro de Bloom con los hashes publicados por un peer (filter),
+	 * que empieza en el byte offset de un filtro de filterSize bytes y hashCount
+	 * funciones hash. En formato texto el trozo viaja en Base64.
+	 */
+	private byte[] filter;
+	private int filterSize = NO_VALUE;
+	private int hashCount = NO_VALUE;
+	private int offset = NO_VALUE;
+	/**
+	 * Servidores que podrían compartir el fichero buscado según su filtro, sin
+	 * confirmar, "nick@ip:puerto,nick@ip:puerto"
+	 */
+	private String candidates;
+	/**
+	 * Compresión que acepta el emisor en las respuestas (COMPRESSION_DEFLATE), o
+	 * null si no acepta ninguna
+	 */
+	private String compress;
+	/**
+	 * Tamaño máximo de los datagramas que acepta el emisor: los mensajes mayores
+	 * se le envían fragmentados (ver DirFragments). NO_VALUE si no acepta
+	 * fragmentos.
+	 */
+	private int mtu = NO_VALUE;
 
+	/**
+	 * Indica si el mensaje se recibió codificado en formato binario
+	 */
+	private boolean binary = false;
+	/**
+	 * Indica si el mensaje se recibió comprimido
+	 */
+	private boolean compressed = false;
+
+
+	/**
+	 * Crea un mensaje vacío, que puede rellenarse con readFrom y reutilizarse para
+	 * varios mensajes.
+	 */
+	public DirMessage() {
+	}
 
 	public DirMessage(String op) {
 		operation = op;
@@ -70,6 +354,44 @@ public class DirMessage {
 	 * diferentes tipos con sus correspondientes argumentos (campos del mensaje)
 	 */
 
+	/**
+	 * Deja el mensaje vacío para reutilizarlo
+	 */
+	public void reset() {
+		operation = DirMessageOps.OPERATION_INVALID;
+		nickname = null;
+		hasSessionKey = false;
+		users = null;
+		ipLength = 0;
+		port = NO_VALUE;
+		files = null;
+		hasHashBytes = false;
+		hash = null;
+		servers = null;
+		keywords = null;
+		results = null;
+		pageSize = NO_VALUE;
+		cursor = null;
+		version = NO_VALUE;
+		baseVersion = NO_VALUE;
+		removed = null;
+		retryAfter = NO_VALUE;
+		requestId = NO_VALUE;
+		stats = null;
+		addresses = null;
+		uploads = NO_VALUE;
+		freeBandwidth = NO_VALUE;
+		filter = null;
+		filterSize = NO_VALUE;
+		hashCount = NO_VALUE;
+		offset = NO_VALUE;
+		candidates = null;
+		compress = null;
+		mtu = NO_VALUE;
+		binary = false;
+		compressed = false;
+	}
+
 	public String getOperation() {
 		return operation;
 	}
@@ -89,10 +411,24 @@ public class DirMessage {
 	}
 	
 	public String getSessionKey() {
-		return this.sessionKey;
+		return hasSessionKey ? Integer.toString(sessionKey) : null;
 	}
 	public void setSessionKey(String sessionKey) {
+		if (sessionKey == null) {
+			this.hasSessionKey = false;
+		} else {
+			setSessionKey(Integer.parseInt(sessionKey));
+		}
+	}
+	/**
+	 * @return La clave de sesión, o NO_VALUE si el mensaje no la contiene
+	 */
+	public int getSessionKeyValue() {
+		return hasSessionKey ? sessionKey : NO_VALUE;
+	}
+	public void setSessionKey(int sessionKey) {
 		this.sessionKey = sessionKey;
+		this.hasSessionKey = true;
 	}
 	
 	public String getUsers() {
@@ -103,16 +439,38 @@ public class DirMessage {
 	}
 	
 	public InetAddress getIp() {
-		return this.ip;
+		if (ipLength == 0) {
+			return null;
+		}
+		try {
+			return InetAddress.getByAddress(Arrays.copyOf(ipAddress, ipLength));
+		} catch (UnknownHostException e) {
+			return null; // No ocurre: la longitud es siempre 4 o 16
+		}
 	}
 	public void setIp(InetAddress ip) {
-		this.ip = ip;
+		if (ip == null) {
+			this.ipLength = 0;
+		} else {
+			byte[] addr = ip.getAddress();
+			System.arraycopy(addr, 0, ipAddress, 0, addr.length);
+			this.ipLength = addr.length;
+		}
 	}
 	
 	public String getPort() {
-		return this.port;
+		return (port == NO_VALUE) ? null : Integer.toString(port);
 	}
 	public void setPort(String port) {
+		this.port = (port == null) ? NO_VALUE : Integer.parseInt(port);
+	}
+	/**
+	 * @return El puerto, o NO_VALUE si el mensaje no lo contiene
+	 */
+	public int getPortValue() {
+		return port;
+	}
+	public void setPort(int port) {
 		this.port = port;
 	}
 
@@ -132,140 +490,1311 @@ public class DirMessage {
 		this.servers = servers;
 	}
 
+	public String getKeywords() {
+		return keywords;
+	}
+
+	public void setKeywords(String keywords) {
+		this.keywords = keywords;
+	}
+
+	public String getResults() {
+		return results;
+	}
+
+	public void setResults(String results) {
+		this.results = results;
+	}
+
+	/**
+	 * @return El tamaño de página, o NO_VALUE si el mensaje no lo contiene
+	 */
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	public String getCursor() {
+		return cursor;
+	}
+
+	public void setCursor(String cursor) {
+		this.cursor = cursor;
+	}
+
+	/**
+	 * @return La versión del catálogo, o NO_VALUE si el mensaje no la contiene
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	public void setVersion(int version) {
+		this.version = version;
+	}
+
+	/**
+	 * @return La versión base de una publicación incremental, o NO_VALUE si el
+	 *         mensaje no la contiene
+	 */
+	public int getBaseVersion() {
+		return baseVersion;
+	}
+
+	public void setBaseVersion(int baseVersion) {
+		this.baseVersion = baseVersion;
+	}
+
+	public String getRemoved() {
+		return removed;
+	}
+
+	public void setRemoved(String removed) {
+		this.removed = removed;
+	}
+
+	/**
+	 * @return Los milisegundos que el cliente debe esperar antes de reintentar, o
+	 *         NO_VALUE si el mensaje no los contiene
+	 */
+	public int getRetryAfter() {
+		return retryAfter;
+	}
+
+	public void setRetryAfter(int retryAfter) {
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * @return El identificador de la petición, o NO_VALUE si el mensaje no lo
+	 *         contiene
+	 */
+	public int getRequestId() {
+		return requestId;
+	}
+
+	public void setRequestId(int requestId) {
+		this.requestId = requestId;
+	}
+
+	public String getStats() {
+		return stats;
+	}
+
+	public void setStats(String stats) {
+		this.stats = stats;
+	}
+
+	public String getAddresses() {
+		return addresses;
+	}
+
+	public void setAddresses(String addresses) {
+		this.addresses = addresses;
+	}
+
+	public int getUploads() {
+		return uploads;
+	}
+
+	public void setUploads(int uploads) {
+		this.uploads = uploads;
+	}
+
+	public int getFreeBandwidth() {
+		return freeBandwidth;
+	}
+
+	public void setFreeBandwidth(int freeBandwidth) {
+		this.freeBandwidth = freeBandwidth;
+	}
+
+	public byte[] getFilter() {
+		return filter;
+	}
+
+	public void setFilter(byte[] filter) {
+		this.filter = filter;
+	}
+
+	public int getFilterSize() {
+		return filterSize;
+	}
+
+	public void setFilterSize(int filterSize) {
+		this.filterSize = filterSize;
+	}
+
+	public int getHashCount() {
+		return hashCount;
+	}
+
+	public void setHashCount(int hashCount) {
+		this.hashCount = hashCount;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public void setOffset(int offset) {
+		this.offset = offset;
+	}
+
+	public String getCandidates() {
+		return candidates;
+	}
+
+	public void setCandidates(String candidates) {
+		this.candidates = candidates;
+	}
+
+	public String getCompress() {
+		return compress;
+	}
+
+	public void setCompress(String compress) {
+		this.compress = compress;
+	}
+
+	/**
+	 * @return Si el emisor acepta respuestas comprimidas con deflate
+	 */
+	public boolean acceptsDeflate() {
+		return COMPRESSION_DEFLATE.equals(compress);
+	}
+
+	public int getMtu() {
+		return mtu;
+	}
+
+	public void setMtu(int mtu) {
+		this.mtu = mtu;
+	}
+
 	public String getHash() {
+		if (hash == null && hasHashBytes) {
+			hash = toHexString(hashBytes);
+		}
 		return hash;
 	}
 
 	public void setHash(String hash) {
 		this.hash = hash;
+		this.hasHashBytes = false;
+	}
+
+	public boolean isBinary() {
+		return binary;
+	}
+
+	public boolean isCompressed() {
+		return compressed;
 	}
 
 
 	/**
 	 * Método que convierte un mensaje codificado como una cadena de caracteres, a
-	 * un objeto de la clase PeerMessage, en el cual los atributos correspondientes
+	 * un objeto de la clase DirMessage, en el cual los atributos correspondientes
 	 * han sido establecidos con el valor de los campos del mensaje.
 	 * 
 	 * @param message El mensaje recibido por el socket, como cadena de caracteres
-	 * @return Un objeto PeerMessage que modela el mensaje recibido (tipo, valores,
+	 * @return Un objeto DirMessage que modela el mensaje recibido (tipo, valores,
 	 *         etc.)
 	 * @throws UnknownHostException 
 	 */
 	public static DirMessage fromString(String message) throws UnknownHostException {
+		byte[] data = message.getBytes(StandardCharsets.UTF_8);
+		return decode(data, data.length);
+	}
+
+	/**
+	 * Método que decodifica un mensaje recibido por el socket, en formato texto o
+	 * binario según su primer byte.
+	 * 
+	 * @param data   El búfer con los datos recibidos
+	 * @param length El número de bytes válidos en el búfer
+	 * @return Un objeto DirMessage que modela el mensaje recibido
+	 * @throws UnknownHostException
+	 */
+	public static DirMessage decode(byte[] data, int length) throws UnknownHostException {
+		DirMessage m = new DirMessage();
+		m.readFrom(ByteBuffer.wrap(data, 0, length));
+		return m;
+	}
+
+	/**
+	 * Método que codifica el mensaje en el formato indicado, listo para enviarse
+	 * por el socket. Reserva un búfer y una copia en cada llamada, por lo que sólo
+	 * se usa en pruebas y mensajes poco frecuentes: en los caminos críticos se
+	 * codifica con writeTo en un búfer reutilizado.
+	 * 
+	 * @param binary Verdadero para usar el formato binario, falso para el formato
+	 *               texto
+	 * @return Los bytes del mensaje
+	 */
+	public byte[] encode(boolean binary) {
+		return encode(binary, false);
+	}
+
+	/**
+	 * Como encode(boolean), comprimiendo el mensaje si es grande (ver deflate)
+	 * 
+	 * @param deflate Si se comprime el mensaje
+	 */
+	public byte[] encode(boolean binary, boolean deflate) {
+		ByteBuffer buf = ByteBuffer.allocate(maxEncodedLength());
+		writeTo(buf, binary);
+		if (deflate) {
+			deflate(buf, 0);
+		}
+		return Arrays.copyOf(buf.array(), buf.position());
+	}
+
+	/**
+	 * Comprime con deflate un mensaje ya codificado al final del búfer (desde
+	 * start hasta la posición actual), que queda sustituido por DEFLATE_MAGIC
+	 * seguido del mensaje comprimido. Los mensajes de COMPRESSION_THRESHOLD bytes
+	 * o menos, o que no se reducen al comprimirlos, se dejan como están.
+	 * 
+	 * @param buf   El búfer cuya posición es el final del mensaje
+	 * @param start La posición del búfer en que empieza el mensaje
+	 * @return Verdadero si se ha comprimido el mensaje
+	 */
+	public static boolean deflate(ByteBuffer buf, int start) {
+		int length = buf.position() - start;
+		if (length <= COMPRESSION_THRESHOLD) {
+			return false;
+		}
+		ByteBuffer input = buf.duplicate();
+		input.position(start);
+		input.limit(start + length);
+		Codec<Deflater> codec = deflaters.acquire();
+		try {
+			ByteBuffer output = codec.output;
+			output.clear();
+			output.limit(Math.min(output.capacity(), length - 1));
+			output.put(DEFLATE_MAGIC);
+			Deflater deflater = codec.zip;
+			deflater.reset();
+			deflater.setInput(input);
+			deflater.finish();
+			while (!deflater.finished()) {
+				if (!output.hasRemaining()) {
+					return false; // Comprimido no ocuparía menos
+				}
+				deflater.deflate(output);
+			}
+			output.flip();
+			buf.position(start);
+			buf.put(output);
+			return true;
+		} finally {
+			deflaters.release(codec);
+		}
+	}
+
+	/**
+	 * @return Los bytes que ocupa un texto comprimido con deflate (para ajustar
+	 *         el contenido de un mensaje al tamaño de un datagrama)
+	 */
+	public static int deflatedLength(String text) {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		Codec<Deflater> codec = deflaters.acquire();
+		try {
+			Deflater deflater = codec.zip;
+			deflater.reset();
+			deflater.setInput(bytes);
+			deflater.finish();
+			int length = 0;
+			while (!deflater.finished()) {
+				codec.output.clear();
+				length += deflater.deflate(codec.output);
+			}
+			return length;
+		} finally {
+			deflaters.release(codec);
+		}
+	}
+
+	/**
+	 * Descomprime el mensaje comprimido que empieza en la posición actual del
+	 * búfer (tras DEFLATE_MAGIC) y avanza el búfer hasta su límite
+	 * 
+	 * @param codec El descompresor, en cuyo búfer queda el mensaje descomprimido
+	 * @return El búfer del descompresor, válido hasta que se devuelve al conjunto
+	 */
+	private static ByteBuffer inflate(ByteBuffer buf, Codec<Inflater> codec) {
+		ByteBuffer input = buf.duplicate();
+		input.position(buf.position() + 1);
+		ByteBuffer output = codec.output;
+		output.clear();
+		Inflater inflater = codec.zip;
+		inflater.reset();
+		inflater.setInput(input);
+		try {
+			while (!inflater.finished()) {
+				if (!output.hasRemaining()) {
+					throw new IllegalArgumentException("DirMessage: compressed message too large");
+				}
+				if (inflater.inflate(output) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IllegalArgumentException("DirMessage: truncated compressed message");
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("DirMessage: invalid compressed message", e);
+		}
+		output.flip();
+		buf.position(buf.limit());
+		if (output.hasRemaining() && output.get(0) == DEFLATE_MAGIC) {
+			throw new IllegalArgumentException("DirMessage: message compressed twice");
+		}
+		return output;
+	}
+
+	/**
+	 * Método que devuelve una cadena de caracteres con la codificación del mensaje
+	 * según el formato campo:valor, a partir del tipo y los valores almacenados en
+	 * los atributos. Reserva memoria como encode: es para los registros de
+	 * depuración (comprobando antes Log.isEnabled) y las pruebas.
+	 * 
+	 * @return La cadena de caracteres con el mensaje a enviar por el socket.
+	 */
+	public String toString() {
+		ByteBuffer buf = ByteBuffer.allocate(maxEncodedLength());
+		writeTo(buf, false);
+		return new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Cota superior del tamaño del mensaje codificado en cualquiera de los dos
+	 * formatos
+	 */
+	private int maxEncodedLength() {
+		int chars = operation.length() + length(nickname) + length(users) + length(files) + length(hash)
+				+ length(servers) + length(keywords) + length(results) + length(cursor)
+				+ length(removed) + length(stats) + length(addresses) + length(candidates) + length(compress);
+		// Un carácter ocupa como máximo 3 bytes en UTF-8, y el filtro 4/3 en Base64
+		return 256 + 3 * chars + ((filter == null) ? 0 : 2 * filter.length);
+	}
+
+	private static int length(String s) {
+		return (s == null) ? 0 : s.length();
+	}
+
+	/**
+	 * Método que decodifica un mensaje, en formato texto o binario según su primer
+	 * byte, desde la posición actual del búfer hasta su límite. Los atributos de
+	 * este objeto se sobrescriben, por lo que puede reutilizarse para varios
+	 * mensajes. Los campos de tamaño fijo se decodifican sin reservar memoria.
+	 * Los mensajes comprimidos se descomprimen antes en el búfer de un
+	 * descompresor compartido, que se devuelve al terminar de decodificar.
+	 * 
+	 * @param buf El búfer con el mensaje recibido
+	 * @throws UnknownHostException
+	 */
+	public void readFrom(ByteBuffer buf) throws UnknownHostException {
+		reset();
+		if (buf.hasRemaining() && buf.get(buf.position()) == DEFLATE_MAGIC) {
+			Codec<Inflater> codec = inflaters.acquire();
+			try {
+				ByteBuffer inflated = inflate(buf, codec);
+				compressed = true;
+				readUncompressed(inflated);
+			} finally {
+				inflaters.release(codec);
+			}
+		} else {
+			readUncompressed(buf);
+		}
+	}
+
+	private void readUncompressed(ByteBuffer buf) throws UnknownHostException {
+		if (buf.hasRemaining() && buf.get(buf.position()) == BINARY_MAGIC) {
+			readBinary(buf);
+		} else {
+			readText(buf);
+		}
+	}
+
+	/**
+	 * Método que codifica el mensaje al final del búfer, en el formato indicado.
+	 * No reserva memoria salvo para operaciones que no están en la tabla de
+	 * DirMessageOps.
+	 * 
+	 * @param buf    El búfer en el que se escribe el mensaje
+	 * @param binary Verdadero para usar el formato binario, falso para el formato
+	 *               texto
+	 */
+	public void writeTo(ByteBuffer buf, boolean binary) {
+		if (binary) {
+			writeBinary(buf);
+		} else {
+			writeText(buf);
+		}
+	}
+
+	/*
+	 * Formato texto: una línea "campo:valor" por campo, terminado en línea vacía
+	 */
+
+	private void readText(ByteBuffer buf) throws UnknownHostException {
 		/*
-		 * TODO: Usar un bucle para parsear el mensaje línea a línea, extrayendo para
-		 * cada línea el nombre del campo y el valor, usando el delimitador DELIMITER, y
-		 * guardarlo en variables locales.
+		 * Se recorre el mensaje línea a línea, extrayendo para cada línea el nombre del
+		 * campo y el valor, usando el delimitador DELIMITER.
 		 */
+		boolean hasOperation = false;
+		int end = buf.limit();
+		int pos = buf.position();
+		while (pos < end) {
+			int eol = indexOf(buf, pos, end, (byte) END_LINE);
+			if (eol == pos) {
+				break; // Línea vacía: final del mensaje
+			}
+			int idx = indexOf(buf, pos, eol, (byte) DELIMITER); // Posición del delimitador
+			if (idx == eol) {
+				throw new IllegalArgumentException("DirMessage: line without delimiter");
+			}
+			// Valor sin espacios al principio ni al final
+			int from = idx + 1;
+			int to = eol;
+			while (from < to && buf.get(from) <= ' ') {
+				from++;
+			}
+			while (to > from && buf.get(to - 1) <= ' ') {
+				to--;
+			}
+			int nameLength = idx - pos;
+			if (fieldEquals(buf, pos, nameLength, FIELD_OPERATION)) {
+				assert (!hasOperation);
+				hasOperation = true;
+				operation = DirMessageOps.lookupOperation(buf, from, to - from);
+				if (operation == null) {
+					operation = getString(buf, from, to - from);
+				}
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_NICK)) {
+				nickname = getString(buf, from, to - from);
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_SESSION)) {
+				setSessionKey(parseInt(buf, from, to));
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_USERS)) {
+				users = getString(buf, from, to - from);
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_IP)) {
+				parseIp(buf, from, to);
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_PORT)) {
+				port = parseInt(buf, from, to);
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_FILES)) {
+				files = getString(buf, from, to - from);
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_HASH)) {
+				if (!parseHexHash(buf, from, to - from)) {
+					hash = getString(buf, from, to - from);
+				}
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_SERVERS)) {
+				servers = getString(buf, from, to - from);
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_KEYWORDS)) {
+				keywords = getString(buf, from, to - from);
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_RESULTS)) {
+				results = getString(buf, from, to - from);
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_PAGESIZE)) {
+				pageSize = parseInt(buf, from, to);
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_CURSOR)) {
+				cursor = getString(buf, from, to - from);
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_VERSION)) {
+				version = parseInt(buf, from, to);
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_BASEVERSION)) {
+				baseVersion = parseInt(buf, from, to);
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_REMOVED)) {
+				removed = getString(buf, from, to - from);
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_RETRYAFTER)) {
+				retryAfter = parseInt(buf, from, to);
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_REQUESTID)) {
+				requestId = parseInt(buf, from, to);
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_STATS)) {
+				stats = getString(buf, from, to - from);
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_ADDRESSES)) {
+				addresses = getString(buf, from, to - from);
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_UPLOADS)) {
+				uploads = parseInt(buf, from, to);
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_FREEBANDWIDTH)) {
+				freeBandwidth = parseInt(buf, from, to);
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_FILTER)) {
+				filter = Base64.getDecoder().decode(getString(buf, from, to - from));
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_FILTERSIZE)) {
+				filterSize = parseInt(buf, from, to);
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_HASHCOUNT)) {
+				hashCount = parseInt(buf, from, to);
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_OFFSET)) {
+				offset = parseInt(buf, from, to);
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_CANDIDATES)) {
+				candidates = getString(buf, from, to - from);
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_COMPRESS)) {
+				compress = getString(buf, from, to - from);
+			} else if (fieldEquals(buf, pos, nameLength, FIELD_MTU)) {
+				mtu = parseInt(buf, from, to);
+			} else {
+				throw new IllegalArgumentException(
+						"DirMessage: unknown field name " + getString(buf, pos, nameLength));
+			}
+			pos = (eol < end) ? eol + 1 : end;
+		}
+		buf.position(end);
+	}
 
-		// System.out.println("DirMessage read from socket:");
-		// System.out.println(message);
-		String[] lines = message.split(END_LINE + "");
-		// Local variables to save data during parsing
-		DirMessage m = null;
-
+	private void writeText(ByteBuffer buf) {
+		putField(buf, FIELD_OPERATION);
+		putUtf8(buf, operation);
+		buf.put((byte) END_LINE); // Construimos el campo
+		/*
+		 * En función del tipo de mensaje, se concatenan el resto de campos necesarios
+		 * usando los valores de los atributos del objeto.
+		 */
+		if (nickname != null) {
+			putTextField(buf, FIELD_NICK, nickname);
+		}
+		if (hasSessionKey) {
+			putField(buf, FIELD_SESSION);
+			putInt(buf, sessionKey);
+			buf.put((byte) END_LINE);
+		}
+		if (users != null) {
+			putTextField(buf, FIELD_USERS, users);
+		}
+		if (ipLength != 0) {
+			putField(buf, FIELD_IP);
+			putIp(buf);
+			buf.put((byte) END_LINE);
+		}
+		if (port != NO_VALUE) {
+			putField(buf, FIELD_PORT);
+			putInt(buf, port);
+			buf.put((byte) END_LINE);
+		}
+		if (files != null) {
+			putTextField(buf, FIELD_FILES, files);
+		}
+		if (hasHashBytes) {
+			putField(buf, FIELD_HASH);
+			putHex(buf, hashBytes);
+			buf.put((byte) END_LINE);
+		} else if (hash != null) {
+			putTextField(buf, FIELD_HASH, hash);
+		}
+		if (servers != null) {
+			putTextField(buf, FIELD_SERVERS, servers);
+		}
+		if (keywords != null) {
+			putTextField(buf, FIELD_KEYWORDS, keywords);
+		}
+		if (results != null) {
+			putTextField(buf, FIELD_RESULTS, results);
+		}
+		if (pageSize != NO_VALUE) {
+			putField(buf, FIELD_PAGESIZE);
+			putInt(buf, pageSize);
+			buf.put((byte) END_LINE);
+		}
+		if (cursor != null) {
+			putTextField(buf, FIELD_CURSOR, cursor);
+		}
+		if (version != NO_VALUE) {
+			putField(buf, FIELD_VERSION);
+			putInt(buf, version);
+			buf.put((byte) END_LINE);
+		}
+		if (baseVersion != NO_VALUE) {
+			putField(buf, FIELD_BASEVERSION);
+			putInt(buf, baseVersion);
+			buf.put((byte) END_LINE);
+		}
+		if (removed != null) {
+			putTextField(buf, FIELD_REMOVED, removed);
+		}
+		if (retryAfter != NO_VALUE) {
+			putField(buf, FIELD_RETRYAFTER);
+			putInt(buf, retryAfter);
+			buf.put((byte) END_LINE);
+		}
+		if (requestId != NO_VALUE) {
+			putField(buf, FIELD_REQUESTID);
+			putInt(buf, requestId);
+			buf.put((byte) END_LINE);
+		}
+		if (stats != null) {
+			putTextField(buf, FIELD_STATS, stats);
+		}
+		if (addresses != null) {
+			putTextField(buf, FIELD_ADDRESSES, addresses);
+		}
+		if (uploads != NO_VALUE) {
+			putField(buf, FIELD_UPLOADS);
+			putInt(buf, uploads);
+			buf.put((byte) END_LINE);
+		}
+		if (freeBandwidth != NO_VALUE) {
+			putField(buf, FIELD_FREEBANDWIDTH);
+			putInt(buf, freeBandwidth);
+			buf.put((byte) END_LINE);
+		}
+		if (filter != null) {
+			putTextField(buf, FIELD_FILTER, Base64.getEncoder().encodeToString(filter));
+		}
+		if (filterSize != NO_VALUE) {
+			putField(buf, FIELD_FILTERSIZE);
+			putInt(buf, filterSize);
+			buf.put((byte) END_LINE);
+		}
+		if (hashCount != NO_VALUE) {
+			putField(buf, FIELD_HASHCOUNT);
+			putInt(buf, hashCount);
+			buf.put((byte) END_LINE);
+		}
+		if (offset != NO_VALUE) {
+			putField(buf, FIELD_OFFSET);
+			putInt(buf, offset);
+			buf.put((byte) END_LINE);
+		}
+		if (candidates != null) {
+			putTextField(buf, FIELD_CANDIDATES, candidates);
+		}
+		if (compress != null) {
+			putTextField(buf, FIELD_COMPRESS, compress);
+		}
+		if (mtu != NO_VALUE) {
+			putField(buf, FIELD_MTU);
+			putInt(buf, mtu);
+			buf.put((byte) END_LINE);
+		}
+		buf.put((byte) END_LINE); // Marcamos el final del mensaje
+	}
 
+	/**
+	 * Añade el campo requestid a un mensaje ya codificado al final del búfer (que
+	 * no debe contenerlo), sin decodificarlo. Permite reutilizar una respuesta
+	 * codificada para peticiones con distinto identificador.
+	 * 
+	 * @param buf       El búfer cuya posición es el final del mensaje
+	 * @param binary    El formato en que está codificado el mensaje
+	 * @param requestId El identificador a añadir
+	 */
+	public static void appendRequestId(ByteBuffer buf, boolean binary, int requestId) {
+		if (binary) {
+			buf.put(TAG_REQUESTID).putShort((short) Integer.BYTES).putInt(requestId);
+		} else {
+			// El campo se escribe antes de la línea vacía que marca el final del mensaje
+			buf.position(buf.position() - 1);
+			putField(buf, FIELD_REQUESTID);
+			putInt(buf, requestId);
+			buf.put((byte) END_LINE).put((byte) END_LINE);
+		}
+	}
 
-		for (String line : lines) {
-			int idx = line.indexOf(DELIMITER); // Posición del delimitador
-			String fieldName = line.substring(0, idx).toLowerCase(); // minúsculas
-			String value = line.substring(idx + 1).trim();
+	/*
+	 * Formato binario: BINARY_MAGIC, opcode (ver DirMessageOps) y a continuación
+	 * cada campo establecido como tag, longitud y valor. Los hashes completos
+	 * viajan como los 20 bytes del SHA-1 en vez de como 40 caracteres
+	 * hexadecimales.
+	 */
 
-			switch (fieldName) {
-			case FIELDNAME_OPERATION: {
-				assert (m == null);
-				m = new DirMessage(value);
-				break;
+	private void readBinary(ByteBuffer buf) {
+		binary = true;
+		buf.get(); // BINARY_MAGIC
+		byte opcode = buf.get();
+		if (opcode == DirMessageOps.OPCODE_UNKNOWN) {
+			int len = buf.getShort() & 0xFFFF;
+			if (len > buf.remaining()) {
+				throw new IllegalArgumentException("DirMessage: invalid operation length " + len);
 			}
-			case FIELDNAME_NICK: {
-				m.nickname = value;
-				break;
+			operation = getString(buf, buf.position(), len);
+			buf.position(buf.position() + len);
+		} else {
+			operation = DirMessageOps.opcodeToOperation(opcode);
+			if (operation == null) {
+				throw new IllegalArgumentException("DirMessage: unknown opcode " + opcode);
 			}
-			case FIELDNAME_SESSION: {
-				m.sessionKey = value;
-				break;
+		}
+		while (buf.hasRemaining()) {
+			byte tag = buf.get();
+			int len = buf.getShort() & 0xFFFF;
+			if (len == LONG_FIELD) {
+				len = buf.getInt();
 			}
-			case FIELDNAME_USERS: {
-				m.users = value;
-				break;
+			if (len < 0 || len > buf.remaining() || !isValidLength(tag, len)) {
+				throw new IllegalArgumentException("DirMessage: invalid field length " + len);
 			}
-			case FIELDNAME_IP: {
-				m.ip = InetAddress.getByName(value.substring(1));
+			int start = buf.position();
+			int end = start + len;
+			switch (tag) {
+			case TAG_NICK:
+				nickname = getString(buf, start, len);
 				break;
-			}
-			case FIELDNAME_PORT: {
-				m.port = value;
+			case TAG_SESSION:
+				setSessionKey(buf.getInt(start));
 				break;
-			}
-			case FIELDNAME_FILES: {
-				m.files = value;
+			case TAG_USERS:
+				users = getString(buf, start, len);
 				break;
-			}
-			case FIELDNAME_HASH: {
-				m.hash = value;
+			case TAG_IP:
+				buf.get(ipAddress, 0, len);
+				ipLength = len;
 				break;
-			}
-			case FIELDNAME_SERVERS: {
-				m.servers = value;
+			case TAG_PORT:
+				port = buf.getShort(start) & 0xFFFF;
+				break;
+			case TAG_FILES:
+				files = readFileList(buf, start, end);
+				break;
+			case TAG_FILES_TEXT:
+				files = getString(buf, start, len);
+				break;
+			case TAG_HASH:
+				buf.get(hashBytes);
+				hasHashBytes = true;
+				break;
+			case TAG_HASH_TEXT:
+				hash = getString(buf, start, len);
+				break;
+			case TAG_SERVERS:
+				servers = getString(buf, start, len);
+				break;
+			case TAG_KEYWORDS:
+				keywords = getString(buf, start, len);
+				break;
+			case TAG_RESULTS:
+				results = getString(buf, start, len);
+				break;
+			case TAG_PAGESIZE:
+				pageSize = buf.getShort(start) & 0xFFFF;
+				break;
+			case TAG_CURSOR:
+				cursor = getString(buf, start, len);
+				break;
+			case TAG_VERSION:
+				version = buf.getInt(start);
+				break;
+			case TAG_BASEVERSION:
+				baseVersion = buf.getInt(start);
+				break;
+			case TAG_REMOVED:
+				removed = getString(buf, start, len);
+				break;
+			case TAG_RETRYAFTER:
+				retryAfter = buf.getInt(start);
+				break;
+			case TAG_REQUESTID:
+				requestId = buf.getInt(start);
+				break;
+			case TAG_STATS:
+				stats = getString(buf, start, len);
 				break;
+			case TAG_ADDRESSES:
+				addresses = getString(buf, start, len);
+				break;
+			case TAG_UPLOADS:
+				uploads = buf.getInt(start);
+				break;
+			case TAG_FREEBANDWIDTH:
+				freeBandwidth = buf.getInt(start);
+				break;
+			case TAG_FILTER:
+				filter = new byte[len];
+				buf.get(start, filter);
+				break;
+			case TAG_FILTERSIZE:
+				filterSize = buf.getInt(start);
+				break;
+			case TAG_HASHCOUNT:
+				hashCount = buf.getInt(start);
+				break;
+			case TAG_OFFSET:
+				offset = buf.getInt(start);
+				break;
+			case TAG_CANDIDATES:
+				candidates = getString(buf, start, len);
+				break;
+			case TAG_COMPRESS:
+				compress = getString(buf, start, len);
+				break;
+			case TAG_MTU:
+				mtu = buf.getInt(start);
+				break;
+			default:
+				// Campo desconocido (p.ej. de una versión más reciente): se ignora
 			}
+			buf.position(end);
+		}
+	}
 
-			default:
-				System.err.println("PANIC: DirMessage.fromString - message with unknown field name " + fieldName);
-				System.err.println("Message was:\n" + message);
-				System.exit(-1);
+	/**
+	 * Comprueba la longitud de un campo binario según su tag: los campos de tamaño
+	 * fijo deben ocupar exactamente su tamaño y la IP 4 o 16 bytes. El resto de
+	 * campos (y los tags desconocidos) admiten cualquier longitud.
+	 */
+	private static boolean isValidLength(byte tag, int len) {
+		switch (tag) {
+		case TAG_SESSION:
+		case TAG_VERSION:
+		case TAG_BASEVERSION:
+		case TAG_RETRYAFTER:
+		case TAG_REQUESTID:
+		case TAG_UPLOADS:
+		case TAG_FREEBANDWIDTH:
+		case TAG_FILTERSIZE:
+		case TAG_HASHCOUNT:
+		case TAG_OFFSET:
+		case TAG_MTU:
+			return len == Integer.BYTES;
+		case TAG_PORT:
+		case TAG_PAGESIZE:
+			return len == Short.BYTES;
+		case TAG_IP:
+			return len == 4 || len == 16;
+		case TAG_HASH:
+			return len == HASH_BYTES;
+		default:
+			return true;
+		}
+	}
+
+	private void writeBinary(ByteBuffer buf) {
+		buf.put(BINARY_MAGIC);
+		byte opcode = DirMessageOps.operationToOpcode(operation);
+		buf.put(opcode);
+		if (opcode == DirMessageOps.OPCODE_UNKNOWN) {
+			int start = buf.position();
+			buf.putShort((short) 0);
+			putUtf8(buf, operation);
+			buf.putShort(start, (short) (buf.position() - start - 2));
+		}
+		if (nickname != null) {
+			putBinaryField(buf, TAG_NICK, nickname);
+		}
+		if (hasSessionKey) {
+			buf.put(TAG_SESSION).putShort((short) Integer.BYTES).putInt(sessionKey);
+		}
+		if (users != null) {
+			putBinaryField(buf, TAG_USERS, users);
+		}
+		if (ipLength != 0) {
+			buf.put(TAG_IP).putShort((short) ipLength).put(ipAddress, 0, ipLength);
+		}
+		if (port != NO_VALUE) {
+			buf.put(TAG_PORT).putShort((short) Short.BYTES).putShort((short) port);
+		}
+		if (files != null) {
+			putFileList(buf, files);
+		}
+		if (hasHashBytes) {
+			buf.put(TAG_HASH).putShort((short) HASH_BYTES).put(hashBytes);
+		} else if (hash != null) {
+			int start = buf.position();
+			buf.put(TAG_HASH).putShort((short) HASH_BYTES);
+			if (!putHexAsBytes(buf, hash, 0, hash.length())) {
+				buf.position(start);
+				putBinaryField(buf, TAG_HASH_TEXT, hash);
 			}
 		}
+		if (servers != null) {
+			putBinaryField(buf, TAG_SERVERS, servers);
+		}
+		if (keywords != null) {
+			putBinaryField(buf, TAG_KEYWORDS, keywords);
+		}
+		if (results != null) {
+			putBinaryField(buf, TAG_RESULTS, results);
+		}
+		if (pageSize != NO_VALUE) {
+			buf.put(TAG_PAGESIZE).putShort((short) Short.BYTES).putShort((short) pageSize);
+		}
+		if (cursor != null) {
+			putBinaryField(buf, TAG_CURSOR, cursor);
+		}
+		if (version != NO_VALUE) {
+			buf.put(TAG_VERSION).putShort((short) Integer.BYTES).putInt(version);
+		}
+		if (baseVersion != NO_VALUE) {
+			buf.put(TAG_BASEVERSION).putShort((short) Integer.BYTES).putInt(baseVersion);
+		}
+		if (removed != null) {
+			putBinaryField(buf, TAG_REMOVED, removed);
+		}
+		if (retryAfter != NO_VALUE) {
+			buf.put(TAG_RETRYAFTER).putShort((short) Integer.BYTES).putInt(retryAfter);
+		}
+		if (requestId != NO_VALUE) {
+			buf.put(TAG_REQUESTID).putShort((short) Integer.BYTES).putInt(requestId);
+		}
+		if (stats != null) {
+			putBinaryField(buf, TAG_STATS, stats);
+		}
+		if (addresses != null) {
+			putBinaryField(buf, TAG_ADDRESSES, addresses);
+		}
+		if (uploads != NO_VALUE) {
+			buf.put(TAG_UPLOADS).putShort((short) Integer.BYTES).putInt(uploads);
+		}
+		if (freeBandwidth != NO_VALUE) {
+			buf.put(TAG_FREEBANDWIDTH).putShort((short) Integer.BYTES).putInt(freeBandwidth);
+		}
+		if (filter != null) {
+			buf.put(TAG_FILTER);
+			putLength(buf, filter.length).put(filter);
+		}
+		if (filterSize != NO_VALUE) {
+			buf.put(TAG_FILTERSIZE).putShort((short) Integer.BYTES).putInt(filterSize);
+		}
+		if (hashCount != NO_VALUE) {
+			buf.put(TAG_HASHCOUNT).putShort((short) Integer.BYTES).putInt(hashCount);
+		}
+		if (offset != NO_VALUE) {
+			buf.put(TAG_OFFSET).putShort((short) Integer.BYTES).putInt(offset);
+		}
+		if (candidates != null) {
+			putBinaryField(buf, TAG_CANDIDATES, candidates);
+		}
+		if (compress != null) {
+			putBinaryField(buf, TAG_COMPRESS, compress);
+		}
+		if (mtu != NO_VALUE) {
+			buf.put(TAG_MTU).putShort((short) Integer.BYTES).putInt(mtu);
+		}
+	}
+
+	/**
+	 * Decodifica una lista de ficheros binaria (hash de 20 bytes, longitud y nombre
+	 * por fichero) a su representación textual "hash,nombre:hash,nombre:..."
+	 */
+	private static String readFileList(ByteBuffer buf, int start, int end) {
+		StringBuilder sb = new StringBuilder();
+		int pos = start;
+		while (pos < end) {
+			if (pos + HASH_BYTES + Short.BYTES > end) {
+				throw new IllegalArgumentException("DirMessage: invalid field length " + (end - start));
+			}
+			for (int i = 0; i < HASH_BYTES; i++) {
+				int b = buf.get(pos + i) & 0xFF;
+				sb.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			pos += HASH_BYTES;
+			int len = buf.getShort(pos) & 0xFFFF;
+			pos += Short.BYTES;
+			if (pos + len > end) {
+				throw new IllegalArgumentException("DirMessage: invalid field length " + (end - start));
+			}
+			sb.append(',').append(getString(buf, pos, len)).append(DELIMITER);
+			pos += len;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Codifica la lista de ficheros ("hash,nombre:hash,nombre:...") como una
+	 * secuencia de hash binario y nombre. Si algún hash no está completo, la lista
+	 * se envía como texto.
+	 */
+	private static void putFileList(ByteBuffer buf, String files) {
+		int start = buf.position();
+		buf.put(TAG_FILES).putShort((short) 0);
+		int pos = 0;
+		while (pos < files.length()) {
+			int entryEnd = files.indexOf(DELIMITER, pos);
+			if (entryEnd < 0) {
+				entryEnd = files.length();
+			}
+			if (entryEnd > pos) {
+				int comma = files.indexOf(',', pos);
+				if (comma < 0 || comma > entryEnd || !putHexAsBytes(buf, files, pos, comma - pos)) {
+					buf.position(start);
+					putBinaryField(buf, TAG_FILES_TEXT, files);
+					return;
+				}
+				int nameStart = buf.position();
+				buf.putShort((short) 0);
+				putUtf8(buf, files, comma + 1, entryEnd);
+				buf.putShort(nameStart, (short) (buf.position() - nameStart - 2));
+			}
+			pos = entryEnd + 1;
+		}
+		endField(buf, start + 1);
+	}
 
+	/*
+	 * Métodos auxiliares de lectura
+	 */
 
+	private static int indexOf(ByteBuffer buf, int from, int to, byte b) {
+		for (int i = from; i < to; i++) {
+			if (buf.get(i) == b) {
+				return i;
+			}
+		}
+		return to;
+	}
 
+	/**
+	 * Compara el nombre de un campo (sin distinguir mayúsculas) con los bytes del
+	 * búfer
+	 */
+	private static boolean fieldEquals(ByteBuffer buf, int pos, int len, byte[] name) {
+		if (len != name.length) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			byte b = buf.get(pos + i);
+			if (b >= 'A' && b <= 'Z') {
+				b += 'a' - 'A';
+			}
+			if (b != name[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
 
-		return m;
+	private static int parseInt(ByteBuffer buf, int from, int to) {
+		boolean negative = from < to && buf.get(from) == '-';
+		int i = negative ? from + 1 : from;
+		if (i == to) {
+			throw new NumberFormatException("DirMessage: empty number");
+		}
+		long value = 0;
+		for (; i < to; i++) {
+			int digit = buf.get(i) - '0';
+			if (digit < 0 || digit > 9 || value > Integer.MAX_VALUE) {
+				throw new NumberFormatException("DirMessage: invalid number");
+			}
+			value = value * 10 + digit;
+		}
+		value = negative ? -value : value;
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+			throw new NumberFormatException("DirMessage: number out of range");
+		}
+		return (int) value;
 	}
 
 	/**
-	 * Método que devuelve una cadena de caracteres con la codificación del mensaje
-	 * según el formato campo:valor, a partir del tipo y los valores almacenados en
-	 * los atributos.
+	 * Decodifica el campo ip, con el formato de InetAddress.toString()
+	 * ("nombre/dirección" o "/dirección"). Las direcciones IPv4 se decodifican sin
+	 * reservar memoria; nunca se hace una consulta DNS.
+	 */
+	private void parseIp(ByteBuffer buf, int from, int to) throws UnknownHostException {
+		int slash = indexOf(buf, from, to, (byte) '/');
+		int start = (slash < to) ? slash + 1 : from;
+		int octet = 0;
+		int value = -1;
+		for (int i = start; i <= to; i++) {
+			byte b = (i < to) ? buf.get(i) : (byte) '.';
+			if (b == '.' && value >= 0 && value <= 255 && octet < 4) {
+				ipAddress[octet++] = (byte) value;
+				value = -1;
+			} else if (b >= '0' && b <= '9') {
+				value = (value < 0 ? 0 : value * 10) + (b - '0');
+			} else {
+				octet = -1;
+				break;
+			}
+		}
+		if (octet == 4) {
+			ipLength = 4;
+		} else {
+			/*
+			 * IPv6: un valor con ':' nunca es un nombre de host, así que InetAddress
+			 * sólo analiza el literal, sin consultar al DNS
+			 */
+			String literal = getString(buf, start, to - start);
+			if (literal.indexOf(':') < 0) {
+				throw new IllegalArgumentException("DirMessage: invalid IP address " + literal);
+			}
+			try {
+				setIp(InetAddress.getByName(literal));
+			} catch (UnknownHostException e) {
+				throw new IllegalArgumentException("DirMessage: invalid IP address " + literal, e);
+			}
+		}
+	}
+
+	/**
+	 * Decodifica un hash completo en hexadecimal sobre hashBytes
 	 * 
-	 * @return La cadena de caracteres con el mensaje a enviar por el socket.
+	 * @return Falso si el valor no es un hash completo
 	 */
-	public String toString() {
+	private boolean parseHexHash(ByteBuffer buf, int from, int len) {
+		if (len != 2 * HASH_BYTES) {
+			return false;
+		}
+		for (int i = 0; i < HASH_BYTES; i++) {
+			int high = Character.digit(buf.get(from + 2 * i), 16);
+			int low = Character.digit(buf.get(from + 2 * i + 1), 16);
+			if (high < 0 || low < 0) {
+				return false;
+			}
+			hashBytes[i] = (byte) ((high << 4) | low);
+		}
+		hasHashBytes = true;
+		return true;
+	}
 
-		StringBuffer sb = new StringBuffer();
-		sb.append(FIELDNAME_OPERATION + DELIMITER + operation + END_LINE); // Construimos el campo
-		/*
-		 * TODO: En función del tipo de mensaje, crear una cadena con el tipo y
-		 * concatenar el resto de campos necesarios usando los valores de los atributos
-		 * del objeto.
-		 */
-		if(this.nickname!=null) {
-			sb.append(FIELDNAME_NICK + DELIMITER + nickname + END_LINE);
+	private static String getString(ByteBuffer buf, int pos, int len) {
+		if (buf.hasArray()) {
+			return new String(buf.array(), buf.arrayOffset() + pos, len, StandardCharsets.UTF_8);
 		}
-		
-		if(this.sessionKey!=null) {
-			sb.append(FIELDNAME_SESSION + DELIMITER + sessionKey + END_LINE);
+		byte[] bytes = new byte[len];
+		for (int i = 0; i < len; i++) {
+			bytes[i] = buf.get(pos + i);
 		}
-		if(this.users!=null) {
-			sb.append(FIELDNAME_USERS + DELIMITER + users + END_LINE);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static String toHexString(byte[] bytes) {
+		char[] chars = new char[2 * bytes.length];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+			chars[2 * i + 1] = Character.forDigit(bytes[i] & 0xF, 16);
 		}
-		if(this.ip!=null) {
-			sb.append(FIELDNAME_IP + DELIMITER + ip + END_LINE);
+		return new String(chars);
+	}
+
+	/*
+	 * Métodos auxiliares de escritura
+	 */
+
+	private static void putField(ByteBuffer buf, byte[] name) {
+		buf.put(name).put((byte) DELIMITER);
+	}
+
+	private static void putTextField(ByteBuffer buf, byte[] name, String value) {
+		putField(buf, name);
+		putUtf8(buf, value);
+		buf.put((byte) END_LINE);
+	}
+
+	private static void putBinaryField(ByteBuffer buf, byte tag, String value) {
+		buf.put(tag);
+		int start = buf.position();
+		buf.putShort((short) 0);
+		putUtf8(buf, value);
+		endField(buf, start);
+	}
+
+	/**
+	 * Escribe la longitud de un valor binario (ver LONG_FIELD)
+	 */
+	private static ByteBuffer putLength(ByteBuffer buf, int length) {
+		if (length < LONG_FIELD) {
+			return buf.putShort((short) length);
 		}
-		if(this.port!=null) {
-			sb.append(FIELDNAME_PORT + DELIMITER + port + END_LINE);
+		return buf.putShort((short) LONG_FIELD).putInt(length);
+	}
+
+	/**
+	 * Completa la longitud, para la que se reservaron 2 bytes en start, de un
+	 * valor binario que termina en la posición actual. Si la longitud no cabe en
+	 * 2 bytes, el valor se desplaza para escribirla como LONG_FIELD y 4 bytes.
+	 */
+	private static void endField(ByteBuffer buf, int start) {
+		int length = buf.position() - start - 2;
+		if (length < LONG_FIELD) {
+			buf.putShort(start, (short) length);
+			return;
 		}
-		if(this.files != null){
-			sb.append(FIELDNAME_FILES + DELIMITER + files + END_LINE);
+		byte[] value = new byte[length];
+		buf.get(start + 2, value);
+		buf.position(start);
+		putLength(buf, length).put(value);
+	}
+
+	private static void putUtf8(ByteBuffer buf, String value) {
+		putUtf8(buf, value, 0, value.length());
+	}
+
+	/**
+	 * Escribe en UTF-8 los caracteres [from, to) de la cadena sin crear arrays
+	 * intermedios
+	 */
+	private static void putUtf8(ByteBuffer buf, String value, int from, int to) {
+		for (int i = from; i < to; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				buf.put((byte) c);
+			} else if (c < 0x800) {
+				buf.put((byte) (0xC0 | (c >> 6)));
+				buf.put((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, value.charAt(++i));
+				buf.put((byte) (0xF0 | (cp >> 18)));
+				buf.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				buf.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				buf.put((byte) (0x80 | (cp & 0x3F)));
+			} else {
+				buf.put((byte) (0xE0 | (c >> 12)));
+				buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				buf.put((byte) (0x80 | (c & 0x3F)));
+			}
 		}
-		if(this.hash != null){
-			sb.append(FIELDNAME_HASH + DELIMITER + hash + END_LINE);
+	}
+
+	private static void putInt(ByteBuffer buf, int value) {
+		if (value < 0) {
+			buf.put((byte) '-');
+			if (value == Integer.MIN_VALUE) {
+				buf.put((byte) '2');
+				value = -147483648;
+			}
+			value = -value;
 		}
-		if(this.servers != null){
-			sb.append(FIELDNAME_SERVERS + DELIMITER + servers + END_LINE);
+		int divisor = 1;
+		while (value / divisor >= 10) {
+			divisor *= 10;
 		}
+		for (; divisor > 0; divisor /= 10) {
+			buf.put((byte) ('0' + (value / divisor) % 10));
+		}
+	}
 
-		sb.append(END_LINE); // Marcamos el final del mensaje
-		return sb.toString();
+	/**
+	 * Escribe la dirección IP con el formato de InetAddress.toString() sin nombre
+	 * de host ("/dirección")
+	 */
+	private void putIp(ByteBuffer buf) {
+		buf.put((byte) '/');
+		if (ipLength == 4) {
+			for (int i = 0; i < 4; i++) {
+				if (i > 0) {
+					buf.put((byte) '.');
+				}
+				putInt(buf, ipAddress[i] & 0xFF);
+			}
+		} else {
+			putUtf8(buf, getIp().getHostAddress());
+		}
+	}
+
+	private static void putHex(ByteBuffer buf, byte[] bytes) {
+		for (byte b : bytes) {
+			buf.put((byte) Character.forDigit((b >> 4) & 0xF, 16));
+			buf.put((byte) Character.forDigit(b & 0xF, 16));
+		}
+	}
+
+	/**
+	 * Escribe como 20 bytes un hash completo en hexadecimal
+	 * 
+	 * @return Falso (sin haber escrito nada) si los caracteres [from, from + len)
+	 *         no son un hash completo
+	 */
+	private static boolean putHexAsBytes(ByteBuffer buf, String hex, int from, int len) {
+		if (len != 2 * HASH_BYTES) {
+			return false;
+		}
+		for (int i = from; i < from + len; i++) {
+			if (Character.digit(hex.charAt(i), 16) < 0) {
+				return false;
+			}
+		}
+		for (int i = from; i < from + len; i += 2) {
+			buf.put((byte) ((Character.digit(hex.charAt(i), 16) << 4) | Character.digit(hex.charAt(i + 1), 16)));
+		}
+		return true;
 	}
-}
\ No newline at end of file
+}
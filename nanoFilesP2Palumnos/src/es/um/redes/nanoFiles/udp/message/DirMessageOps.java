@@ -1,5 +1,12 @@
 package es.um.redes.nanoFiles.udp.message;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import es.um.redes.nanoFiles.udp.server.NFDirectoryServer;
+
 public class DirMessageOps {
 
 	/*
@@ -16,5 +23,128 @@ public class DirMessageOps {
 	public static final String OPERATION_PUBLISH = "publish";
 	public static final String OPERATION_FILELIST = "filelist";
 	public static final String OPERATION_SEARCH = "search";
-	
-}
\ No newline at end of file
+	public static final String OPERATION_SEARCHNAME = "searchname";
+	public static final String OPERATION_PUBLISHDELTA = "publishdelta";
+	public static final String OPERATION_HEARTBEAT = "heartbeat";
+	public static final String OPERATION_STATS = "stats";
+	public static final String OPERATION_SEARCHBATCH = "searchbatch";
+	public static final String OPERATION_WATCH = "watch";
+	public static final String OPERATION_PUBLISHFILTER = "publishfilter";
+
+	/**
+	 * Opcode usado en el formato binario para operaciones que no están en la tabla
+	 * de opcodes: el nombre de la operación viaja a continuación como cadena.
+	 */
+	public static final byte OPCODE_UNKNOWN = (byte) 0xFF;
+
+	/**
+	 * Operaciones (peticiones y respuestas) con opcode propio en el formato
+	 * binario. El opcode es la posición en el array, por lo que las nuevas
+	 * operaciones deben añadirse siempre al final.
+	 */
+	private static final String[] _binary_operations = {
+			OPERATION_INVALID,
+			OPERATION_LOGIN,
+			OPERATION_LOGOUT,
+			OPERATION_LIST,
+			OPERATION_DOWNLOADFROM,
+			OPERATION_REGISTER,
+			OPERATION_UNREGISTER,
+			OPERATION_PUBLISH,
+			OPERATION_FILELIST,
+			OPERATION_SEARCH,
+			NFDirectoryServer.LOGIN_OK,
+			NFDirectoryServer.LOGIN_ERR,
+			NFDirectoryServer.LOGOUT_OK,
+			NFDirectoryServer.LOGOUT_ERR,
+			NFDirectoryServer.LIST_OK,
+			NFDirectoryServer.LIST_ERR,
+			NFDirectoryServer.DOWNLOADFROM_OK,
+			NFDirectoryServer.DOWNLOADFROM_ERR,
+			NFDirectoryServer.REGISTER_OK,
+			NFDirectoryServer.REGISTER_ERR,
+			NFDirectoryServer.UNREGISTER_OK,
+			NFDirectoryServer.UNREGISTER_ERR,
+			NFDirectoryServer.PUBLISH_OK,
+			NFDirectoryServer.PUBLISH_ERR,
+			NFDirectoryServer.FILELIST_OK,
+			NFDirectoryServer.FILELIST_ERR,
+			NFDirectoryServer.SEARCH_OK,
+			NFDirectoryServer.SEARCH_ERR,
+			NFDirectoryServer.SEARCH_AMBIGUOUS,
+			OPERATION_SEARCHNAME,
+			NFDirectoryServer.SEARCHNAME_OK,
+			NFDirectoryServer.SEARCHNAME_ERR,
+			OPERATION_PUBLISHDELTA,
+			NFDirectoryServer.PUBLISH_RESYNC,
+			OPERATION_HEARTBEAT,
+			NFDirectoryServer.HEARTBEAT_OK,
+			NFDirectoryServer.HEARTBEAT_ERR,
+			NFDirectoryServer.THROTTLED,
+			OPERATION_STATS,
+			NFDirectoryServer.STATS_OK,
+			NFDirectoryServer.STATS_ERR,
+			OPERATION_SEARCHBATCH,
+			NFDirectoryServer.SEARCHBATCH_OK,
+			NFDirectoryServer.SEARCHBATCH_ERR,
+			OPERATION_WATCH,
+			NFDirectoryServer.WATCH_OK,
+			NFDirectoryServer.WATCH_ERR,
+			NFDirectoryServer.WATCH_EVENT,
+			OPERATION_PUBLISHFILTER};
+
+	private static Map<String, Byte> _operation_to_opcode;
+	private static byte[][] _binary_operations_bytes;
+
+	static {
+		_operation_to_opcode = new HashMap<>();
+		_binary_operations_bytes = new byte[_binary_operations.length][];
+		for (int i = 0; i < _binary_operations.length; ++i) {
+			_operation_to_opcode.put(_binary_operations[i], (byte) i);
+			_binary_operations_bytes[i] = _binary_operations[i].getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+
+	/**
+	 * Busca la operación cuyo nombre coincide con los bytes indicados del búfer,
+	 * sin construir cadenas
+	 * 
+	 * @return La constante de la operación, o null si no está en la tabla
+	 */
+	public static String lookupOperation(ByteBuffer buf, int offset, int length) {
+		for (int i = 0; i < _binary_operations_bytes.length; ++i) {
+			byte[] op = _binary_operations_bytes[i];
+			if (op.length != length) {
+				continue;
+			}
+			int j = 0;
+			while (j < length && buf.get(offset + j) == op[j]) {
+				j++;
+			}
+			if (j == length) {
+				return _binary_operations[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Transforma una operación en su opcode del formato binario, o OPCODE_UNKNOWN
+	 * si la operación no tiene opcode propio
+	 */
+	public static byte operationToOpcode(String operation) {
+		return _operation_to_opcode.getOrDefault(operation, OPCODE_UNKNOWN);
+	}
+
+	/**
+	 * Transforma un opcode del formato binario en la operación correspondiente, o
+	 * null si el opcode no es válido
+	 */
+	public static String opcodeToOperation(byte opcode) {
+		int index = opcode & 0xFF;
+		if (index < _binary_operations.length) {
+			return _binary_operations[index];
+		}
+		return null;
+	}
+}
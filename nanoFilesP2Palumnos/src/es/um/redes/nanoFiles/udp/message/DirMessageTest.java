@@ -0,0 +1,476 @@
+package es.um.redes.nanoFiles.udp.message;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import es.um.redes.nanoFiles.udp.server.NFDirectoryServer;
+
+public class DirMessageTest {
+
+	public static void main(String[] args) throws IOException {
+		/*
+		 * Se codifican distintos tipos de mensajes en formato texto y en formato
+		 * binario, y se comprueba que al decodificarlos se obtiene un mensaje idéntico
+		 * al original (misma representación textual).
+		 */
+		DirMessage login = new DirMessage(DirMessageOps.OPERATION_LOGIN);
+		login.setNickname("alice");
+		check(login);
+
+		DirMessage loginOk = new DirMessage(NFDirectoryServer.LOGIN_OK);
+		loginOk.setNickname("alice");
+		loginOk.setSessionKey("123456");
+		loginOk.setMtu(1400);
+		check(loginOk);
+
+		DirMessage publish = new DirMessage(DirMessageOps.OPERATION_PUBLISH);
+		publish.setSessionKey("42");
+		publish.setFiles("4a1f5e8b9c0d1e2f3a4b5c6d7e8f9a0b1c2d3e4f,fichero.txt:"
+				+ "0123456789abcdef0123456789abcdef01234567,otro fichero.pdf:");
+		check(publish);
+
+		DirMessage publishDelta = new DirMessage(DirMessageOps.OPERATION_PUBLISHDELTA);
+		publishDelta.setSessionKey(42);
+		publishDelta.setFiles("4a1f5e8b9c0d1e2f3a4b5c6d7e8f9a0b1c2d3e4f,nuevo.txt:");
+		publishDelta.setRemoved("0123456789abcdef0123456789abcdef01234567:");
+		publishDelta.setBaseVersion(3);
+		publishDelta.setVersion(4);
+		check(publishDelta);
+
+		DirMessage heartbeat = new DirMessage(DirMessageOps.OPERATION_HEARTBEAT);
+		heartbeat.setSessionKey(42);
+		heartbeat.setUploads(3);
+		heartbeat.setFreeBandwidth(2048);
+		heartbeat.setCompress(DirMessage.COMPRESSION_DEFLATE);
+		check(heartbeat);
+
+		DirMessage search = new DirMessage(DirMessageOps.OPERATION_SEARCH);
+		search.setSessionKey("42");
+		search.setHash("4a1f5e");
+		check(search);
+
+		DirMessage searchOk = new DirMessage(NFDirectoryServer.SEARCH_OK);
+		searchOk.setHash("4a1f5e8b9c0d1e2f3a4b5c6d7e8f9a0b1c2d3e4f");
+		searchOk.setServers("alice,bob,");
+		searchOk.setFiles("4a1f5e8b9c0d1e2f3a4b5c6d7e8f9a0b1c2d3e4f,informe, final.pdf,1048576:");
+		searchOk.setAddresses("192.168.1.10:10000,[::1]:10001");
+		check(searchOk);
+
+		DirMessage searchOkCandidates = new DirMessage(NFDirectoryServer.SEARCH_OK);
+		searchOkCandidates.setHash("4a1f5e8b9c0d1e2f3a4b5c6d7e8f9a0b1c2d3e4f");
+		searchOkCandidates.setServers("");
+		searchOkCandidates.setAddresses("");
+		searchOkCandidates.setCandidates("carol@192.168.1.12:10002,dave@[::1]:10003");
+		check(searchOkCandidates);
+
+		byte[] chunk = new byte[300];
+		for (int i = 0; i < chunk.length; i++) {
+			chunk[i] = (byte) (i * 37);
+		}
+		DirMessage publishFilter = new DirMessage(DirMessageOps.OPERATION_PUBLISHFILTER);
+		publishFilter.setSessionKey(42);
+		publishFilter.setVersion(3);
+		publishFilter.setFilterSize(125000);
+		publishFilter.setHashCount(7);
+		publishFilter.setOffset(98304);
+		publishFilter.setFilter(chunk);
+		check(publishFilter);
+
+		DirMessage searchName = new DirMessage(DirMessageOps.OPERATION_SEARCHNAME);
+		searchName.setSessionKey(42);
+		searchName.setKeywords("informe final");
+		check(searchName);
+
+		DirMessage searchNameOk = new DirMessage(NFDirectoryServer.SEARCHNAME_OK);
+		searchNameOk.setResults("4a1f5e8b9c0d1e2f3a4b5c6d7e8f9a0b1c2d3e4f,informe, final.pdf,1048576,alice;bob:");
+		check(searchNameOk);
+
+		DirMessage searchBatch = new DirMessage(DirMessageOps.OPERATION_SEARCHBATCH);
+		searchBatch.setSessionKey(42);
+		searchBatch.setFiles("4a1f5e8b9c0d1e2f3a4b5c6d7e8f9a0b1c2d3e4f,:0123456789abcdef0123456789abcdef01234567,:");
+		check(searchBatch);
+
+		DirMessage searchBatchOk = new DirMessage(NFDirectoryServer.SEARCHBATCH_OK);
+		searchBatchOk.setResults("4a1f5e8b9c0d1e2f3a4b5c6d7e8f9a0b1c2d3e4f,informe.pdf,alice;bob:");
+		searchBatchOk.setCursor("4a1f5e8b9c0d1e2f3a4b5c6d7e8f9a0b1c2d3e4f");
+		check(searchBatchOk);
+
+		DirMessage watch = new DirMessage(DirMessageOps.OPERATION_WATCH);
+		watch.setSessionKey(42);
+		watch.setPort(50123);
+		watch.setFiles("4a1f5e8b9c0d1e2f3a4b5c6d7e8f9a0b1c2d3e4f,:");
+		watch.setKeywords("informe final:acta");
+		check(watch);
+
+		DirMessage watchEvent = new DirMessage(NFDirectoryServer.WATCH_EVENT);
+		watchEvent.setVersion(17);
+		watchEvent.setResults("4a1f5e8b9c0d1e2f3a4b5c6d7e8f9a0b1c2d3e4f,informe final.pdf,1048576,alice;bob:"
+				+ "0123456789abcdef0123456789abcdef01234567,acta.txt,20,:");
+		check(watchEvent);
+
+		DirMessage filelist = new DirMessage(DirMessageOps.OPERATION_FILELIST);
+		filelist.setSessionKey(42);
+		filelist.setPageSize(100);
+		filelist.setCursor("4a1f5e8b9c0d1e2f3a4b5c6d7e8f9a0b1c2d3e4f");
+		check(filelist);
+
+		DirMessage downloadOk = new DirMessage(NFDirectoryServer.DOWNLOADFROM_OK);
+		downloadOk.setIp(InetAddress.getByName("127.0.0.1"));
+		downloadOk.setPort("10000");
+		check(downloadOk);
+
+		DirMessage downloadOk6 = new DirMessage(NFDirectoryServer.DOWNLOADFROM_OK);
+		downloadOk6.setIp(InetAddress.getByName("::1"));
+		downloadOk6.setPort(10000);
+		check(downloadOk6);
+
+		DirMessage throttled = new DirMessage(NFDirectoryServer.THROTTLED);
+		throttled.setRetryAfter(250);
+		check(throttled);
+
+		DirMessage statsOk = new DirMessage(NFDirectoryServer.STATS_OK);
+		statsOk.setStats("uptime 12 s, 340 datagrams received;state: 2 sessions, 1 servers, 800 files");
+		check(statsOk);
+
+		DirMessage listOk = new DirMessage(NFDirectoryServer.LIST_OK);
+		listOk.setUsers("alice:Server\t Port: 10000,bob:User,");
+		listOk.setRequestId(7);
+		check(listOk);
+
+		DirMessage custom = new DirMessage("operation_not_in_opcode_table");
+		custom.setServers("alice,bob,");
+		check(custom);
+
+		/*
+		 * Respuestas grandes, que se comprimen: una página de FILELIST de 1000 ficheros
+		 * y una lista de 2000 usuarios
+		 */
+		Random random = new Random(1);
+		StringBuilder files = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			for (int j = 0; j < 40; j++) {
+				files.append(Character.forDigit(random.nextInt(16), 16));
+			}
+			files.append(",documento ").append(i).append(".pdf,").append(random.nextInt(1 << 24)).append(':');
+		}
+		DirMessage filelistOk = new DirMessage(NFDirectoryServer.FILELIST_OK);
+		filelistOk.setFiles(files.toString());
+		filelistOk.setCursor("4a1f5e8b9c0d1e2f3a4b5c6d7e8f9a0b1c2d3e4f");
+		check(filelistOk);
+		StringBuilder users = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			users.append("peer").append(i).append(i % 3 == 0 ? ":User," : ":Server\t Port: " + (10000 + i) + ",");
+		}
+		DirMessage bigListOk = new DirMessage(NFDirectoryServer.LIST_OK);
+		bigListOk.setUsers(users.toString());
+		check(bigListOk);
+
+		/*
+		 * Una publicación que no cabe en un datagrama, con un campo de más de 64 KiB,
+		 * que se envía fragmentada
+		 */
+		StringBuilder bigFiles = new StringBuilder(files);
+		for (int i = 1000; i < 3000; i++) {
+			for (int j = 0; j < 40; j++) {
+				bigFiles.append(Character.forDigit(random.nextInt(16), 16));
+			}
+			bigFiles.append(",documento ").append(i).append(".pdf,").append(random.nextInt(1 << 24)).append(':');
+		}
+		DirMessage bigPublish = new DirMessage(DirMessageOps.OPERATION_PUBLISH);
+		bigPublish.setSessionKey(42);
+		bigPublish.setFiles(bigFiles.toString());
+		bigPublish.setMtu(1400);
+		bigPublish.setRequestId(99);
+		check(bigPublish);
+		checkFragments("PUBLISH 3000 files (binary)", bigPublish.encode(true), 0.1, random);
+		checkFragments("PUBLISH 3000 files (text)", bigPublish.encode(false), 0.3, random);
+		checkFragments("FILELIST_OK 1000 files (binary, deflate)", filelistOk.encode(true, true), 0.05, random);
+		checkReorder("PUBLISH 3000 files (binary) reordered", bigPublish.encode(true), 100, 15000, 0.05, random);
+		checkReorder("PUBLISH 3000 files (text) reordered", bigPublish.encode(false), 1000, 15000, 0.05, random);
+
+		/*
+		 * Un mismo objeto DirMessage y un mismo búfer se reutilizan para decodificar
+		 * varios mensajes: no deben quedar restos del mensaje anterior.
+		 */
+		ByteBuffer buf = ByteBuffer.allocate(DirMessage.PACKET_MAX_SIZE);
+		DirMessage reused = new DirMessage();
+		publish.writeTo(buf, true);
+		buf.flip();
+		reused.readFrom(buf);
+		buf.clear();
+		buf.put("OPERATION:logout\nSessionKey: 42 \n\n".getBytes());
+		buf.flip();
+		reused.readFrom(buf);
+		if (!reused.getOperation().equals(DirMessageOps.OPERATION_LOGOUT) || reused.getSessionKeyValue() != 42
+				|| reused.getFiles() != null || reused.isBinary()) {
+			System.err.println("Reused message does not match!");
+		} else {
+			System.out.println("Reused message OK!");
+		}
+
+		/*
+		 * Añadir el identificador de petición a una respuesta ya codificada debe dar
+		 * el mismo mensaje que codificarla con el identificador
+		 */
+		for (boolean binary : new boolean[] { false, true }) {
+			listOk.setRequestId(DirMessage.NO_VALUE);
+			buf.clear();
+			listOk.writeTo(buf, binary);
+			DirMessage.appendRequestId(buf, binary, 7);
+			buf.flip();
+			reused.readFrom(buf);
+			listOk.setRequestId(7);
+			if (reused.getRequestId() != 7 || !reused.toString().equals(listOk.toString())) {
+				System.err.println("Appended request id (" + (binary ? "binary" : "text") + ") does not match!");
+			} else {
+				System.out.println("Appended request id (" + (binary ? "binary" : "text") + ") OK!");
+			}
+		}
+
+		/*
+		 * Los datagramas mal formados (compresión inválida, campos TLV con longitudes
+		 * incorrectas, campos de texto desconocidos) deben rechazarse con
+		 * IllegalArgumentException, que el directorio captura para ignorarlos
+		 */
+		byte[] garbage = "garbagegarbage".getBytes();
+		byte[] badDeflate = new byte[5 + garbage.length];
+		badDeflate[0] = DirMessage.DEFLATE_MAGIC;
+		badDeflate[4] = 0x10;
+		System.arraycopy(garbage, 0, badDeflate, 5, garbage.length);
+		checkMalformed("deflate with invalid data", badDeflate);
+		byte[] compressed = filelistOk.encode(true, true);
+		checkMalformed("truncated deflate", Arrays.copyOf(compressed, compressed.length / 2));
+		byte[] badIp = new byte[205]; // Campo IP (tag 4) de 200 bytes
+		badIp[0] = DirMessage.BINARY_MAGIC;
+		badIp[1] = 1;
+		badIp[2] = 4;
+		badIp[4] = (byte) 200;
+		checkMalformed("TLV ip of 200 bytes", badIp);
+		checkMalformed("TLV sessionkey of 2 bytes", new byte[] { DirMessage.BINARY_MAGIC, 1, 2, 0, 2, 0, 42 });
+		checkMalformed("TLV hash of 4 bytes", new byte[] { DirMessage.BINARY_MAGIC, 1, 8, 0, 4, 1, 2, 3, 4 });
+		checkMalformed("TLV length past the end", new byte[] { DirMessage.BINARY_MAGIC, 1, 1, 0, 50, 'a', 'b' });
+		checkMalformed("TLV long length past the end",
+				new byte[] { DirMessage.BINARY_MAGIC, 1, 1, (byte) 0xFF, (byte) 0xFF, 0, 1, 0, 0, 'a' });
+		checkMalformed("TLV truncated file list", Arrays.copyOf(new byte[] { DirMessage.BINARY_MAGIC, 1, 6, 0, 24 }, 29));
+		checkMalformed("text unknown field", "operation:login\nbogus:1\n\n".getBytes());
+		checkMalformed("text line without delimiter", "operation:login\nnickname\n\n".getBytes());
+		checkMalformed("text ip that is not a literal", "operation:login\nip:some.host.invalid\n\n".getBytes());
+
+		byte[] text = publish.encode(false);
+		byte[] binary = publish.encode(true);
+		System.out.println("Publish message size: " + text.length + " bytes (text), " + binary.length
+				+ " bytes (binary)");
+
+		compressionBenchmark("FILELIST_OK 1000 files (binary)", filelistOk.encode(true));
+		compressionBenchmark("FILELIST_OK 1000 files (text)", filelistOk.encode(false));
+		compressionBenchmark("LIST_OK 2000 users (binary)", bigListOk.encode(true));
+	}
+
+	/**
+	 * Muestra, para varios niveles de deflate, el tamaño de un mensaje comprimido y
+	 * el tiempo de comprimirlo y descomprimirlo
+	 */
+	private static void compressionBenchmark(String name, byte[] message) {
+		System.out.println(name + ": " + message.length + " bytes");
+		byte[] output = new byte[DirMessage.MAX_MESSAGE_SIZE];
+		byte[] inflated = new byte[DirMessage.MAX_MESSAGE_SIZE];
+		for (int level : new int[] { Deflater.BEST_SPEED, 3, Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION }) {
+			Deflater deflater = new Deflater(level);
+			Inflater inflater = new Inflater();
+			int size = 0;
+			long deflateNanos = 0;
+			long inflateNanos = 0;
+			int rounds = 200;
+			for (int round = 0; round < 2 * rounds; round++) { // La primera mitad calienta la JVM
+				long t0 = System.nanoTime();
+				deflater.reset();
+				deflater.setInput(message);
+				deflater.finish();
+				size = deflater.deflate(output);
+				long t1 = System.nanoTime();
+				inflater.reset();
+				inflater.setInput(output, 0, size);
+				try {
+					inflater.inflate(inflated);
+				} catch (DataFormatException e) {
+					throw new IllegalStateException(e);
+				}
+				long t2 = System.nanoTime();
+				if (round >= rounds) {
+					deflateNanos += t1 - t0;
+					inflateNanos += t2 - t1;
+				}
+			}
+			System.out.printf("  level %2d: %6d bytes (%.0f%%), deflate %6.1f us, inflate %5.1f us%n", level, size,
+					100.0 * size / message.length, deflateNanos / 1000.0 / rounds, inflateNanos / 1000.0 / rounds);
+			deflater.end();
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Fragmenta un mensaje para la MTU por defecto y lo reensambla perdiendo al
+	 * azar la fracción loss de los fragmentos (también al reenviarlos) y
+	 * desordenando el resto, pidiendo los perdidos con NACK como el directorio.
+	 * El reloj es simulado: cada fragmento tarda 1 ms.
+	 */
+	private static void checkFragments(String name, byte[] message, double loss, Random random) {
+		byte[][] fragments = DirFragments.split(message, 99, DirFragments.DEFAULT_MTU);
+		List<Integer> pending = new ArrayList<Integer>();
+		for (int i = 0; i < fragments.length; i++) {
+			pending.add(i);
+		}
+		DirFragments.Assembly assembly = null;
+		ByteBuffer nack = ByteBuffer.allocate(DirFragments.MIN_MTU);
+		long now = 0;
+		int sent = 0;
+		int nacks = 0;
+		while (!pending.isEmpty() && nacks < 100) {
+			// El último fragmento de cada envío llega el último, el resto desordenados
+			int last = pending.remove(pending.size() - 1);
+			Collections.shuffle(pending, random);
+			pending.add(last);
+			for (int index : pending) {
+				sent++;
+				now += 1000000;
+				if (random.nextDouble() < loss) {
+					continue;
+				}
+				ByteBuffer fragment = ByteBuffer.wrap(fragments[index]);
+				if (assembly == null) {
+					assembly = new DirFragments.Assembly(fragment, DirMessage.MAX_MESSAGE_SIZE, now);
+				} else {
+					assembly.add(fragment, now);
+				}
+			}
+			pending.clear();
+			if (assembly == null || assembly.isComplete()) {
+				if (assembly == null) {
+					pending.add(fragments.length - 1); // Se perdió todo: se reenvía el último
+				}
+				continue;
+			}
+			if (assembly.getNackTime() != DirFragments.Assembly.NO_NACK) {
+				// El NACK sale al vencer su margen
+				now = assembly.getNackTime();
+				nacks++;
+			} else {
+				// Se perdió el último fragmento: el emisor lo reenvía al expirar su temporizador
+				now += 1000 * 1000000L;
+				nacks += 2;
+			}
+			nack.clear();
+			assembly.writeNack(nack, now);
+			nack.flip();
+			for (int index : DirFragments.readNack(nack).missing) {
+				pending.add(index);
+			}
+		}
+		if (assembly == null || !assembly.isComplete()
+				|| !ByteBuffer.wrap(message).equals(assembly.getMessage())) {
+			System.err.println(name + ": fragments do not match!");
+		} else {
+			System.out.printf("%s: %d bytes in %d fragments, %.0f%% loss: %d sent, %d nacks OK!%n", name,
+					message.length, fragments.length, 100 * loss, sent, nacks);
+		}
+	}
+
+	/**
+	 * Reensambla un mensaje sin pérdidas cuyos fragmentos llegan cada gapMicros
+	 * con un retardo aleatorio de hasta jitterMicros (menor que NACK_DELAY_MS) y
+	 * con la fracción duplicate de ellos duplicados: no debe pedirse ninguno con
+	 * NACK. Se compara con los que se pedirían sin margen, al llegar el último.
+	 */
+	private static void checkReorder(String name, byte[] message, long gapMicros, long jitterMicros,
+			double duplicate, Random random) {
+		byte[][] fragments = DirFragments.split(message, 99, DirFragments.DEFAULT_MTU);
+		List<long[]> arrivals = new ArrayList<long[]>(); // { instante, índice }
+		for (int i = 0; i < fragments.length; i++) {
+			int copies = (random.nextDouble() < duplicate) ? 2 : 1;
+			for (int c = 0; c < copies; c++) {
+				long delay = (long) (random.nextDouble() * jitterMicros);
+				arrivals.add(new long[] { (i * gapMicros + delay) * 1000, i });
+			}
+		}
+		arrivals.sort((a, b) -> Long.compare(a[0], b[0]));
+		DirFragments.Assembly assembly = null;
+		ByteBuffer nack = ByteBuffer.allocate(DirFragments.MIN_MTU);
+		boolean[] seen = new boolean[fragments.length];
+		int arrived = 0;
+		int missingAtLast = -1;
+		int requested = 0;
+		for (long[] arrival : arrivals) {
+			long now = arrival[0];
+			if (assembly != null && assembly.isNackDue(now)) {
+				nack.clear();
+				requested += assembly.writeNack(nack, now);
+			}
+			int index = (int) arrival[1];
+			ByteBuffer fragment = ByteBuffer.wrap(fragments[index]);
+			if (assembly == null) {
+				assembly = new DirFragments.Assembly(fragment, DirMessage.MAX_MESSAGE_SIZE, now);
+			} else {
+				assembly.add(fragment, now);
+			}
+			if (!seen[index]) {
+				seen[index] = true;
+				arrived++;
+			}
+			if (index == fragments.length - 1 && missingAtLast < 0) {
+				missingAtLast = fragments.length - arrived;
+			}
+		}
+		if (!assembly.isComplete() || !ByteBuffer.wrap(message).equals(assembly.getMessage())) {
+			System.err.println(name + ": fragments do not match!");
+		} else if (requested > 0) {
+			System.err.println(name + ": " + requested + " fragments requested without loss!");
+		} else {
+			System.out.printf("%s: %d fragments, %d us gap, %d us jitter, %.0f%% duplicated: 0 requested"
+					+ " (%d without grace period) OK!%n", name, fragments.length, gapMicros, jitterMicros,
+					100 * duplicate, missingAtLast);
+		}
+	}
+
+	/**
+	 * Comprueba que un mensaje mal formado se rechaza con IllegalArgumentException
+	 */
+	private static void checkMalformed(String name, byte[] data) {
+		try {
+			DirMessage msg = DirMessage.decode(data, data.length);
+			System.err.println("Malformed message (" + name + ") accepted: " + msg);
+		} catch (IllegalArgumentException e) {
+			System.out.println("Malformed message (" + name + ") rejected OK: " + e.getMessage());
+		} catch (Exception e) {
+			System.err.println("Malformed message (" + name + ") rejected with " + e);
+		}
+	}
+
+	private static void check(DirMessage msgOut) throws IOException {
+		for (boolean deflate : new boolean[] { false, true }) {
+			for (boolean binary : new boolean[] { false, true }) {
+				byte[] data = msgOut.encode(binary, deflate);
+				DirMessage msgIn = DirMessage.decode(data, data.length);
+				String format = (binary ? "binary" : "text") + (msgIn.isCompressed() ? ", deflate" : "");
+				if (msgIn.isBinary() != binary) {
+					System.err.println(msgOut.getOperation() + " (" + format + "): format not detected!");
+				} else if (msgIn.isCompressed() != (data[0] == DirMessage.DEFLATE_MAGIC)) {
+					System.err.println(msgOut.getOperation() + " (" + format + "): compression not detected!");
+				} else if (!msgOut.toString().equals(msgIn.toString())) {
+					System.err.println(msgOut.getOperation() + " (" + format + ") does not match!");
+					System.err.println(msgOut + "---\n" + msgIn);
+				} else if (!deflate || msgIn.isCompressed()) {
+					System.out.println(msgOut.getOperation() + " (" + format + ") OK!");
+				}
+			}
+		}
+	}
+}
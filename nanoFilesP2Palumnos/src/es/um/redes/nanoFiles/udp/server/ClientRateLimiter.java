@@ -0,0 +1,169 @@
+package es.um.redes.nanoFiles.udp.server;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Control de admisión del directorio: limita la tasa de peticiones de cada
+ * dirección IP de origen con un cubo de fichas (token bucket). Cada cubo se
+ * llena a razón de rate fichas por segundo hasta burst fichas, y cada petición
+ * admitida gasta una. Así un cliente puede hacer ráfagas cortas, pero no
+ * superar la tasa de forma sostenida.
+ *
+ * La memoria está acotada: se guardan como mucho maxClients cubos, en orden de
+ * uso. Los cubos de clientes inactivos el tiempo suficiente para llenarse se
+ * descartan (equivalen a un cubo nuevo), y si aun así no hay sitio se descarta
+ * el del cliente inactivo hace más tiempo.
+ *
+ * admit no está sincronizado: lo llama sólo el hilo que recibe los datagramas.
+ * toString puede llamarse desde cualquier hilo (la operación STATS la atiende
+ * un worker en el modo multihilo): no recorre los cubos, y lee contadores
+ * volatile que sólo escribe ese hilo.
+ */
+public class ClientRateLimiter {
+	/**
+	 * Peticiones por segundo permitidas por defecto a cada cliente (con ráfagas de
+	 * hasta el doble)
+	 */
+	public static final double DEFAULT_RATE = 100;
+	/**
+	 * Número máximo de clientes de los que se guarda su cubo
+	 */
+	public static final int DEFAULT_MAX_CLIENTS = 16384;
+	/**
+	 * Resultado de admit cuando la petición se admite
+	 */
+	public static final long ADMIT = 0;
+	/**
+	 * Resultado de admit cuando la petición se descarta sin responder, porque ya se
+	 * avisó al cliente de que debía esperar
+	 */
+	public static final long DROP = -1;
+
+	private static class Bucket {
+		private double tokens;
+		/**
+		 * Instante (System.nanoTime) de la última vez que se rellenó el cubo
+		 */
+		private long lastRefill;
+		/**
+		 * Instante hasta el que no se vuelve a avisar al cliente de que espere
+		 */
+		private long quietUntil;
+
+		private Bucket(double tokens, long now) {
+			this.tokens = tokens;
+			this.lastRefill = now;
+			this.quietUntil = now;
+		}
+	}
+
+	private final double rate;
+	private final double burst;
+	private final int maxClients;
+	/**
+	 * Tiempo que tarda en llenarse un cubo vacío: un cubo sin usar durante ese
+	 * tiempo se puede descartar
+	 */
+	private final long idleNanos;
+	/**
+	 * Cubos por dirección del cliente, en orden de uso (el primero es el del
+	 * cliente inactivo hace más tiempo)
+	 */
+	private final LinkedHashMap<InetAddress, Bucket> buckets = new LinkedHashMap<InetAddress, Bucket>(16, 0.75f,
+			true);
+
+	/*
+	 * Contadores para toString. Sólo los escribe el hilo que llama a admit, por lo
+	 * que basta con volatile para que otros hilos los lean.
+	 */
+	private volatile long admitted = 0;
+	private volatile long throttled = 0;
+	private volatile long dropped = 0;
+	private volatile long evicted = 0;
+	/**
+	 * Copia de buckets.size(), que otros hilos no pueden consultar mientras
+	 * admit modifica el mapa
+	 */
+	private volatile int clients = 0;
+
+	/**
+	 * @param rate       Peticiones por segundo permitidas a cada cliente
+	 * @param burst      Peticiones que un cliente puede hacer seguidas
+	 * @param maxClients Número máximo de cubos guardados
+	 */
+	public ClientRateLimiter(double rate, int burst, int maxClients) {
+		if (rate <= 0 || burst < 1 || maxClients < 1) {
+			throw new IllegalArgumentException("Invalid rate limit " + rate + "/s, burst " + burst);
+		}
+		this.rate = rate;
+		this.burst = burst;
+		this.maxClients = maxClients;
+		this.idleNanos = (long) (burst * 1e9 / rate);
+	}
+
+	/**
+	 * Decide si se atiende una petición recibida del cliente
+	 *
+	 * @param client Dirección de origen de la petición
+	 * @param now    Instante de recepción (System.nanoTime)
+	 * @return ADMIT si se atiende; DROP si se descarta sin responder; o, si el
+	 *         cliente ha superado su tasa, los milisegundos que debe esperar antes
+	 *         de reintentar (que se le envían en la respuesta)
+	 */
+	public long admit(InetAddress client, long now) {
+		evictIdle(now);
+		Bucket bucket = buckets.get(client);
+		if (bucket == null) {
+			if (buckets.size() >= maxClients) {
+				Iterator<Bucket> eldest = buckets.values().iterator();
+				eldest.next();
+				eldest.remove();
+				evicted++;
+			}
+			bucket = new Bucket(burst, now);
+			buckets.put(client, bucket);
+			clients = buckets.size();
+		}
+		bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.lastRefill) * rate / 1e9);
+		bucket.lastRefill = now;
+		if (bucket.tokens >= 1) {
+			bucket.tokens -= 1;
+			admitted++;
+			return ADMIT;
+		}
+		if (now - bucket.quietUntil < 0) {
+			dropped++;
+			return DROP;
+		}
+		// Tiempo hasta que el cubo vuelva a tener una ficha
+		long waitNanos = (long) Math.ceil((1 - bucket.tokens) * 1e9 / rate);
+		bucket.quietUntil = now + waitNanos;
+		throttled++;
+		return Math.max(1, (waitNanos + 999999) / 1000000);
+	}
+
+	/**
+	 * Descarta los cubos de los clientes inactivos el tiempo suficiente para que
+	 * se hayan llenado. Como están en orden de uso, basta con mirar los primeros.
+	 */
+	private void evictIdle(long now) {
+		Iterator<Bucket> it = buckets.values().iterator();
+		int removed = 0;
+		while (it.hasNext() && now - it.next().lastRefill >= idleNanos) {
+			it.remove();
+			removed++;
+		}
+		if (removed > 0) {
+			evicted += removed;
+			clients = buckets.size();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return rate + " req/s (burst " + (int) burst + "): " + admitted + " admitted, " + throttled + " throttled, "
+				+ dropped + " dropped, " + clients + " clients, " + evicted + " evicted";
+	}
+}
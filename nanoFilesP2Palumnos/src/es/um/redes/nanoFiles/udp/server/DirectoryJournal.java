@@ -0,0 +1,678 @@
+package es.um.redes.nanoFiles.udp.server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import es.um.redes.nanoFiles.util.Log;
+
+/**
+ * Diario del directorio, para recuperar su estado (sesiones, servidores
+ * registrados, ficheros y filtros publicados) al reiniciarlo sin que todos los peers
+ * tengan que volver a iniciar sesión y publicar.
+ *
+ * El diario se compone de una instantánea (snapshot) con el estado completo y
+ * de un log de operaciones posteriores, proyectado en memoria (memory-mapped),
+ * al que se añade un registro por cada operación que modifica el estado. Cuando
+ * el log crece demasiado se escribe una instantánea nueva y el log vuelve a
+ * empezar. Al arrancar se carga la instantánea y se reaplica el log.
+ *
+ * La instantánea guarda la lista de ficheros ordenada por hash y agrupada en
+ * registros grandes, en lugar de como publicaciones de cada servidor, para que
+ * el índice pueda cargarse de una vez en tiempo lineal.
+ *
+ * Ambos ficheros usan el mismo formato de registro: longitud (4 bytes), tipo (1
+ * byte), datos y CRC32 del tipo y los datos (4 bytes). Una longitud 0 marca el
+ * final, y un registro con CRC incorrecto (escritura interrumpida) también. La
+ * cabecera de cada fichero incluye la generación de la instantánea, de modo que
+ * un log anterior a la última instantánea se descarta.
+ *
+ * Las operaciones de escritura deben llamarse con el estado del directorio
+ * bloqueado (cerrojo de escritura para los registros, al menos de lectura para
+ * las instantáneas), y después de aplicar la operación al estado en memoria.
+ */
+public class DirectoryJournal {
+
+	/**
+	 * Política de sincronización del log con el disco
+	 */
+	public enum FsyncPolicy {
+		/**
+		 * Cada registro se escribe en disco antes de responder al cliente
+		 */
+		ALWAYS,
+		/**
+		 * El log se escribe en disco cada FSYNC_INTERVAL_MS (se pueden perder las
+		 * últimas operaciones si se va la luz, pero no si sólo cae el proceso)
+		 */
+		INTERVAL,
+		/**
+		 * El sistema operativo decide cuándo escribir en disco
+		 */
+		NEVER;
+	}
+
+	/**
+	 * Estado del directorio que se reconstruye al recuperar el diario
+	 */
+	public interface Replayer {
+		void login(String nick, int sessionKey);
+
+		void logout(String nick);
+
+		void register(String nick, String port, InetAddress ip);
+
+		void unregister(String nick);
+
+		void publish(String nick, Map<String, String> files, int version);
+
+		void delta(String nick, Map<String, String> added, List<String> removed, int baseVersion, int version);
+
+		/**
+		 * Filtro de Bloom publicado por un peer, o eliminado si bits es null
+		 */
+		void filter(String nick, int version, int hashCount, byte[] bits);
+
+		/**
+		 * Carga los ficheros de la instantánea, ordenados por hash. Se llama una sola
+		 * vez, después del resto de registros de la instantánea y antes de reaplicar
+		 * el log. Cada fichero se describe como en las publicaciones
+		 * ("nombre,tamaño").
+		 */
+		void files(List<String> hashes, List<String> descriptors, List<String[]> servers);
+	}
+
+	/**
+	 * Origen del estado completo del directorio al escribir una instantánea
+	 */
+	public interface SnapshotSource {
+		void writeSnapshot(Snapshot snapshot) throws IOException;
+	}
+
+	private static final String LOG_FILE = "directory.log";
+	private static final String SNAPSHOT_FILE = "directory.snap";
+	private static final int LOG_MAGIC = 0x4E464A4C; // "NFJL"
+	private static final int SNAPSHOT_MAGIC = 0x4E464A53; // "NFJS"
+	private static final int FORMAT_VERSION = 1;
+	/**
+	 * magic (4), versión del formato (4), generación (8)
+	 */
+	private static final int HEADER_SIZE = 16;
+	/**
+	 * Tamaño del fichero de log proyectado en memoria
+	 */
+	private static final int LOG_SIZE = 64 * 1024 * 1024;
+	/**
+	 * Tamaño del log a partir del cual conviene escribir una instantánea. Se
+	 * mantiene pequeño para que reaplicar el log al arrancar sea rápido.
+	 */
+	private static final int SNAPSHOT_THRESHOLD = LOG_SIZE / 8;
+	public static final long FSYNC_INTERVAL_MS = 1000;
+	/**
+	 * Número de ficheros por registro en una instantánea
+	 */
+	private static final int SNAPSHOT_CHUNK = 4096;
+
+	private static final byte REC_LOGIN = 1;
+	private static final byte REC_LOGOUT = 2;
+	private static final byte REC_REGISTER = 3;
+	private static final byte REC_UNREGISTER = 4;
+	private static final byte REC_PUBLISH = 5;
+	private static final byte REC_DELTA = 6;
+	/**
+	 * Bloque de la lista de ficheros (sólo en instantáneas)
+	 */
+	private static final byte REC_FILES = 7;
+	private static final byte REC_FILTER = 8;
+
+	private final File logFile;
+	private final File snapshotFile;
+	private final FsyncPolicy fsyncPolicy;
+	private final FileChannel logChannel;
+	private final MappedByteBuffer log;
+	private SnapshotSource source;
+	/**
+	 * Generación de la última instantánea (y del log que la continúa)
+	 */
+	private long generation = 0;
+	/**
+	 * Búfer en el que se codifica cada registro antes de copiarlo al log o a la
+	 * instantánea (crece si un registro no cabe)
+	 */
+	private ByteBuffer record = ByteBuffer.allocate(64 * 1024);
+	private final CRC32 crc = new CRC32();
+	/**
+	 * Indica si hay registros que aún no se han escrito en disco
+	 */
+	private boolean dirty = false;
+
+	/**
+	 * Abre (o crea) el diario en el directorio indicado. El estado no se recupera
+	 * hasta llamar a recover.
+	 *
+	 * @param folder      Carpeta en la que se guardan el log y la instantánea
+	 * @param fsyncPolicy Política de sincronización del log con el disco
+	 */
+	public DirectoryJournal(File folder, FsyncPolicy fsyncPolicy) throws IOException {
+		if (!folder.exists()) {
+			folder.mkdirs();
+		}
+		this.logFile = new File(folder, LOG_FILE);
+		this.snapshotFile = new File(folder, SNAPSHOT_FILE);
+		this.fsyncPolicy = fsyncPolicy;
+		RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+		if (raf.length() < LOG_SIZE) {
+			raf.setLength(LOG_SIZE);
+		}
+		this.logChannel = raf.getChannel();
+		this.log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, LOG_SIZE);
+		if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+			Thread flusher = new Thread(() -> {
+				while (true) {
+					try {
+						Thread.sleep(FSYNC_INTERVAL_MS);
+					} catch (InterruptedException e) {
+						return;
+					}
+					flush();
+				}
+			}, "journal-fsync");
+			flusher.setDaemon(true);
+			flusher.start();
+		}
+	}
+
+	/**
+	 * Reconstruye el estado a partir de la instantánea y del log, y deja el log
+	 * listo para añadir registros
+	 *
+	 * @param replayer El estado sobre el que se reaplican las operaciones
+	 * @param source   El origen del estado para las instantáneas posteriores
+	 * @return El número de registros reaplicados
+	 */
+	public synchronized int recover(Replayer replayer, SnapshotSource source) throws IOException {
+		this.source = source;
+		int records = 0;
+		if (snapshotFile.exists()) {
+			try (FileChannel ch = FileChannel.open(snapshotFile.toPath())) {
+				MappedByteBuffer snap = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+				if (snap.getInt(0) != SNAPSHOT_MAGIC || snap.getInt(4) != FORMAT_VERSION) {
+					throw new IOException("Journal: invalid snapshot file " + snapshotFile);
+				}
+				generation = snap.getLong(8);
+				snap.position(HEADER_SIZE);
+				FileTable table = new FileTable();
+				records += replay(snap, replayer, table);
+				if (!table.hashes.isEmpty()) {
+					replayer.files(table.hashes, table.names, table.servers);
+				}
+			}
+		}
+		if (log.getInt(0) == LOG_MAGIC && log.getInt(4) == FORMAT_VERSION && log.getLong(8) == generation) {
+			log.position(HEADER_SIZE);
+			records += replay(log, replayer, null);
+			log.putInt(log.position(), 0); // Descarta un posible registro incompleto
+		} else {
+			// Log vacío, o anterior a la instantánea (no se llegó a reiniciar)
+			resetLog(generation);
+		}
+		return records;
+	}
+
+	/**
+	 * @return Verdadero si el log ha crecido lo suficiente como para escribir una
+	 *         instantánea
+	 */
+	public synchronized boolean shouldSnapshot() {
+		return log.position() > SNAPSHOT_THRESHOLD;
+	}
+
+	/**
+	 * Escribe una instantánea con el estado actual y vacía el log. El estado no
+	 * debe modificarse mientras tanto.
+	 */
+	public synchronized void snapshot() throws IOException {
+		long next = generation + 1;
+		File tmp = new File(snapshotFile.getPath() + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			Snapshot snapshot = new Snapshot(new BufferedOutputStream(fos, 1 << 20));
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(SNAPSHOT_MAGIC).putInt(FORMAT_VERSION).putLong(next);
+			snapshot.out.write(header.array());
+			source.writeSnapshot(snapshot);
+			snapshot.flushFiles();
+			snapshot.out.write(new byte[4]); // Fin de los registros
+			snapshot.out.flush();
+			if (fsyncPolicy != FsyncPolicy.NEVER) {
+				fos.getFD().sync();
+			}
+		}
+		Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		generation = next;
+		resetLog(next);
+	}
+
+	public synchronized void logLogin(String nick, int sessionKey) throws IOException {
+		beginRecord(REC_LOGIN);
+		putString(nick);
+		putInt(sessionKey);
+		append();
+	}
+
+	public synchronized void logLogout(String nick) throws IOException {
+		beginRecord(REC_LOGOUT);
+		putString(nick);
+		append();
+	}
+
+	public synchronized void logRegister(String nick, String port, InetAddress ip) throws IOException {
+		beginRecord(REC_REGISTER);
+		putRegister(nick, port, ip);
+		append();
+	}
+
+	public synchronized void logUnregister(String nick) throws IOException {
+		beginRecord(REC_UNREGISTER);
+		putString(nick);
+		append();
+	}
+
+	public synchronized void logPublish(String nick, Map<String, String> files, int version) throws IOException {
+		beginRecord(REC_PUBLISH);
+		putString(nick);
+		putInt(version);
+		putFiles(files.entrySet(), files.size());
+		append();
+	}
+
+	public synchronized void logDelta(String nick, Map<String, String> added, Collection<String> removed,
+			int baseVersion, int version) throws IOException {
+		beginRecord(REC_DELTA);
+		putString(nick);
+		putInt(baseVersion);
+		putInt(version);
+		putFiles(added.entrySet(), added.size());
+		putInt(removed.size());
+		for (String hash : removed) {
+			putString(hash);
+		}
+		append();
+	}
+
+	/**
+	 * @param bits Los bits del filtro, o null si el peer lo ha retirado
+	 */
+	public synchronized void logFilter(String nick, int version, int hashCount, byte[] bits) throws IOException {
+		beginRecord(REC_FILTER);
+		putFilter(nick, version, hashCount, bits);
+		append();
+	}
+
+	/**
+	 * Escribe en disco los registros pendientes
+	 */
+	public synchronized void flush() {
+		if (dirty) {
+			log.force();
+			dirty = false;
+		}
+	}
+
+	/**
+	 * Escritor de instantáneas, que recibe el estado completo del directorio
+	 * (SnapshotSource) y lo guarda con el mismo formato de registro que el log
+	 */
+	public class Snapshot {
+		private final BufferedOutputStream out;
+		/**
+		 * Ficheros en el registro REC_FILES en curso (0 si no hay ninguno abierto)
+		 */
+		private int pendingFiles = 0;
+
+		private Snapshot(BufferedOutputStream out) {
+			this.out = out;
+		}
+
+		public void login(String nick, int sessionKey) throws IOException {
+			flushFiles();
+			beginRecord(REC_LOGIN);
+			putString(nick);
+			putInt(sessionKey);
+			write();
+		}
+
+		public void register(String nick, String port, InetAddress ip) throws IOException {
+			flushFiles();
+			beginRecord(REC_REGISTER);
+			putRegister(nick, port, ip);
+			write();
+		}
+
+		/**
+		 * Guarda un servidor que ha publicado ficheros y la versión de su catálogo.
+		 * Sus ficheros se guardan aparte, con file.
+		 */
+		public void publisher(String nick, int version) throws IOException {
+			flushFiles();
+			beginRecord(REC_PUBLISH);
+			putString(nick);
+			putInt(version);
+			putInt(0); // Ningún fichero
+			write();
+		}
+
+		/**
+		 * Guarda el filtro de Bloom publicado por un peer
+		 */
+		public void filter(String nick, int version, int hashCount, byte[] bits) throws IOException {
+			flushFiles();
+			beginRecord(REC_FILTER);
+			putFilter(nick, version, hashCount, bits);
+			write();
+		}
+
+		/**
+		 * Guarda un fichero y los servidores que lo comparten. Los ficheros deben
+		 * pasarse ordenados por hash, y se agrupan de SNAPSHOT_CHUNK en
+		 * SNAPSHOT_CHUNK en cada registro.
+		 */
+		public void file(String hash, String descriptor, String[] servers) throws IOException {
+			if (pendingFiles == 0) {
+				beginRecord(REC_FILES);
+				putInt(0); // Número de ficheros, se completa en flushFiles
+			}
+			putString(hash);
+			putString(descriptor);
+			putInt(servers.length);
+			for (String server : servers) {
+				putString(server);
+			}
+			if (++pendingFiles == SNAPSHOT_CHUNK) {
+				flushFiles();
+			}
+		}
+
+		private void flushFiles() throws IOException {
+			if (pendingFiles > 0) {
+				record.putInt(5, pendingFiles);
+				pendingFiles = 0;
+				write();
+			}
+		}
+
+		private void write() throws IOException {
+			finishRecord();
+			out.write(record.array(), 0, record.position());
+		}
+	}
+
+	/*
+	 * Codificación de los registros
+	 */
+
+	private void beginRecord(byte type) {
+		record.clear();
+		record.putInt(0); // Longitud, se completa en finishRecord
+		record.put(type);
+	}
+
+	private void finishRecord() {
+		int length = record.position() - 4;
+		crc.reset();
+		crc.update(record.array(), 4, length);
+		ensure(4);
+		record.putInt((int) crc.getValue());
+		record.putInt(0, length);
+	}
+
+	/**
+	 * Añade al log el registro codificado. Si no cabe, se escribe una instantánea
+	 * (que ya incluye la operación, aplicada antes de registrarla) y el log vuelve
+	 * a empezar.
+	 */
+	private void append() throws IOException {
+		finishRecord();
+		int size = record.position();
+		int pos = log.position();
+		if (pos + size + 4 > LOG_SIZE) {
+			snapshot();
+			return;
+		}
+		/*
+		 * Se escriben primero los datos y la marca de fin siguiente, y por último la
+		 * longitud, de modo que el registro no es visible hasta estar completo
+		 */
+		log.position(pos + 4);
+		log.put(record.array(), 4, size - 4);
+		log.putInt(0);
+		log.putInt(pos, size - 8);
+		log.position(pos + size);
+		if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+			log.force(pos, size + 4);
+		} else {
+			dirty = true;
+		}
+	}
+
+	private void resetLog(long gen) {
+		log.putInt(HEADER_SIZE, 0);
+		log.putInt(0, LOG_MAGIC).putInt(4, FORMAT_VERSION).putLong(8, gen);
+		log.position(HEADER_SIZE);
+		if (fsyncPolicy != FsyncPolicy.NEVER) {
+			log.force(0, HEADER_SIZE + 4);
+		}
+	}
+
+	private void ensure(int bytes) {
+		if (record.remaining() < bytes) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(2 * record.capacity(), record.position() + bytes));
+			record.flip();
+			bigger.put(record);
+			record = bigger;
+		}
+	}
+
+	private void putInt(int value) {
+		ensure(4);
+		record.putInt(value);
+	}
+
+	private void putString(String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		ensure(4 + bytes.length);
+		record.putInt(bytes.length);
+		record.put(bytes);
+	}
+
+	private void putRegister(String nick, String port, InetAddress ip) {
+		putString(nick);
+		putString(port);
+		byte[] addr = ip.getAddress();
+		ensure(1 + addr.length);
+		record.put((byte) addr.length);
+		record.put(addr);
+	}
+
+	private void putFilter(String nick, int version, int hashCount, byte[] bits) {
+		putString(nick);
+		putInt(version);
+		putInt(hashCount);
+		int length = (bits == null) ? 0 : bits.length;
+		putInt(length);
+		ensure(length);
+		if (bits != null) {
+			record.put(bits);
+		}
+	}
+
+	private void putFiles(Collection<Map.Entry<String, String>> files, int count) {
+		putInt(count);
+		for (Map.Entry<String, String> file : files) {
+			putString(file.getKey());
+			putString(file.getValue());
+		}
+	}
+
+	/*
+	 * Decodificación de los registros
+	 */
+
+	/**
+	 * Reaplica los registros desde la posición actual del búfer hasta la marca de
+	 * fin o el primer registro dañado, y deja el búfer al final del último
+	 * registro válido
+	 */
+	private int replay(ByteBuffer buf, Replayer replayer, FileTable table) throws IOException {
+		int records = 0;
+		while (buf.remaining() >= 4) {
+			int pos = buf.position();
+			int length = buf.getInt(pos);
+			if (length <= 0 || length > buf.limit() - pos - 8) {
+				break;
+			}
+			ByteBuffer body = buf.duplicate();
+			body.position(pos + 4).limit(pos + 4 + length);
+			crc.reset();
+			crc.update(body.duplicate());
+			if ((int) crc.getValue() != buf.getInt(pos + 4 + length)) {
+				Log.warn("Journal: damaged record at offset " + pos + ", ignoring the rest of the log");
+				break;
+			}
+			apply(body, replayer, table);
+			records++;
+			buf.position(pos + length + 8);
+		}
+		return records;
+	}
+
+	private static void apply(ByteBuffer body, Replayer replayer, FileTable table) throws IOException {
+		byte type = body.get();
+		if (type == REC_FILES) {
+			if (table == null) {
+				throw new IOException("Journal: file list record found in the log");
+			}
+			table.read(body);
+			return;
+		}
+		String nick = getString(body);
+		switch (type) {
+		case REC_LOGIN:
+			replayer.login(nick, body.getInt());
+			break;
+		case REC_LOGOUT:
+			replayer.logout(nick);
+			break;
+		case REC_REGISTER: {
+			String port = getString(body);
+			byte[] addr = new byte[body.get()];
+			body.get(addr);
+			replayer.register(nick, port, InetAddress.getByAddress(addr));
+			break;
+		}
+		case REC_UNREGISTER:
+			replayer.unregister(nick);
+			break;
+		case REC_PUBLISH: {
+			int version = body.getInt();
+			replayer.publish(nick, getFiles(body), version);
+			break;
+		}
+		case REC_DELTA: {
+			int baseVersion = body.getInt();
+			int version = body.getInt();
+			Map<String, String> added = getFiles(body);
+			int count = body.getInt();
+			List<String> removed = new ArrayList<String>(count);
+			for (int i = 0; i < count; i++) {
+				removed.add(getString(body));
+			}
+			replayer.delta(nick, added, removed, baseVersion, version);
+			break;
+		}
+		case REC_FILTER: {
+			int version = body.getInt();
+			int hashCount = body.getInt();
+			int length = body.getInt();
+			byte[] bits = null;
+			if (length > 0) {
+				bits = new byte[length];
+				body.get(bits);
+			}
+			replayer.filter(nick, version, hashCount, bits);
+			break;
+		}
+		default:
+			throw new IOException("Journal: unknown record type " + type);
+		}
+	}
+
+	/**
+	 * Lista de ficheros de una instantánea, que se acumula registro a registro
+	 * para cargarla de una vez
+	 */
+	private static class FileTable {
+		private final List<String> hashes = new ArrayList<String>();
+		private final List<String> names = new ArrayList<String>();
+		private final List<String[]> servers = new ArrayList<String[]>();
+		/**
+		 * Para compartir un único String por servidor entre todos sus ficheros
+		 */
+		private final Map<String, String> nicks = new HashMap<String, String>();
+
+		private void read(ByteBuffer body) {
+			int count = body.getInt();
+			for (int i = 0; i < count; i++) {
+				hashes.add(getString(body));
+				names.add(getString(body));
+				int numServers = body.getInt();
+				String[] fileServers = new String[numServers];
+				for (int j = 0; j < numServers; j++) {
+					String nick = getString(body);
+					String shared = nicks.putIfAbsent(nick, nick);
+					fileServers[j] = (shared == null) ? nick : shared;
+				}
+				servers.add(fileServers);
+			}
+		}
+	}
+
+	private static Map<String, String> getFiles(ByteBuffer body) {
+		int count = body.getInt();
+		Map<String, String> files = new HashMap<String, String>(2 * count);
+		for (int i = 0; i < count; i++) {
+			String hash = getString(body);
+			files.put(hash, getString(body));
+		}
+		return files;
+	}
+
+	private static String getString(ByteBuffer body) {
+		int length = body.getInt();
+		String value;
+		if (body.hasArray()) {
+			value = new String(body.array(), body.arrayOffset() + body.position(), length, StandardCharsets.UTF_8);
+		} else {
+			byte[] bytes = new byte[length];
+			body.get(body.position(), bytes);
+			value = new String(bytes, StandardCharsets.UTF_8);
+		}
+		body.position(body.position() + length);
+		return value;
+	}
+}
@@ -0,0 +1,290 @@
+package es.um.redes.nanoFiles.udp.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import es.um.redes.nanoFiles.util.FileInfo;
+
+public class DirectoryJournalTest {
+
+	private static final String HASH_A = "1111111111111111111111111111111111111111";
+	private static final String HASH_B = "2222222222222222222222222222222222222222";
+	private static final String HASH_C = "3333333333333333333333333333333333333333";
+
+	/**
+	 * Registros que el proceso hijo deja en el diario antes de morir: los de la
+	 * instantánea y, después, los del log
+	 */
+	private static final List<String> EXPECTED = Arrays.asList("login alice 1", "register alice 4444 /127.0.0.1",
+			"publish alice {} 1", "files [" + HASH_A + " a.txt,10 [alice], " + HASH_B + " b.txt,20 [alice]]",
+			"login bob 2", "delta alice {" + HASH_C + "=c.txt,30} [" + HASH_A + "] 1 2", "filter alice 2 3 4",
+			"logout bob");
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length == 3 && args[0].equals("crash")) {
+			writeAndWait(new File(args[1]), DirectoryJournal.FsyncPolicy.valueOf(args[2]));
+			return;
+		}
+		/*
+		 * Se carga en el índice una instantánea grande ordenada por hash, que debe
+		 * construirse en tiempo lineal (TreeMap(SortedMap)), y se compara con la
+		 * carga de la misma lista desordenada.
+		 */
+		checkRestore(200000);
+
+		/*
+		 * Se escribe el diario desde otro proceso, que se mata con SIGKILL (kill -9)
+		 * sin cerrar el diario, y se comprueba que al recuperarlo se obtienen
+		 * exactamente las operaciones registradas, con cada política de fsync.
+		 */
+		for (DirectoryJournal.FsyncPolicy policy : DirectoryJournal.FsyncPolicy.values()) {
+			checkRecoveryAfterKill(policy);
+		}
+	}
+
+	private static void checkRestore(int numFiles) {
+		Random random = new Random(1);
+		TreeMap<String, String> catalogue = new TreeMap<String, String>();
+		while (catalogue.size() < numFiles) {
+			StringBuilder hash = new StringBuilder();
+			for (int i = 0; i < 40; i++) {
+				hash.append(Character.forDigit(random.nextInt(16), 16));
+			}
+			catalogue.put(hash.toString(), "file" + catalogue.size() + ".txt," + catalogue.size());
+		}
+		List<String> hashes = new ArrayList<String>(catalogue.keySet());
+		List<String> descriptors = new ArrayList<String>(catalogue.values());
+		List<String[]> servers = new ArrayList<String[]>(numFiles);
+		String[] owner = { "alice" };
+		for (int i = 0; i < numFiles; i++) {
+			servers.add(owner);
+		}
+
+		long sortedNanos = restore(hashes, descriptors, servers, catalogue, "sorted");
+
+		List<Integer> order = new ArrayList<Integer>(numFiles);
+		for (int i = 0; i < numFiles; i++) {
+			order.add(i);
+		}
+		Collections.shuffle(order, random);
+		List<String> shuffledHashes = new ArrayList<String>(numFiles);
+		List<String> shuffledDescriptors = new ArrayList<String>(numFiles);
+		for (int i : order) {
+			shuffledHashes.add(hashes.get(i));
+			shuffledDescriptors.add(descriptors.get(i));
+		}
+		long shuffledNanos = restore(shuffledHashes, shuffledDescriptors, servers, catalogue, "shuffled");
+		System.out.printf("restore of %d files: sorted %.1f ms, shuffled %.1f ms%n", numFiles, sortedNanos / 1e6,
+				shuffledNanos / 1e6);
+	}
+
+	private static long restore(List<String> hashes, List<String> descriptors, List<String[]> servers,
+			TreeMap<String, String> catalogue, String name) {
+		FileIndex index = new FileIndex();
+		index.publish("alice", new HashMap<String, String>(), 1);
+		long start = System.nanoTime();
+		index.restore(hashes, descriptors, servers);
+		long nanos = System.nanoTime() - start;
+		if (index.size() != catalogue.size()) {
+			System.err.println("restore (" + name + "): " + index.size() + " files instead of " + catalogue.size());
+		}
+		// Las consultas por rango del árbol cargado deben seguir el orden por hash
+		String after = catalogue.firstKey();
+		List<FileInfo> page = index.getFilesPage(after, 3);
+		List<String> expected = new ArrayList<String>(catalogue.tailMap(after, false).keySet()).subList(0, 3);
+		for (int i = 0; i < expected.size(); i++) {
+			if (!page.get(i).fileHash.equals(expected.get(i))) {
+				System.err.println("restore (" + name + "): wrong page " + page);
+			}
+		}
+		String hash = catalogue.lastKey();
+		List<FileInfo> found = index.findByPrefix(hash.substring(0, 12), 10);
+		if (found.size() != 1 || !found.get(0).fileHash.equals(hash)
+				|| !index.getServers(hash).equals(Arrays.asList("alice"))) {
+			System.err.println("restore (" + name + "): prefix search failed for " + hash);
+		}
+		return nanos;
+	}
+
+	private static void checkRecoveryAfterKill(DirectoryJournal.FsyncPolicy policy)
+			throws IOException, InterruptedException {
+		File folder = Files.createTempDirectory("journal").toFile();
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				DirectoryJournalTest.class.getName(), "crash", folder.getPath(), policy.name())
+				.redirectErrorStream(true).start();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(child.getInputStream()));
+		String line;
+		while ((line = reader.readLine()) != null && !line.equals("ready")) {
+			System.out.println("  child: " + line);
+		}
+		child.destroyForcibly(); // SIGKILL: el diario no se cierra ni se sincroniza
+		child.waitFor();
+		if (line == null) {
+			System.err.println("recovery (" + policy + "): the child process failed");
+			return;
+		}
+
+		// Copia del diario con el último registro dañado (escritura interrumpida)
+		File torn = Files.createTempDirectory("journal").toFile();
+		for (File file : folder.listFiles()) {
+			Files.copy(file.toPath(), new File(torn, file.getName()).toPath());
+		}
+		damageLastRecord(new File(torn, "directory.log"));
+
+		List<String> recovered = recover(folder);
+		if (!recovered.equals(EXPECTED)) {
+			System.err.println("recovery (" + policy + "): " + recovered + " instead of " + EXPECTED);
+		} else {
+			System.out.println("recovery after kill -9 (" + policy + "): " + recovered.size() + " records OK");
+		}
+		List<String> partial = recover(torn);
+		if (!partial.equals(EXPECTED.subList(0, EXPECTED.size() - 1))) {
+			System.err.println("recovery with a damaged record (" + policy + "): " + partial);
+		} else {
+			System.out.println("recovery with a damaged last record (" + policy + "): " + partial.size()
+					+ " records OK");
+		}
+		// Tras recuperar, el log debe seguir admitiendo registros
+		DirectoryJournal journal = new DirectoryJournal(torn, policy);
+		journal.recover(new Recorder(new ArrayList<String>()), snapshot -> {
+		});
+		journal.logLogin("carol", 3);
+		journal.flush();
+		List<String> appended = recover(torn);
+		if (!appended.get(appended.size() - 1).equals("login carol 3")) {
+			System.err.println("append after recovery (" + policy + "): " + appended);
+		}
+		for (File dir : new File[] { folder, torn }) {
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	/**
+	 * Proceso hijo: escribe una instantánea y varios registros en el log, avisa
+	 * con "ready" y espera a que lo maten
+	 */
+	private static void writeAndWait(File folder, DirectoryJournal.FsyncPolicy policy)
+			throws IOException, InterruptedException {
+		DirectoryJournal journal = new DirectoryJournal(folder, policy);
+		journal.recover(new Recorder(new ArrayList<String>()), snapshot -> {
+			snapshot.login("alice", 1);
+			snapshot.register("alice", "4444", InetAddress.getLoopbackAddress());
+			snapshot.publisher("alice", 1);
+			snapshot.file(HASH_A, "a.txt,10", new String[] { "alice" });
+			snapshot.file(HASH_B, "b.txt,20", new String[] { "alice" });
+		});
+		journal.logLogin("alice", 1);
+		journal.snapshot();
+		journal.logLogin("bob", 2);
+		Map<String, String> added = new HashMap<String, String>();
+		added.put(HASH_C, "c.txt,30");
+		journal.logDelta("alice", added, Arrays.asList(HASH_A), 1, 2);
+		journal.logFilter("alice", 2, 3, new byte[] { 1, 2, 3, 4 });
+		journal.logLogout("bob");
+		System.out.println("ready");
+		System.out.flush();
+		Thread.sleep(Long.MAX_VALUE);
+	}
+
+	private static List<String> recover(File folder) throws IOException {
+		List<String> events = new ArrayList<String>();
+		new DirectoryJournal(folder, DirectoryJournal.FsyncPolicy.NEVER).recover(new Recorder(events), snapshot -> {
+		});
+		return events;
+	}
+
+	/**
+	 * Cambia un byte del CRC del último registro del log
+	 */
+	private static void damageLastRecord(File log) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+			long pos = 16; // Tamaño de la cabecera
+			long last = -1;
+			while (true) {
+				raf.seek(pos);
+				int length = raf.readInt();
+				if (length <= 0) {
+					break;
+				}
+				last = pos + 4 + length; // Posición del CRC
+				pos += length + 8;
+			}
+			raf.seek(last);
+			int b = raf.read();
+			raf.seek(last);
+			raf.write(b ^ 0xFF);
+		}
+	}
+
+	/**
+	 * Estado del directorio que sólo anota las operaciones que se reaplican
+	 */
+	private static class Recorder implements DirectoryJournal.Replayer {
+		private final List<String> events;
+
+		private Recorder(List<String> events) {
+			this.events = events;
+		}
+
+		@Override
+		public void login(String nick, int sessionKey) {
+			events.add("login " + nick + " " + sessionKey);
+		}
+
+		@Override
+		public void logout(String nick) {
+			events.add("logout " + nick);
+		}
+
+		@Override
+		public void register(String nick, String port, InetAddress ip) {
+			events.add("register " + nick + " " + port + " " + ip);
+		}
+
+		@Override
+		public void unregister(String nick) {
+			events.add("unregister " + nick);
+		}
+
+		@Override
+		public void publish(String nick, Map<String, String> files, int version) {
+			events.add("publish " + nick + " " + files + " " + version);
+		}
+
+		@Override
+		public void delta(String nick, Map<String, String> added, List<String> removed, int baseVersion, int version) {
+			events.add("delta " + nick + " " + added + " " + removed + " " + baseVersion + " " + version);
+		}
+
+		@Override
+		public void filter(String nick, int version, int hashCount, byte[] bits) {
+			events.add("filter " + nick + " " + version + " " + hashCount + " " + (bits == null ? 0 : bits.length));
+		}
+
+		@Override
+		public void files(List<String> hashes, List<String> descriptors, List<String[]> servers) {
+			List<String> files = new ArrayList<String>();
+			for (int i = 0; i < hashes.size(); i++) {
+				files.add(hashes.get(i) + " " + descriptors.get(i) + " " + Arrays.toString(servers.get(i)));
+			}
+			events.add("files " + files);
+		}
+	}
+}
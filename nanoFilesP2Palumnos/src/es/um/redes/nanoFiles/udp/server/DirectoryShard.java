@@ -0,0 +1,102 @@
+package es.um.redes.nanoFiles.udp.server;
+
+/**
+ * Partición (shard) de un directorio repartido entre varias instancias. El
+ * espacio de hashes se divide en count rangos contiguos del mismo tamaño según
+ * los primeros KEY_HEX_DIGITS dígitos del hash, y cada instancia guarda sólo los
+ * ficheros cuyo hash cae en su rango. Como los rangos están ordenados, recorrer
+ * las particiones una tras otra recorre los ficheros en orden de hash.
+ *
+ * El cliente (DirectoryConnector) usa los mismos métodos estáticos para saber a
+ * qué partición enviar cada operación.
+ */
+public class DirectoryShard {
+	/**
+	 * Dígitos hexadecimales del principio del hash que determinan su partición
+	 */
+	public static final int KEY_HEX_DIGITS = 8;
+
+	private final int index;
+	private final int count;
+
+	/**
+	 * @param index Número de esta partición (de 0 a count - 1)
+	 * @param count Número total de particiones
+	 */
+	public DirectoryShard(int index, int count) {
+		if (count < 1 || index < 0 || index >= count) {
+			throw new IllegalArgumentException("Invalid shard " + index + "/" + count);
+		}
+		this.index = index;
+		this.count = count;
+	}
+
+	/**
+	 * Interpreta una partición con el formato "índice/total" (p.ej. "0/3")
+	 */
+	public static DirectoryShard parse(String spec) {
+		int slash = spec.indexOf('/');
+		if (slash < 0) {
+			throw new IllegalArgumentException("Invalid shard " + spec);
+		}
+		return new DirectoryShard(Integer.parseInt(spec.substring(0, slash)),
+				Integer.parseInt(spec.substring(slash + 1)));
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return Verdadero si el fichero con el hash indicado pertenece a esta
+	 *         partición
+	 */
+	public boolean owns(String hash) {
+		return shardOf(hash, count) == index;
+	}
+
+	/**
+	 * @param hash  El hash de un fichero (o un prefijo, que se completa con ceros)
+	 * @param count Número total de particiones
+	 * @return La partición a la que pertenece el hash
+	 */
+	public static int shardOf(String hash, int count) {
+		return (int) ((key(hash, '0') * count) >>> (4 * KEY_HEX_DIGITS));
+	}
+
+	/**
+	 * @param prefix Un prefijo de hash
+	 * @param count  Número total de particiones
+	 * @return La última partición en la que puede haber hashes que empiecen por el
+	 *         prefijo (la primera es shardOf(prefix, count))
+	 */
+	public static int lastShardOf(String prefix, int count) {
+		return (int) ((key(prefix, 'f') * count) >>> (4 * KEY_HEX_DIGITS));
+	}
+
+	/**
+	 * Valor de los primeros KEY_HEX_DIGITS dígitos del hash, completando con el
+	 * dígito indicado si es más corto. Los caracteres que no son dígitos
+	 * hexadecimales cuentan como 0.
+	 */
+	private static long key(String hash, char padding) {
+		long key = 0;
+		for (int i = 0; i < KEY_HEX_DIGITS; i++) {
+			int digit = Character.digit((i < hash.length()) ? hash.charAt(i) : padding, 16);
+			key = (key << 4) | Math.max(digit, 0);
+		}
+		return key;
+	}
+
+	@Override
+	public String toString() {
+		long first = (((long) index << (4 * KEY_HEX_DIGITS)) + count - 1) / count;
+		long last = (((long) (index + 1) << (4 * KEY_HEX_DIGITS)) + count - 1) / count - 1;
+		return index + "/" + count + " (hashes " + String.format("%08x", first) + "-" + String.format("%08x", last)
+				+ ")";
+	}
+}
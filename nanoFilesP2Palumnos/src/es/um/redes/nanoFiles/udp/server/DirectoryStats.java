@@ -0,0 +1,164 @@
+package es.um.redes.nanoFiles.udp.server;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import es.um.redes.nanoFiles.udp.message.DirMessageOps;
+
+/**
+ * Métricas del directorio: datagramas recibidos y descartados, y número de
+ * peticiones y latencia (desde que se recibe la petición hasta que se envía la
+ * respuesta) de cada operación. Los contadores se actualizan sin cerrojos desde
+ * cualquier hilo, de modo que registrar una petición cuesta unas decenas de
+ * nanosegundos.
+ */
+public class DirectoryStats {
+	private final long startTime = System.currentTimeMillis();
+
+	private final LongAdder received = new LongAdder();
+	private final LongAdder discarded = new LongAdder();
+	private final LongAdder empty = new LongAdder();
+	private final LongAdder malformed = new LongAdder();
+	private final LongAdder throttled = new LongAdder();
+	private final LongAdder overRateLimit = new LongAdder();
+	/**
+	 * Respuestas comprimidas, y bytes que ocupaban antes y después de comprimirlas
+	 */
+	private final LongAdder compressed = new LongAdder();
+	private final LongAdder uncompressedBytes = new LongAdder();
+	private final LongAdder compressedBytes = new LongAdder();
+	/**
+	 * Fragmentos recibidos, mensajes reensamblados, fragmentos enviados y
+	 * reenviados, y NACK enviados y recibidos (ver DirFragments)
+	 */
+	private final LongAdder fragmentsReceived = new LongAdder();
+	private final LongAdder reassembled = new LongAdder();
+	private final LongAdder fragmentsSent = new LongAdder();
+	private final LongAdder fragmentsResent = new LongAdder();
+	private final LongAdder nacksSent = new LongAdder();
+	private final LongAdder nacksReceived = new LongAdder();
+
+	/**
+	 * Latencias por opcode de la operación (ver DirMessageOps); la última posición
+	 * es para las operaciones sin opcode propio
+	 */
+	private final LatencyHistogram[] latencies;
+	private final String[] operations;
+
+	public DirectoryStats() {
+		int count = 0;
+		while (DirMessageOps.opcodeToOperation((byte) count) != null) {
+			count++;
+		}
+		operations = new String[count + 1];
+		latencies = new LatencyHistogram[count + 1];
+		for (int i = 0; i < count; i++) {
+			operations[i] = DirMessageOps.opcodeToOperation((byte) i);
+			latencies[i] = new LatencyHistogram();
+		}
+		operations[count] = "(other)";
+		latencies[count] = new LatencyHistogram();
+	}
+
+	public void countReceived() {
+		received.increment();
+	}
+
+	/**
+	 * Datagrama descartado por la probabilidad de pérdida simulada
+	 */
+	public void countDiscarded() {
+		discarded.increment();
+	}
+
+	public void countEmpty() {
+		empty.increment();
+	}
+
+	public void countMalformed() {
+		malformed.increment();
+	}
+
+	/**
+	 * Petición rechazada por el límite de tasa del cliente: respondida con
+	 * THROTTLED, o descartada sin responder
+	 */
+	public void countThrottled(boolean replied) {
+		if (replied) {
+			throttled.increment();
+		} else {
+			overRateLimit.increment();
+		}
+	}
+
+	/**
+	 * Registra una respuesta comprimida
+	 *
+	 * @param before Bytes de la respuesta sin comprimir
+	 * @param after  Bytes de la respuesta comprimida
+	 */
+	public void countCompressed(int before, int after) {
+		compressed.increment();
+		uncompressedBytes.add(before);
+		compressedBytes.add(after);
+	}
+
+	/**
+	 * Registra un fragmento recibido
+	 *
+	 * @param completed Si con él se ha completado el mensaje
+	 */
+	public void countFragmentReceived(boolean completed) {
+		fragmentsReceived.increment();
+		if (completed) {
+			reassembled.increment();
+		}
+	}
+
+	/**
+	 * Registra los fragmentos enviados de una respuesta
+	 *
+	 * @param resent Si se reenvían porque el cliente los ha pedido con un NACK
+	 */
+	public void countFragmentsSent(int count, boolean resent) {
+		(resent ? fragmentsResent : fragmentsSent).add(count);
+	}
+
+	public void countNack(boolean sent) {
+		(sent ? nacksSent : nacksReceived).increment();
+	}
+
+	/**
+	 * Registra una petición atendida y su latencia
+	 */
+	public void recordRequest(String operation, long nanos) {
+		int opcode = DirMessageOps.operationToOpcode(operation) & 0xFF;
+		latencies[Math.min(opcode, latencies.length - 1)].record(nanos);
+	}
+
+	/**
+	 * Añade a lines una línea con los contadores de datagramas y otra por cada
+	 * operación que se ha recibido alguna vez, con sus percentiles de latencia
+	 */
+	public void report(List<String> lines) {
+		lines.add("uptime " + (System.currentTimeMillis() - startTime) / 1000 + " s, " + received.sum()
+				+ " datagrams received");
+		lines.add("not served: " + discarded.sum() + " discarded (loss), " + empty.sum() + " empty, " + malformed.sum()
+				+ " malformed, " + throttled.sum() + " throttled, " + overRateLimit.sum() + " over rate limit");
+		lines.add("compression: " + compressed.sum() + " replies compressed, " + uncompressedBytes.sum() + " -> "
+				+ compressedBytes.sum() + " bytes");
+		lines.add("fragments: " + fragmentsReceived.sum() + " received, " + reassembled.sum() + " requests reassembled, "
+				+ nacksSent.sum() + " nacks sent, " + fragmentsSent.sum() + " sent, " + fragmentsResent.sum()
+				+ " resent after " + nacksReceived.sum() + " nacks received");
+		for (int i = 0; i < latencies.length; i++) {
+			LatencyHistogram latency = latencies[i];
+			long count = latency.getCount();
+			if (count > 0) {
+				lines.add(String.format("%-14s %8d requests, latency (us) p50 %.1f p90 %.1f p99 %.1f p99.9 %.1f max %.1f",
+						operations[i], count, latency.getValueAtPercentile(50) / 1000.0,
+						latency.getValueAtPercentile(90) / 1000.0, latency.getValueAtPercentile(99) / 1000.0,
+						latency.getValueAtPercentile(99.9) / 1000.0, latency.getMax() / 1000.0));
+			}
+		}
+	}
+}
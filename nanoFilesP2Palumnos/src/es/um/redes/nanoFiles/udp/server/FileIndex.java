@@ -0,0 +1,736 @@
+package es.um.redes.nanoFiles.udp.server;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import es.um.redes.nanoFiles.util.FileInfo;
+
+/**
+ * Índice de los ficheros publicados en el directorio. Mantiene a la vez, para
+ * cada hash, el conjunto de servidores que lo comparten y, para cada servidor,
+ * los ficheros que ha publicado. Así, publicar o dar de baja a un servidor
+ * cuesta sólo tanto como el número de ficheros de ese servidor, y no recorre
+ * los ficheros del resto.
+ *
+ * Los hashes se guardan ordenados, de modo que los ficheros cuyo hash empieza
+ * por una subcadena dada se localizan en O(log n + k) sin recorrer el índice.
+ * Además, los nombres se indexan por palabras (FileNameIndex) para poder
+ * buscar ficheros por nombre.
+ *
+ * Todos los métodos pueden llamarse desde varios hilos a la vez: las consultas
+ * toman el cerrojo de lectura y las modificaciones el de escritura.
+ *
+ * Para arrancar rápido a partir de una instantánea (restore), el índice se
+ * carga en tiempo lineal desde la lista de ficheros ordenada por hash, y el
+ * índice de nombres se reconstruye después en segundo plano.
+ */
+public class FileIndex {
+
+	/**
+	 * Recorrido de los ficheros del índice, p.ej. para guardarlos en una
+	 * instantánea. Cada fichero se describe como en las publicaciones
+	 * ("nombre,tamaño", ver FileInfo.toDescriptor).
+	 */
+	public interface FileVisitor {
+		void visit(String hash, String descriptor, String[] servers) throws IOException;
+	}
+
+	/**
+	 * Receptor de los cambios en los servidores que comparten cada fichero (al
+	 * publicar, eliminar ficheros o dar de baja a un servidor, pero no al cargar
+	 * una instantánea). Se llama con el cerrojo de escritura del índice.
+	 */
+	public interface ChangeListener {
+		/**
+		 * @param servers Los servidores que comparten ahora el fichero, vacío si ya
+		 *                no lo comparte ninguno (el índice no modifica el array)
+		 */
+		void fileChanged(String hash, String name, long size, String[] servers);
+	}
+
+	/**
+	 * Entrada del índice para un hash: nombre y tamaño del fichero y servidores
+	 * que lo comparten, en orden de publicación. Casi siempre hay un único
+	 * servidor, así que se guardan en un array que se copia al cambiar, lo que
+	 * ahorra objetos (y tiempo de carga) con millones de ficheros.
+	 *
+	 * El nombre y el tamaño son los que publicó el primer servidor de servers: si
+	 * ese servidor deja de compartir el fichero (o lo vuelve a publicar con otro
+	 * nombre), se toman los que publicó el siguiente.
+	 */
+	private static class FileEntry {
+		private String name;
+		/**
+		 * Tamaño en bytes, o -1 si el servidor no lo indicó
+		 */
+		private long size;
+		private String[] servers;
+
+		private FileEntry(String descriptor, String[] servers) {
+			this.servers = servers;
+			setDescriptor(descriptor);
+		}
+
+		private void setDescriptor(String descriptor) {
+			FileInfo file = FileInfo.fromDescriptor(null, descriptor);
+			this.name = file.fileName;
+			this.size = file.fileSize;
+		}
+
+		private String getDescriptor() {
+			return FileInfo.toDescriptor(name, size);
+		}
+	}
+
+	/**
+	 * hash -> entrada con el nombre y los servidores que comparten el fichero,
+	 * ordenado por hash (restore lo sustituye por el árbol cargado)
+	 */
+	private NavigableMap<String, FileEntry> files = new TreeMap<String, FileEntry>();
+	/**
+	 * nickname del servidor -> ficheros publicados (hash -> "nombre,tamaño")
+	 */
+	private final Map<String, Map<String, String>> serverFiles = new HashMap<String, Map<String, String>>();
+	/**
+	 * nickname del servidor -> versión de su catálogo de ficheros, establecida por
+	 * el propio servidor en cada publicación
+	 */
+	private final Map<String, Integer> serverVersions = new HashMap<String, Integer>();
+	/**
+	 * Índice por palabras de los nombres de los ficheros de files (null mientras
+	 * se reconstruye tras restore)
+	 */
+	private FileNameIndex names = new FileNameIndex();
+	/**
+	 * Ficheros que aparecen o desaparecen mientras se reconstruye el índice de
+	 * nombres, para aplicarlos al terminar (null si no se está reconstruyendo)
+	 */
+	private List<NameChange> pendingNames = null;
+	private volatile ChangeListener listener = null;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Establece la lista de ficheros publicada por un servidor, sustituyendo a la
+	 * que hubiera publicado antes. Sólo se tocan los hashes que entran o salen de
+	 * su lista, por lo que volver a publicar no duplica entradas. Si otro servidor
+	 * ya compartía un fichero, el índice conserva el nombre y el tamaño que
+	 * publicó el primero mientras lo siga compartiendo.
+	 *
+	 * @param server    El nickname del servidor
+	 * @param published Los ficheros publicados (hash -> "nombre,tamaño", ver
+	 *                  FileInfo.toDescriptor)
+	 * @param version   La versión del catálogo que se publica
+	 */
+	public void publish(String server, Map<String, String> published, int version) {
+		lock.writeLock().lock();
+		try {
+			serverVersions.put(server, version);
+			Map<String, String> previous = serverFiles.put(server, new HashMap<String, String>(published));
+			if (previous != null) {
+				for (String hash : previous.keySet()) {
+					if (!published.containsKey(hash)) {
+						removeServerFromFile(hash, server);
+					}
+				}
+			}
+			for (Map.Entry<String, String> file : published.entrySet()) {
+				String before = (previous == null) ? null : previous.get(file.getKey());
+				if (before == null) {
+					addServerToFile(file.getKey(), file.getValue(), server);
+				} else if (!before.equals(file.getValue())) {
+					updateOwnerDescriptor(file.getKey());
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Aplica una publicación incremental: añade y elimina ficheros de la lista de
+	 * un servidor, con un coste proporcional sólo al número de cambios. La
+	 * publicación se calculó sobre la versión baseVersion del catálogo, así que
+	 * sólo se aplica si es la versión que tiene el índice; si no (p.ej. se perdió
+	 * una publicación anterior), el servidor debe volver a publicar su lista
+	 * completa.
+	 *
+	 * @param server      El nickname del servidor
+	 * @param added       Los ficheros añadidos (hash -> "nombre,tamaño")
+	 * @param removed     Los hashes de los ficheros eliminados
+	 * @param baseVersion La versión del catálogo sobre la que se calcularon los
+	 *                    cambios (0 si el servidor no había publicado nada)
+	 * @param version     La versión del catálogo tras los cambios
+	 * @return Falso si la versión base no coincide y hay que publicar la lista
+	 *         completa. Si los cambios ya se habían aplicado (petición
+	 *         retransmitida) se devuelve verdadero sin hacer nada.
+	 */
+	public boolean applyDelta(String server, Map<String, String> added, Collection<String> removed,
+			int baseVersion, int version) {
+		lock.writeLock().lock();
+		try {
+			int current = serverVersions.getOrDefault(server, 0);
+			if (current == version && version != baseVersion) {
+				return true;
+			}
+			if (current != baseVersion) {
+				return false;
+			}
+			Map<String, String> published = serverFiles.get(server);
+			if (published == null) {
+				published = new HashMap<String, String>();
+				serverFiles.put(server, published);
+			}
+			for (String hash : removed) {
+				if (published.remove(hash) != null) {
+					removeServerFromFile(hash, server);
+				}
+			}
+			for (Map.Entry<String, String> file : added.entrySet()) {
+				String before = published.put(file.getKey(), file.getValue());
+				if (before == null) {
+					addServerToFile(file.getKey(), file.getValue(), server);
+				} else if (!before.equals(file.getValue())) {
+					updateOwnerDescriptor(file.getKey());
+				}
+			}
+			serverVersions.put(server, version);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Elimina del índice todos los ficheros publicados por un servidor (al darse
+	 * de baja como servidor o cerrar sesión)
+	 *
+	 * @param server El nickname del servidor
+	 * @return Verdadero si el servidor tenía ficheros publicados
+	 */
+	public boolean removeServer(String server) {
+		lock.writeLock().lock();
+		try {
+			serverVersions.remove(server);
+			Map<String, String> previous = serverFiles.remove(server);
+			if (previous == null) {
+				return false;
+			}
+			for (String hash : previous.keySet()) {
+				removeServerFromFile(hash, server);
+			}
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param server El nickname de un servidor
+	 * @return La versión del catálogo publicado por el servidor (0 si no ha
+	 *         publicado nada)
+	 */
+	public int getVersion(String server) {
+		lock.readLock().lock();
+		try {
+			return serverVersions.getOrDefault(server, 0);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return Los nicknames de los servidores que han publicado ficheros
+	 */
+	public List<String> getPublishers() {
+		lock.readLock().lock();
+		try {
+			return new ArrayList<String>(serverFiles.keySet());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param hash El hash completo de un fichero
+	 * @return Los nicknames de los servidores que comparten el fichero, en orden
+	 *         de publicación (lista vacía si nadie lo comparte)
+	 */
+	public List<String> getServers(String hash) {
+		lock.readLock().lock();
+		try {
+			FileEntry entry = files.get(hash);
+			if (entry == null) {
+				return new ArrayList<String>();
+			}
+			return new ArrayList<String>(Arrays.asList(entry.servers));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Busca varios ficheros por su hash completo, con una sola adquisición del
+	 * cerrojo
+	 *
+	 * @param hashes Los hashes completos de los ficheros
+	 * @return Los ficheros encontrados, en el orden de hashes y con los servidores
+	 *         que comparten cada uno en FileInfo.servers (los hashes que no están
+	 *         publicados se omiten)
+	 */
+	public List<FileInfo> findByHashes(List<String> hashes) {
+		lock.readLock().lock();
+		try {
+			List<FileInfo> result = new ArrayList<FileInfo>(hashes.size());
+			for (String hash : hashes) {
+				FileEntry entry = files.get(hash);
+				if (entry != null) {
+					FileInfo file = new FileInfo(hash, entry.name, entry.size, null);
+					file.servers = entry.servers.clone();
+					result.add(file);
+				}
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Busca los ficheros cuyo hash empieza por el prefijo indicado (sin distinguir
+	 * mayúsculas)
+	 *
+	 * @param prefix Prefijo del hash
+	 * @param limit  Número máximo de ficheros a devolver
+	 * @return Los ficheros encontrados (como mucho limit), ordenados por hash
+	 */
+	public List<FileInfo> findByPrefix(String prefix, int limit) {
+		String needle = prefix.toLowerCase();
+		lock.readLock().lock();
+		try {
+			List<FileInfo> result = new ArrayList<FileInfo>();
+			for (Map.Entry<String, FileEntry> file : files.tailMap(needle, true).entrySet()) {
+				if (result.size() >= limit || !file.getKey().startsWith(needle)) {
+					break;
+				}
+				result.add(new FileInfo(file.getKey(), file.getValue().name, file.getValue().size, null));
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Busca los ficheros cuyo nombre contiene todas las palabras indicadas (cada
+	 * palabra puede ser sólo el principio de una palabra del nombre)
+	 *
+	 * @param keywords Palabras a buscar
+	 * @param limit    Número máximo de ficheros a devolver
+	 * @return Los ficheros encontrados (como mucho limit), con los servidores que
+	 *         comparten cada uno en FileInfo.servers
+	 */
+	public List<FileInfo> findByName(String keywords, int limit) {
+		lock.readLock().lock();
+		try {
+			List<FileInfo> result = new ArrayList<FileInfo>();
+			List<String> hashes;
+			if (names != null) {
+				hashes = names.find(keywords, limit);
+			} else {
+				hashes = scanNames(FileNameIndex.tokenize(keywords), limit);
+			}
+			for (String hash : hashes) {
+				FileEntry entry = files.get(hash);
+				FileInfo file = new FileInfo(hash, entry.name, entry.size, null);
+				file.servers = entry.servers.clone();
+				result.add(file);
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Devuelve una página de la lista de ficheros publicados, en orden de hash. El
+	 * orden es estable aunque se publiquen o eliminen ficheros entre una página y
+	 * la siguiente: cada página continúa justo después del último hash devuelto.
+	 *
+	 * @param after Hash del último fichero de la página anterior, o null para
+	 *              empezar desde el principio
+	 * @param limit Número máximo de ficheros a devolver
+	 * @return Los ficheros de la página (como mucho limit)
+	 */
+	public List<FileInfo> getFilesPage(String after, int limit) {
+		lock.readLock().lock();
+		try {
+			Map<String, FileEntry> tail = (after == null) ? files : files.tailMap(after, false);
+			List<FileInfo> result = new ArrayList<FileInfo>(Math.min(limit, tail.size()));
+			for (Map.Entry<String, FileEntry> file : tail.entrySet()) {
+				if (result.size() >= limit) {
+					break;
+				}
+				result.add(new FileInfo(file.getKey(), file.getValue().name, file.getValue().size, null));
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Recorre los ficheros del índice en orden de hash
+	 */
+	public void forEachFile(FileVisitor visitor) throws IOException {
+		lock.readLock().lock();
+		try {
+			for (Map.Entry<String, FileEntry> file : files.entrySet()) {
+				visitor.visit(file.getKey(), file.getValue().getDescriptor(), file.getValue().servers);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Carga en el índice, que no debe contener ficheros, la lista de ficheros de
+	 * una instantánea. Si viene ordenada por hash (como la escribe forEachFile),
+	 * el árbol se construye en tiempo lineal. Los servidores que aparecen deben
+	 * haberse dado de alta antes con publish (con su versión y sin ficheros).
+	 *
+	 * El índice de nombres se reconstruye en un hilo aparte; hasta que termina,
+	 * las búsquedas por nombre recorren todos los ficheros.
+	 *
+	 * @param hashes      Los hashes de los ficheros
+	 * @param descriptors La descripción ("nombre,tamaño") de cada fichero
+	 * @param servers     Los nicknames de los servidores que comparten cada
+	 *                    fichero (el índice se queda con los arrays)
+	 */
+	public void restore(List<String> hashes, List<String> descriptors, List<String[]> servers) {
+		lock.writeLock().lock();
+		try {
+			List<FileEntry> entries = new ArrayList<FileEntry>(hashes.size());
+			boolean sorted = true;
+			for (int i = 0; i < hashes.size(); i++) {
+				FileEntry entry = new FileEntry(descriptors.get(i), servers.get(i));
+				for (String server : entry.servers) {
+					Map<String, String> published = serverFiles.get(server);
+					if (published == null) {
+						published = new HashMap<String, String>();
+						serverFiles.put(server, published);
+					}
+					published.put(hashes.get(i), descriptors.get(i));
+				}
+				entries.add(entry);
+				sorted = sorted && (i == 0 || hashes.get(i - 1).compareTo(hashes.get(i)) < 0);
+			}
+			if (sorted) {
+				// TreeMap(SortedMap) construye el árbol en tiempo lineal, sin comparar claves
+				files = new TreeMap<String, FileEntry>(new SortedRun(hashes, entries));
+			} else {
+				for (int i = 0; i < hashes.size(); i++) {
+					files.put(hashes.get(i), entries.get(i));
+				}
+			}
+			rebuildNames();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param listener Receptor de los cambios en los servidores de cada fichero, o
+	 *                 null para no avisar de ellos
+	 */
+	public void setChangeListener(ChangeListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @return El número de ficheros distintos publicados
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return files.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void addServerToFile(String hash, String descriptor, String server) {
+		FileEntry entry = files.get(hash);
+		if (entry == null) {
+			entry = new FileEntry(descriptor, new String[] { server });
+			files.put(hash, entry);
+			addName(hash, entry.name);
+		} else {
+			String[] servers = Arrays.copyOf(entry.servers, entry.servers.length + 1);
+			servers[entry.servers.length] = server;
+			entry.servers = servers;
+		}
+		ChangeListener current = listener;
+		if (current != null) {
+			current.fileChanged(hash, entry.name, entry.size, entry.servers);
+		}
+	}
+
+	private void removeServerFromFile(String hash, String server) {
+		FileEntry entry = files.get(hash);
+		if (entry != null) {
+			List<String> servers = new ArrayList<String>(Arrays.asList(entry.servers));
+			servers.remove(server);
+			boolean ownerLeft = !servers.isEmpty() && !servers.get(0).equals(entry.servers[0]);
+			entry.servers = servers.toArray(new String[servers.size()]);
+			if (entry.servers.length == 0) {
+				files.remove(hash);
+				removeName(hash, entry.name);
+			} else if (ownerLeft) {
+				updateOwnerDescriptor(hash);
+			}
+			ChangeListener current = listener;
+			if (current != null) {
+				current.fileChanged(hash, entry.name, entry.size, entry.servers);
+			}
+		}
+	}
+
+	/**
+	 * Toma el nombre y el tamaño de un fichero de los que publicó el primero de
+	 * sus servidores (tras irse el anterior o cambiar su publicación) y, si cambia
+	 * el nombre, lo vuelve a indexar
+	 */
+	private void updateOwnerDescriptor(String hash) {
+		FileEntry entry = files.get(hash);
+		String descriptor = serverFiles.get(entry.servers[0]).get(hash);
+		String oldName = entry.name;
+		entry.setDescriptor(descriptor);
+		if (!entry.name.equals(oldName)) {
+			removeName(hash, oldName);
+			addName(hash, entry.name);
+		}
+	}
+
+	private void addName(String hash, String name) {
+		if (names != null) {
+			names.add(hash, name);
+		} else {
+			pendingNames.add(new NameChange(true, hash, name));
+		}
+	}
+
+	private void removeName(String hash, String name) {
+		if (names != null) {
+			names.remove(hash, name);
+		} else {
+			pendingNames.add(new NameChange(false, hash, name));
+		}
+	}
+
+	/**
+	 * Busca por nombre recorriendo todos los ficheros, mientras no está disponible
+	 * el índice de nombres
+	 */
+	private List<String> scanNames(List<String> words, int limit) {
+		List<String> result = new ArrayList<String>();
+		if (words.isEmpty()) {
+			return result;
+		}
+		for (Map.Entry<String, FileEntry> file : files.entrySet()) {
+			if (result.size() >= limit) {
+				break;
+			}
+			if (FileNameIndex.matches(file.getValue().name, words)) {
+				result.add(file.getKey());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Reconstruye el índice de nombres en un hilo aparte, sin bloquear el índice
+	 * salvo al final para aplicar los cambios ocurridos mientras tanto. Debe
+	 * llamarse con el cerrojo de escritura.
+	 */
+	private void rebuildNames() {
+		final String[] hashes = new String[files.size()];
+		final String[] fileNames = new String[files.size()];
+		int i = 0;
+		for (Map.Entry<String, FileEntry> file : files.entrySet()) {
+			hashes[i] = file.getKey();
+			fileNames[i] = file.getValue().name;
+			i++;
+		}
+		names = null;
+		pendingNames = new ArrayList<NameChange>();
+		Thread builder = new Thread(() -> {
+			FileNameIndex rebuilt = new FileNameIndex();
+			for (int j = 0; j < hashes.length; j++) {
+				rebuilt.add(hashes[j], fileNames[j]);
+			}
+			lock.writeLock().lock();
+			try {
+				for (NameChange change : pendingNames) {
+					if (change.added) {
+						rebuilt.add(change.hash, change.name);
+					} else {
+						rebuilt.remove(change.hash, change.name);
+					}
+				}
+				names = rebuilt;
+				pendingNames = null;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}, "name-index");
+		builder.setDaemon(true);
+		builder.start();
+	}
+
+	/**
+	 * Fichero que aparece o desaparece del índice de nombres
+	 */
+	private static class NameChange {
+		private final boolean added;
+		private final String hash;
+		private final String name;
+
+		private NameChange(boolean added, String hash, String name) {
+			this.added = added;
+			this.hash = hash;
+			this.name = name;
+		}
+	}
+
+	/**
+	 * Vista como SortedMap, de sólo lectura, de una lista de ficheros ya ordenada
+	 * por hash y sin repetidos. Permite cargar el índice con el constructor
+	 * TreeMap(SortedMap), que según su documentación tarda un tiempo lineal.
+	 */
+	private static class SortedRun extends AbstractMap<String, FileEntry> implements SortedMap<String, FileEntry> {
+		private final List<String> hashes;
+		private final List<FileEntry> entries;
+
+		private SortedRun(List<String> hashes, List<FileEntry> entries) {
+			this.hashes = hashes;
+			this.entries = entries;
+		}
+
+		/**
+		 * @return La posición del primer hash mayor o igual que key
+		 */
+		private int indexOf(String key) {
+			int i = Collections.binarySearch(hashes, key);
+			return (i >= 0) ? i : -i - 1;
+		}
+
+		private SortedRun range(int from, int to) {
+			return new SortedRun(hashes.subList(from, to), entries.subList(from, to));
+		}
+
+		@Override
+		public Comparator<? super String> comparator() {
+			return null; // Orden natural, como files
+		}
+
+		@Override
+		public int size() {
+			return hashes.size();
+		}
+
+		@Override
+		public FileEntry get(Object key) {
+			int i = Collections.binarySearch(hashes, (String) key);
+			return (i >= 0) ? entries.get(i) : null;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return Collections.binarySearch(hashes, (String) key) >= 0;
+		}
+
+		@Override
+		public Set<Map.Entry<String, FileEntry>> entrySet() {
+			return new AbstractSet<Map.Entry<String, FileEntry>>() {
+				@Override
+				public int size() {
+					return hashes.size();
+				}
+
+				@Override
+				public Iterator<Map.Entry<String, FileEntry>> iterator() {
+					return new Iterator<Map.Entry<String, FileEntry>>() {
+						private int next = 0;
+
+						@Override
+						public boolean hasNext() {
+							return next < hashes.size();
+						}
+
+						@Override
+						public Map.Entry<String, FileEntry> next() {
+							if (next >= hashes.size()) {
+								throw new NoSuchElementException();
+							}
+							Map.Entry<String, FileEntry> entry = new AbstractMap.SimpleImmutableEntry<String, FileEntry>(
+									hashes.get(next), entries.get(next));
+							next++;
+							return entry;
+						}
+					};
+				}
+			};
+		}
+
+		@Override
+		public SortedMap<String, FileEntry> subMap(String fromKey, String toKey) {
+			if (fromKey.compareTo(toKey) > 0) {
+				throw new IllegalArgumentException("fromKey > toKey");
+			}
+			return range(indexOf(fromKey), indexOf(toKey));
+		}
+
+		@Override
+		public SortedMap<String, FileEntry> headMap(String toKey) {
+			return range(0, indexOf(toKey));
+		}
+
+		@Override
+		public SortedMap<String, FileEntry> tailMap(String fromKey) {
+			return range(indexOf(fromKey), hashes.size());
+		}
+
+		@Override
+		public String firstKey() {
+			if (hashes.isEmpty()) {
+				throw new NoSuchElementException();
+			}
+			return hashes.get(0);
+		}
+
+		@Override
+		public String lastKey() {
+			if (hashes.isEmpty()) {
+				throw new NoSuchElementException();
+			}
+			return hashes.get(hashes.size() - 1);
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package es.um.redes.nanoFiles.udp.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import es.um.redes.nanoFiles.util.FileInfo;
+
+public class FileIndexTest {
+
+	private static final String HASH = "1111111111111111111111111111111111111111";
+
+	public static void main(String[] args) {
+		/*
+		 * Dos servidores publican el mismo fichero con distinto nombre y tamaño: el
+		 * índice muestra los del primero mientras lo comparta, y los del segundo (y
+		 * lo encuentra por su nombre) cuando el primero deja de compartirlo.
+		 */
+		FileIndex index = new FileIndex();
+		index.publish("alice", files("informe.pdf,10"), 1);
+		index.publish("bob", files("report.pdf,20"), 1);
+		check("two publishers", index, "informe", "informe.pdf", 10);
+		check("two publishers", index, "report", null, 0);
+
+		index.removeServer("alice");
+		check("owner removed", index, "report", "report.pdf", 20);
+		check("owner removed", index, "informe", null, 0);
+
+		// El nuevo primero cambia el nombre al volver a publicar
+		index.publish("carol", files("copia.pdf,20"), 1);
+		index.publish("bob", files("final.pdf,30"), 2);
+		check("owner renamed", index, "final", "final.pdf", 30);
+		check("owner renamed", index, "report", null, 0);
+
+		// Eliminarlo con una publicación incremental equivale a darse de baja
+		index.applyDelta("bob", new HashMap<String, String>(), Collections.singletonList(HASH), 2, 3);
+		check("owner unpublished", index, "copia", "copia.pdf", 20);
+		check("owner unpublished", index, "final", null, 0);
+	}
+
+	private static Map<String, String> files(String descriptor) {
+		Map<String, String> files = new HashMap<String, String>();
+		files.put(HASH, descriptor);
+		return files;
+	}
+
+	/**
+	 * Comprueba lo que devuelve la búsqueda por nombre de keywords: el fichero
+	 * con ese nombre y tamaño, o nada si name es null
+	 */
+	private static void check(String step, FileIndex index, String keywords, String name, long size) {
+		List<FileInfo> found = index.findByName(keywords, 10);
+		List<String> names = new ArrayList<String>();
+		for (FileInfo file : found) {
+			names.add(file.fileName + "," + file.fileSize);
+		}
+		if (name == null ? !found.isEmpty()
+				: found.size() != 1 || !found.get(0).fileName.equals(name) || found.get(0).fileSize != size) {
+			System.err.println(step + ": search \"" + keywords + "\" returned " + names);
+		} else {
+			System.out.println(step + ": search \"" + keywords + "\" -> " + names + " OK");
+		}
+	}
+}
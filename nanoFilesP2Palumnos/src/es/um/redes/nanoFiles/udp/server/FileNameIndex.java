@@ -0,0 +1,185 @@
+package es.um.redes.nanoFiles.udp.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Índice invertido de nombres de fichero: cada palabra (token) de un nombre
+ * apunta a los hashes de los ficheros cuyo nombre la contiene. Los tokens se
+ * guardan ordenados, por lo que una palabra de la búsqueda encuentra también
+ * los tokens que empiezan por ella ("doc" encuentra "documento").
+ *
+ * Esta clase no está sincronizada: la usa FileIndex, que la actualiza al
+ * aparecer o desaparecer un fichero y la protege con su propio cerrojo.
+ */
+public class FileNameIndex {
+
+	/**
+	 * token -> hashes de los ficheros cuyo nombre contiene el token
+	 */
+	private final NavigableMap<String, Set<String>> tokens = new TreeMap<String, Set<String>>();
+	/**
+	 * hash -> nombre indexado, para comprobar el resto de palabras de una búsqueda
+	 * en los candidatos sin recorrer sus tokens
+	 */
+	private final Map<String, String> names = new HashMap<String, String>();
+
+	/**
+	 * Añade al índice el nombre de un fichero
+	 */
+	public void add(String hash, String name) {
+		names.put(hash, name);
+		for (String token : tokenize(name)) {
+			Set<String> hashes = tokens.get(token);
+			if (hashes == null) {
+				hashes = new HashSet<String>();
+				tokens.put(token, hashes);
+			}
+			hashes.add(hash);
+		}
+	}
+
+	/**
+	 * Elimina del índice el nombre de un fichero
+	 */
+	public void remove(String hash, String name) {
+		names.remove(hash);
+		for (String token : tokenize(name)) {
+			Set<String> hashes = tokens.get(token);
+			if (hashes != null) {
+				hashes.remove(hash);
+				if (hashes.isEmpty()) {
+					tokens.remove(token);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Busca los ficheros cuyo nombre contiene todas las palabras de la consulta
+	 * (cada palabra puede ser el principio de una palabra del nombre)
+	 *
+	 * @param query Palabras a buscar, separadas por espacios o signos de puntuación
+	 * @param limit Número máximo de hashes a devolver
+	 * @return Los hashes de los ficheros encontrados (como mucho limit)
+	 */
+	public List<String> find(String query, int limit) {
+		List<String> words = tokenize(query);
+		List<String> result = new ArrayList<String>();
+		if (words.isEmpty()) {
+			return result;
+		}
+		/*
+		 * No se construye la unión de los hashes de cada palabra (con una palabra
+		 * corta, como "a", sería casi todo el índice): se recorren los tokens de la
+		 * palabra con menos hashes, y el resto de palabras se comprueban en el nombre
+		 * de cada candidato, hasta tener limit resultados. Las palabras más largas
+		 * suelen tener menos tokens, y con ellas se acota el recuento de las demás.
+		 */
+		words.sort((x, y) -> Integer.compare(y.length(), x.length()));
+		List<NavigableMap<String, Set<String>>> ranges = new ArrayList<NavigableMap<String, Set<String>>>();
+		for (String word : words) {
+			ranges.add(tokens.subMap(word, true, word + Character.MAX_VALUE, false));
+		}
+		int driver = 0;
+		long fewest = Long.MAX_VALUE;
+		for (int i = 0; i < ranges.size(); i++) {
+			if (ranges.get(i).isEmpty()) {
+				return result;
+			}
+			long count = (ranges.size() == 1) ? 0 : countHashes(ranges.get(i), fewest);
+			if (count < fewest) {
+				fewest = count;
+				driver = i;
+			}
+		}
+		NavigableMap<String, Set<String>> candidates = ranges.get(driver);
+		words.remove(driver);
+		// Un hash sólo puede repetirse si la palabra coincide con varios tokens
+		Set<String> seen = (candidates.higherKey(candidates.firstKey()) != null) ? new HashSet<String>() : null;
+		for (Set<String> hashes : candidates.values()) {
+			for (String hash : hashes) {
+				if (result.size() >= limit) {
+					return result;
+				}
+				if (seen != null && !seen.add(hash)) {
+					continue; // Ya comprobado con otro token de la misma palabra
+				}
+				if (words.isEmpty() || matches(names.get(hash), words)) {
+					result.add(hash);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return El número de hashes (con repeticiones) de los tokens de range, o un
+	 *         valor mayor o igual que cap si llega a cap (no hace falta contar más)
+	 */
+	private static long countHashes(NavigableMap<String, Set<String>> range, long cap) {
+		long count = 0;
+		for (Set<String> hashes : range.values()) {
+			count += hashes.size();
+			if (count >= cap) {
+				break;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Comprueba, sin usar el índice, si un nombre contiene todas las palabras de
+	 * una búsqueda, con el mismo criterio que find
+	 *
+	 * @param words Las palabras de la búsqueda, ya divididas con tokenize
+	 */
+	public static boolean matches(String name, List<String> words) {
+		return matchesTokens(tokenize(name), words);
+	}
+
+	/**
+	 * Igual que matches, con el nombre ya dividido con tokenize (para comparar un
+	 * mismo nombre con varias búsquedas)
+	 */
+	public static boolean matchesTokens(List<String> nameTokens, List<String> words) {
+		for (String word : words) {
+			boolean found = false;
+			for (int i = 0; i < nameTokens.size() && !found; i++) {
+				found = nameTokens.get(i).startsWith(word);
+			}
+			if (!found) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Divide un nombre en palabras en minúsculas, separando por cualquier carácter
+	 * que no sea letra o dígito ("Mi_Documento-v2.pdf" -> mi, documento, v2, pdf)
+	 */
+	public static List<String> tokenize(String name) {
+		List<String> result = new ArrayList<String>();
+		int start = -1;
+		for (int i = 0; i <= name.length(); i++) {
+			boolean letter = i < name.length() && Character.isLetterOrDigit(name.charAt(i));
+			if (letter && start < 0) {
+				start = i;
+			} else if (!letter && start >= 0) {
+				String token = name.substring(start, i).toLowerCase();
+				if (!result.contains(token)) {
+					result.add(token);
+				}
+				start = -1;
+			}
+		}
+		return result;
+	}
+}
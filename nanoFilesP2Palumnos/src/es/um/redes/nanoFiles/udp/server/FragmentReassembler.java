@@ -0,0 +1,227 @@
+package es.um.redes.nanoFiles.udp.server;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import es.um.redes.nanoFiles.udp.message.DirFragments;
+import es.um.redes.nanoFiles.udp.message.DirMessage;
+
+/**
+ * Peticiones fragmentadas (ver DirFragments) que el directorio está recibiendo,
+ * por cliente e identificador de mensaje. La memoria que ocupan está acotada:
+ * ningún mensaje puede superar DirMessage.MAX_MESSAGE_SIZE, los mensajes
+ * incompletos se descartan si pasan TIMEOUT_MS sin recibir fragmentos, y si se
+ * superan maxMessages o maxBytes se descartan los que llevan más tiempo sin
+ * recibirlos. El cliente de un mensaje descartado lo reenviará entero.
+ *
+ * Los NACK de los mensajes incompletos no se envían al recibir el fragmento
+ * que los dispara, sino cuando vence su margen (ver DirFragments.NACK_DELAY_MS):
+ * el hilo que los envía los recoge con awaitNacks.
+ *
+ * Lo usan el hilo que recibe los datagramas, el que envía los NACK y STATS, así
+ * que está sincronizado.
+ */
+public class FragmentReassembler {
+	public static final int DEFAULT_MAX_MESSAGES = 1024;
+	public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+	/**
+	 * Tiempo máximo sin recibir fragmentos de un mensaje incompleto
+	 */
+	private static final long TIMEOUT_MS = 5000;
+
+	private static class Key {
+		private final InetSocketAddress client;
+		private final int messageId;
+
+		private Key(InetSocketAddress client, int messageId) {
+			this.client = client;
+			this.messageId = messageId;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return messageId == other.messageId && client.equals(other.client);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * client.hashCode() + messageId;
+		}
+	}
+
+	/**
+	 * NACK listo para enviar al cliente de un mensaje incompleto
+	 */
+	public static class Nack {
+		public final InetSocketAddress address;
+		public final byte[] data;
+
+		private Nack(InetSocketAddress address, byte[] data) {
+			this.address = address;
+			this.data = data;
+		}
+	}
+
+	private static class Pending {
+		private final InetSocketAddress client;
+		private final DirFragments.Assembly assembly;
+		private long lastFragment;
+		/**
+		 * Si ya no está en pending (completo, caducado o descartado)
+		 */
+		private boolean removed = false;
+
+		private Pending(InetSocketAddress client, DirFragments.Assembly assembly, long now) {
+			this.client = client;
+			this.assembly = assembly;
+			this.lastFragment = now;
+		}
+	}
+
+	private final int maxMessages;
+	private final long maxBytes;
+	/**
+	 * Mensajes incompletos, en orden de llegada de su último fragmento
+	 */
+	private final LinkedHashMap<Key, Pending> pending = new LinkedHashMap<Key, Pending>(16, 0.75f, true);
+	/**
+	 * Mensajes incompletos con un NACK programado
+	 */
+	private final Set<Pending> scheduled = new LinkedHashSet<Pending>();
+	private long bytes = 0;
+
+	private long reassembled = 0;
+	private long expired = 0;
+	private long evicted = 0;
+
+	public FragmentReassembler(int maxMessages, long maxBytes) {
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Añade un fragmento recibido de un cliente
+	 *
+	 * @param fragment El datagrama del fragmento, de la posición al límite (se
+	 *                 copia)
+	 * @param now      Instante de recepción (System.nanoTime)
+	 * @return El mensaje al que pertenece el fragmento: si está completo, ya no
+	 *         se guarda aquí
+	 * @throws IllegalArgumentException Si el fragmento no es válido
+	 */
+	public synchronized DirFragments.Assembly add(InetSocketAddress client, ByteBuffer fragment, long now) {
+		expire(now);
+		Key key = new Key(client, DirFragments.getMessageId(fragment));
+		Pending entry = pending.get(key);
+		if (entry == null) {
+			entry = new Pending(client, new DirFragments.Assembly(fragment, DirMessage.MAX_MESSAGE_SIZE, now), now);
+			if (entry.assembly.isComplete()) {
+				reassembled++;
+				return entry.assembly;
+			}
+			pending.put(key, entry);
+			bytes += entry.assembly.size();
+			evict();
+		} else {
+			entry.assembly.add(fragment, now);
+			entry.lastFragment = now;
+		}
+		if (entry.assembly.isComplete()) {
+			pending.remove(key);
+			entry.removed = true;
+			bytes -= entry.assembly.size();
+			reassembled++;
+		} else if (entry.assembly.getNackTime() != DirFragments.Assembly.NO_NACK && scheduled.add(entry)) {
+			notifyAll();
+		}
+		return entry.assembly;
+	}
+
+	/**
+	 * Espera a que venza el margen de algún NACK programado y los codifica
+	 *
+	 * @return Los NACK que hay que enviar
+	 */
+	public synchronized List<Nack> awaitNacks() throws InterruptedException {
+		while (true) {
+			long now = System.nanoTime();
+			long next = DirFragments.Assembly.NO_NACK;
+			List<Nack> result = new ArrayList<Nack>();
+			Iterator<Pending> it = scheduled.iterator();
+			while (it.hasNext()) {
+				Pending entry = it.next();
+				long nackTime = entry.assembly.getNackTime();
+				if (entry.removed || nackTime == DirFragments.Assembly.NO_NACK) {
+					it.remove();
+				} else if (entry.assembly.isNackDue(now)) {
+					it.remove();
+					ByteBuffer nack = ByteBuffer.allocate(DirFragments.MIN_MTU);
+					if (entry.assembly.writeNack(nack, now) > 0) {
+						result.add(new Nack(entry.client, Arrays.copyOf(nack.array(), nack.position())));
+					}
+				} else if (next == DirFragments.Assembly.NO_NACK || nackTime - next < 0) {
+					next = nackTime;
+				}
+			}
+			if (!result.isEmpty()) {
+				return result;
+			}
+			if (next == DirFragments.Assembly.NO_NACK) {
+				wait();
+			} else {
+				long millis = (next - now + 999999) / 1000000;
+				wait(Math.max(millis, 1));
+			}
+		}
+	}
+
+	/**
+	 * Descarta los mensajes que llevan más de TIMEOUT_MS sin recibir fragmentos
+	 */
+	private void expire(long now) {
+		Iterator<Pending> eldest = pending.values().iterator();
+		while (eldest.hasNext()) {
+			Pending entry = eldest.next();
+			if (now - entry.lastFragment < TIMEOUT_MS * 1000000) {
+				break;
+			}
+			eldest.remove();
+			entry.removed = true;
+			bytes -= entry.assembly.size();
+			expired++;
+		}
+	}
+
+	/**
+	 * Descarta los mensajes que llevan más tiempo sin recibir fragmentos hasta
+	 * respetar los límites (nunca el último)
+	 */
+	private void evict() {
+		Iterator<Map.Entry<Key, Pending>> eldest = pending.entrySet().iterator();
+		while ((pending.size() > maxMessages || bytes > maxBytes) && pending.size() > 1) {
+			Pending entry = eldest.next().getValue();
+			eldest.remove();
+			entry.removed = true;
+			bytes -= entry.assembly.size();
+			evicted++;
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return pending.size() + " messages in progress, " + bytes + "/" + maxBytes + " bytes, " + reassembled
+				+ " reassembled, " + expired + " expired, " + evicted + " evicted";
+	}
+}
@@ -0,0 +1,110 @@
+package es.um.redes.nanoFiles.udp.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de latencias (en nanosegundos) con cubetas log-lineales, al estilo
+ * de HdrHistogram: cada potencia de dos se divide en SUB_BUCKETS cubetas
+ * iguales, así que el error relativo de los percentiles es como mucho
+ * 1/SUB_BUCKETS sea cual sea la escala (de nanosegundos a segundos), con un
+ * número fijo de contadores.
+ *
+ * Registrar un valor es un único incremento atómico, sin cerrojos, y puede
+ * hacerse desde varios hilos a la vez. Las lecturas (percentiles) pueden ver el
+ * histograma a medio actualizar, lo que sólo afecta a los últimos valores.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/**
+	 * Los valores menores que SUB_BUCKETS tienen cubeta propia; el resto, una por
+	 * cada (potencia de dos, subcubeta)
+	 */
+	private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * Registra un valor (negativo cuenta como 0)
+	 */
+	public void record(long nanos) {
+		counts.incrementAndGet(bucketOf(Math.max(nanos, 0)));
+	}
+
+	private static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Menor valor que cae en la cubeta indicada
+	 */
+	private static long lowestValueOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = bucket % SUB_BUCKETS;
+		return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+	}
+
+	/**
+	 * Mayor valor que cae en la cubeta indicada
+	 */
+	private static long highestValueOf(int bucket) {
+		return (bucket + 1 < BUCKETS) ? lowestValueOf(bucket + 1) - 1 : Long.MAX_VALUE;
+	}
+
+	/**
+	 * @return Número de valores registrados
+	 */
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * @param percentile Percentil entre 0 y 100
+	 * @return Cota superior del valor por debajo del cual quedan ese porcentaje de
+	 *         los valores registrados (0 si no hay ninguno)
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count = getCount();
+		if (count == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		int last = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			long n = counts.get(i);
+			if (n > 0) {
+				seen += n;
+				last = i;
+				if (seen >= target) {
+					return highestValueOf(i);
+				}
+			}
+		}
+		return highestValueOf(last);
+	}
+
+	/**
+	 * @return Cota superior del mayor valor registrado (0 si no hay ninguno)
+	 */
+	public long getMax() {
+		for (int i = BUCKETS - 1; i >= 0; i--) {
+			if (counts.get(i) > 0) {
+				return highestValueOf(i);
+			}
+		}
+		return 0;
+	}
+}
@@ -1,13 +1,20 @@
 package es.um.redes.nanoFiles.udp.server;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -17,11 +24,20 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import es.um.redes.nanoFiles.application.NanoFiles;
+import es.um.redes.nanoFiles.udp.message.DirFragments;
 import es.um.redes.nanoFiles.udp.message.DirMessage;
 import es.um.redes.nanoFiles.udp.message.DirMessageOps;
+import es.um.redes.nanoFiles.util.BloomFilter;
+import es.um.redes.nanoFiles.util.BufferPool;
 import es.um.redes.nanoFiles.util.FileInfo;
+import es.um.redes.nanoFiles.util.Log;
+import es.um.redes.nanoFiles.util.NetImpairment;
 
 public class NFDirectoryServer {
 	/**
@@ -43,15 +59,122 @@ public class NFDirectoryServer {
 	public static final String UNREGISTER_ERR = "unregister_failed";
 	public static final String PUBLISH_OK = "publish_ok";
 	public static final String PUBLISH_ERR = "publish_failed";
+	public static final String PUBLISH_RESYNC = "publish_resync";
 	public static final String FILELIST_OK = "filelist_ok";
 	public static final String FILELIST_ERR = "filelist_failed";
 	public static final String SEARCH_OK = "search_ok";
 	public static final String SEARCH_ERR = "search_failed";
+	public static final String SEARCH_AMBIGUOUS = "search_ambiguous";
+	/**
+	 * Número máximo de ficheros candidatos devueltos cuando una búsqueda por
+	 * subcadena del hash es ambigua
+	 */
+	public static final int SEARCH_MAX_CANDIDATES = 20;
+	/**
+	 * Longitud de un hash completo (SHA-1 en hexadecimal), el único que se busca
+	 * en los filtros de Bloom de los peers
+	 */
+	private static final int FULL_HASH_LENGTH = 40;
+	/**
+	 * Tamaño de página de FILELIST cuando la petición no lo indica, y máximo
+	 * permitido
+	 */
+	public static final int FILELIST_DEFAULT_PAGE_SIZE = 100;
+	public static final int FILELIST_MAX_PAGE_SIZE = 1000;
+	/**
+	 * Tamaño máximo de una respuesta THROTTLED codificada (sólo lleva la operación
+	 * y el tiempo de espera)
+	 */
+	private static final int THROTTLED_MAX_BYTES = 128;
+	/**
+	 * Máximo de bytes de la lista de ficheros en una página de FILELIST, dejando
+	 * margen para el resto del mensaje dentro de un datagrama
+	 */
+	private static final int FILELIST_MAX_PAGE_BYTES = DirMessage.PACKET_MAX_SIZE - 1024;
+	/**
+	 * Lo mismo para los clientes que aceptan respuestas comprimidas: la página
+	 * puede ocupar hasta DirMessage.MAX_MESSAGE_SIZE sin comprimir, siempre que
+	 * comprimida quepa en un datagrama
+	 */
+	private static final int FILELIST_MAX_DEFLATED_PAGE_BYTES = DirMessage.MAX_MESSAGE_SIZE - 1024;
+	public static final String SEARCHNAME_OK = "searchname_ok";
+	public static final String SEARCHNAME_ERR = "searchname_failed";
+	/**
+	 * Número máximo de ficheros devueltos por una búsqueda por nombre
+	 */
+	public static final int SEARCHNAME_MAX_RESULTS = 50;
+	public static final String HEARTBEAT_OK = "heartbeat_ok";
+	public static final String HEARTBEAT_ERR = "heartbeat_failed";
+	/**
+	 * Respuesta a cualquier petición de un cliente que ha superado su tasa de
+	 * peticiones permitida: indica cuántos milisegundos debe esperar antes de
+	 * reintentar (retryafter)
+	 */
+	public static final String THROTTLED = "throttled";
+	public static final String STATS_OK = "stats_ok";
+	public static final String STATS_ERR = "stats_failed";
+	public static final String SEARCHBATCH_OK = "searchbatch_ok";
+	public static final String SEARCHBATCH_ERR = "searchbatch_failed";
+	public static final String WATCH_OK = "watch_ok";
+	public static final String WATCH_ERR = "watch_failed";
+	/**
+	 * Aviso de cambios en los ficheros vigilados, que el directorio envía por su
+	 * cuenta (no es la respuesta a ninguna petición)
+	 */
+	public static final String WATCH_EVENT = "watch_event";
+	/**
+	 * Máximo de bytes de los resultados de una respuesta SEARCHBATCH: si no caben
+	 * todos los ficheros pedidos, se responde a los primeros y se indica en el
+	 * cursor el último hash respondido
+	 */
+	private static final int SEARCHBATCH_MAX_RESULT_BYTES = DirMessage.PACKET_MAX_SIZE - 1024;
+	/**
+	 * Duración de una sesión sin recibir heartbeat (o login) del cliente. Al
+	 * vencer, el directorio da de baja al usuario como si hubiera hecho logout.
+	 */
+	public static final long LEASE_DURATION_MS = 15000;
+	/**
+	 * Resolución con la que se comprueban las sesiones caducadas
+	 */
+	private static final long LEASE_TICK_MS = 500;
+	/**
+	 * Cada cuánto se comprueba si el log del diario ha crecido lo suficiente para
+	 * escribir una instantánea
+	 */
+	private static final long SNAPSHOT_CHECK_MS = 5000;
+	/**
+	 * Búfer de recepción que se pide al sistema para el socket: los clientes
+	 * envían los fragmentos de una petición en ráfaga, y con el búfer por defecto
+	 * (unos 200 KiB) se pierden los últimos de las peticiones grandes
+	 */
+	private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
 
 	/**
 	 * Socket de comunicación UDP con el cliente UDP (DirectoryConnector)
 	 */
 	private DatagramSocket socket = null;
+	/**
+	 * Canal UDP usado en el modo multihilo (NIO). Si no es null, el socket
+	 * anterior no se usa y las peticiones se atienden en el pool de workers.
+	 */
+	private DatagramChannel channel = null;
+	/**
+	 * Pool de hilos que construyen y envían las respuestas en el modo multihilo
+	 */
+	private ExecutorService workers = null;
+	/**
+	 * Búferes de envío reutilizables por los workers (uno por cada respuesta en
+	 * curso). Se guardan como mucho tantos como workers: con hilos virtuales
+	 * puede haber muchas más respuestas en curso, y los búferes que sobran tras
+	 * un pico se dejan al recolector.
+	 */
+	private BufferPool responseBuffers = null;
+	/**
+	 * Cerrojo que protege el estado del directorio (nicks, sessionKeys, ficheros
+	 * publicados...). Las consultas toman el cerrojo de lectura y las operaciones
+	 * que modifican el estado el de escritura.
+	 */
+	private final ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
 	/**
 	 * Estructura para guardar los nicks de usuarios registrados, y clave de sesión
 	 * 
@@ -65,8 +188,82 @@ public class NFDirectoryServer {
 	
 	private HashMap<String, String> nickPort;
 	private HashMap<String, InetAddress> nickIP;
-	private HashMap<Integer, HashMap<String,String>> publishedFiles;
-	private HashMap<String, LinkedList<String>> fichServers;
+	/**
+	 * Índice de ficheros publicados: servidores de cada hash y ficheros de cada
+	 * servidor
+	 */
+	private FileIndex fileIndex;
+	/**
+	 * Carga de los servidores de ficheros, con la que se ordenan los servidores de
+	 * cada fichero en las búsquedas
+	 */
+	private final ServerLoad serverLoad = new ServerLoad();
+	/**
+	 * Suscripciones a los cambios del catálogo (WATCH), a las que el índice de
+	 * ficheros avisa de cada cambio
+	 */
+	private final WatchRegistry watches = new WatchRegistry();
+	/**
+	 * Filtros de Bloom de los peers que publican así su biblioteca
+	 * (PUBLISHFILTER), que se consultan en las búsquedas por hash completo
+	 */
+	private final PeerFilters peerFilters = new PeerFilters();
+	/**
+	 * Sesiones activas (por clave de sesión), que caducan si no se renuevan antes
+	 * de LEASE_DURATION_MS
+	 */
+	private final TimingWheel<Integer> leases = new TimingWheel<Integer>(LEASE_TICK_MS, LEASE_DURATION_MS);
+	/**
+	 * Diario en el que se registran las operaciones que modifican el estado, para
+	 * recuperarlo al reiniciar el directorio (null si no se usa)
+	 */
+	private DirectoryJournal journal;
+	/**
+	 * Partición del espacio de hashes que guarda este directorio cuando forma parte
+	 * de un directorio repartido (null si guarda todos los ficheros)
+	 */
+	private DirectoryShard shard;
+	/**
+	 * Generación del estado del directorio: se incrementa (con el cerrojo de
+	 * escritura) cada vez que una operación lo modifica, e identifica las
+	 * respuestas guardadas en responseCache que siguen siendo válidas
+	 */
+	private long generation = 0;
+	/**
+	 * Respuestas ya codificadas de LIST y FILELIST, válidas mientras no cambie la
+	 * generación del estado
+	 */
+	private final ResponseCache responseCache = new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES);
+	/**
+	 * Últimas respuestas enviadas a cada cliente, para responder a las
+	 * retransmisiones de sus peticiones sin volver a ejecutarlas
+	 */
+	private final ReplyCache replyCache = new ReplyCache(ReplyCache.DEFAULT_REPLIES_PER_CLIENT,
+			ReplyCache.DEFAULT_MAX_CLIENTS, ReplyCache.DEFAULT_MAX_BYTES);
+	/**
+	 * Peticiones fragmentadas que se están recibiendo. Las añade el hilo que
+	 * recibe los datagramas, y sus NACK los envía el hilo fragment-nacks.
+	 */
+	private final FragmentReassembler reassembler = new FragmentReassembler(
+			FragmentReassembler.DEFAULT_MAX_MESSAGES, FragmentReassembler.DEFAULT_MAX_BYTES);
+	/**
+	 * Contadores y latencias de las peticiones atendidas, que se consultan con la
+	 * operación STATS
+	 */
+	private final DirectoryStats stats = new DirectoryStats();
+	/**
+	 * Límite de la tasa de peticiones de cada cliente, que se comprueba antes de
+	 * decodificar la petición (null si no se limita). Sólo el hilo que recibe
+	 * los datagramas llama a admit; STATS lo muestra desde cualquier hilo.
+	 */
+	private ClientRateLimiter rateLimiter = new ClientRateLimiter(ClientRateLimiter.DEFAULT_RATE,
+			(int) (2 * ClientRateLimiter.DEFAULT_RATE), ClientRateLimiter.DEFAULT_MAX_CLIENTS);
+	/**
+	 * Respuesta THROTTLED y búfer en que se codifica, reutilizados en cada cliente
+	 * que supera su tasa. Sólo los usa el hilo que recibe los datagramas.
+	 */
+	private final DirMessage throttledReply = new DirMessage(THROTTLED);
+	private final ByteBuffer throttledBuffer = ByteBuffer.allocate(THROTTLED_MAX_BYTES);
 	/*
 	 * TODO: Añadir aquí como atributos las estructuras de datos que sean necesarias
 	 * para mantener en el directorio cualquier información necesaria para la
@@ -86,8 +283,55 @@ public class NFDirectoryServer {
 	 * enlace no confiable y testear el código de retransmisión)
 	 */
 	private double messageDiscardProbability;
+	/**
+	 * Enlace degradado por el que se envían los datagramas del directorio (ver
+	 * NetImpairment), o null para enviarlos directamente
+	 */
+	private NetImpairment.Link impairment = null;
+
+	public NFDirectoryServer(double corruptionProbability) throws IOException {
+		this(corruptionProbability, 0, false);
+	}
 
-	public NFDirectoryServer(double corruptionProbability) throws SocketException {
+	/**
+	 * Crea un directorio que atiende las peticiones en un pool de workers si
+	 * numWorkers es mayor que cero (o si se piden hilos virtuales), o en un único
+	 * hilo con un DatagramSocket bloqueante en caso contrario.
+	 * 
+	 * @param corruptionProbability Probabilidad de descartar un datagrama recibido
+	 * @param numWorkers            Número de hilos del pool (0 = modo clásico)
+	 * @param virtualThreads        Usar un hilo virtual por petición (JDK 21+)
+	 */
+	public NFDirectoryServer(double corruptionProbability, int numWorkers, boolean virtualThreads)
+			throws IOException {
+		this(corruptionProbability, numWorkers, virtualThreads, null);
+	}
+
+	/**
+	 * Crea un directorio que, además, recupera su estado del diario indicado y
+	 * registra en él cada operación que lo modifica
+	 * 
+	 * @param journal Diario del directorio, o null para no guardar el estado
+	 */
+	public NFDirectoryServer(double corruptionProbability, int numWorkers, boolean virtualThreads,
+			DirectoryJournal journal) throws IOException {
+		this(corruptionProbability, numWorkers, virtualThreads, journal, DIRECTORY_PORT, null);
+	}
+
+	/**
+	 * Crea un directorio que escucha en el puerto indicado y, si shard no es null,
+	 * forma parte de un directorio repartido: sólo acepta publicaciones de ficheros
+	 * cuyo hash pertenece a su partición. Las sesiones y los servidores
+	 * registrados se mantienen en todas las particiones (el cliente se da de alta
+	 * en cada una).
+	 *
+	 * @param port  Puerto UDP en el que escucha el directorio
+	 * @param shard Partición que guarda este directorio, o null para guardarlos
+	 *              todos
+	 */
+	public NFDirectoryServer(double corruptionProbability, int numWorkers, boolean virtualThreads,
+			DirectoryJournal journal, int port, DirectoryShard shard) throws IOException {
+		this.shard = shard;
 		/*
 		 * Guardar la probabilidad de pérdida de datagramas (simular enlace no
 		 * confiable)
@@ -98,7 +342,19 @@ public class NFDirectoryServer {
 		 * ligado al puerto especificado por el argumento directoryPort en la máquina
 		 * local,
 		 */
-		this.socket = new DatagramSocket(DIRECTORY_PORT);
+		if (numWorkers > 0 || virtualThreads) {
+			this.channel = DatagramChannel.open();
+			this.channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+			this.channel.bind(new InetSocketAddress(port));
+			this.workers = createWorkerPool(numWorkers, virtualThreads);
+			int maxIdle = (numWorkers > 0 && !virtualThreads) ? numWorkers
+					: Runtime.getRuntime().availableProcessors();
+			this.responseBuffers = new BufferPool(DirMessage.MAX_MESSAGE_SIZE, maxIdle, true);
+		} else {
+			this.socket = new DatagramSocket(null);
+			this.socket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+			this.socket.bind(new InetSocketAddress(port));
+		}
 		/*
 		 * TODO: (Boletín UDP) Inicializar el resto de atributos de esta clase
 		 * (estructuras de datos que mantiene el servidor: nicks, sessionKeys, etc.)
@@ -107,11 +363,23 @@ public class NFDirectoryServer {
 		this.sessionKeys = new HashMap<Integer, String>();
 		this.nickPort = new HashMap<String, String>();
 		this.nickIP = new HashMap<String, InetAddress>();
-		this.publishedFiles = new HashMap<Integer , HashMap<String,String>>();
-		this.fichServers = new HashMap<String, LinkedList<String>>();
+		this.fileIndex = new FileIndex();
+		if (journal != null) {
+			long start = System.nanoTime();
+			int records = journal.recover(new JournalReplayer(), this::writeSnapshot);
+			Log.info("Directory state recovered from journal: " + records + " records, " + nicks.size()
+					+ " sessions, " + fileIndex.size() + " files in " + (System.nanoTime() - start) / 1000000
+					+ " ms");
+			this.journal = journal;
+			startSnapshots();
+		}
+		fileIndex.setChangeListener(watches);
+		startLeaseExpiry();
+		startWatchNotifier();
+		startNackSender();
 
 		if (NanoFiles.testMode) {
-			if (socket == null || nicks == null || sessionKeys == null) {
+			if ((socket == null && channel == null) || nicks == null || sessionKeys == null) {
 				System.err.println("[testMode] NFDirectoryServer: code not yet fully functional.\n"
 						+ "Check that all TODOs in its constructor and 'run' methods have been correctly addressed!");
 				System.exit(-1);
@@ -119,7 +387,336 @@ public class NFDirectoryServer {
 		}
 	}
 
+	/**
+	 * Cambia la tasa de peticiones por segundo permitida a cada cliente, con
+	 * ráfagas de hasta el doble. Debe llamarse antes de run.
+	 *
+	 * @param requestsPerSecond Peticiones por segundo, o 0 para no limitarlas
+	 */
+	public void setRateLimit(double requestsPerSecond) {
+		if (requestsPerSecond > 0) {
+			rateLimiter = new ClientRateLimiter(requestsPerSecond, (int) Math.max(1, 2 * requestsPerSecond),
+					ClientRateLimiter.DEFAULT_MAX_CLIENTS);
+		} else {
+			rateLimiter = null;
+		}
+	}
+
+	/**
+	 * Degrada los datagramas que envía el directorio según la configuración
+	 * indicada (null para no degradarlos). Debe llamarse antes de run.
+	 */
+	public void setImpairment(NetImpairment config) {
+		impairment = (config == null) ? null : config.getLink();
+	}
+
+	/**
+	 * Lanza un hilo que avanza la rueda de sesiones en cada tick y da de baja a los
+	 * usuarios cuya sesión ha caducado
+	 */
+	private void startLeaseExpiry() {
+		Thread expiry = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(LEASE_TICK_MS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				List<Integer> expired = leases.advance();
+				if (expired.isEmpty()) {
+					continue;
+				}
+				stateLock.writeLock().lock();
+				try {
+					generation++;
+					for (Integer sessionKey : expired) {
+						String username = removeSession(sessionKey);
+						if (username != null) {
+							journal(j -> j.logLogout(username));
+							Log.info("Session of " + username + " expired.");
+						}
+					}
+				} finally {
+					stateLock.writeLock().unlock();
+				}
+			}
+		}, "lease-expiry");
+		expiry.setDaemon(true);
+		expiry.start();
+	}
+
+	/**
+	 * Lanza el hilo que envía a los clientes suscritos con WATCH los cambios del
+	 * catálogo, a medida que se producen. Los cambios ocurridos mientras se envían
+	 * los anteriores se agrupan en los siguientes datagramas.
+	 */
+	private void startWatchNotifier() {
+		Thread notifier = new Thread(() -> {
+			// Búfer en el que se codifica cada aviso, reutilizado por este hilo
+			ByteBuffer eventBuffer = ByteBuffer.allocate(DirMessage.MAX_MESSAGE_SIZE);
+			while (true) {
+				List<WatchRegistry.Push> pushes;
+				try {
+					pushes = watches.awaitPushes();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (WatchRegistry.Push push : pushes) {
+					try {
+						eventBuffer.clear();
+						push.event.writeTo(eventBuffer, push.binary);
+						sendDatagram(eventBuffer.flip(), push.address);
+					} catch (IOException e) {
+						// El cliente detectará el hueco en la secuencia y volverá a consultar
+						Log.error("Directory cannot send watch event to " + push.address + ": " + e.getMessage());
+					}
+				}
+			}
+		}, "watch-notifier");
+		notifier.setDaemon(true);
+		notifier.start();
+	}
+
+	/**
+	 * Lanza el hilo que pide a los clientes los fragmentos que faltan de sus
+	 * peticiones fragmentadas, cuando vence el margen de cada NACK (ver
+	 * FragmentReassembler)
+	 */
+	private void startNackSender() {
+		Thread sender = new Thread(() -> {
+			while (true) {
+				List<FragmentReassembler.Nack> nacks;
+				try {
+					nacks = reassembler.awaitNacks();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (FragmentReassembler.Nack nack : nacks) {
+					try {
+						sendDatagram(nack.data, nack.address);
+						stats.countNack(true);
+					} catch (IOException e) {
+						// El cliente reenviará el último fragmento al expirar su temporizador
+						Log.error("Directory cannot send NACK to " + nack.address + ": " + e.getMessage());
+					}
+				}
+			}
+		}, "fragment-nacks");
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	/**
+	 * Envía un datagrama por el socket o el canal del directorio (según el modo).
+	 * Puede llamarse desde cualquier hilo.
+	 */
+	private void sendDatagram(byte[] data, InetSocketAddress address) throws IOException {
+		sendDatagram(ByteBuffer.wrap(data), address);
+	}
+
+	/**
+	 * Como sendDatagram(byte[], InetSocketAddress), con los datos del búfer desde
+	 * su posición hasta su límite (en el modo clásico, un búfer con array). Con un
+	 * enlace degradado el datagrama puede perderse o enviarse más tarde.
+	 */
+	private void sendDatagram(ByteBuffer data, InetSocketAddress address) throws IOException {
+		if (impairment != null) {
+			impairment.send(data, d -> sendNow(d, address));
+		} else {
+			sendNow(data, address);
+		}
+	}
+
+	private void sendNow(ByteBuffer data, InetSocketAddress address) throws IOException {
+		if (channel != null) {
+			channel.send(data, address);
+		} else {
+			socket.send(new DatagramPacket(data.array(), data.arrayOffset() + data.position(), data.remaining(),
+					address));
+		}
+	}
+
+	/**
+	 * Da de baja a un usuario: su nick, su sesión, su registro como servidor y sus
+	 * ficheros publicados. Debe llamarse con el cerrojo de escritura.
+	 *
+	 * @return El nick del usuario, o null si la sesión no existía
+	 */
+	private String removeSession(int sessionKey) {
+		String username = sessionKeys.remove(sessionKey);
+		watches.unwatch(sessionKey);
+		if (username != null) {
+			nicks.remove(username);
+			nickPort.remove(username);
+			nickIP.remove(username);
+			serverLoad.remove(username);
+			fileIndex.removeServer(username);
+			peerFilters.remove(username);
+		}
+		return username;
+	}
+
+	/**
+	 * Lanza un hilo que escribe una instantánea del estado cuando el log del diario
+	 * crece demasiado. Mientras se escribe, las consultas siguen atendiéndose y las
+	 * operaciones que modifican el estado esperan.
+	 */
+	private void startSnapshots() {
+		Thread snapshots = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(SNAPSHOT_CHECK_MS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (!journal.shouldSnapshot()) {
+					continue;
+				}
+				stateLock.readLock().lock();
+				try {
+					journal.snapshot();
+				} catch (IOException e) {
+					Log.error("ERROR: cannot write directory snapshot: " + e.getMessage());
+				} finally {
+					stateLock.readLock().unlock();
+				}
+			}
+		}, "journal-snapshot");
+		snapshots.setDaemon(true);
+		snapshots.start();
+	}
+
+	/**
+	 * Guarda en una instantánea el estado completo del directorio
+	 */
+	private void writeSnapshot(DirectoryJournal.Snapshot snapshot) throws IOException {
+		for (Entry<String, Integer> session : nicks.entrySet()) {
+			snapshot.login(session.getKey(), session.getValue());
+		}
+		for (Entry<String, String> server : nickPort.entrySet()) {
+			snapshot.register(server.getKey(), server.getValue(), nickIP.get(server.getKey()));
+		}
+		for (String server : fileIndex.getPublishers()) {
+			snapshot.publisher(server, fileIndex.getVersion(server));
+		}
+		for (Entry<String, PeerFilters.PeerFilter> peer : peerFilters.getFilters().entrySet()) {
+			BloomFilter filter = peer.getValue().filter;
+			snapshot.filter(peer.getKey(), peer.getValue().version, filter.getHashCount(), filter.getBits());
+		}
+		fileIndex.forEachFile(snapshot::file);
+	}
+
+	/**
+	 * Operación de escritura en el diario
+	 */
+	private interface JournalWrite {
+		void write(DirectoryJournal journal) throws IOException;
+	}
+
+	/**
+	 * Registra una operación en el diario, si se usa. Debe llamarse con el
+	 * cerrojo de escritura y después de aplicar la operación.
+	 */
+	private void journal(JournalWrite write) {
+		if (journal == null) {
+			return;
+		}
+		try {
+			write.write(journal);
+		} catch (IOException e) {
+			Log.error("ERROR: cannot write to the directory journal: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Reconstruye el estado del directorio a partir de los registros del diario
+	 */
+	private class JournalReplayer implements DirectoryJournal.Replayer {
+		@Override
+		public void login(String nick, int sessionKey) {
+			nicks.put(nick, sessionKey);
+			sessionKeys.put(sessionKey, nick);
+			// Los peers vivos renuevan la sesión con sus heartbeats; el resto caduca
+			leases.schedule(sessionKey, LEASE_DURATION_MS);
+		}
+
+		@Override
+		public void logout(String nick) {
+			Integer sessionKey = nicks.get(nick);
+			if (sessionKey != null) {
+				leases.cancel(sessionKey);
+				removeSession(sessionKey);
+			}
+		}
+
+		@Override
+		public void register(String nick, String port, InetAddress ip) {
+			nickPort.put(nick, port);
+			nickIP.put(nick, ip);
+			// La carga no se guarda: se conocerá con el próximo heartbeat
+			serverLoad.report(nick, DirMessage.NO_VALUE, DirMessage.NO_VALUE);
+		}
+
+		@Override
+		public void unregister(String nick) {
+			nickPort.remove(nick);
+			nickIP.remove(nick);
+			serverLoad.remove(nick);
+			fileIndex.removeServer(nick);
+			peerFilters.remove(nick);
+		}
+
+		@Override
+		public void publish(String nick, Map<String, String> files, int version) {
+			fileIndex.publish(nick, files, version);
+		}
+
+		@Override
+		public void delta(String nick, Map<String, String> added, List<String> removed, int baseVersion,
+				int version) {
+			fileIndex.applyDelta(nick, added, removed, baseVersion, version);
+		}
+
+		@Override
+		public void filter(String nick, int version, int hashCount, byte[] bits) {
+			if (bits == null) {
+				peerFilters.remove(nick);
+			} else {
+				peerFilters.install(nick, version, new BloomFilter(bits, hashCount));
+			}
+		}
+
+		@Override
+		public void files(List<String> hashes, List<String> descriptors, List<String[]> servers) {
+			fileIndex.restore(hashes, descriptors, servers);
+		}
+	}
+
+	/**
+	 * Crea el pool de workers. Los hilos virtuales sólo existen a partir de JDK 21,
+	 * por lo que se obtienen por reflexión y, si no están disponibles, se usa un
+	 * pool de hilos de plataforma.
+	 */
+	private static ExecutorService createWorkerPool(int numWorkers, boolean virtualThreads) {
+		if (virtualThreads) {
+			try {
+				Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService) factory.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				Log.warn("Virtual threads not supported by this JVM, using platform threads");
+			}
+		}
+		if (numWorkers <= 0) {
+			numWorkers = Runtime.getRuntime().availableProcessors();
+		}
+		return Executors.newFixedThreadPool(numWorkers);
+	}
+
 	public void run() throws IOException {
+		if (channel != null) {
+			runWorkerPool();
+			return;
+		}
 		byte[] receptionBuffer = null;
 		InetSocketAddress clientAddr = null;
 		int dataLength = -1;
@@ -129,14 +726,25 @@ public class NFDirectoryServer {
 		 */
 		receptionBuffer = new byte[DirMessage.PACKET_MAX_SIZE];
 		DatagramPacket packetFromClient = new DatagramPacket(receptionBuffer, receptionBuffer.length);
+		/*
+		 * Búferes, mensaje de petición y datagrama de respuesta reutilizados en cada
+		 * iteración, para no reservar memoria al decodificar y codificar
+		 */
+		ByteBuffer requestBuffer = ByteBuffer.wrap(receptionBuffer);
+		// Las respuestas se codifican sin comprimir antes de comprimirlas
+		ByteBuffer responseBuffer = ByteBuffer.allocate(DirMessage.MAX_MESSAGE_SIZE);
+		DirMessage request = new DirMessage();
+		DatagramPacket packetToClient = new DatagramPacket(responseBuffer.array(), 0);
 
-		System.out.println("Directory starting...");
+		Log.info("Directory starting...");
 
 		while (true) { // Bucle principal del servidor de directorio
 
 			// TODO: (Boletín UDP) Recibimos a través del socket un datagrama
-			System.out.println("Waiting to receive datagram...");
+			Log.debug("Waiting to receive datagram...");
 			socket.receive(packetFromClient);
+			long receivedAt = System.nanoTime();
+			stats.countReceived();
 			// TODO: (Boletín UDP) Establecemos dataLength con longitud del datagrama
 			// recibido
 			dataLength = packetFromClient.getLength();
@@ -152,7 +760,9 @@ public class NFDirectoryServer {
 					System.exit(-1);
 				}
 			}
-			System.out.println("Directory received datagram from " + clientAddr + " of size " + dataLength + " bytes");
+			if (Log.isEnabled(Log.Level.DEBUG)) {
+				Log.debug("Directory received datagram from " + clientAddr + " of size " + dataLength + " bytes");
+			}
 
 			// Analizamos la solicitud y la procesamos
 			if (dataLength > 0) {
@@ -160,9 +770,8 @@ public class NFDirectoryServer {
 				 * TODO: (Boletín UDP) Construir una cadena a partir de los datos recibidos en
 				 * el buffer de recepción
 				 */
-				String messageFromClient = new String(receptionBuffer, 0, dataLength);
-
 				if (NanoFiles.testMode) { // En modo de prueba (mensajes en "crudo", boletín UDP)
+					String messageFromClient = new String(receptionBuffer, 0, dataLength);
 					System.out.println("[testMode] Contents interpreted as " + dataLength + "-byte String: \""
 							+ messageFromClient + "\"");
 					/*
@@ -184,8 +793,7 @@ public class NFDirectoryServer {
 						byte[] dataToClient = messageToClient.getBytes();
 						System.out.println("Sending datagram with message \"" + messageToClient + "\"");
 						System.out.println("Destination is client at addr: " + clientAddr);
-						DatagramPacket packetToClient = new DatagramPacket(dataToClient, dataToClient.length, clientAddr);
-						socket.send(packetToClient);
+						socket.send(new DatagramPacket(dataToClient, dataToClient.length, clientAddr));
 					} else {
 						System.err.println("Login fallido.");		
 					}
@@ -195,46 +803,432 @@ public class NFDirectoryServer {
 					// Vemos si el mensaje debe ser ignorado por la probabilidad de descarte
 					double rand = Math.random();
 					if (rand < messageDiscardProbability) {
-						System.err.println("Directory DISCARDED datagram from " + clientAddr);
+						Log.warn("Directory DISCARDED datagram from " + clientAddr);
+						stats.countDiscarded();
+						continue;
+					}
+
+					// Los fragmentos se reúnen hasta tener la petición completa
+					ByteBuffer requestData = requestBuffer.clear().limit(dataLength);
+					if (DirFragments.isFragment(requestData)) {
+						requestData = receiveFragment(requestData, clientAddr);
+						if (requestData == null) {
+							continue;
+						}
+					}
+
+					// Se comprueba la tasa del cliente antes de decodificar su petición
+					if (!admit(clientAddr, requestData.get(0) == DirMessage.BINARY_MAGIC)) {
 						continue;
 					}
 
 					/*
-					 * TODO: Construir String partir de los datos recibidos en el datagrama. A
-					 * continuación, imprimir por pantalla dicha cadena a modo de depuración.
-					 * Después, usar la cadena para construir un objeto DirMessage que contenga en
-					 * sus atributos los valores del mensaje (fromString).
-					 */
-					System.out.println(messageFromClient);
-					DirMessage request = DirMessage.fromString(messageFromClient);
-					/*
-					 * TODO: Llamar a buildResponseFromRequest para construir, a partir del objeto
-					 * DirMessage con los valores del mensaje de petición recibido, un nuevo objeto
-					 * DirMessage con el mensaje de respuesta a enviar. Los atributos del objeto
-					 * DirMessage de respuesta deben haber sido establecidos con los valores
-					 * adecuados para los diferentes campos del mensaje (operation, etc.)
+					 * Decodificar los datos recibidos directamente desde el búfer de recepción
+					 * sobre el objeto DirMessage reutilizable (readFrom), e imprimirlo por
+					 * pantalla a modo de depuración (sólo con el nivel DEBUG, ya que volcar el
+					 * mensaje entero es costoso). Un datagrama mal formado se ignora.
 					 */
-					DirMessage mensajeProcesado = buildResponseFromRequest(request, clientAddr);
+					try {
+						request.readFrom(requestData);
+					} catch (RuntimeException e) {
+						Log.warn("Directory ignores MALFORMED datagram from " + clientAddr + ": " + e);
+						stats.countMalformed();
+						continue;
+					}
+					if (Log.isEnabled(Log.Level.DEBUG)) {
+						Log.debug(request.toString());
+					}
 					/*
-					 * TODO: Convertir en string el objeto DirMessage con el mensaje de respuesta a
-					 * enviar, extraer los bytes en que se codifica el string (getBytes), y
-					 * finalmente enviarlos en un datagrama
+					 * Construir la respuesta a partir del mensaje de petición y codificarla en el
+					 * búfer de envío, en el mismo formato que la petición (o copiarla de la caché
+					 * de respuestas si no ha cambiado el estado), y enviarla en un datagrama. Un
+					 * error al atender una petición se registra y no detiene el directorio (como
+					 * en sendResponse, en el modo multihilo).
 					 */
-					String paraEnviar = mensajeProcesado.toString();
-					byte[] dataToClient = paraEnviar.getBytes();
-					System.out.println("Sending datagram with message \"" + paraEnviar + "\"");
-					System.out.println("Destination is client at addr: " + clientAddr);
-					DatagramPacket packetToClient = new DatagramPacket(dataToClient, dataToClient.length, clientAddr);
-					socket.send(packetToClient);
+					try {
+						responseBuffer.clear();
+						DirMessage mensajeProcesado = writeResponse(request, clientAddr, responseBuffer);
+						if (responseBuffer.position() == 0) {
+							continue;
+						}
+						if (Log.isEnabled(Log.Level.DEBUG)) {
+							if (mensajeProcesado != null) {
+								Log.debug("Sending datagram with message \"" + mensajeProcesado + "\"");
+							} else {
+								Log.debug("Sending cached response of " + responseBuffer.position()
+										+ " bytes (responses: " + responseCache + "; retransmissions: " + replyCache
+										+ ")");
+							}
+							Log.debug("Destination is client at addr: " + clientAddr);
+						}
+						int fragments = fragmentCount(request, responseBuffer.position());
+						if (fragments > 0) {
+							responseBuffer.flip();
+							sendFragments(responseBuffer, request.getRequestId(), fragments, null, clientAddr);
+						} else if (impairment != null) {
+							sendDatagram(responseBuffer.flip(), clientAddr);
+						} else {
+							packetToClient.setData(responseBuffer.array(), 0, responseBuffer.position());
+							packetToClient.setSocketAddress(clientAddr);
+							socket.send(packetToClient);
+						}
+						stats.recordRequest(request.getOperation(), System.nanoTime() - receivedAt);
+					} catch (IOException e) {
+						Log.error("Directory cannot send response to " + clientAddr + ": " + e.getMessage());
+					} catch (RuntimeException e) {
+						Log.error("Directory failed to process request from " + clientAddr + ": " + e);
+					}
 				}
 			} else {
-				System.err.println("Directory ignores EMPTY datagram from " + clientAddr);
+				Log.warn("Directory ignores EMPTY datagram from " + clientAddr);
+				stats.countEmpty();
+			}
+
+		}
+	}
+
+	/**
+	 * Bucle principal del modo multihilo: un único hilo recibe los datagramas del
+	 * canal y los decodifica, y cada petición se entrega al pool de workers, que
+	 * construye la respuesta y la envía por su cuenta.
+	 */
+	private void runWorkerPool() throws IOException {
+		ByteBuffer receptionBuffer = ByteBuffer.allocateDirect(DirMessage.PACKET_MAX_SIZE);
+
+		Log.info("Directory starting (worker pool mode)...");
+
+		while (true) {
+			receptionBuffer.clear();
+			InetSocketAddress clientAddr = (InetSocketAddress) channel.receive(receptionBuffer);
+			long receivedAt = System.nanoTime();
+			stats.countReceived();
+			receptionBuffer.flip();
+			int dataLength = receptionBuffer.remaining();
+			if (dataLength == 0) {
+				Log.warn("Directory ignores EMPTY datagram from " + clientAddr);
+				stats.countEmpty();
+				continue;
+			}
+			if (Math.random() < messageDiscardProbability) {
+				Log.warn("Directory DISCARDED datagram from " + clientAddr);
+				stats.countDiscarded();
+				continue;
+			}
+			ByteBuffer requestData = receptionBuffer;
+			if (DirFragments.isFragment(requestData)) {
+				requestData = receiveFragment(requestData, clientAddr);
+				if (requestData == null) {
+					continue;
+				}
+			}
+			if (!admit(clientAddr, requestData.get(0) == DirMessage.BINARY_MAGIC)) {
+				continue;
+			}
+			// El mensaje se decodifica directamente del búfer, que se reutiliza
+			DirMessage request = new DirMessage();
+			try {
+				request.readFrom(requestData);
+			} catch (RuntimeException e) {
+				Log.warn("Directory ignores MALFORMED datagram from " + clientAddr + ": " + e);
+				stats.countMalformed();
+				continue;
+			}
+			workers.execute(() -> sendResponse(request, clientAddr, receivedAt));
+		}
+	}
+
+	/**
+	 * Comprueba si se atiende una petición según la tasa de peticiones de su
+	 * cliente, sin decodificarla. Si el cliente la ha superado, se le responde
+	 * THROTTLED con el tiempo que debe esperar; mientras no pase ese tiempo, el
+	 * resto de sus peticiones se descartan sin responder.
+	 *
+	 * @param binary Si la petición está en formato binario (se responde en el
+	 *               mismo formato)
+	 * @return Verdadero si la petición debe atenderse
+	 */
+	private boolean admit(InetSocketAddress clientAddr, boolean binary) throws IOException {
+		if (rateLimiter == null) {
+			return true;
+		}
+		long retryAfter = rateLimiter.admit(clientAddr.getAddress(), System.nanoTime());
+		if (retryAfter == ClientRateLimiter.ADMIT) {
+			return true;
+		}
+		stats.countThrottled(retryAfter != ClientRateLimiter.DROP);
+		if (retryAfter != ClientRateLimiter.DROP) {
+			throttledReply.setRetryAfter((int) retryAfter);
+			throttledBuffer.clear();
+			throttledReply.writeTo(throttledBuffer, binary);
+			sendDatagram(throttledBuffer.flip(), clientAddr);
+			Log.warn("Directory THROTTLED client " + clientAddr + " (retry after " + retryAfter + " ms, "
+					+ rateLimiter + ")");
+		}
+		return false;
+	}
+
+	/**
+	 * Construye la respuesta a una petición y la envía al cliente. Se ejecuta en
+	 * los hilos del pool de workers.
+	 *
+	 * @param receivedAt Instante en que se recibió la petición (System.nanoTime)
+	 */
+	private void sendResponse(DirMessage request, InetSocketAddress clientAddr, long receivedAt) {
+		ByteBuffer responseBuffer = responseBuffers.acquire();
+		try {
+			writeResponse(request, clientAddr, responseBuffer);
+			responseBuffer.flip();
+			if (responseBuffer.hasRemaining()) {
+				int fragments = fragmentCount(request, responseBuffer.remaining());
+				if (fragments > 0) {
+					sendFragments(responseBuffer, request.getRequestId(), fragments, null, clientAddr);
+				} else {
+					sendDatagram(responseBuffer, clientAddr);
+				}
+				stats.recordRequest(request.getOperation(), System.nanoTime() - receivedAt);
+			}
+		} catch (IOException e) {
+			Log.error("Directory cannot send response to " + clientAddr + ": " + e.getMessage());
+		} catch (RuntimeException e) {
+			Log.error("Directory failed to process request from " + clientAddr + ": " + e);
+		} finally {
+			responseBuffers.release(responseBuffer);
+		}
+	}
+
+	/**
+	 * Atiende un fragmento o un NACK recibido de un cliente (ver DirFragments). Los
+	 * fragmentos de una petición se reúnen hasta tenerla completa, y si al recibir
+	 * el último faltan otros se piden con un NACK. Un NACK del cliente pide los
+	 * fragmentos que le faltan de una respuesta, que se reenvían desde replyCache.
+	 *
+	 * @param buf El datagrama recibido, de la posición al límite
+	 * @return La petición, si con este fragmento está completa, o null
+	 */
+	private ByteBuffer receiveFragment(ByteBuffer buf, InetSocketAddress clientAddr) throws IOException {
+		try {
+			if (DirFragments.isNack(buf)) {
+				DirFragments.Nack nack = DirFragments.readNack(buf);
+				stats.countNack(false);
+				byte[] reply = replyCache.get(clientAddr, nack.messageId);
+				if (reply != null && DirFragments.isValidCount(reply.length, nack.count)) {
+					sendFragments(ByteBuffer.wrap(reply), nack.messageId, nack.count, nack.missing, clientAddr);
+				}
+				return null;
+			}
+			DirFragments.Assembly assembly = reassembler.add(clientAddr, buf, System.nanoTime());
+			stats.countFragmentReceived(assembly.isComplete());
+			if (assembly.isComplete()) {
+				return assembly.getMessage();
+			}
+			// Si faltan fragmentos, el NACK lo envía el hilo fragment-nacks
+			return null;
+		} catch (IllegalArgumentException e) {
+			Log.warn("Directory ignores MALFORMED fragment from " + clientAddr + ": " + e.getMessage());
+			stats.countMalformed();
+			return null;
+		}
+	}
+
+	/**
+	 * @return El número de fragmentos en que debe enviarse una respuesta de
+	 *         length bytes, o 0 si cabe en la MTU que indicó la petición o el
+	 *         cliente no acepta fragmentos
+	 */
+	private static int fragmentCount(DirMessage request, int length) {
+		int mtu = DirFragments.validMtu(request.getMtu());
+		if (request.getRequestId() == DirMessage.NO_VALUE || !DirFragments.needsFragments(length, mtu)) {
+			return 0;
+		}
+		return DirFragments.count(length, mtu);
+	}
+
+	/**
+	 * Envía una respuesta fragmentada, o sólo algunos de sus fragmentos
+	 *
+	 * @param message   La respuesta codificada, de la posición al límite
+	 * @param messageId El identificador de la petición
+	 * @param count     El número de fragmentos de la respuesta
+	 * @param indices   Los fragmentos que se envían, o null para enviarlos todos
+	 */
+	private void sendFragments(ByteBuffer message, int messageId, int count, int[] indices,
+			InetSocketAddress clientAddr) throws IOException {
+		ByteBuffer fragment = ByteBuffer.allocate(
+				DirFragments.HEADER_SIZE + DirFragments.payloadSize(message.remaining(), count));
+		int sent = (indices == null) ? count : indices.length;
+		for (int i = 0; i < sent; i++) {
+			fragment.clear();
+			DirFragments.writeFragment(fragment, message, messageId, (indices == null) ? i : indices[i], count);
+			fragment.flip();
+			sendDatagram(fragment, clientAddr);
+		}
+		stats.countFragmentsSent(sent, indices != null);
+	}
+
+	/**
+	 * Indica si una operación modifica el estado del directorio, y por tanto
+	 * necesita el cerrojo de escritura.
+	 */
+	private static boolean isMutatingOperation(String operation) {
+		switch (operation) {
+		case DirMessageOps.OPERATION_LOGIN:
+		case DirMessageOps.OPERATION_LOGOUT:
+		case DirMessageOps.OPERATION_REGISTER:
+		case DirMessageOps.OPERATION_UNREGISTER:
+		case DirMessageOps.OPERATION_PUBLISH:
+		case DirMessageOps.OPERATION_PUBLISHDELTA:
+		case DirMessageOps.OPERATION_PUBLISHFILTER:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Indica si la respuesta a una operación que modifica el estado confirma que
+	 * lo ha modificado. Las peticiones rechazadas (sesión no válida, ficheros de
+	 * otra partición, versión que no coincide...) no cambian el estado.
+	 */
+	private static boolean isStateChange(DirMessage response) {
+		switch (response.getOperation()) {
+		case LOGIN_OK:
+		case LOGOUT_OK:
+		case REGISTER_OK:
+		case UNREGISTER_OK:
+		case PUBLISH_OK:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Construye la respuesta a una petición y la codifica en out, en el mismo
+	 * formato que la petición. Puede llamarse desde varios hilos a la vez.
+	 *
+	 * Si la petición lleva identificador, la respuesta lo incluye y se guarda en
+	 * replyCache: una retransmisión de la misma petición recibe la respuesta
+	 * guardada sin volver a ejecutarse.
+	 *
+	 * Si el cliente acepta respuestas comprimidas, las grandes se comprimen al
+	 * final, ya con el identificador, de modo que replyCache guarda la respuesta
+	 * comprimida. responseCache guarda las respuestas sin comprimir.
+	 *
+	 * @return La respuesta construida, o null si se ha copiado de una caché o no
+	 *         hay respuesta (en ese caso no se escribe nada en out)
+	 */
+	private DirMessage writeResponse(DirMessage msg, InetSocketAddress clientAddr, ByteBuffer out) {
+		int requestId = msg.getRequestId();
+		if (requestId == DirMessage.NO_VALUE) {
+			int start = out.position();
+			DirMessage response = encodeResponse(msg, clientAddr, out);
+			compressResponse(msg, out, start);
+			return response;
+		}
+		if (replyCache.begin(clientAddr, requestId, out) != ReplyCache.Lookup.MISS) {
+			return null;
+		}
+		int start = out.position();
+		boolean completed = false;
+		try {
+			DirMessage response = encodeResponse(msg, clientAddr, out);
+			if (out.position() > start) {
+				DirMessage.appendRequestId(out, msg.isBinary(), requestId);
+				compressResponse(msg, out, start);
+				replyCache.complete(clientAddr, requestId, out, start, out.position());
+				completed = true;
+			}
+			return response;
+		} finally {
+			if (!completed) {
+				replyCache.abandon(clientAddr, requestId);
+			}
+		}
+	}
+
+	/**
+	 * Comprime la respuesta codificada en out desde start, si el cliente acepta
+	 * respuestas comprimidas y es suficientemente grande
+	 */
+	private void compressResponse(DirMessage msg, ByteBuffer out, int start) {
+		int length = out.position() - start;
+		if (msg.acceptsDeflate() && DirMessage.deflate(out, start)) {
+			stats.countCompressed(length, out.position() - start);
+		}
+	}
+
+	/**
+	 * Construye la respuesta a una petición y la codifica en out, sin
+	 * identificador de petición. El acceso al estado del directorio se protege con
+	 * stateLock. Las respuestas de LIST y FILELIST se copian de responseCache
+	 * mientras el estado no cambie: la generación sólo se incrementa cuando una
+	 * operación lo modifica de verdad, no con cada petición rechazada.
+	 *
+	 * @return La respuesta construida, o null si se ha copiado de la caché o no hay
+	 *         respuesta
+	 */
+	private DirMessage encodeResponse(DirMessage msg, InetSocketAddress clientAddr, ByteBuffer out) {
+		boolean mutating = isMutatingOperation(msg.getOperation());
+		Lock lock = mutating ? stateLock.writeLock() : stateLock.readLock();
+		lock.lock();
+		try {
+			String cacheKey = getCacheKey(msg);
+			int start = out.position();
+			if (cacheKey != null && sessionKeys.containsKey(msg.getSessionKeyValue())
+					&& responseCache.copyTo(cacheKey, generation, out)) {
+				return null;
 			}
+			DirMessage response = null;
+			try {
+				response = processRequest(msg, clientAddr);
+			} finally {
+				// Si processRequest falla a medias, se supone que el estado ha cambiado
+				if (mutating && (response == null || isStateChange(response))) {
+					generation++;
+				}
+			}
+			if (response == null) {
+				return null;
+			}
+			response.writeTo(out, msg.isBinary());
+			if (cacheKey != null && (response.getOperation().equals(LIST_OK)
+					|| response.getOperation().equals(FILELIST_OK))) {
+				responseCache.put(cacheKey, generation, out, start, out.position());
+			}
+			return response;
+		} finally {
+			lock.unlock();
+		}
+	}
 
+	/**
+	 * Clave con la que se guarda en responseCache la respuesta a una petición, o
+	 * null si la respuesta no se guarda. La respuesta sólo depende de la operación,
+	 * del formato y, en FILELIST, de la página pedida y de si el cliente acepta
+	 * respuestas comprimidas o fragmentadas (que admiten páginas mayores).
+	 */
+	private static String getCacheKey(DirMessage msg) {
+		String format = (msg.isBinary() ? "binary:" : "text:") + (msg.acceptsDeflate() ? "deflate:" : "")
+				+ (acceptsFragments(msg) ? "fragments:" : "");
+		switch (msg.getOperation()) {
+		case DirMessageOps.OPERATION_LIST:
+			return format + DirMessageOps.OPERATION_LIST;
+		case DirMessageOps.OPERATION_FILELIST:
+			return format + DirMessageOps.OPERATION_FILELIST + ":" + msg.getPageSize() + ":" + msg.getCursor();
+		default:
+			return null;
 		}
 	}
 
-	private DirMessage buildResponseFromRequest(DirMessage msg, InetSocketAddress clientAddr) {
+	/**
+	 * @return Si la respuesta a la petición puede enviarse fragmentada
+	 */
+	private static boolean acceptsFragments(DirMessage msg) {
+		return msg.getRequestId() != DirMessage.NO_VALUE
+				&& DirFragments.validMtu(msg.getMtu()) != DirMessage.NO_VALUE;
+	}
+
+	private DirMessage processRequest(DirMessage msg, InetSocketAddress clientAddr) {
 		/*
 		 * TODO: Construir un DirMessage con la respuesta en función del tipo de mensaje
 		 * recibido, leyendo/modificando según sea necesario los atributos de esta clase
@@ -257,16 +1251,30 @@ public class NFDirectoryServer {
 			 * para generar la session key
 			 */
 			if(!nicks.containsKey(username)) {
-				Integer sessionKey = random.nextInt(1000);
+				Integer sessionKey = random.nextInt(Integer.MAX_VALUE);
+				while (sessionKeys.containsKey(sessionKey)) {
+					sessionKey = random.nextInt(Integer.MAX_VALUE);
+				}
 				nicks.put(username, sessionKey);
 				sessionKeys.put(sessionKey, username);
+				leases.schedule(sessionKey, LEASE_DURATION_MS);
+				final int key = sessionKey;
+				journal(j -> j.logLogin(username, key));
 				response = new DirMessage(LOGIN_OK);
 				response.setNickname(username);
-				response.setSessionKey(sessionKey.toString());
-				System.out.println("Login successful.");
+				response.setSessionKey(sessionKey.intValue());
+				if(msg.acceptsDeflate()) {
+					// El cliente puede enviar también sus peticiones comprimidas
+					response.setCompress(DirMessage.COMPRESSION_DEFLATE);
+				}
+				if(DirFragments.validMtu(msg.getMtu()) != DirMessage.NO_VALUE) {
+					// Y también sus peticiones fragmentadas
+					response.setMtu(DirFragments.validMtu(msg.getMtu()));
+				}
+				Log.info("Login successful.");
 			} else {
 				response = new DirMessage(LOGIN_ERR);
-				System.out.println("ERROR: Login failed.");
+				Log.info("ERROR: Login failed.");
 			}
 			/*
 			 * TODO: Construimos un mensaje de respuesta que indique el éxito/fracaso del
@@ -281,197 +1289,588 @@ public class NFDirectoryServer {
 			return response;
 		}
 		case DirMessageOps.OPERATION_LOGOUT: {
-			int sessionKey = Integer.parseInt(msg.getSessionKey());
+			int sessionKey = msg.getSessionKeyValue();
 			if(sessionKeys.containsKey(sessionKey)) {
-				String username = sessionKeys.get(sessionKey);
-				nicks.remove(username);
-				sessionKeys.remove(sessionKey);
-				nickPort.remove(username);
-				nickIP.remove(username);
+				leases.cancel(sessionKey);
+				String username = removeSession(sessionKey);
+				journal(j -> j.logLogout(username));
 				response = new DirMessage(LOGOUT_OK);
-				response.setSessionKey(msg.getSessionKey());
+				response.setSessionKey(msg.getSessionKeyValue());
 				response.setNickname(username);
-				System.out.println("Logout successful.");
+				Log.info("Logout successful.");
 				break;
 			} else {
 				response = new DirMessage(LOGOUT_ERR);
-				System.out.println("ERROR: Logout error. Invalid sessionKey");
+				Log.info("ERROR: Logout error. Invalid sessionKey");
 				break;
 			}
 		}
+		case DirMessageOps.OPERATION_HEARTBEAT: {
+			/*
+			 * Renovar la sesión sólo toca la rueda de sesiones y la carga de los
+			 * servidores, que tienen su propia sincronización, así que basta con el
+			 * cerrojo de lectura
+			 */
+			int sessionKey = msg.getSessionKeyValue();
+			if(sessionKeys.containsKey(sessionKey) && leases.contains(sessionKey)) {
+				leases.schedule(sessionKey, LEASE_DURATION_MS);
+				String username = sessionKeys.get(sessionKey);
+				if(nickPort.containsKey(username)) {
+					serverLoad.report(username, msg.getUploads(), msg.getFreeBandwidth());
+				}
+				response = new DirMessage(HEARTBEAT_OK);
+				/*
+				 * Con el último aviso enviado, el cliente detecta si ha perdido los últimos
+				 * (o, si falta, que el directorio ha olvidado su suscripción)
+				 */
+				int sequence = watches.getSequence(sessionKey);
+				if(sequence != DirMessage.NO_VALUE) {
+					response.setVersion(sequence);
+				}
+			} else {
+				response = new DirMessage(HEARTBEAT_ERR);
+				Log.info("ERROR: heartbeat error. Invalid or expired sessionKey");
+			}
+			break;
+		}
 		case DirMessageOps.OPERATION_LIST: {
-			int sessionKey = Integer.parseInt(msg.getSessionKey());
+			int sessionKey = msg.getSessionKeyValue();
 			if(sessionKeys.containsKey(sessionKey)) {
-				String username = "";
+				StringBuilder users = new StringBuilder();
 				for(String usr : nicks.keySet()) {
-					String usrInfo = usr;
+					users.append(usr);
 					if(nickPort.containsKey(usr)) {
-						usrInfo+=":Server";
-						usrInfo+="\t Port: " + nickPort.get(usr);
+						users.append(":Server\t Port: ").append(nickPort.get(usr));
 					}else {
-						usrInfo+=":User";
+						users.append(":User");
 					}
-					username += usrInfo+",";
+					users.append(',');
 				}
 				response = new DirMessage(LIST_OK);
-				response.setUsers(username);
-				response.setSessionKey(msg.getSessionKey());
-				response.setNickname(sessionKeys.get(Integer.parseInt(msg.getSessionKey())));
-				System.out.println("List successful.");
+				// La respuesta es la misma para todos los usuarios, y se puede guardar en caché
+				response.setUsers(users.toString());
+				Log.info("List successful.");
 				break;
 			} else {
 				response = new DirMessage(LIST_ERR);
-				System.out.println("ERROR: List failed. Invalid sessionKey");
+				Log.info("ERROR: List failed. Invalid sessionKey");
 				break;
 			}
 		}
 		case DirMessageOps.OPERATION_DOWNLOADFROM: {
 			String username = msg.getNickname();
-			int sessionKey = Integer.parseInt(msg.getSessionKey());
+			int sessionKey = msg.getSessionKeyValue();
 			if(sessionKeys.containsKey(sessionKey)) {
 				if(nickPort.containsKey(username) && nickIP.containsKey(username)) {
 					response = new DirMessage(DOWNLOADFROM_OK);
 					response.setPort(nickPort.get(username));
-					response.setIp(clientAddr.getAddress());
-					System.out.println("Downloadfrom successful.");
+					response.setIp(nickIP.get(username));
+					Log.info("Downloadfrom successful.");
 					break;
 				} else {
 					response = new DirMessage(DOWNLOADFROM_ERR);
-					System.out.println("ERROR: downloadfrom failed. Invalid nickname");
+					Log.info("ERROR: downloadfrom failed. Invalid nickname");
 					break;
 				}
 			} else {
 				response = new DirMessage(DOWNLOADFROM_ERR);
-				System.out.println("ERROR: downloadfrom failed. Invalid sessionKey");
+				Log.info("ERROR: downloadfrom failed. Invalid sessionKey");
 				break;
 			}
 		}
 		case DirMessageOps.OPERATION_REGISTER: {
-			int sessionKey = Integer.parseInt(msg.getSessionKey());
+			int sessionKey = msg.getSessionKeyValue();
 			if(sessionKeys.containsKey(sessionKey)) {
 				String username = sessionKeys.get(sessionKey);
 				nickPort.put(username, msg.getPort());
 				nickIP.put(username, clientAddr.getAddress());
+				serverLoad.report(username, msg.getUploads(), msg.getFreeBandwidth());
+				journal(j -> j.logRegister(username, msg.getPort(), clientAddr.getAddress()));
 				response = new DirMessage(REGISTER_OK);
-				System.out.println("Register successfu.");
-				System.out.println(nickPort);
+				Log.info("Register successfu.");
+				if (Log.isEnabled(Log.Level.DEBUG)) {
+					Log.debug(nickPort.toString());
+				}
 				break;
 			} else {
 				response = new DirMessage(REGISTER_ERR);
-				System.out.println("ERROR: register error. Invalid sessionKey");
+				Log.info("ERROR: register error. Invalid sessionKey");
 				break;
 			}
 		}
 		case DirMessageOps.OPERATION_UNREGISTER: {
-			int sessionKey = Integer.parseInt(msg.getSessionKey());
+			int sessionKey = msg.getSessionKeyValue();
 			if(sessionKeys.containsKey(sessionKey)) {
 				String username = sessionKeys.get(sessionKey);
 				nickPort.remove(username);
 				nickIP.remove(username);
-				publishedFiles.remove(sessionKey);
-				for(LinkedList<String> servers : fichServers.values()) {
-					if(servers.contains(username)) {
-						servers.remove(username);
-					}
-				}
-				LinkedList<String> vacias = new LinkedList<String>();
-				for(Map.Entry<String, LinkedList<String>> entry : fichServers.entrySet()) {
-					if(entry.getValue().isEmpty()) {
-						vacias.add(entry.getKey());
-					}
-				}
-				for(String entry : vacias) {
-					fichServers.remove(entry);
-				}
+				serverLoad.remove(username);
+				fileIndex.removeServer(username);
+				peerFilters.remove(username);
+				journal(j -> j.logUnregister(username));
 				response = new DirMessage(UNREGISTER_OK);
-				System.out.println("Unregister successful.");
+				Log.info("Unregister successful.");
 				break;
 			} else {
 				response = new DirMessage(REGISTER_ERR);
-				System.out.println("ERROR: unregister error. Invalid sessionKey");
+				Log.info("ERROR: unregister error. Invalid sessionKey");
 				break;
 			}
 		}
 		case DirMessageOps.OPERATION_PUBLISH: {
-			int sessionKey = Integer.parseInt(msg.getSessionKey());
+			int sessionKey = msg.getSessionKeyValue();
+			HashMap<String,String> hashesSet = parseFileList(msg.getFiles());
+			if(!ownsAll(hashesSet.keySet())) {
+				response = new DirMessage(PUBLISH_ERR);
+				Log.info("ERROR: publish error. Files outside shard " + shard);
+				break;
+			}
 			if(sessionKeys.containsKey(sessionKey)) {
-				String[] files = msg.getFiles().split(":");
-				HashMap<String,String> hashesSet = new HashMap<String,String>();
-				for(int i = 0; i < files.length; i++) {
-					hashesSet.put(files[i].split(",")[0], files[i].split(",")[1]);
-				}
-				publishedFiles.put(sessionKey, hashesSet);
-				for(String hash : hashesSet.keySet()) {
-					if(!fichServers.containsKey(hash)) {
-						fichServers.put(hash, new LinkedList<String>());
+				int version = (msg.getVersion() == DirMessage.NO_VALUE) ? 0 : msg.getVersion();
+				String nick = sessionKeys.get(sessionKey);
+				fileIndex.publish(nick, hashesSet, version);
+				journal(j -> j.logPublish(nick, hashesSet, version));
+				response = new DirMessage(PUBLISH_OK);
+				response.setVersion(version);
+				Log.info("Files published successfully");
+				break;
+			} else {
+				response = new DirMessage(PUBLISH_ERR);
+				Log.info("ERROR: publish error. Invalid sessionKey");
+				break;
+			}
+		}
+		case DirMessageOps.OPERATION_PUBLISHDELTA: {
+			int sessionKey = msg.getSessionKeyValue();
+			if(sessionKeys.containsKey(sessionKey) && msg.getBaseVersion() != DirMessage.NO_VALUE
+					&& msg.getVersion() != DirMessage.NO_VALUE) {
+				String nick = sessionKeys.get(sessionKey);
+				HashMap<String,String> added = parseFileList(msg.getFiles());
+				List<String> removed = parseHashList(msg.getRemoved());
+				if(!ownsAll(added.keySet())) {
+					response = new DirMessage(PUBLISH_ERR);
+					Log.info("ERROR: publish error. Files outside shard " + shard);
+					break;
+				}
+				if(fileIndex.applyDelta(nick, added, removed, msg.getBaseVersion(), msg.getVersion())) {
+					journal(j -> j.logDelta(nick, added, removed, msg.getBaseVersion(), msg.getVersion()));
+					response = new DirMessage(PUBLISH_OK);
+					response.setVersion(msg.getVersion());
+					Log.info("Files published successfully (" + added.size() + " added, " + removed.size()
+							+ " removed)");
+				} else {
+					// El catálogo del directorio no es la base de los cambios: publicación completa
+					response = new DirMessage(PUBLISH_RESYNC);
+					response.setVersion(fileIndex.getVersion(nick));
+					Log.info("ERROR: publish error. Catalogue version mismatch, full publish required");
+				}
+				break;
+			} else {
+				response = new DirMessage(PUBLISH_ERR);
+				Log.info("ERROR: publish error. Invalid sessionKey or version");
+				break;
+			}
+		}
+		case DirMessageOps.OPERATION_PUBLISHFILTER: {
+			int sessionKey = msg.getSessionKeyValue();
+			if(sessionKeys.containsKey(sessionKey) && msg.getVersion() != DirMessage.NO_VALUE) {
+				/*
+				 * El peer envía su filtro de Bloom en trozos, uno por petición, y sólo se usa
+				 * cuando han llegado todos. Un filtro de tamaño 0 retira el anterior.
+				 */
+				String nick = sessionKeys.get(sessionKey);
+				int version = msg.getVersion();
+				if(msg.getFilterSize() == 0) {
+					if(peerFilters.remove(nick)) {
+						journal(j -> j.logFilter(nick, version, 0, null));
 					}
-					fichServers.get(hash).add(sessionKeys.get(sessionKey));
+					response = new DirMessage(PUBLISH_OK);
+					response.setVersion(version);
+					Log.info("Filter removed");
+					break;
+				}
+				try {
+					PeerFilters.PeerFilter complete = peerFilters.receive(nick, version, msg.getHashCount(),
+							msg.getFilterSize(), msg.getOffset(), msg.getFilter());
+					if(complete != null) {
+						journal(j -> j.logFilter(nick, version, complete.filter.getHashCount(),
+								complete.filter.getBits()));
+						Log.info("Filter published successfully (" + msg.getFilterSize() + " bytes)");
+					}
+					response = new DirMessage(PUBLISH_OK);
+					response.setVersion(version);
+					response.setOffset(msg.getOffset());
+				} catch(IllegalArgumentException e) {
+					response = new DirMessage(PUBLISH_ERR);
+					Log.info("ERROR: publish filter error. Invalid filter chunk");
 				}
-				response = new DirMessage(PUBLISH_OK);
-				System.out.println("Files published successfully");
 				break;
 			} else {
 				response = new DirMessage(PUBLISH_ERR);
-				System.out.println("ERROR: publish error. Invalid sessionKey");
+				Log.info("ERROR: publish filter error. Invalid sessionKey or version");
 				break;
 			}
 		}
 		case DirMessageOps.OPERATION_FILELIST: {
-			int sessionKey = Integer.parseInt(msg.getSessionKey());
+			int sessionKey = msg.getSessionKeyValue();
 			if(sessionKeys.containsKey(sessionKey)) {
-				response = new DirMessage(FILELIST_OK);
-				String files = "";
-				Set<String> hashesInserted = new HashSet<String>();
-				for(Map.Entry<Integer,HashMap<String,String>> server : publishedFiles.entrySet()) {
-					for(Map.Entry<String,String> fichero : server.getValue().entrySet()){
-						if(!hashesInserted.contains(fichero.getKey())){
-							files += fichero.getKey() + "," + fichero.getValue() + ":";
-							hashesInserted.add(fichero.getKey());
-						}
+				/*
+				 * Se devuelve una página de como mucho pageSize ficheros que quepa en un
+				 * datagrama (comprimida, si el cliente lo acepta) o en un mensaje fragmentado
+				 * (si el cliente acepta fragmentos), continuando tras el cursor recibido. Si
+				 * quedan más ficheros, la respuesta incluye el cursor de la página siguiente.
+				 */
+				int pageSize = msg.getPageSize();
+				if(pageSize <= 0 || pageSize > FILELIST_MAX_PAGE_SIZE) {
+					pageSize = (pageSize <= 0) ? FILELIST_DEFAULT_PAGE_SIZE : FILELIST_MAX_PAGE_SIZE;
+				}
+				List<FileInfo> page = fileIndex.getFilesPage(msg.getCursor(), pageSize + 1);
+				boolean fragments = acceptsFragments(msg);
+				int maxBytes = (msg.acceptsDeflate() || fragments) ? FILELIST_MAX_DEFLATED_PAGE_BYTES
+						: FILELIST_MAX_PAGE_BYTES;
+				StringBuilder files = new StringBuilder();
+				List<Integer> ends = new ArrayList<Integer>();
+				int included = 0;
+				int bytes = 0;
+				for(FileInfo fichero : page) {
+					// Cota superior de lo que ocupa la entrada (3 bytes por carácter en UTF-8)
+					String descriptor = fichero.toDescriptor();
+					int entryBytes = 3 * (fichero.fileHash.length() + descriptor.length() + 2);
+					if(included == pageSize || (included > 0 && bytes + entryBytes > maxBytes)) {
+						break;
 					}
-
+					files.append(fichero.fileHash).append(',').append(descriptor).append(':');
+					ends.add(files.length());
+					bytes += entryBytes;
+					included++;
+				}
+				if(bytes > FILELIST_MAX_PAGE_BYTES && !fragments) {
+					// Sólo cabe comprimida: se recorta hasta que comprimida quepa en un datagrama
+					int deflated = DirMessage.deflatedLength(files.toString());
+					while(deflated > FILELIST_MAX_PAGE_BYTES && included > 1) {
+						included = Math.max(1, (int) (included * 0.9 * FILELIST_MAX_PAGE_BYTES / deflated));
+						files.setLength(ends.get(included - 1));
+						deflated = DirMessage.deflatedLength(files.toString());
+					}
+				}
+				response = new DirMessage(FILELIST_OK);
+				response.setFiles(files.toString());
+				if(included < page.size()) {
+					response.setCursor(page.get(included - 1).fileHash);
 				}
-				response.setFiles(files);
 				break;
 			} else {
 				response = new DirMessage(FILELIST_ERR);
-				System.out.println("ERROR: filelist error. Invalid sessionKey");
+				Log.info("ERROR: filelist error. Invalid sessionKey");
 				break;
 			}
 		}
 		case DirMessageOps.OPERATION_SEARCH: {
-			int sessionKey = Integer.parseInt(msg.getSessionKey());
+			int sessionKey = msg.getSessionKeyValue();
 			if(sessionKeys.containsKey(sessionKey)) {
-				String hash = msg.getHash();
+				/*
+				 * El hash puede ser el hash completo o un prefijo: se buscan los ficheros cuyo
+				 * hash empieza por él. Si hay más de uno, se devuelven los candidatos para
+				 * que el usuario elija.
+				 */
+				List<FileInfo> candidates = (msg.getHash() == null) ? new ArrayList<FileInfo>()
+						: fileIndex.findByPrefix(msg.getHash(), SEARCH_MAX_CANDIDATES);
+				if(candidates.size() > 1) {
+					response = new DirMessage(SEARCH_AMBIGUOUS);
+					StringBuilder files = new StringBuilder();
+					for(FileInfo fichero : candidates) {
+						files.append(fichero.fileHash).append(',').append(fichero.toDescriptor()).append(':');
+					}
+					response.setFiles(files.toString());
+					Log.info("ERROR: search error. Ambiguous hash");
+					break;
+				}
+				/*
+				 * Junto a los servidores se devuelven el nombre y tamaño del fichero y la
+				 * dirección de cada servidor que la ha registrado, para que el cliente pueda
+				 * descargarlo sin más consultas al directorio
+				 */
 				String servers = "";
-				if(fichServers.containsKey(hash)) {
-					for(String username : fichServers.get(hash)) {
+				StringBuilder addresses = new StringBuilder();
+				if(candidates.size() == 1) {
+					// Los servidores menos cargados primero: el cliente suele descargar del primero
+					List<String> sharing = fileIndex.getServers(candidates.get(0).fileHash);
+					String[] ranked = sharing.toArray(new String[sharing.size()]);
+					serverLoad.rank(ranked, true);
+					for(String username : ranked) {
 						servers += username + ",";
+						String address = getServerAddress(username);
+						if(address != null) {
+							if(addresses.length() > 0) {
+								addresses.append(',');
+							}
+							addresses.append(address);
+						}
+					}
+				}
+				/*
+				 * Con un hash completo se consultan también los filtros de Bloom de los peers
+				 * que publican así su biblioteca: los que quizá tienen el fichero se devuelven
+				 * como candidatos (con su dirección), que el cliente debe confirmar con el
+				 * propio peer
+				 */
+				StringBuilder maybe = new StringBuilder();
+				if(msg.getHash() != null && msg.getHash().length() == FULL_HASH_LENGTH) {
+					List<String> probed = peerFilters.probe(msg.getHash());
+					String[] ranked = probed.toArray(new String[probed.size()]);
+					serverLoad.rank(ranked, false);
+					for(String username : ranked) {
+						String address = getServerAddress(username);
+						if(address != null && !("," + servers).contains("," + username + ",")) {
+							if(maybe.length() > 0) {
+								maybe.append(',');
+							}
+							maybe.append(username).append('@').append(address);
+						}
 					}
 				}
-				if(servers.length()>0) {
+				if(servers.length()>0 || maybe.length()>0) {
 					response = new DirMessage(SEARCH_OK);
 					response.setServers(servers);
-					System.out.println("Search successful");
+					response.setAddresses(addresses.toString());
+					if(servers.length()>0) {
+						FileInfo fichero = candidates.get(0);
+						response.setHash(fichero.fileHash);
+						response.setFiles(fichero.fileHash + "," + fichero.toDescriptor() + ":");
+					} else {
+						response.setHash(msg.getHash());
+					}
+					if(maybe.length()>0) {
+						response.setCandidates(maybe.toString());
+					}
+					Log.info("Search successful");
 					break;
 				} else {
 					response = new DirMessage(SEARCH_ERR);
-					System.out.println("ERROR: search error. File does not exist");
+					Log.info("ERROR: search error. File does not exist");
 					break;
 				}
 			} else {
 				response = new DirMessage(SEARCH_ERR);
-				System.out.println("ERROR: search error. Invalid sessionKey");
+				Log.info("ERROR: search error. Invalid sessionKey");
+				break;
+			}
+		}
+		case DirMessageOps.OPERATION_SEARCHNAME: {
+			int sessionKey = msg.getSessionKeyValue();
+			if(sessionKeys.containsKey(sessionKey)) {
+				/*
+				 * Se devuelven en una sola respuesta el hash, el nombre, el tamaño y los
+				 * servidores de cada fichero cuyo nombre contiene las palabras buscadas
+				 */
+				List<FileInfo> found = (msg.getKeywords() == null) ? new ArrayList<FileInfo>()
+						: fileIndex.findByName(msg.getKeywords(), SEARCHNAME_MAX_RESULTS);
+				if(found.size() > 0) {
+					response = new DirMessage(SEARCHNAME_OK);
+					StringBuilder results = new StringBuilder();
+					for(FileInfo fichero : found) {
+						serverLoad.rank(fichero.servers, false);
+						results.append(fichero.fileHash).append(',').append(fichero.toDescriptor()).append(',');
+						results.append(String.join(";", fichero.servers)).append(':');
+					}
+					response.setResults(results.toString());
+					Log.info("Search by name successful");
+					break;
+				} else {
+					response = new DirMessage(SEARCHNAME_ERR);
+					Log.info("ERROR: search by name error. No file matches");
+					break;
+				}
+			} else {
+				response = new DirMessage(SEARCHNAME_ERR);
+				Log.info("ERROR: search by name error. Invalid sessionKey");
 				break;
 			}
 		}
 
 
 
+		case DirMessageOps.OPERATION_SEARCHBATCH: {
+			int sessionKey = msg.getSessionKeyValue();
+			if(sessionKeys.containsKey(sessionKey)) {
+				/*
+				 * Se busca cada hash completo de la lista de ficheros recibida (sin nombres) y
+				 * se devuelven en una sola respuesta el hash, el nombre, el tamaño y los servidores de los
+				 * que están publicados, en el mismo formato que SEARCHNAME. Si no caben en un
+				 * datagrama, el cursor indica el último hash respondido, y el cliente pide el
+				 * resto en otra petición.
+				 */
+				List<String> hashes = new ArrayList<String>(parseFileList(msg.getFiles()).keySet());
+				Collections.sort(hashes);
+				StringBuilder results = new StringBuilder();
+				int bytes = 0;
+				String last = null;
+				boolean truncated = false;
+				for(FileInfo fichero : fileIndex.findByHashes(hashes)) {
+					serverLoad.rank(fichero.servers, false);
+					String servers = String.join(";", fichero.servers);
+					String descriptor = fichero.toDescriptor();
+					// Cota superior de lo que ocupa la entrada (3 bytes por carácter en UTF-8)
+					int entryBytes = 3 * (fichero.fileHash.length() + descriptor.length() + servers.length() + 3);
+					if(last != null && bytes + entryBytes > SEARCHBATCH_MAX_RESULT_BYTES) {
+						truncated = true;
+						break;
+					}
+					results.append(fichero.fileHash).append(',').append(descriptor).append(',');
+					results.append(servers).append(':');
+					bytes += entryBytes;
+					last = fichero.fileHash;
+				}
+				response = new DirMessage(SEARCHBATCH_OK);
+				response.setResults(results.toString());
+				if(truncated) {
+					response.setCursor(last);
+				}
+				Log.info("Batch search successful");
+				break;
+			} else {
+				response = new DirMessage(SEARCHBATCH_ERR);
+				Log.info("ERROR: batch search error. Invalid sessionKey");
+				break;
+			}
+		}
+		case DirMessageOps.OPERATION_WATCH: {
+			int sessionKey = msg.getSessionKeyValue();
+			if(sessionKeys.containsKey(sessionKey)) {
+				/*
+				 * La petición sustituye la suscripción anterior de la sesión: una lista vacía
+				 * de hashes y de patrones la cancela. Los avisos se envían al puerto indicado
+				 * (o al de la petición) de la dirección del cliente.
+				 */
+				Set<String> hashes = parseFileList(msg.getFiles()).keySet();
+				List<String> patterns = new ArrayList<String>();
+				if(msg.getKeywords() != null) {
+					for(String pattern : msg.getKeywords().split(":")) {
+						if(!pattern.trim().isEmpty()) {
+							patterns.add(pattern);
+						}
+					}
+				}
+				int port = (msg.getPortValue() != DirMessage.NO_VALUE) ? msg.getPortValue() : clientAddr.getPort();
+				if(hashes.size() > WatchRegistry.MAX_WATCHED_HASHES || patterns.size() > WatchRegistry.MAX_WATCHED_PATTERNS
+						|| !ownsAll(hashes) || port < 1 || port > 65535) {
+					response = new DirMessage(WATCH_ERR);
+					Log.info("ERROR: watch error. Invalid port, or too many or misrouted hashes or patterns");
+					break;
+				}
+				response = new DirMessage(WATCH_OK);
+				if(hashes.isEmpty() && patterns.isEmpty()) {
+					watches.unwatch(sessionKey);
+					Log.info("Watch cancelled");
+				} else {
+					response.setVersion(watches.watch(sessionKey, new InetSocketAddress(clientAddr.getAddress(), port),
+							msg.isBinary(), hashes, patterns));
+					Log.info("Watch successful");
+				}
+				break;
+			} else {
+				response = new DirMessage(WATCH_ERR);
+				Log.info("ERROR: watch error. Invalid sessionKey");
+				break;
+			}
+		}
+		case DirMessageOps.OPERATION_STATS: {
+			int sessionKey = msg.getSessionKeyValue();
+			if(sessionKeys.containsKey(sessionKey)) {
+				List<String> lines = new ArrayList<String>();
+				stats.report(lines);
+				lines.add("state: " + nicks.size() + " sessions, " + nickPort.size() + " servers, " + fileIndex.size()
+						+ " files, generation " + generation + (shard != null ? ", shard " + shard : ""));
+				lines.add("response cache: " + responseCache);
+				lines.add("retransmissions: " + replyCache);
+				lines.add("reassembly: " + reassembler);
+				lines.add("watches: " + watches);
+				lines.add("filters: " + peerFilters);
+				if (rateLimiter != null) {
+					lines.add("rate limit: " + rateLimiter);
+				}
+				if (impairment != null) {
+					lines.add("impairment: " + impairment);
+				}
+				response = new DirMessage(STATS_OK);
+				response.setStats(String.join(";", lines));
+				Log.info("Stats successful");
+				break;
+			} else {
+				response = new DirMessage(STATS_ERR);
+				Log.info("ERROR: stats error. Invalid sessionKey");
+				break;
+			}
+		}
+
+
 		default:
-			System.out.println("Unexpected message operation: \"" + operation + "\"");
+			Log.info("Unexpected message operation: \"" + operation + "\"");
 		}
 		return response;
 
 	}
+
+	/**
+	 * @return La dirección "ip:puerto" en la que sirve ficheros un servidor
+	 *         registrado (la IPv6 entre corchetes), o null si no está registrado
+	 */
+	private String getServerAddress(String username) {
+		InetAddress ip = nickIP.get(username);
+		String port = nickPort.get(username);
+		if(ip == null || port == null) {
+			return null;
+		}
+		return (ip instanceof Inet6Address ? "[" + ip.getHostAddress() + "]" : ip.getHostAddress()) + ":" + port;
+	}
+
+	/**
+	 * Comprueba que todos los hashes pertenecen a la partición de este directorio
+	 * (siempre cierto si no está repartido)
+	 */
+	private boolean ownsAll(Collection<String> hashes) {
+		if (shard == null) {
+			return true;
+		}
+		for (String hash : hashes) {
+			if (!shard.owns(hash)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Convierte la lista de ficheros de un mensaje ("hash,nombre:hash,nombre:...")
+	 * en un mapa hash -> nombre
+	 */
+	private static HashMap<String, String> parseFileList(String files) {
+		HashMap<String, String> hashesSet = new HashMap<String, String>();
+		if (files == null) {
+			return hashesSet;
+		}
+		for (String file : files.split(":")) {
+			int idx = file.indexOf(',');
+			if (idx > 0) {
+				hashesSet.put(file.substring(0, idx), file.substring(idx + 1));
+			}
+		}
+		return hashesSet;
+	}
+
+	/**
+	 * Convierte una lista de hashes de un mensaje ("hash:hash:...") en una lista
+	 */
+	private static List<String> parseHashList(String hashes) {
+		List<String> result = new ArrayList<String>();
+		if (hashes == null) {
+			return result;
+		}
+		for (String hash : hashes.split(":")) {
+			if (!hash.isEmpty()) {
+				result.add(hash);
+			}
+		}
+		return result;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,97 @@
+package es.um.redes.nanoFiles.udp.server;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+
+import es.um.redes.nanoFiles.udp.message.DirMessage;
+import es.um.redes.nanoFiles.udp.message.DirMessageOps;
+
+public class NFDirectoryServerTest {
+
+	public static void main(String[] args) throws IOException {
+		/*
+		 * Se arranca un directorio en cada modo (clásico y pool de workers) y se le
+		 * envían peticiones que no deben detenerlo: tras cada una, el directorio debe
+		 * seguir respondiendo.
+		 */
+		for (int workers : new int[] { 0, 2 }) {
+			String mode = (workers == 0) ? "classic" : "workers";
+			InetSocketAddress directory = startDirectory(workers);
+			try (DatagramSocket socket = new DatagramSocket()) {
+				socket.setSoTimeout(2000);
+				DirMessage login = new DirMessage(DirMessageOps.OPERATION_LOGIN);
+				login.setNickname("watcher");
+				DirMessage loginOk = exchange(socket, directory, login);
+				if (loginOk == null || !loginOk.getOperation().equals(NFDirectoryServer.LOGIN_OK)) {
+					System.err.println(mode + ": login failed: " + loginOk);
+					continue;
+				}
+				int sessionKey = loginOk.getSessionKeyValue();
+				// Puertos fuera de 1..65535 (en texto, parseInt admite negativos)
+				for (int port : new int[] { -2, 0, 65536 }) {
+					checkWatch(mode, socket, directory, sessionKey, port, NFDirectoryServer.WATCH_ERR);
+				}
+				checkWatch(mode, socket, directory, sessionKey, 7777, NFDirectoryServer.WATCH_OK);
+			}
+		}
+		// Los hilos del pool de workers no son daemon
+		System.exit(0);
+	}
+
+	private static InetSocketAddress startDirectory(int workers) throws IOException {
+		int port;
+		try (DatagramSocket probe = new DatagramSocket(0)) {
+			port = probe.getLocalPort();
+		}
+		NFDirectoryServer server = new NFDirectoryServer(0, workers, false, null, port, null);
+		Thread thread = new Thread(() -> {
+			try {
+				server.run();
+			} catch (IOException e) {
+				System.err.println("Directory failed: " + e);
+			}
+		}, "directory-" + port);
+		thread.setDaemon(true);
+		thread.start();
+		return new InetSocketAddress("localhost", port);
+	}
+
+	private static void checkWatch(String mode, DatagramSocket socket, InetSocketAddress directory, int sessionKey,
+			int port, String expected) throws IOException {
+		DirMessage watch = new DirMessage(DirMessageOps.OPERATION_WATCH);
+		watch.setSessionKey(sessionKey);
+		watch.setKeywords("*.txt");
+		watch.setPort(port);
+		DirMessage response = exchange(socket, directory, watch);
+		if (response == null) {
+			System.err.println(mode + ": watch with port " + port + ": no response");
+		} else if (!response.getOperation().equals(expected)) {
+			System.err.println(mode + ": watch with port " + port + ": " + response.getOperation() + " instead of "
+					+ expected);
+		} else {
+			System.out.println(mode + ": watch with port " + port + " -> " + expected + " OK");
+		}
+	}
+
+	/**
+	 * Envía una petición en formato texto y espera su respuesta
+	 *
+	 * @return La respuesta, o null si no llega
+	 */
+	private static DirMessage exchange(DatagramSocket socket, InetSocketAddress directory, DirMessage request)
+			throws IOException {
+		byte[] data = request.encode(false);
+		socket.send(new DatagramPacket(data, data.length, directory));
+		byte[] buf = new byte[DirMessage.PACKET_MAX_SIZE];
+		DatagramPacket packet = new DatagramPacket(buf, buf.length);
+		try {
+			socket.receive(packet);
+		} catch (SocketTimeoutException e) {
+			return null;
+		}
+		return DirMessage.decode(buf, packet.getLength());
+	}
+}
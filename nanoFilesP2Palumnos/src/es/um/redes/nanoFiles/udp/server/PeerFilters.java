@@ -0,0 +1,167 @@
+package es.um.redes.nanoFiles.udp.server;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import es.um.redes.nanoFiles.util.BloomFilter;
+
+/**
+ * Filtros de Bloom publicados por los peers cuya biblioteca es demasiado grande
+ * para publicar la lista de ficheros (operación PUBLISHFILTER). El directorio
+ * no conoce los ficheros de estos peers, sólo puede preguntar a su filtro si
+ * quizá comparten un hash: las búsquedas por hash completo los devuelven como
+ * candidatos, que el cliente confirma con el propio peer antes de descargar.
+ * Cada filtro ocupa unos BITS_PER_FILE bits por fichero, frente a los cientos
+ * de bytes de cada fichero del índice.
+ *
+ * Un filtro no cabe en general en un datagrama: el peer lo envía en trozos de
+ * CHUNK_BYTES, que se reúnen aquí hasta tenerlos todos y sólo entonces
+ * sustituyen al filtro anterior. Las consultas admiten accesos concurrentes sin
+ * cerrojos externos; la recepción de trozos está sincronizada.
+ */
+public class PeerFilters {
+	/**
+	 * Tamaño de cada trozo de un filtro (salvo el último), que cabe en un
+	 * datagrama incluso en Base64
+	 */
+	public static final int CHUNK_BYTES = 32 * 1024;
+	/**
+	 * Tamaño máximo de un filtro (unos 3 millones de ficheros) y número máximo de
+	 * funciones hash
+	 */
+	public static final int MAX_FILTER_BYTES = 4 * 1024 * 1024;
+	public static final int MAX_HASH_COUNT = 16;
+
+	/**
+	 * Filtro completo de un peer, con la versión con que lo publicó
+	 */
+	public static class PeerFilter {
+		public final BloomFilter filter;
+		public final int version;
+
+		private PeerFilter(BloomFilter filter, int version) {
+			this.filter = filter;
+			this.version = version;
+		}
+	}
+
+	/**
+	 * Filtro de un peer del que aún faltan trozos
+	 */
+	private static class Assembly {
+		private final int version;
+		private final int hashCount;
+		private final byte[] bits;
+		private final BitSet received = new BitSet();
+		private int missing;
+
+		private Assembly(int version, int hashCount, int size) {
+			this.version = version;
+			this.hashCount = hashCount;
+			this.bits = new byte[size];
+			this.missing = (size + CHUNK_BYTES - 1) / CHUNK_BYTES;
+		}
+	}
+
+	private final ConcurrentHashMap<String, PeerFilter> filters = new ConcurrentHashMap<String, PeerFilter>();
+	private final Map<String, Assembly> assemblies = new HashMap<String, Assembly>();
+
+	/**
+	 * Recibe un trozo del filtro de un peer. Un trozo de otra versión o tamaño que
+	 * los anteriores empieza un filtro nuevo; un trozo repetido se ignora.
+	 *
+	 * @param version   Versión del filtro, elegida por el peer
+	 * @param hashCount Número de funciones hash del filtro
+	 * @param size      Tamaño total del filtro en bytes
+	 * @param offset    Posición del trozo, múltiplo de CHUNK_BYTES
+	 * @param chunk     Los bytes del trozo
+	 * @return El filtro, si con este trozo se ha completado (ya sustituye al
+	 *         anterior), o null si aún faltan trozos
+	 * @throws IllegalArgumentException Si los parámetros no son válidos
+	 */
+	public synchronized PeerFilter receive(String nick, int version, int hashCount, int size, int offset,
+			byte[] chunk) {
+		if (size <= 0 || size > MAX_FILTER_BYTES || hashCount <= 0 || hashCount > MAX_HASH_COUNT || chunk == null
+				|| offset < 0 || offset % CHUNK_BYTES != 0 || offset >= size
+				|| chunk.length != Math.min(CHUNK_BYTES, size - offset)) {
+			throw new IllegalArgumentException("invalid filter chunk");
+		}
+		Assembly assembly = assemblies.get(nick);
+		if (assembly == null || assembly.version != version || assembly.hashCount != hashCount
+				|| assembly.bits.length != size) {
+			assembly = new Assembly(version, hashCount, size);
+			assemblies.put(nick, assembly);
+		}
+		int index = offset / CHUNK_BYTES;
+		if (!assembly.received.get(index)) {
+			System.arraycopy(chunk, 0, assembly.bits, offset, chunk.length);
+			assembly.received.set(index);
+			assembly.missing--;
+		}
+		if (assembly.missing > 0) {
+			return null;
+		}
+		assemblies.remove(nick);
+		PeerFilter complete = new PeerFilter(new BloomFilter(assembly.bits, hashCount), version);
+		filters.put(nick, complete);
+		return complete;
+	}
+
+	/**
+	 * Instala directamente el filtro completo de un peer (al recuperar el diario)
+	 */
+	public void install(String nick, int version, BloomFilter filter) {
+		filters.put(nick, new PeerFilter(filter, version));
+	}
+
+	/**
+	 * Olvida el filtro de un peer (y los trozos recibidos de uno nuevo)
+	 *
+	 * @return Verdadero si el peer tenía un filtro
+	 */
+	public synchronized boolean remove(String nick) {
+		assemblies.remove(nick);
+		return filters.remove(nick) != null;
+	}
+
+	/**
+	 * @return Los nicknames de los peers cuyo filtro indica que quizá comparten
+	 *         el fichero con el hash completo indicado
+	 */
+	public List<String> probe(String hash) {
+		List<String> candidates = new ArrayList<String>();
+		if (filters.isEmpty()) {
+			return candidates;
+		}
+		long[] h = BloomFilter.split(hash);
+		if (h == null) {
+			return candidates;
+		}
+		for (Map.Entry<String, PeerFilter> entry : filters.entrySet()) {
+			if (entry.getValue().filter.mightContain(h)) {
+				candidates.add(entry.getKey());
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * @return Los peers con filtro y su filtro (para las instantáneas del diario)
+	 */
+	public Map<String, PeerFilter> getFilters() {
+		return filters;
+	}
+
+	@Override
+	public String toString() {
+		long bytes = 0;
+		for (PeerFilter peer : filters.values()) {
+			bytes += peer.filter.getBits().length;
+		}
+		return filters.size() + " peer filters, " + bytes + " bytes";
+	}
+}
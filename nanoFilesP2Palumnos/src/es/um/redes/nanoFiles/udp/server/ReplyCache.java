@@ -0,0 +1,185 @@
+package es.um.redes.nanoFiles.udp.server;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Respuestas recientes del directorio a cada cliente, por identificador de
+ * petición. Cuando un cliente retransmite una petición porque se perdió la
+ * respuesta, el directorio la reconoce por su identificador y reenvía la
+ * respuesta guardada en vez de volver a ejecutarla (un login repetido no debe
+ * fallar porque el nick ya existe, ni una publicación aplicarse dos veces).
+ *
+ * Se guardan como mucho repliesPerClient respuestas por cliente, y los clientes
+ * se descartan en orden de inactividad si se supera maxClients o maxBytes.
+ * Puede usarse desde varios hilos.
+ */
+public class ReplyCache {
+	public static final int DEFAULT_REPLIES_PER_CLIENT = 4;
+	public static final int DEFAULT_MAX_CLIENTS = 16384;
+	public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+	/**
+	 * Resultado de buscar una petición en la caché
+	 */
+	public enum Lookup {
+		/**
+		 * Petición nueva: debe ejecutarse y su respuesta guardarse con complete (o
+		 * descartarse con abandon)
+		 */
+		MISS,
+		/**
+		 * Retransmisión de una petición ya respondida: se ha copiado su respuesta
+		 */
+		HIT,
+		/**
+		 * Retransmisión de una petición que otro hilo está ejecutando todavía: se
+		 * descarta, ya que ese hilo enviará la respuesta
+		 */
+		IN_PROGRESS
+	}
+
+	private static class Reply {
+		private final int requestId;
+		/**
+		 * Respuesta codificada, o null mientras se ejecuta la petición
+		 */
+		private byte[] data;
+
+		private Reply(int requestId) {
+			this.requestId = requestId;
+		}
+	}
+
+	private final int repliesPerClient;
+	private final int maxClients;
+	private final long maxBytes;
+	/**
+	 * Respuestas de cada cliente (de la más antigua a la más reciente), en orden de
+	 * actividad de los clientes
+	 */
+	private final LinkedHashMap<InetSocketAddress, ArrayDeque<Reply>> clients = new LinkedHashMap<InetSocketAddress, ArrayDeque<Reply>>(
+			16, 0.75f, true);
+	private long bytes = 0;
+
+	private long hits = 0;
+	private long duplicatesInProgress = 0;
+
+	public ReplyCache(int repliesPerClient, int maxClients, long maxBytes) {
+		this.repliesPerClient = repliesPerClient;
+		this.maxClients = maxClients;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Busca la respuesta a una petición del cliente. Si es nueva, se reserva su
+	 * entrada hasta que se llame a complete o abandon.
+	 *
+	 * @param out Búfer en el que se copia la respuesta si se encuentra
+	 */
+	public synchronized Lookup begin(InetSocketAddress client, int requestId, ByteBuffer out) {
+		ArrayDeque<Reply> replies = clients.get(client);
+		if (replies == null) {
+			replies = new ArrayDeque<Reply>(repliesPerClient);
+			clients.put(client, replies);
+		}
+		for (Reply reply : replies) {
+			if (reply.requestId == requestId) {
+				if (reply.data == null) {
+					duplicatesInProgress++;
+					return Lookup.IN_PROGRESS;
+				}
+				if (reply.data.length <= out.remaining()) {
+					out.put(reply.data);
+					hits++;
+					return Lookup.HIT;
+				}
+			}
+		}
+		if (replies.size() == repliesPerClient) {
+			Reply oldest = replies.removeFirst();
+			if (oldest.data != null) {
+				bytes -= oldest.data.length;
+			}
+		}
+		replies.addLast(new Reply(requestId));
+		evict();
+		return Lookup.MISS;
+	}
+
+	/**
+	 * Guarda la respuesta a una petición nueva, codificada en buf entre las
+	 * posiciones from y to
+	 */
+	public synchronized void complete(InetSocketAddress client, int requestId, ByteBuffer buf, int from, int to) {
+		ArrayDeque<Reply> replies = clients.get(client);
+		if (replies == null) {
+			return;
+		}
+		for (Iterator<Reply> it = replies.iterator(); it.hasNext();) {
+			Reply reply = it.next();
+			if (reply.requestId == requestId && reply.data == null) {
+				if (to - from > maxBytes) {
+					it.remove();
+					return;
+				}
+				reply.data = new byte[to - from];
+				buf.get(from, reply.data);
+				bytes += reply.data.length;
+				evict();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return La respuesta guardada a una petición del cliente (no debe
+	 *         modificarse), o null si no se tiene o aún se está ejecutando
+	 */
+	public synchronized byte[] get(InetSocketAddress client, int requestId) {
+		ArrayDeque<Reply> replies = clients.get(client);
+		if (replies != null) {
+			for (Reply reply : replies) {
+				if (reply.requestId == requestId) {
+					return reply.data;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Descarta la entrada de una petición nueva que no ha producido respuesta
+	 */
+	public synchronized void abandon(InetSocketAddress client, int requestId) {
+		ArrayDeque<Reply> replies = clients.get(client);
+		if (replies != null) {
+			replies.removeIf(reply -> reply.requestId == requestId && reply.data == null);
+		}
+	}
+
+	/**
+	 * Descarta los clientes inactivos hace más tiempo hasta respetar los límites
+	 * (nunca el último cliente activo)
+	 */
+	private void evict() {
+		Iterator<ArrayDeque<Reply>> eldest = clients.values().iterator();
+		while ((clients.size() > maxClients || bytes > maxBytes) && clients.size() > 1) {
+			for (Reply reply : eldest.next()) {
+				if (reply.data != null) {
+					bytes -= reply.data.length;
+				}
+			}
+			eldest.remove();
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return hits + " replayed, " + duplicatesInProgress + " in progress, " + clients.size() + " clients, " + bytes
+				+ "/" + maxBytes + " bytes";
+	}
+}
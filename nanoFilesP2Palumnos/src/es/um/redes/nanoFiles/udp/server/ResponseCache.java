@@ -0,0 +1,122 @@
+package es.um.redes.nanoFiles.udp.server;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caché de respuestas ya codificadas del directorio (listas de usuarios y
+ * páginas de ficheros). Cada entrada se genera para una generación del estado
+ * del directorio, que el servidor incrementa en cada operación que lo modifica:
+ * mientras la generación no cambia, una petición repetida se responde copiando
+ * los bytes guardados. Al cambiar la generación se descartan todas las
+ * entradas.
+ *
+ * La caché ocupa como mucho maxBytes bytes; si se llena, se expulsan las
+ * entradas usadas hace más tiempo (LRU). Puede usarse desde varios hilos.
+ */
+public class ResponseCache {
+	/**
+	 * Memoria máxima por defecto de la caché, en bytes
+	 */
+	public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+	private final long maxBytes;
+	/**
+	 * Respuestas codificadas por clave, en orden de acceso (la primera es la usada
+	 * hace más tiempo)
+	 */
+	private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+	private long bytes = 0;
+	/**
+	 * Generación del estado para la que son válidas las entradas
+	 */
+	private long generation = -1;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long invalidations = 0;
+
+	public ResponseCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Copia en el búfer la respuesta guardada con la clave indicada, si existe y es
+	 * de la generación actual del estado
+	 *
+	 * @return Verdadero si se ha encontrado la respuesta
+	 */
+	public synchronized boolean copyTo(String key, long currentGeneration, ByteBuffer out) {
+		invalidateIfStale(currentGeneration);
+		byte[] response = entries.get(key);
+		if (response == null || response.length > out.remaining()) {
+			misses++;
+			return false;
+		}
+		out.put(response);
+		hits++;
+		return true;
+	}
+
+	/**
+	 * Guarda la respuesta codificada en buf entre las posiciones from y to, generada
+	 * para la generación indicada del estado
+	 */
+	public synchronized void put(String key, long currentGeneration, ByteBuffer buf, int from, int to) {
+		int length = to - from;
+		if (length > maxBytes) {
+			return;
+		}
+		invalidateIfStale(currentGeneration);
+		byte[] response = new byte[length];
+		buf.get(from, response);
+		byte[] old = entries.put(key, response);
+		if (old != null) {
+			bytes -= old.length;
+		}
+		bytes += length;
+		Iterator<Map.Entry<String, byte[]>> eldest = entries.entrySet().iterator();
+		while (bytes > maxBytes) {
+			bytes -= eldest.next().getValue().length;
+			eldest.remove();
+			evictions++;
+		}
+	}
+
+	private void invalidateIfStale(long currentGeneration) {
+		if (currentGeneration != generation) {
+			if (!entries.isEmpty()) {
+				entries.clear();
+				bytes = 0;
+				invalidations++;
+			}
+			generation = currentGeneration;
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return Proporción de peticiones respondidas desde la caché (entre 0 y 1)
+	 */
+	public synchronized double getHitRate() {
+		long lookups = hits + misses;
+		return (lookups == 0) ? 0 : (double) hits / lookups;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "hits " + hits + ", misses " + misses + " (hit rate " + String.format("%.1f", 100 * getHitRate())
+				+ "%), " + entries.size() + " entries, " + bytes + "/" + maxBytes + " bytes, " + evictions
+				+ " evictions, " + invalidations + " invalidations";
+	}
+}
@@ -0,0 +1,141 @@
+package es.um.redes.nanoFiles.udp.server;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import es.um.redes.nanoFiles.udp.message.DirMessage;
+
+/**
+ * Carga de los servidores de ficheros, tal como la comunican al registrarse y
+ * en cada heartbeat (descargas que están sirviendo y ancho de banda de subida
+ * libre), con la que el directorio ordena los servidores de cada fichero en las
+ * búsquedas: primero los que sirven menos descargas y, a igualdad, los que
+ * tienen más ancho de banda libre. Los empates se deshacen al azar, para que
+ * los clientes no elijan todos el mismo servidor.
+ *
+ * Como la carga sólo se conoce cada pocos segundos, el directorio también
+ * cuenta las veces que ha puesto a cada servidor el primero en una búsqueda
+ * desde su último informe, como descargas que probablemente empezarán: así las
+ * búsquedas seguidas de un fichero popular se reparten entre sus servidores en
+ * vez de ir todas al que parecía menos cargado.
+ *
+ * La carga no se guarda en el diario: se renueva con cada heartbeat. Admite
+ * accesos concurrentes sin cerrojos externos.
+ */
+public class ServerLoad {
+	private static class Load {
+		/**
+		 * Descargas que sirve el servidor según su último informe (0 si no lo
+		 * indicó)
+		 */
+		private final int uploads;
+		/**
+		 * Ancho de banda libre en KiB/s, o NO_VALUE si no lo indicó
+		 */
+		private final int freeBandwidth;
+		/**
+		 * Búsquedas en que se ha puesto primero al servidor desde su último informe
+		 */
+		private final AtomicInteger assigned = new AtomicInteger();
+
+		private Load(int uploads, int freeBandwidth) {
+			this.uploads = Math.max(0, uploads);
+			this.freeBandwidth = freeBandwidth;
+		}
+	}
+
+	/**
+	 * Servidor candidato, con los criterios de ordenación ya calculados
+	 */
+	private static class Candidate implements Comparable<Candidate> {
+		private final String nick;
+		private final int uploads;
+		/**
+		 * Potencia de dos del ancho de banda libre (-1 si no se conoce). Se agrupa
+		 * así para que servidores con un ancho de banda parecido empaten y se
+		 * repartan al azar.
+		 */
+		private final int bandwidthClass;
+		private final int random;
+
+		private Candidate(String nick, Load load) {
+			this.nick = nick;
+			if (load == null) {
+				uploads = 0;
+				bandwidthClass = -1;
+			} else {
+				uploads = load.uploads + load.assigned.get();
+				bandwidthClass = (load.freeBandwidth == DirMessage.NO_VALUE) ? -1
+						: 32 - Integer.numberOfLeadingZeros(load.freeBandwidth);
+			}
+			random = ThreadLocalRandom.current().nextInt();
+		}
+
+		@Override
+		public int compareTo(Candidate other) {
+			if (uploads != other.uploads) {
+				return Integer.compare(uploads, other.uploads);
+			}
+			if (bandwidthClass != other.bandwidthClass) {
+				return Integer.compare(other.bandwidthClass, bandwidthClass);
+			}
+			return Integer.compare(random, other.random);
+		}
+	}
+
+	private final ConcurrentHashMap<String, Load> loads = new ConcurrentHashMap<String, Load>();
+
+	/**
+	 * Registra el informe de carga de un servidor, que sustituye al anterior
+	 *
+	 * @param uploads       Descargas que está sirviendo, o NO_VALUE si no lo indica
+	 * @param freeBandwidth Ancho de banda de subida libre en KiB/s, o NO_VALUE si
+	 *                      no lo indica
+	 */
+	public void report(String nick, int uploads, int freeBandwidth) {
+		loads.put(nick, new Load(uploads, freeBandwidth));
+	}
+
+	/**
+	 * Olvida la carga de un servidor que se ha dado de baja
+	 */
+	public void remove(String nick) {
+		loads.remove(nick);
+	}
+
+	/**
+	 * @return Número de servidores de los que se conoce la carga
+	 */
+	public int size() {
+		return loads.size();
+	}
+
+	/**
+	 * Ordena los servidores de un fichero del menos al más cargado (ver
+	 * descripción de la clase)
+	 *
+	 * @param servers Nicknames de los servidores, que se reordenan
+	 * @param assign  Si se cuenta una descarga más para el servidor que queda
+	 *                primero (en las búsquedas previas a una descarga)
+	 */
+	public void rank(String[] servers, boolean assign) {
+		if (servers.length > 1) {
+			Candidate[] candidates = new Candidate[servers.length];
+			for (int i = 0; i < servers.length; i++) {
+				candidates[i] = new Candidate(servers[i], loads.get(servers[i]));
+			}
+			Arrays.sort(candidates);
+			for (int i = 0; i < servers.length; i++) {
+				servers[i] = candidates[i].nick;
+			}
+		}
+		if (assign && servers.length > 0) {
+			Load load = loads.get(servers[0]);
+			if (load != null) {
+				load.assigned.incrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package es.um.redes.nanoFiles.udp.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rueda de temporización (hashed timing wheel) para caducar claves tras un
+ * plazo. El tiempo se divide en ticks de duración fija y cada clave se guarda
+ * en la ranura del tick en que vence, así que programar, renovar o cancelar una
+ * clave cuesta O(1) y avanzar un tick sólo recorre las claves de su ranura.
+ * Como la rueda abarca el plazo máximo, esas claves son precisamente las que
+ * vencen en ese tick: caducar cuesta O(caducadas), sin recorrer todas las
+ * claves.
+ *
+ * Todos los métodos están sincronizados, de modo que las renovaciones pueden
+ * llegar desde varios hilos mientras otro avanza la rueda.
+ *
+ * @param <K> Tipo de las claves (p.ej. claves de sesión)
+ */
+public class TimingWheel<K> {
+
+	private final long tickNanos;
+	private final List<Set<K>> slots;
+	/**
+	 * clave -> tick en el que vence
+	 */
+	private final Map<K, Long> deadlines = new HashMap<K, Long>();
+	private final long startNanos = System.nanoTime();
+	/**
+	 * Último tick procesado
+	 */
+	private long currentTick = 0;
+
+	/**
+	 * @param tickMillis       Duración de un tick (resolución de los plazos)
+	 * @param maxTimeoutMillis Plazo máximo con el que se programarán claves
+	 */
+	public TimingWheel(long tickMillis, long maxTimeoutMillis) {
+		this.tickNanos = tickMillis * 1000000L;
+		int numSlots = (int) ((maxTimeoutMillis + tickMillis - 1) / tickMillis) + 1;
+		slots = new ArrayList<Set<K>>(numSlots);
+		for (int i = 0; i < numSlots; i++) {
+			slots.add(new HashSet<K>());
+		}
+	}
+
+	/**
+	 * Programa una clave para que caduque dentro del plazo indicado. Si ya estaba
+	 * programada, su plazo se renueva.
+	 */
+	public synchronized void schedule(K key, long timeoutMillis) {
+		cancel(key);
+		long now = System.nanoTime() - startNanos;
+		long deadline = (now + timeoutMillis * 1000000L + tickNanos - 1) / tickNanos;
+		deadline = Math.max(deadline, currentTick + 1);
+		deadlines.put(key, deadline);
+		slots.get(slotOf(deadline)).add(key);
+	}
+
+	/**
+	 * Deja de vigilar una clave
+	 *
+	 * @return Verdadero si la clave estaba programada
+	 */
+	public synchronized boolean cancel(K key) {
+		Long deadline = deadlines.remove(key);
+		if (deadline == null) {
+			return false;
+		}
+		slots.get(slotOf(deadline)).remove(key);
+		return true;
+	}
+
+	/**
+	 * @return Verdadero si la clave está programada y no ha caducado
+	 */
+	public synchronized boolean contains(K key) {
+		return deadlines.containsKey(key);
+	}
+
+	/**
+	 * Avanza la rueda hasta el instante actual, procesando los ticks transcurridos
+	 * desde la llamada anterior
+	 *
+	 * @return Las claves que han caducado, que dejan de estar programadas
+	 */
+	public synchronized List<K> advance() {
+		List<K> expired = new ArrayList<K>();
+		long targetTick = (System.nanoTime() - startNanos) / tickNanos;
+		while (currentTick < targetTick) {
+			currentTick++;
+			Iterator<K> it = slots.get(slotOf(currentTick)).iterator();
+			while (it.hasNext()) {
+				K key = it.next();
+				// Una clave programada con la rueda atrasada puede vencer en una vuelta posterior
+				if (deadlines.get(key) <= currentTick) {
+					it.remove();
+					deadlines.remove(key);
+					expired.add(key);
+				}
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * @return El número de claves programadas
+	 */
+	public synchronized int size() {
+		return deadlines.size();
+	}
+
+	private int slotOf(long tick) {
+		return (int) (tick % slots.size());
+	}
+}
@@ -0,0 +1,288 @@
+package es.um.redes.nanoFiles.udp.server;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import es.um.redes.nanoFiles.udp.message.DirMessage;
+import es.um.redes.nanoFiles.util.FileInfo;
+
+/**
+ * Suscripciones de los clientes a los cambios del catálogo (operación WATCH):
+ * cada sesión indica los hashes y los patrones de nombre (palabras, con el
+ * criterio de SEARCHNAME) que le interesan y la dirección a la que enviarle
+ * los avisos.
+ *
+ * Cuando cambian los servidores que comparten un fichero vigilado, el cambio se
+ * acumula para la sesión (sólo el último estado de cada fichero) hasta que el
+ * hilo que envía los avisos lo recoge con awaitPushes, y se envía en uno o
+ * varios datagramas WATCH_EVENT. Cada datagrama lleva un número de secuencia
+ * consecutivo por sesión, con el que el cliente detecta los avisos perdidos y
+ * vuelve a consultar el estado. Si se acumulan demasiados cambios sin enviar,
+ * se descartan y se salta un número de secuencia, con el mismo efecto.
+ *
+ * Las suscripciones no se guardan en el diario: el cliente las renueva si el
+ * heartbeat le indica que el directorio las ha olvidado. Admite accesos
+ * concurrentes.
+ */
+public class WatchRegistry implements FileIndex.ChangeListener {
+	/**
+	 * Número máximo de hashes y de patrones vigilados por cada sesión
+	 */
+	public static final int MAX_WATCHED_HASHES = 1000;
+	public static final int MAX_WATCHED_PATTERNS = 16;
+	/**
+	 * Número máximo de cambios pendientes de enviar a una sesión
+	 */
+	private static final int MAX_PENDING_CHANGES = 10000;
+	/**
+	 * Tamaño máximo de la lista de cambios de un datagrama WATCH_EVENT
+	 */
+	private static final int MAX_EVENT_BYTES = DirMessage.PACKET_MAX_SIZE - 1024;
+
+	/**
+	 * Mensaje WATCH_EVENT con avisos, listo para codificar (en el formato de la
+	 * suscripción) y enviar
+	 */
+	public static class Push {
+		public final InetSocketAddress address;
+		public final DirMessage event;
+		public final boolean binary;
+
+		private Push(InetSocketAddress address, DirMessage event, boolean binary) {
+			this.address = address;
+			this.event = event;
+			this.binary = binary;
+		}
+	}
+
+	private static class Subscription {
+		private InetSocketAddress address;
+		private boolean binary;
+		private Set<String> hashes;
+		/**
+		 * Palabras de cada patrón, ya divididas con FileNameIndex.tokenize
+		 */
+		private List<List<String>> patterns;
+		/**
+		 * Número de secuencia del último aviso enviado (0 si ninguno)
+		 */
+		private int sequence = 0;
+		/**
+		 * Último estado de cada fichero cambiado desde el último envío, como en las
+		 * respuestas de SEARCHNAME ("hash,nombre,tamaño,servidor;servidor;...")
+		 */
+		private final Map<String, String> pending = new LinkedHashMap<String, String>();
+		private boolean overflowed = false;
+	}
+
+	private final Map<Integer, Subscription> subscriptions = new HashMap<Integer, Subscription>();
+	/**
+	 * Sesiones que vigilan cada hash
+	 */
+	private final Map<String, List<Subscription>> byHash = new HashMap<String, List<Subscription>>();
+	/**
+	 * Sesiones que vigilan algún patrón de nombre
+	 */
+	private final List<Subscription> withPatterns = new ArrayList<Subscription>();
+	/**
+	 * Sesiones con cambios pendientes de enviar
+	 */
+	private final Set<Subscription> ready = new HashSet<Subscription>();
+	private volatile boolean empty = true;
+
+	private long pushes = 0;
+	private long overflows = 0;
+
+	/**
+	 * Crea o sustituye la suscripción de una sesión. El número de secuencia
+	 * continúa el de la suscripción anterior, si la había.
+	 *
+	 * @param address  Dirección a la que se envían los avisos
+	 * @param binary   Si los avisos se codifican en formato binario
+	 * @param hashes   Los hashes completos vigilados
+	 * @param patterns Los patrones de nombre vigilados
+	 * @return El número de secuencia del último aviso enviado a la sesión
+	 */
+	public synchronized int watch(int sessionKey, InetSocketAddress address, boolean binary,
+			Collection<String> hashes, Collection<String> patterns) {
+		Subscription sub = subscriptions.get(sessionKey);
+		if (sub == null) {
+			sub = new Subscription();
+			subscriptions.put(sessionKey, sub);
+		} else {
+			unindex(sub);
+		}
+		sub.address = address;
+		sub.binary = binary;
+		sub.hashes = new HashSet<String>(hashes);
+		sub.patterns = new ArrayList<List<String>>();
+		for (String pattern : patterns) {
+			List<String> words = FileNameIndex.tokenize(pattern);
+			if (!words.isEmpty()) {
+				sub.patterns.add(words);
+			}
+		}
+		for (String hash : sub.hashes) {
+			byHash.computeIfAbsent(hash, h -> new ArrayList<Subscription>(1)).add(sub);
+		}
+		if (!sub.patterns.isEmpty()) {
+			withPatterns.add(sub);
+		}
+		empty = false;
+		return sub.sequence;
+	}
+
+	/**
+	 * Elimina la suscripción de una sesión (al cancelarla o al terminar la sesión)
+	 */
+	public synchronized void unwatch(int sessionKey) {
+		Subscription sub = subscriptions.remove(sessionKey);
+		if (sub != null) {
+			unindex(sub);
+			ready.remove(sub);
+			empty = subscriptions.isEmpty();
+		}
+	}
+
+	/**
+	 * @return El número de secuencia del último aviso enviado a la sesión, o
+	 *         DirMessage.NO_VALUE si no tiene suscripción
+	 */
+	public synchronized int getSequence(int sessionKey) {
+		Subscription sub = subscriptions.get(sessionKey);
+		return (sub != null) ? sub.sequence : DirMessage.NO_VALUE;
+	}
+
+	private void unindex(Subscription sub) {
+		for (String hash : sub.hashes) {
+			List<Subscription> subs = byHash.get(hash);
+			subs.remove(sub);
+			if (subs.isEmpty()) {
+				byHash.remove(hash);
+			}
+		}
+		withPatterns.remove(sub);
+	}
+
+	@Override
+	public void fileChanged(String hash, String name, long size, String[] servers) {
+		if (empty) {
+			return; // Nadie vigila nada: no se toma el cerrojo
+		}
+		synchronized (this) {
+			String change = null;
+			List<Subscription> subs = byHash.get(hash);
+			if (subs != null) {
+				change = formatChange(hash, name, size, servers);
+				for (Subscription sub : subs) {
+					addChange(sub, hash, change);
+				}
+			}
+			if (!withPatterns.isEmpty()) {
+				List<String> tokens = FileNameIndex.tokenize(name);
+				for (Subscription sub : withPatterns) {
+					if (matchesAny(tokens, sub.patterns)) {
+						if (change == null) {
+							change = formatChange(hash, name, size, servers);
+						}
+						addChange(sub, hash, change);
+					}
+				}
+			}
+		}
+	}
+
+	private static String formatChange(String hash, String name, long size, String[] servers) {
+		return hash + "," + FileInfo.toDescriptor(name, size) + "," + String.join(";", servers);
+	}
+
+	/**
+	 * @param tokens Las palabras del nombre del fichero
+	 */
+	private static boolean matchesAny(List<String> tokens, List<List<String>> patterns) {
+		for (List<String> words : patterns) {
+			if (FileNameIndex.matchesTokens(tokens, words)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void addChange(Subscription sub, String hash, String change) {
+		if (sub.overflowed) {
+			return;
+		}
+		if (sub.pending.size() >= MAX_PENDING_CHANGES && !sub.pending.containsKey(hash)) {
+			// El cliente no podrá reconstruir los cambios: mejor que vuelva a consultar
+			sub.pending.clear();
+			sub.overflowed = true;
+			overflows++;
+		} else {
+			sub.pending.put(hash, change);
+		}
+		if (ready.isEmpty()) {
+			notifyAll();
+		}
+		ready.add(sub);
+	}
+
+	/**
+	 * Espera a que haya cambios pendientes y los codifica en datagramas
+	 * WATCH_EVENT, numerados de forma consecutiva para cada sesión
+	 *
+	 * @return Los datagramas que hay que enviar
+	 */
+	public synchronized List<Push> awaitPushes() throws InterruptedException {
+		while (ready.isEmpty()) {
+			wait();
+		}
+		List<Push> result = new ArrayList<Push>();
+		for (Subscription sub : ready) {
+			if (sub.overflowed) {
+				// El número de secuencia saltado indica al cliente que ha perdido avisos
+				sub.sequence++;
+				sub.overflowed = false;
+			}
+			StringBuilder changes = new StringBuilder();
+			int bytes = 0;
+			for (String change : sub.pending.values()) {
+				// Cota superior de lo que ocupa el cambio (3 bytes por carácter en UTF-8)
+				int changeBytes = 3 * (change.length() + 1);
+				if (bytes > 0 && bytes + changeBytes > MAX_EVENT_BYTES) {
+					result.add(encodeEvent(sub, changes.toString()));
+					changes.setLength(0);
+					bytes = 0;
+				}
+				changes.append(change).append(':');
+				bytes += changeBytes;
+			}
+			if (bytes > 0) {
+				result.add(encodeEvent(sub, changes.toString()));
+			}
+			sub.pending.clear();
+		}
+		ready.clear();
+		pushes += result.size();
+		return result;
+	}
+
+	private Push encodeEvent(Subscription sub, String changes) {
+		DirMessage event = new DirMessage(NFDirectoryServer.WATCH_EVENT);
+		event.setVersion(++sub.sequence);
+		event.setResults(changes);
+		return new Push(sub.address, event, sub.binary);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return subscriptions.size() + " subscriptions, " + byHash.size() + " hashes watched, " + withPatterns.size()
+				+ " with name patterns, " + pushes + " events sent, " + overflows + " overflows";
+	}
+}
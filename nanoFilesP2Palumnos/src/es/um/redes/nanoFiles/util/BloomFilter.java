@@ -0,0 +1,136 @@
+package es.um.redes.nanoFiles.util;
+
+/**
+ * Filtro de Bloom de hashes de ficheros, con el que un peer con una biblioteca
+ * muy grande resume en el directorio qué ficheros comparte (ver
+ * DirectoryConnector.publishLocalFiles). Responde "quizá" para todos los
+ * ficheros añadidos y, con una probabilidad pequeña (falso positivo), también
+ * para otros: el peer debe confirmar que tiene el fichero antes de descargarlo.
+ *
+ * Como los hashes de los ficheros son SHA-1, ya están repartidos de manera
+ * uniforme: las posiciones de cada hash en el filtro se obtienen de sus
+ * primeros 128 bits por doble hashing (h1 + i * h2), sin calcular otros
+ * hashes.
+ */
+public class BloomFilter {
+	/**
+	 * Bits por fichero y número de funciones hash con los que se dimensiona el
+	 * filtro: dan una probabilidad de falso positivo de un 1%
+	 */
+	public static final int BITS_PER_FILE = 10;
+	public static final int DEFAULT_HASH_COUNT = 7;
+	/**
+	 * Longitud mínima (en caracteres hexadecimales) de los hashes que admite
+	 */
+	private static final int MIN_HASH_LENGTH = 32;
+
+	private final byte[] bits;
+	private final int numBits;
+	private final int hashCount;
+
+	/**
+	 * Crea un filtro vacío dimensionado para el número de ficheros indicado
+	 */
+	public static BloomFilter forFiles(int files) {
+		long bytes = ((long) Math.max(files, 1) * BITS_PER_FILE + 7) / 8;
+		return new BloomFilter(new byte[(int) Math.max(8, bytes)], DEFAULT_HASH_COUNT);
+	}
+
+	/**
+	 * @param bits      Los bits del filtro (se usa el array, no una copia)
+	 * @param hashCount El número de funciones hash
+	 */
+	public BloomFilter(byte[] bits, int hashCount) {
+		if (bits.length == 0 || hashCount <= 0) {
+			throw new IllegalArgumentException("Invalid Bloom filter: " + bits.length + " bytes, " + hashCount
+					+ " hashes");
+		}
+		this.bits = bits;
+		this.numBits = (bits.length >= Integer.MAX_VALUE / 8) ? Integer.MAX_VALUE : bits.length * 8;
+		this.hashCount = hashCount;
+	}
+
+	/**
+	 * Añade un hash al filtro. Los hashes que no son hexadecimales se ignoran.
+	 */
+	public void add(String hash) {
+		long[] h = split(hash);
+		if (h == null) {
+			return;
+		}
+		for (int i = 0; i < hashCount; i++) {
+			int bit = position(h, i);
+			bits[bit >>> 3] |= 1 << (bit & 7);
+		}
+	}
+
+	/**
+	 * @return Falso si el hash seguro que no se añadió al filtro, verdadero si
+	 *         probablemente sí
+	 */
+	public boolean mightContain(String hash) {
+		long[] h = split(hash);
+		return h != null && mightContain(h);
+	}
+
+	/**
+	 * Como mightContain(String), con el hash ya dividido con split, para probar
+	 * el mismo hash en muchos filtros sin volver a procesarlo
+	 */
+	public boolean mightContain(long[] h) {
+		for (int i = 0; i < hashCount; i++) {
+			int bit = position(h, i);
+			if ((bits[bit >>> 3] & (1 << (bit & 7))) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Divide un hash en los dos valores de 64 bits de los que se obtienen sus
+	 * posiciones en cualquier filtro
+	 *
+	 * @return Los dos valores, o null si el hash no es hexadecimal o es demasiado
+	 *         corto
+	 */
+	public static long[] split(String hash) {
+		if (hash == null || hash.length() < MIN_HASH_LENGTH) {
+			return null;
+		}
+		try {
+			long h1 = Long.parseUnsignedLong(hash.substring(0, 16), 16);
+			long h2 = Long.parseUnsignedLong(hash.substring(16, 32), 16) | 1; // Impar: recorre todo el filtro
+			return new long[] { h1, h2 };
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private int position(long[] h, int i) {
+		return (int) Long.remainderUnsigned(h[0] + i * h[1], numBits);
+	}
+
+	/**
+	 * @return Los bits del filtro (el array interno, no una copia)
+	 */
+	public byte[] getBits() {
+		return bits;
+	}
+
+	public int getHashCount() {
+		return hashCount;
+	}
+
+	/**
+	 * @return La fracción de bits a 1, de la que depende la probabilidad de falso
+	 *         positivo (esa fracción elevada a hashCount)
+	 */
+	public double getFillRatio() {
+		long set = 0;
+		for (byte b : bits) {
+			set += Integer.bitCount(b & 0xFF);
+		}
+		return (double) set / numBits;
+	}
+}
@@ -0,0 +1,41 @@
+package es.um.redes.nanoFiles.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Conjunto de búferes de un mismo tamaño, compartido entre hilos, para
+ * reutilizar los búferes grandes de los caminos críticos (ver ObjectPool).
+ * Como mucho se guardan maxIdle búferes libres: los que sobran se dejan al
+ * recolector.
+ */
+public class BufferPool extends ObjectPool<ByteBuffer> {
+	private final int bufferSize;
+
+	/**
+	 * @param bufferSize Capacidad de cada búfer
+	 * @param maxIdle    Número máximo de búferes libres que se guardan
+	 * @param direct     Si los búferes se reservan fuera del heap
+	 *                   (ByteBuffer.allocateDirect), para los canales
+	 */
+	public BufferPool(int bufferSize, int maxIdle, boolean direct) {
+		super(() -> direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize), null,
+				maxIdle);
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * @return Un búfer vacío (posición 0, límite en la capacidad) para uso
+	 *         exclusivo de quien lo pide hasta que lo devuelva con release
+	 */
+	@Override
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = super.acquire();
+		buffer.clear();
+		return buffer;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + " buffers of " + bufferSize + " bytes";
+	}
+}
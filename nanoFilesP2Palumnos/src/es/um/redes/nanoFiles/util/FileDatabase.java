@@ -5,19 +5,29 @@ import java.util.Map;
 
 public class FileDatabase {
 
-	private Map<String, FileInfo> files;
+	private volatile Map<String, FileInfo> files;
+	private String sharedFolder;
 
 	public FileDatabase(String sharedFolder) {
 		File theDir = new File(sharedFolder);
 		if (!theDir.exists()){
 		    theDir.mkdirs();
 		}
+		this.sharedFolder = sharedFolder;
 		this.files = FileInfo.loadFileMapFromFolder(new File(sharedFolder));
 		if (files.size() == 0) {
 			System.err.println("*WARNING: No files found in folder "+sharedFolder);
 		}
 	}
 
+	/**
+	 * Vuelve a leer la carpeta compartida, para tener en cuenta los ficheros
+	 * añadidos o eliminados desde que se cargó
+	 */
+	public void refresh() {
+		this.files = FileInfo.loadFileMapFromFolder(new File(sharedFolder));
+	}
+
 	public FileInfo[] getFiles() {
 		FileInfo[] fileinfoarray = new FileInfo[files.size()];
 		int numFiles = 0;
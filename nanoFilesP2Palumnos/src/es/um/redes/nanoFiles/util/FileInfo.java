@@ -1,6 +1,7 @@
 package es.um.redes.nanoFiles.util;
 
 import java.io.File;
+import java.net.InetSocketAddress;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -13,6 +14,25 @@ public class FileInfo {
 	public String fileName;
 	public String filePath;
 	public long fileSize = -1;
+	/**
+	 * Nicknames de los servidores que comparten el fichero (sólo en los ficheros
+	 * obtenidos del directorio; null en los ficheros locales)
+	 */
+	public String[] servers;
+	/**
+	 * Direcciones (IP:puerto) de los servidores que comparten el fichero, tal como
+	 * las conoce el directorio (sólo en los ficheros obtenidos con
+	 * DirectoryConnector.locateFile)
+	 */
+	public InetSocketAddress[] serverAddresses;
+	/**
+	 * Servidores que quizá comparten el fichero, según el filtro de Bloom con el
+	 * que publican su biblioteca (ver DirectoryConnector.locateFile): nicknames y
+	 * direcciones en el mismo orden. Hay que confirmar con cada uno que tiene el
+	 * fichero antes de descargarlo.
+	 */
+	public String[] candidates;
+	public InetSocketAddress[] candidateAddresses;
 
 	public FileInfo(String hash, String name, long size, String path) {
 		fileHash = hash;
@@ -24,6 +44,39 @@ public class FileInfo {
 	public FileInfo() {
 	}
 
+	/**
+	 * @return La descripción del fichero en las listas de ficheros de los mensajes
+	 *         del directorio, tras el hash: "nombre,tamaño" (o sólo "nombre" si no
+	 *         se conoce el tamaño)
+	 */
+	public String toDescriptor() {
+		return toDescriptor(fileName, fileSize);
+	}
+
+	public static String toDescriptor(String name, long size) {
+		return (size >= 0) ? name + "," + size : name;
+	}
+
+	/**
+	 * Construye un fichero a partir de su hash y su descripción "nombre,tamaño". El
+	 * nombre puede contener comas, y el tamaño puede faltar (mensajes de clientes
+	 * que no lo envían), en cuyo caso queda en -1.
+	 */
+	public static FileInfo fromDescriptor(String hash, String descriptor) {
+		int idx = descriptor.lastIndexOf(',');
+		if (idx >= 0 && idx < descriptor.length() - 1 && idx >= descriptor.length() - 19) {
+			int i = idx + 1;
+			while (i < descriptor.length() && descriptor.charAt(i) >= '0' && descriptor.charAt(i) <= '9') {
+				i++;
+			}
+			if (i == descriptor.length()) {
+				return new FileInfo(hash, descriptor.substring(0, idx), Long.parseLong(descriptor.substring(idx + 1)),
+						null);
+			}
+		}
+		return new FileInfo(hash, descriptor, -1, null);
+	}
+
 	public String toString() {
 		StringBuffer strBuf = new StringBuffer();
 
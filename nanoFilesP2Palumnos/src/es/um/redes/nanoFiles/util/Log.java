@@ -0,0 +1,230 @@
+package es.um.redes.nanoFiles.util;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Registro de mensajes asíncrono y con niveles, para los caminos críticos del
+ * directorio y del servidor de ficheros. Quien registra un mensaje sólo lo deja
+ * en un búfer circular (sin cerrojos: un compare-and-set para reservar la
+ * posición), y un hilo escritor en segundo plano lo imprime por la salida
+ * estándar (niveles DEBUG e INFO) o la de error (WARN y ERROR), agrupando la
+ * escritura de todos los mensajes pendientes.
+ *
+ * Si el búfer está lleno, quien registra espera a que el escritor libere sitio
+ * (no se pierde ningún mensaje), salvo que se active el modo de descarte: en
+ * ese caso el mensaje se descarta, y el escritor avisa después de cuántos se
+ * han perdido. Los mensajes pendientes se escriben al terminar el programa.
+ *
+ * Los mensajes de un nivel desactivado no llegan al búfer; si construirlos es
+ * costoso, conviene comprobar antes isEnabled.
+ */
+public class Log {
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR, OFF
+	}
+
+	/**
+	 * Capacidad del búfer circular (potencia de dos)
+	 */
+	public static final int CAPACITY = 8192;
+	private static final int MASK = CAPACITY - 1;
+	/**
+	 * Tiempo máximo que se espera al terminar el programa a que se escriban los
+	 * mensajes pendientes
+	 */
+	private static final long FLUSH_TIMEOUT_NANOS = 1000000000L;
+
+	private static volatile Level level = Level.INFO;
+	private static volatile boolean dropWhenFull = false;
+
+	/*
+	 * Búfer circular de múltiples productores y un solo consumidor (el escritor).
+	 * Cada posición tiene un número de secuencia: vale p cuando está libre para el
+	 * mensaje número p, y p + 1 cuando ese mensaje ya está escrito en ella.
+	 */
+	private static final String[] messages = new String[CAPACITY];
+	private static final Level[] levels = new Level[CAPACITY];
+	private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+	/**
+	 * Número del siguiente mensaje que se registrará
+	 */
+	private static final AtomicLong tail = new AtomicLong();
+	/**
+	 * Número del siguiente mensaje que escribirá el escritor (sólo lo modifica él)
+	 */
+	private static volatile long head = 0;
+	/**
+	 * Número de mensajes ya escritos y volcados a la salida
+	 */
+	private static volatile long flushed = 0;
+	private static final LongAdder dropped = new LongAdder();
+
+	private static final Thread writer;
+	private static volatile boolean writerParked = false;
+
+	static {
+		for (int i = 0; i < CAPACITY; i++) {
+			sequences.set(i, i);
+		}
+		writer = new Thread(Log::writeLoop, "nanoFiles-log");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(Log::flush));
+	}
+
+	public static void setLevel(Level newLevel) {
+		level = newLevel;
+	}
+
+	public static Level getLevel() {
+		return level;
+	}
+
+	/**
+	 * @param drop Si se descartan los mensajes cuando el búfer está lleno, en vez
+	 *             de esperar a que haya sitio
+	 */
+	public static void setDropWhenFull(boolean drop) {
+		dropWhenFull = drop;
+	}
+
+	public static boolean isEnabled(Level msgLevel) {
+		return msgLevel.compareTo(level) >= 0 && msgLevel != Level.OFF;
+	}
+
+	public static void debug(String msg) {
+		log(Level.DEBUG, msg);
+	}
+
+	public static void info(String msg) {
+		log(Level.INFO, msg);
+	}
+
+	public static void warn(String msg) {
+		log(Level.WARN, msg);
+	}
+
+	public static void error(String msg) {
+		log(Level.ERROR, msg);
+	}
+
+	/**
+	 * @return Número de mensajes descartados por estar lleno el búfer
+	 */
+	public static long getDropped() {
+		return dropped.sum();
+	}
+
+	public static void log(Level msgLevel, String msg) {
+		if (!isEnabled(msgLevel)) {
+			return;
+		}
+		long pos = tail.get();
+		int index;
+		while (true) {
+			index = (int) pos & MASK;
+			long diff = sequences.get(index) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+				pos = tail.get();
+			} else if (diff < 0) {
+				// Búfer lleno: el escritor no ha liberado aún esta posición
+				if (dropWhenFull) {
+					dropped.increment();
+					return;
+				}
+				wakeWriter();
+				LockSupport.parkNanos(10000);
+				pos = tail.get();
+			} else {
+				// Otro hilo ha reservado ya esta posición
+				pos = tail.get();
+			}
+		}
+		messages[index] = msg;
+		levels[index] = msgLevel;
+		sequences.set(index, pos + 1);
+		if (writerParked) {
+			wakeWriter();
+		}
+	}
+
+	private static void wakeWriter() {
+		writerParked = false;
+		LockSupport.unpark(writer);
+	}
+
+	/**
+	 * Espera (como mucho FLUSH_TIMEOUT_NANOS) a que se escriban todos los mensajes
+	 * registrados hasta ahora
+	 */
+	public static void flush() {
+		long target = tail.get();
+		long deadline = System.nanoTime() + FLUSH_TIMEOUT_NANOS;
+		while (flushed < target && System.nanoTime() - deadline < 0) {
+			wakeWriter();
+			LockSupport.parkNanos(100000);
+		}
+	}
+
+	private static void writeLoop() {
+		OutputStream out = new FileOutputStream(FileDescriptor.out);
+		OutputStream err = new FileOutputStream(FileDescriptor.err);
+		/*
+		 * Los mensajes pendientes de cada salida se juntan en un único texto, que se
+		 * escribe con una sola llamada al sistema
+		 */
+		StringBuilder outBatch = new StringBuilder(1 << 16);
+		StringBuilder errBatch = new StringBuilder(1 << 12);
+		String newLine = System.lineSeparator();
+		long reportedDrops = 0;
+		long pos = head;
+		while (true) {
+			int index = (int) pos & MASK;
+			while (sequences.get(index) == pos + 1 && outBatch.length() + errBatch.length() < (1 << 16)) {
+				(levels[index].compareTo(Level.WARN) >= 0 ? errBatch : outBatch).append(messages[index]).append(newLine);
+				messages[index] = null;
+				sequences.set(index, pos + CAPACITY);
+				head = ++pos;
+				index = (int) pos & MASK;
+			}
+			long drops = dropped.sum();
+			if (drops != reportedDrops) {
+				errBatch.append("[log] " + (drops - reportedDrops) + " messages dropped (buffer full)" + newLine);
+				reportedDrops = drops;
+			}
+			if (outBatch.length() > 0 || errBatch.length() > 0) {
+				write(out, outBatch);
+				write(err, errBatch);
+				flushed = pos;
+				continue;
+			}
+			// No hay mensajes: se duerme hasta que alguien registre uno
+			writerParked = true;
+			if (sequences.get(index) != pos + 1) {
+				LockSupport.parkNanos(100000000L);
+			}
+			writerParked = false;
+		}
+	}
+
+	private static void write(OutputStream stream, StringBuilder batch) {
+		if (batch.length() > 0) {
+			try {
+				stream.write(batch.toString().getBytes());
+			} catch (IOException e) {
+				// No hay dónde informar del error: los mensajes se pierden
+			}
+			batch.setLength(0);
+		}
+	}
+}
@@ -0,0 +1,615 @@
+package es.um.redes.nanoFiles.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Emulador de las condiciones de un enlace real (al estilo de netem) para
+ * probar en localhost cómo se comportan las retransmisiones del directorio y
+ * las descargas entre peers: retardo, jitter, reordenación, duplicación, ancho
+ * de banda limitado y pérdidas, uniformes o a ráfagas según el modelo de
+ * Gilbert-Elliott. Se configura con una cadena (ver parse), p.ej.
+ * "delay=40,jitter=10,rate=2000,ge=0.01:0.3".
+ *
+ * Cada extremo degrada lo que envía: el directorio sus datagramas (opción
+ * -impair de Directory) y los peers los suyos y lo que envían por TCP (opción
+ * -impair de NanoFiles, que establece la configuración del proceso con
+ * setCurrent). Para degradar los dos sentidos se configuran los dos extremos;
+ * el tiempo de ida y vuelta es entonces la suma de sus retardos. Todo lo que
+ * envía un proceso pasa por el mismo enlace (getLink), como por el enlace de
+ * acceso de una máquina: comparten el estado de las pérdidas, el ancho de
+ * banda y la cola.
+ *
+ * Los datagramas (Link.send) se pierden, duplican, retrasan o adelantan de
+ * forma independiente. En un flujo TCP (wrap) el orden se mantiene y no hay
+ * duplicados, como haría TCP: un segmento perdido llega tras un tiempo de
+ * retransmisión, y mientras tanto retiene a los siguientes. El flujo admite
+ * como mucho TCP_WINDOW_BYTES pendientes de entregar, así que el retardo
+ * limita su rendimiento igual que la ventana de TCP.
+ */
+public class NetImpairment {
+	/**
+	 * Tamaño de los segmentos en que se divide un flujo TCP
+	 */
+	public static final int TCP_SEGMENT_SIZE = 1460;
+	/**
+	 * Datos de un flujo TCP pendientes de entregar, por encima de los cuales quien
+	 * escribe espera (ventana de emisión)
+	 */
+	public static final int TCP_WINDOW_BYTES = 256 * 1024;
+	/**
+	 * Un segmento TCP perdido se retransmite tras un tiempo de ida y vuelta (el
+	 * doble del retardo, como la retransmisión rápida tras recibir ACKs
+	 * duplicados); si también se pierde la retransmisión, tras el tiempo de
+	 * retransmisión, como mínimo TCP_MIN_RTO_MS (el mínimo de Linux), que se
+	 * duplica con cada retransmisión perdida, hasta TCP_MAX_RETRANSMISSIONS.
+	 */
+	private static final long TCP_MIN_RTO_MS = 200;
+	private static final int TCP_MAX_RETRANSMISSIONS = 6;
+	/**
+	 * Tiempo sin datos tras el cual termina el hilo que entrega los de un flujo TCP
+	 */
+	private static final long TCP_IDLE_MS = 1000;
+	/**
+	 * Cola por defecto del enlace con ancho de banda limitado: los datagramas que
+	 * llegan con la cola llena se descartan
+	 */
+	public static final int DEFAULT_QUEUE_KIB = 1024;
+
+	private static volatile NetImpairment current = null;
+	private static ScheduledExecutorService scheduler = null;
+
+	private double delayMs = 0;
+	private double jitterMs = 0;
+	private double reorder = 0;
+	private double duplicate = 0;
+	/**
+	 * Ancho de banda en kbit/s (0 sin límite)
+	 */
+	private double rateKbps = 0;
+	private long queueBytes = DEFAULT_QUEUE_KIB * 1024L;
+	/*
+	 * Modelo de Gilbert-Elliott: en el estado bueno se pierde cada paquete con
+	 * probabilidad lossGood, y se pasa al malo con probabilidad goodToBad; en el
+	 * malo, se pierde con lossBad y se vuelve al bueno con badToGood. Las pérdidas
+	 * uniformes son el caso con goodToBad 0.
+	 */
+	private double lossGood = 0;
+	private double goodToBad = 0;
+	private double badToGood = 1;
+	private double lossBad = 1;
+
+	private final String spec;
+	private final Link link = new Link();
+
+	private NetImpairment(String spec) {
+		this.spec = spec;
+	}
+
+	/**
+	 * Interpreta una configuración "clave=valor,clave=valor...". Las claves son:
+	 * delay (ms), jitter (ms, se suma o resta al retardo de cada paquete de forma
+	 * uniforme), reorder (probabilidad de que un paquete se envíe sin retardo,
+	 * adelantando a los anteriores), duplicate (probabilidad de enviarlo dos
+	 * veces), rate (ancho de banda en kbit/s), queue (cola del enlace en KiB),
+	 * loss (probabilidad de pérdida uniforme) y ge (pérdidas a ráfagas:
+	 * p:r[:pérdida en el estado malo[:pérdida en el bueno]], con p y r las
+	 * probabilidades de pasar al estado malo y de volver al bueno). Las
+	 * probabilidades admiten el sufijo %.
+	 *
+	 * @throws IllegalArgumentException Si la configuración no es válida
+	 */
+	public static NetImpairment parse(String spec) {
+		NetImpairment impairment = new NetImpairment(spec);
+		for (String entry : spec.split(",")) {
+			int equals = entry.indexOf('=');
+			if (equals < 0) {
+				throw new IllegalArgumentException("Missing value in " + entry);
+			}
+			String key = entry.substring(0, equals).trim().toLowerCase();
+			String value = entry.substring(equals + 1).trim();
+			switch (key) {
+			case "delay":
+				impairment.delayMs = parseNonNegative(value);
+				break;
+			case "jitter":
+				impairment.jitterMs = parseNonNegative(value);
+				break;
+			case "reorder":
+				impairment.reorder = parseProbability(value);
+				break;
+			case "duplicate":
+				impairment.duplicate = parseProbability(value);
+				break;
+			case "rate":
+				impairment.rateKbps = parseNonNegative(value);
+				break;
+			case "queue":
+				impairment.queueBytes = (long) (parseNonNegative(value) * 1024);
+				break;
+			case "loss":
+				impairment.lossGood = parseProbability(value);
+				break;
+			case "ge": {
+				String[] params = value.split(":");
+				if (params.length < 2 || params.length > 4) {
+					throw new IllegalArgumentException("ge needs p:r[:lossBad[:lossGood]]");
+				}
+				impairment.goodToBad = parseProbability(params[0]);
+				impairment.badToGood = parseProbability(params[1]);
+				if (params.length > 2) {
+					impairment.lossBad = parseProbability(params[2]);
+				}
+				if (params.length > 3) {
+					impairment.lossGood = parseProbability(params[3]);
+				}
+				break;
+			}
+			default:
+				throw new IllegalArgumentException("Unknown impairment " + key);
+			}
+		}
+		return impairment;
+	}
+
+	private static double parseNonNegative(String value) {
+		double d = Double.parseDouble(value);
+		if (!(d >= 0) || Double.isInfinite(d)) {
+			throw new IllegalArgumentException("Invalid value " + value);
+		}
+		return d;
+	}
+
+	private static double parseProbability(String value) {
+		double p = value.endsWith("%") ? parseNonNegative(value.substring(0, value.length() - 1)) / 100
+				: parseNonNegative(value);
+		if (p > 1) {
+			throw new IllegalArgumentException("Invalid probability " + value);
+		}
+		return p;
+	}
+
+	/**
+	 * Establece la configuración de este proceso, que usan los conectores del
+	 * directorio y los flujos TCP entre peers que se creen a partir de ahora
+	 * (null para no degradar nada)
+	 */
+	public static void setCurrent(NetImpairment impairment) {
+		current = impairment;
+	}
+
+	public static NetImpairment getCurrent() {
+		return current;
+	}
+
+	/**
+	 * @return El enlace con la configuración de este proceso, o null si no hay
+	 */
+	public static Link currentLink() {
+		NetImpairment impairment = current;
+		return (impairment == null) ? null : impairment.link;
+	}
+
+	/**
+	 * @return El flujo de salida out degradado según la configuración de este
+	 *         proceso, o el propio out si no hay
+	 */
+	public static OutputStream wrapCurrent(OutputStream out) {
+		NetImpairment impairment = current;
+		return (impairment == null) ? out : impairment.wrap(out);
+	}
+
+	/**
+	 * @return El enlace con esta configuración
+	 */
+	public Link getLink() {
+		return link;
+	}
+
+	/**
+	 * @return Un flujo que entrega en out lo que se escribe en él, degradado como
+	 *         un flujo TCP por el enlace con esta configuración
+	 */
+	public OutputStream wrap(OutputStream out) {
+		return new ImpairedOutputStream(out, link);
+	}
+
+	private static synchronized ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+				Thread thread = new Thread(r, "net-impairment");
+				thread.setDaemon(true);
+				return thread;
+			});
+			executor.setRemoveOnCancelPolicy(true);
+			scheduler = executor;
+		}
+		return scheduler;
+	}
+
+	@Override
+	public String toString() {
+		return spec;
+	}
+
+	/**
+	 * Envía un datagrama (lo usa Link.send, que puede enviarlo más tarde desde
+	 * otro hilo)
+	 */
+	public interface Sender {
+		void send(ByteBuffer data) throws IOException;
+	}
+
+	/**
+	 * El enlace degradado por el que envía un proceso: su estado de
+	 * Gilbert-Elliott, su cola y sus contadores. Puede usarse desde varios hilos a
+	 * la vez.
+	 */
+	public class Link {
+		private boolean bad = false;
+		/**
+		 * Instante (System.nanoTime) en que el enlace termina de transmitir lo que
+		 * tiene en cola
+		 */
+		private long linkFree = System.nanoTime();
+
+		private final LongAdder packets = new LongAdder();
+		private final LongAdder lost = new LongAdder();
+		private final LongAdder queueDrops = new LongAdder();
+		private final LongAdder duplicated = new LongAdder();
+		private final LongAdder reordered = new LongAdder();
+
+		private Link() {
+		}
+
+		/**
+		 * Aplica el modelo de Gilbert-Elliott a un paquete (con el cerrojo del
+		 * enlace)
+		 *
+		 * @return Si el paquete se pierde
+		 */
+		private boolean lose(ThreadLocalRandom random) {
+			boolean loss = random.nextDouble() < (bad ? lossBad : lossGood);
+			if (bad ? random.nextDouble() < badToGood : random.nextDouble() < goodToBad) {
+				bad = !bad;
+			}
+			return loss;
+		}
+
+		/**
+		 * @return La probabilidad de pérdida a largo plazo del modelo (según el
+		 *         tiempo que se pasa en cada estado)
+		 */
+		private double averageLoss() {
+			if (goodToBad + badToGood == 0) {
+				return bad ? lossBad : lossGood;
+			}
+			double badShare = goodToBad / (goodToBad + badToGood);
+			return badShare * lossBad + (1 - badShare) * lossGood;
+		}
+
+		/**
+		 * @return Lo que tarda el enlace en transmitir length bytes, en ns
+		 */
+		private long transmission(int length) {
+			return (rateKbps > 0) ? (long) (length * 8e6 / rateKbps) : 0;
+		}
+
+		/**
+		 * @return Un retardo aleatorio (retardo más jitter), en ns
+		 */
+		private long delay(ThreadLocalRandom random) {
+			double ms = delayMs;
+			if (jitterMs > 0) {
+				ms += (random.nextDouble() * 2 - 1) * jitterMs;
+			}
+			return (long) (Math.max(ms, 0) * 1e6);
+		}
+
+		/**
+		 * Envía un datagrama por el enlace: puede perderse, enviarse dos veces o
+		 * enviarse más tarde desde el hilo del emulador (en ese caso se copian los
+		 * datos, de la posición al límite del búfer, que puede reutilizarse en
+		 * cuanto vuelve este método).
+		 */
+		public void send(ByteBuffer data, Sender sender) throws IOException {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			long now = System.nanoTime();
+			long release;
+			long duplicateRelease = -1;
+			packets.increment();
+			synchronized (this) {
+				if (lose(random)) {
+					lost.increment();
+					return;
+				}
+				long sent = now;
+				if (rateKbps > 0) {
+					long start = Math.max(now, linkFree);
+					if ((start - now) * rateKbps / 8e6 > queueBytes) {
+						queueDrops.increment();
+						return;
+					}
+					sent = start + transmission(data.remaining());
+					linkFree = sent;
+				}
+				if (random.nextDouble() < reorder) {
+					release = sent;
+					reordered.increment();
+				} else {
+					release = sent + delay(random);
+				}
+				if (random.nextDouble() < duplicate) {
+					duplicateRelease = sent + delay(random);
+					duplicated.increment();
+				}
+			}
+			ByteBuffer copy = null;
+			if (release > now || duplicateRelease > now) {
+				copy = ByteBuffer.allocate(data.remaining());
+				copy.put(data.duplicate()).flip();
+			}
+			schedule(release, now, (release > now) ? copy : data, sender);
+			if (duplicateRelease >= 0) {
+				schedule(duplicateRelease, now, (duplicateRelease > now) ? copy : data.duplicate(), sender);
+			}
+		}
+
+		private void schedule(long release, long now, ByteBuffer data, Sender sender) throws IOException {
+			if (release <= now) {
+				sender.send(data.duplicate());
+				return;
+			}
+			getScheduler().schedule(() -> {
+				try {
+					sender.send(data.duplicate());
+				} catch (IOException e) {
+					Log.warn("Impaired link cannot send delayed datagram: " + e.getMessage());
+				}
+			}, release - now, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * @return El instante (System.nanoTime) en que se entrega un segmento TCP de
+		 *         length bytes que se escribe ahora: tras transmitirlo y el retardo,
+		 *         más un tiempo de retransmisión si se pierde
+		 */
+		private synchronized long releaseSegment(int length, long now) {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			packets.increment();
+			long sent = Math.max(now, linkFree) + transmission(length);
+			linkFree = sent;
+			long release = sent + delay(random);
+			long rtt = (long) (2 * delayMs * 1e6);
+			long rto = Math.max(TCP_MIN_RTO_MS * 1000000, 2 * rtt);
+			/*
+			 * La retransmisión sale bastante después que el original, con el enlace en
+			 * otro estado: se pierde con la probabilidad media de pérdida
+			 */
+			for (int i = 0; i < TCP_MAX_RETRANSMISSIONS
+					&& (i == 0 ? lose(random) : random.nextDouble() < averageLoss()); i++) {
+				lost.increment();
+				if (i == 0) {
+					release += rtt + transmission(length);
+				} else {
+					release += rto;
+					rto *= 2;
+				}
+			}
+			return release;
+		}
+
+		@Override
+		public String toString() {
+			return spec + ": " + packets.sum() + " packets, " + lost.sum() + " lost, " + queueDrops.sum()
+					+ " queue drops, " + duplicated.sum() + " duplicated, " + reordered.sum() + " reordered";
+		}
+	}
+
+	/**
+	 * Flujo TCP degradado: lo escrito se agrupa en segmentos, y un hilo los
+	 * entrega en orden al flujo real cuando les toca según el enlace. Un segmento
+	 * se cierra al llenarse, con flush o cuando pasa TCP_CORK_NANOS sin que se
+	 * escriba nada más (como hace el sistema), para que los campos de un mensaje
+	 * escritos uno a uno no viajen en segmentos separados.
+	 */
+	private static class ImpairedOutputStream extends OutputStream {
+		private static final long TCP_CORK_NANOS = 200000;
+
+		private static class Segment {
+			private final byte[] data;
+			private final long release;
+
+			private Segment(byte[] data, long release) {
+				this.data = data;
+				this.release = release;
+			}
+		}
+
+		private final OutputStream out;
+		private final Link link;
+		private final ArrayDeque<Segment> queue = new ArrayDeque<Segment>();
+		/**
+		 * Segmento en construcción
+		 */
+		private final byte[] partial = new byte[TCP_SEGMENT_SIZE];
+		private int partialLength = 0;
+		private long lastWrite = 0;
+		/**
+		 * Instante de entrega del último segmento (se entregan en orden)
+		 */
+		private long lastRelease = 0;
+		/**
+		 * Bytes escritos y aún no entregados (en la cola o en partial)
+		 */
+		private int queuedBytes = 0;
+		private IOException error = null;
+		private boolean closed = false;
+		private Thread deliverer = null;
+
+		private ImpairedOutputStream(OutputStream out, Link link) {
+			this.out = out;
+			this.link = link;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			for (int written = 0; written < len;) {
+				try {
+					while (queuedBytes >= TCP_WINDOW_BYTES && error == null) {
+						wait();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while writing to impaired stream");
+				}
+				checkOpen();
+				int length = Math.min(Math.min(TCP_SEGMENT_SIZE - partialLength, len - written),
+						TCP_WINDOW_BYTES - queuedBytes);
+				System.arraycopy(b, off + written, partial, partialLength, length);
+				partialLength += length;
+				queuedBytes += length;
+				written += length;
+				lastWrite = System.nanoTime();
+				if (partialLength == TCP_SEGMENT_SIZE) {
+					cut(lastWrite);
+				}
+			}
+			if (deliverer == null) {
+				deliverer = new Thread(this::deliver, "net-impairment-tcp");
+				deliverer.setDaemon(true);
+				deliverer.start();
+			}
+			notifyAll();
+		}
+
+		/**
+		 * Cierra el segmento en construcción y lo pone en la cola (con el cerrojo)
+		 */
+		private void cut(long now) {
+			byte[] data = new byte[partialLength];
+			System.arraycopy(partial, 0, data, 0, partialLength);
+			lastRelease = Math.max(link.releaseSegment(partialLength, now), lastRelease);
+			queue.add(new Segment(data, lastRelease));
+			partialLength = 0;
+		}
+
+		private void checkOpen() throws IOException {
+			if (error != null) {
+				throw error;
+			}
+			if (closed) {
+				throw new IOException("Impaired stream closed");
+			}
+		}
+
+		/**
+		 * Bucle del hilo que entrega los segmentos al flujo real. Si el flujo no se
+		 * usa durante TCP_IDLE_MS el hilo termina (se vuelve a lanzar al escribir),
+		 * para que no quede uno por cada socket que se cierra sin cerrar el flujo.
+		 */
+		private void deliver() {
+			while (true) {
+				Segment segment;
+				synchronized (this) {
+					try {
+						long now = System.nanoTime();
+						if (queue.isEmpty() && partialLength > 0) {
+							long corked = lastWrite + TCP_CORK_NANOS - now;
+							if (corked > 0 && !closed) {
+								TimeUnit.NANOSECONDS.timedWait(this, corked);
+								continue;
+							}
+							cut(now);
+						}
+						if (queue.isEmpty()) {
+							if (!closed) {
+								wait(TCP_IDLE_MS);
+							}
+							if (queue.isEmpty() && partialLength == 0) {
+								deliverer = null;
+								return;
+							}
+							continue;
+						}
+						segment = queue.peek();
+						long wait = segment.release - now;
+						if (wait > 0) {
+							TimeUnit.NANOSECONDS.timedWait(this, wait);
+							continue;
+						}
+					} catch (InterruptedException e) {
+						deliverer = null;
+						return;
+					}
+				}
+				try {
+					out.write(segment.data);
+					out.flush();
+				} catch (IOException e) {
+					synchronized (this) {
+						error = e;
+						queue.clear();
+						partialLength = 0;
+						queuedBytes = 0;
+						deliverer = null;
+						notifyAll();
+					}
+					return;
+				}
+				synchronized (this) {
+					queue.poll();
+					queuedBytes -= segment.data.length;
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Cierra el segmento en construcción, pero no espera a que se entregue (como
+		 * el flush de un socket, que sólo pasa los datos al sistema)
+		 */
+		@Override
+		public synchronized void flush() throws IOException {
+			checkOpen();
+			if (partialLength > 0) {
+				cut(System.nanoTime());
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Espera a que se entregue lo escrito y cierra el flujo real
+		 */
+		@Override
+		public void close() throws IOException {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				notifyAll();
+				try {
+					while (queuedBytes > 0 && error == null && deliverer != null) {
+						wait();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package es.um.redes.nanoFiles.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Conjunto de objetos reutilizables (búferes, compresores...), compartido entre
+ * hilos, para no crear uno por mensaje ni guardar uno en cada hilo (con un hilo
+ * virtual por petición, un objeto por hilo es un objeto por petición).
+ *
+ * acquire devuelve un objeto libre, o uno nuevo si no queda ninguno, y release
+ * lo devuelve al conjunto. Como mucho se guardan maxIdle objetos libres: los
+ * que sobran se descartan, de modo que la memoria retenida está acotada aunque
+ * haya picos de hilos.
+ */
+public class ObjectPool<T> {
+	private final Supplier<T> factory;
+	/**
+	 * Se llama con los objetos que se descartan por sobrar (p.ej. para liberar la
+	 * memoria nativa de un Deflater), o null si basta con el recolector
+	 */
+	private final Consumer<T> discard;
+	private final int maxIdle;
+	private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<T>();
+	/**
+	 * Objetos en idle (ConcurrentLinkedQueue.size recorre la cola)
+	 */
+	private final AtomicInteger idleCount = new AtomicInteger();
+
+	/**
+	 * @param factory Crea un objeto nuevo cuando no queda ninguno libre
+	 * @param discard Libera un objeto que sobra, o null
+	 * @param maxIdle Número máximo de objetos libres que se guardan
+	 */
+	public ObjectPool(Supplier<T> factory, Consumer<T> discard, int maxIdle) {
+		this.factory = factory;
+		this.discard = discard;
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * @return Un objeto para uso exclusivo de quien lo pide hasta que lo devuelva
+	 *         con release
+	 */
+	public T acquire() {
+		T object = idle.poll();
+		if (object == null) {
+			return factory.get();
+		}
+		idleCount.decrementAndGet();
+		return object;
+	}
+
+	/**
+	 * Devuelve un objeto obtenido con acquire, que no debe usarse después
+	 */
+	public void release(T object) {
+		if (idleCount.incrementAndGet() <= maxIdle) {
+			idle.offer(object);
+		} else {
+			idleCount.decrementAndGet();
+			if (discard != null) {
+				discard.accept(object);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return idleCount.get() + "/" + maxIdle + " idle";
+	}
+}